@@ -0,0 +1,57 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost the admission control adds to a request that finds a free permit:
+ * taking it, and returning it with a latency sample that may adjust the
+ * limit. The limit is far above the number of threads, so nothing queues;
+ * with 32 threads every permit contends on the same counters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdmissionControlBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final AdmissionControl admission = new AdmissionControl(1000, 1000);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Request request = new Request();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean single(Shared shared, Client client) {
+        return admitAndRelease(shared.admission, client.request);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public boolean contended(Shared shared, Client client) {
+        return admitAndRelease(shared.admission, client.request);
+    }
+
+    private static boolean admitAndRelease(AdmissionControl admission, Request request) {
+        boolean admitted = admission.tryAcquire(request);
+        admission.release(request, StatusCodes.OK);
+        return admitted;
+    }
+}
@@ -0,0 +1,91 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of compressing JSON bodies of typical sizes, against the bytes
+ * saved; the compressed size is printed at the end of each trial.
+ * {@code cached} sends the same body every time, so after the first
+ * request it measures a cache hit. Run with {@code -prof gc} to see that
+ * the deflaters are pooled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1024", "8192", "65536"})
+    public int bodySize;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private Compression compression;
+    private Compression cachedCompression;
+    private Request request;
+    private byte[] body;
+    private long compressedSize;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        compression = new Compression().level(level);
+        cachedCompression = new Compression().level(level).cache(64, 1 << 20);
+        request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.addHeader("Accept-Encoding", "gzip, deflate, br");
+
+        // Records shaped like a typical API listing
+        StringBuilder json = new StringBuilder("[");
+        for (int id = 0; json.length() < bodySize; id++) {
+            json.append("{\"id\":").append(id)
+                    .append(",\"name\":\"user").append(id * 7919 % 10007)
+                    .append("\",\"email\":\"user").append(id).append("@example.com\"")
+                    .append(",\"active\":").append(id % 3 != 0)
+                    .append(",\"score\":").append(id * 31 % 1000).append("},");
+        }
+        body = json.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.printf("%n%d bytes -> %d bytes gzip (%.0f%% saved)%n", body.length, compressedSize,
+                100.0 * (body.length - compressedSize) / body.length);
+    }
+
+    @Benchmark
+    public long gzip() {
+        return compress(compression);
+    }
+
+    @Benchmark
+    public long cached() {
+        return compress(cachedCompression);
+    }
+
+    private long compress(Compression compression) {
+        Response response = new Response();
+        response.json();
+        response.send(body);
+        compression.apply(request, response);
+        compressedSize = response.getBodyLength();
+        return compressedSize;
+    }
+}
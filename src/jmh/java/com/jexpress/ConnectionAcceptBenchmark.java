@@ -0,0 +1,99 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * New connections accepted per second as the number of acceptors grows.
+ * Each benchmark thread opens a connection, sends one request with
+ * {@code Connection: close}, reads the response until the server closes
+ * it and starts over, so every operation is one accept. The client sets
+ * {@code SO_LINGER} to 0 so that loopback ports are not used up by
+ * {@code TIME_WAIT}. Scaling needs as many cores as acceptors, plus some
+ * for the clients.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class ConnectionAcceptBenchmark {
+    private static final byte[] REQUEST = ("GET /ping HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Connection: close\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"1", "2", "4"})
+        public int acceptors;
+
+        @Param({"blocking", "nio"})
+        public String mode;
+
+        private JExpress app;
+        InetSocketAddress address;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            app = JExpress.create().listen(0).acceptors(acceptors);
+            if (mode.equals("nio")) {
+                app.nio();
+            }
+            app.getRouter().get("/ping", (req, res) -> res.json("{}"));
+            Thread server = new Thread(app::start, "benchmark-server");
+            server.setDaemon(true);
+            server.start();
+            app.ready().get(10, TimeUnit.SECONDS);
+            address = new InetSocketAddress("127.0.0.1", app.getPort());
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            app.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final byte[] buffer = new byte[4096];
+    }
+
+    @Benchmark
+    public int connect(Server server, Client client) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoLinger(true, 0);
+            socket.setSoTimeout(10_000);
+            socket.connect(server.address);
+            socket.getOutputStream().write(REQUEST);
+            InputStream in = socket.getInputStream();
+            int length = 0;
+            int n;
+            while ((n = in.read(client.buffer)) > 0) {
+                length += n;
+            }
+            return length;
+        }
+    }
+}
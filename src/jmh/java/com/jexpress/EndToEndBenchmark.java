@@ -0,0 +1,183 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests served by the real socket server, started in-process on a
+ * loopback port. Each benchmark thread is one client on its own keep-alive
+ * connection sending a request and reading the full response before the
+ * next, so {@code @Threads} (or {@code -t}) is the concurrency.
+ * {@code throughput} reports requests per second; {@code latency} samples
+ * every request and reports p50, p99 and p99.9 among its percentiles.
+ * The route table holds a few hundred routes, so routing, parsing and
+ * response writing are all part of the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final byte[] REQUEST = ("GET /api/resource42/items/7 HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "User-Agent: jmh\r\n"
+            + "Accept: application/json\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEAD_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close".getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"blocking", "nio"})
+        public String mode;
+
+        private JExpress app;
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            app = JExpress.create().listen(0);
+            if (mode.equals("nio")) {
+                app.nio();
+            }
+            Router router = app.getRouter();
+            for (int i = 0; i < 100; i++) {
+                router.get("/api/resource" + i, (req, res) -> res.json("[]"));
+                router.get("/api/resource" + i + "/{id}", (req, res) -> res.json("{}"));
+                router.get("/api/resource" + i + "/items/{itemId}", (req, res) ->
+                        res.json("{\"id\":" + req.getPathParam("itemId") + ",\"name\":\"item\",\"active\":true}"));
+            }
+            Thread server = new Thread(app::start, "benchmark-server");
+            server.setDaemon(true);
+            server.start();
+            app.ready().get(10, TimeUnit.SECONDS);
+            port = app.getPort();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            app.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private int port;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] buffer = new byte[16 * 1024];
+
+        @Setup(Level.Trial)
+        public void setup(Server server) throws IOException {
+            port = server.port;
+            connect();
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10_000);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Send the request and read the whole response, reconnecting when
+         * the server closes the connection after it.
+         *
+         * @return Length of the response in bytes
+         */
+        int exchange() throws IOException {
+            out.write(REQUEST);
+            int length = 0;
+            int headEnd = -1;
+            long total = Long.MAX_VALUE;
+            while (length < total) {
+                int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    throw new IOException("Connection closed after " + length + " bytes");
+                }
+                length += n;
+                if (headEnd < 0) {
+                    headEnd = indexOf(buffer, length, HEAD_END);
+                    if (headEnd >= 0) {
+                        total = headEnd + 4 + contentLength(buffer, headEnd);
+                    }
+                }
+            }
+            if (indexOf(buffer, headEnd, CONNECTION_CLOSE) >= 0) {
+                // Past maxRequestsPerConnection
+                socket.close();
+                connect();
+            }
+            return length;
+        }
+
+        private static long contentLength(byte[] head, int headEnd) throws IOException {
+            int start = indexOf(head, headEnd, CONTENT_LENGTH);
+            if (start < 0) {
+                throw new IOException("Response has no Content-Length");
+            }
+            long value = 0;
+            for (int i = start + CONTENT_LENGTH.length; head[i] >= '0' && head[i] <= '9'; i++) {
+                value = value * 10 + (head[i] - '0');
+            }
+            return value;
+        }
+
+        private static int indexOf(byte[] bytes, int length, byte[] target) {
+            outer:
+            for (int i = 0; i <= length - target.length; i++) {
+                for (int j = 0; j < target.length; j++) {
+                    if (bytes[i + j] != target[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    @Benchmark
+    public int throughput(Client client) throws IOException {
+        return client.exchange();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency(Client client) throws IOException {
+        return client.exchange();
+    }
+}
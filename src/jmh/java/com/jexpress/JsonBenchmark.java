@@ -0,0 +1,106 @@
+package com.jexpress;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON responses and request bodies through {@link JsonCodec} against the
+ * Gson-to-String path handlers used before: {@code gson.toJson} into
+ * {@link Response#json(String)}, and {@code gson.fromJson} on
+ * {@link Request#getBody()}. Responses are written by the real
+ * {@link ResponseWriter} into a discarding sink. Run with {@code -prof gc}
+ * to compare bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"1", "1000"})
+    public int users;
+
+    private final Gson gson = new Gson();
+    private final JsonCodec codec = JsonCodec.gson(gson);
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private ResponseWriter writer;
+    private Object payload;
+    private byte[] requestBody;
+    private Class<?> requestType;
+
+    public static class User {
+        int id;
+        String name;
+        String email;
+        boolean active;
+        List<String> roles;
+
+        User(int id) {
+            this.id = id;
+            this.name = "User " + id;
+            this.email = "user" + id + "@example.com";
+            this.active = id % 2 == 0;
+            this.roles = List.of("reader", "writer");
+        }
+    }
+
+    @Setup
+    public void setup() {
+        writer = new ResponseWriter();
+        List<User> list = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            list.add(new User(i));
+        }
+        payload = users == 1 ? list.get(0) : list;
+        requestBody = gson.toJson(payload).getBytes(StandardCharsets.UTF_8);
+        requestType = users == 1 ? User.class : User[].class;
+    }
+
+    @Benchmark
+    public boolean writeGsonString() throws IOException {
+        Response response = new Response();
+        response.json(gson.toJson(payload));
+        return writer.write(sink, response, true, true);
+    }
+
+    @Benchmark
+    public boolean writeCodec() throws IOException {
+        Response response = new Response();
+        response.setJsonCodec(codec, writer.bufferPool());
+        response.sendJson(payload);
+        return writer.write(sink, response, true, true);
+    }
+
+    @Benchmark
+    public Object readGsonString() {
+        Request request = new Request();
+        request.setBodyBytes(requestBody);
+        return gson.fromJson(request.getBody(), requestType);
+    }
+
+    @Benchmark
+    public Object readCodec() {
+        Request request = new Request();
+        request.setBodyBytes(requestBody);
+        request.setJsonCodec(codec);
+        return request.bodyAs(requestType);
+    }
+}
@@ -0,0 +1,60 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording one request, alone and with four threads recording
+ * into the same route, against the cost of a scrape. Run with
+ * {@code -prof gc} to see that recording allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private Metrics metrics;
+    private Router.Route route;
+
+    @Setup
+    public void setup() {
+        metrics = new Metrics();
+        Router router = new Router();
+        route = router.get("/api/users/{id}", (req, res) -> { });
+        for (int i = 0; i < 20; i++) {
+            metrics.recordRequest(router.get("/api/resource" + i + "/{id}", (req, res) -> { }),
+                    HttpMethod.GET, 200, 1000L * i);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        metrics.recordRequest(route, HttpMethod.GET, 200, 250_000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        metrics.recordRequest(route, HttpMethod.GET, 200, 250_000);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String scrape() {
+        return metrics.scrape();
+    }
+}
@@ -0,0 +1,78 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of matching a parameterized route and reading its parameters.
+ * Run with {@code -prof gc}; {@code rematchAndCompile} reproduces the
+ * original path, which matched once to find the route, then matched again
+ * and compiled a placeholder pattern to extract the values into a map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathParamsBenchmark {
+    private static final String TEMPLATE = "/api/users/{userId}/orders/{orderId}";
+    private static final String PATH = "/api/users/42/orders/1001";
+
+    private Router router;
+    private Pattern namedPattern;
+
+    @Setup
+    public void setup() {
+        router = new Router();
+        router.get("/api/users", (req, res) -> { });
+        router.get("/api/users/{userId}", (req, res) -> { });
+        router.get(TEMPLATE, (req, res) -> { });
+        namedPattern = Pattern.compile("^/api/users/(?<userId>[^/]+)/orders/(?<orderId>[^/]+)$");
+    }
+
+    @Benchmark
+    public Object singlePass() {
+        Request request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.setPath(PATH);
+        router.match(request);
+        request.getPathParam("userId");
+        return request.getPathParam("orderId");
+    }
+
+    @Benchmark
+    public Object rematchAndCompile() {
+        Request request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.setPath(PATH);
+        router.findRoute(HttpMethod.GET, PATH);
+
+        Map<String, String> pathParams = new HashMap<>();
+        Matcher matcher = namedPattern.matcher(PATH);
+        if (matcher.matches()) {
+            Matcher names = Pattern.compile("\\{([^}]+)\\}").matcher(TEMPLATE);
+            while (names.find()) {
+                String name = names.group(1);
+                pathParams.put(name, matcher.group(name));
+            }
+        }
+        pathParams.forEach(request::addPathParam);
+        request.getPathParam("userId");
+        return request.getPathParam("orderId");
+    }
+}
@@ -0,0 +1,77 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of taking a permit, for one thread and for 32 threads that either
+ * share one client's bucket, the worst case for compare-and-set
+ * contention, or each have their own. The rate is high enough that every
+ * call takes a permit and updates its bucket; {@code rejected} measures an
+ * exhausted bucket, which is only read.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Limiters {
+        final RateLimiter open = new RateLimiter(1e12, Integer.MAX_VALUE);
+        final RateLimiter exhausted = new RateLimiter(1e-3, 1);
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setup() {
+            exhausted.tryAcquire("client");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        String key;
+
+        @Setup
+        public void setup(Limiters limiters) {
+            key = "10.0.0." + limiters.threads.incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long single(Limiters limiters) {
+        return limiters.open.tryAcquire("client");
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long sharedKey(Limiters limiters) {
+        return limiters.open.tryAcquire("client");
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long distinctKeys(Limiters limiters, Client client) {
+        return limiters.open.tryAcquire(client.key);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long rejected(Limiters limiters) {
+        return limiters.exhausted.tryAcquire("client");
+    }
+}
@@ -0,0 +1,108 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A GET route that serializes a list of items, answered by its handler or
+ * from a {@link ResponseCache}: {@code uncached} runs the handler
+ * every time, {@code hit} serves the cached bytes and {@code notModified}
+ * answers a matching {@code If-None-Match} with 304. Responses are written
+ * by the real {@link ResponseWriter} into a discarding sink. Run with
+ * {@code -prof gc} to compare bytes allocated per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCacheBenchmark {
+    @Param({"10", "500"})
+    public int items;
+
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private ResponseWriter writer;
+    private Router.Route uncached;
+    private Router.Route cached;
+    private Request request;
+    private Request conditional;
+    private Response response;
+
+    public static class Item {
+        int id;
+        String name;
+        double price;
+        boolean available;
+
+        Item(int id) {
+            this.id = id;
+            this.name = "Item " + id;
+            this.price = id * 1.25;
+            this.available = id % 3 != 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        writer = new ResponseWriter();
+        List<Item> list = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            list.add(new Item(i));
+        }
+        Router router = new Router();
+        uncached = router.get("/items", (req, res) -> res.sendJson(list));
+        cached = router.get("/cached/items", (req, res) -> res.sendJson(list))
+                .cache(new ResponseCache(16 * 1024 * 1024), TimeUnit.HOURS.toMillis(1));
+
+        request = request("/cached/items");
+        response = new Response();
+        cached.invoke(request, response);
+        conditional = request("/cached/items");
+        conditional.addHeader("If-None-Match", response.getHeader("ETag"));
+        response.reset();
+    }
+
+    private static Request request(String path) {
+        Request request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.setPath(path);
+        return request;
+    }
+
+    private boolean serve(Router.Route route, Request request) throws IOException {
+        response.reset();
+        route.invoke(request, response);
+        return writer.write(sink, response, true, true);
+    }
+
+    @Benchmark
+    public boolean uncached() throws IOException {
+        return serve(uncached, request);
+    }
+
+    @Benchmark
+    public boolean hit() throws IOException {
+        return serve(cached, request);
+    }
+
+    @Benchmark
+    public boolean notModified() throws IOException {
+        return serve(cached, conditional);
+    }
+}
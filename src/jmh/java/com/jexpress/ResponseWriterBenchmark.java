@@ -0,0 +1,112 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response serialization cost. {@code stringBuilder} reproduces the
+ * previous path: the head built in a StringBuilder, encoded to a new array,
+ * and written with the body through a BufferedOutputStream. The sink counts
+ * the writes that would reach the socket, i.e. write syscalls, and prints
+ * them per response at the end of each trial. Run with {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark {
+
+    @Param({"64", "32768"})
+    public int bodySize;
+
+    private ResponseWriter writer;
+    private CountingSink sink;
+    private Response response;
+    private long responses;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        writer = new ResponseWriter();
+        sink = new CountingSink();
+        char[] body = new char[bodySize];
+        Arrays.fill(body, 'x');
+        response = new Response();
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("X-Request-Id", "3f2c9a7e-5d1b-4c8e-9a0f-1b2c3d4e5f60");
+        response.json(new String(body));
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.printf("%nsocket writes per response: %.2f%n", (double) sink.writes / responses);
+    }
+
+    @Benchmark
+    public long responseWriter() throws IOException {
+        responses++;
+        writer.write(sink, response, true, true);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long stringBuilder() throws IOException {
+        responses++;
+        OutputStream out = new BufferedOutputStream(sink, 8192);
+        byte[] body = response.getBody().getBytes(StandardCharsets.UTF_8);
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(response.getStatusCode()).append(' ')
+                .append(StatusCodes.getMessage(response.getStatusCode())).append("\r\n");
+        head.append("Content-Type: ").append(response.getContentType()).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("Connection: keep-alive\r\n");
+        for (var entry : response.getHeaders().entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+        return sink.bytes;
+    }
+
+    /**
+     * Stands in for the socket stream, counting writes instead of sending.
+     */
+    private static final class CountingSink extends OutputStream {
+        long writes;
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            writes++;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+            bytes += len;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookup cost as the route table grows. {@code linearScan} reproduces
+ * the original lookup, which ran every route's regex in registration order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int routeCount;
+
+    private Router router;
+    private List<Router.Route> routes;
+    private String[] paths;
+    private int next;
+
+    @Setup
+    public void setup() {
+        router = new Router();
+        routes = new ArrayList<>();
+        // A realistic mix: collection, item and nested item routes per resource
+        for (int i = 0; routes.size() < routeCount; i++) {
+            register("/api/resource" + i);
+            register("/api/resource" + i + "/{id}");
+            register("/api/resource" + i + "/{id}/items/{itemId}");
+        }
+        int resources = (routeCount + 2) / 3;
+        paths = new String[] {
+                "/api/resource0",
+                "/api/resource" + (resources / 2) + "/42",
+                "/api/resource" + (resources - 1) + "/42/items/7",
+                "/api/missing/route"
+        };
+    }
+
+    private void register(String path) {
+        if (routes.size() < routeCount) {
+            router.get(path, (req, res) -> { });
+            routes.add(new Router.Route(HttpMethod.GET, path, (req, res) -> { }));
+        }
+    }
+
+    @Benchmark
+    public Object tree() {
+        String path = paths[next++ & 3];
+        return router.findRoute(HttpMethod.GET, path);
+    }
+
+    @Benchmark
+    public Object linearScan() {
+        String path = paths[next++ & 3];
+        for (Router.Route route : routes) {
+            if (route.matches(HttpMethod.GET, path)) {
+                return route;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pooled request path of {@link PoolingBenchmark}, timed phase by
+ * phase as a connection does when a {@link SlowRequestLog} is set. The
+ * threshold is never reached, so {@code tracing=true} measures the probes
+ * alone. Run with {@code -prof gc} to check neither case allocates more.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracingBenchmark {
+    private static final byte[] REQUEST = ("GET /api/users/42 HTTP/1.1\r\n"
+            + "Host: api.example.com\r\n"
+            + "Accept: application/json\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"false", "true"})
+    public boolean tracing;
+
+    private JExpress app;
+    private ByteBuffer buffer;
+    private HttpParser parser;
+    private Exchange exchange;
+    private OutputStream sink;
+
+    @Setup
+    public void setup() {
+        app = JExpress.create().pooling(true);
+        if (tracing) {
+            app.slowRequestLog(new SlowRequestLog(TimeUnit.HOURS.toMillis(1), 100));
+        }
+        app.getRouter().get("/api/users/{id}", (req, res) -> res.json("{\"id\":42}"));
+        ServerConfig config = new ServerConfig();
+        config.pooling = true;
+        buffer = ByteBuffer.allocate(config.readBufferSize());
+        buffer.put(REQUEST).flip();
+        parser = new HttpParser(config);
+        exchange = new Exchange(config, "127.0.0.1");
+        sink = OutputStream.nullOutputStream();
+    }
+
+    @Benchmark
+    public boolean request() throws IOException {
+        exchange.next();
+        Request request = exchange.request();
+        RequestTrace trace = app.isTracing() ? exchange.startTrace(System.nanoTime()) : null;
+        buffer.position(0);
+        parser.reset(buffer);
+        parser.parse(buffer, request);
+        if (trace != null) {
+            trace.enter(SlowRequestLog.Phase.QUEUE, System.nanoTime(), request);
+        }
+        return app.serve(request, exchange.response(), sink, 1);
+    }
+}
@@ -0,0 +1,131 @@
+package com.jexpress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket framing: decoding a masked client frame, and sending one
+ * message to {@value #SOCKETS} connections either through
+ * {@link WebSocket#broadcast}, which encodes the frame once, or with a
+ * {@link WebSocket#send(String)} per connection, which encodes it for
+ * each. The connections queue frames nowhere, so only framing is timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketBenchmark {
+    private static final int SOCKETS = 1000;
+
+    @Param({"32", "4096"})
+    public int size;
+
+    private ByteBuffer maskedFrame;
+    private WebSocketFrames.Decoder decoder;
+    private String message;
+    private List<WebSocket> sockets;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+        maskedFrame = ByteBuffer.wrap(mask(WebSocketFrames.encode(WebSocketFrames.TEXT, payload)));
+        decoder = new WebSocketFrames.Decoder(ServerConfig.DEFAULT_MAX_WEBSOCKET_MESSAGE_SIZE);
+        message = new String(payload, StandardCharsets.UTF_8);
+
+        sockets = new ArrayList<>(SOCKETS);
+        Request handshake = new Request();
+        handshake.setPath("/live");
+        for (int i = 0; i < SOCKETS; i++) {
+            WebSocket socket = new WebSocket((s, text) -> { }, handshake);
+            socket.open(new DiscardingTransport(), Runnable::run, ServerConfig.DEFAULT_MAX_WEBSOCKET_MESSAGE_SIZE);
+            sockets.add(socket);
+        }
+    }
+
+    /**
+     * Turn a server frame into the masked frame a client would send.
+     */
+    private static byte[] mask(byte[] frame) {
+        int headerLength = frame[1] == 126 ? 4 : 2;
+        byte[] masked = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, masked, 0, headerLength);
+        masked[1] |= (byte) 0x80;
+        byte[] key = {0x12, 0x34, 0x56, 0x78};
+        System.arraycopy(key, 0, masked, headerLength, 4);
+        for (int i = headerLength; i < frame.length; i++) {
+            masked[i + 4] = (byte) (frame[i] ^ key[(i - headerLength) & 3]);
+        }
+        return masked;
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws WebSocketFrames.ProtocolException {
+        maskedFrame.rewind();
+        decoder.decode(maskedFrame, new WebSocketFrames.Listener() {
+            @Override
+            public void onMessage(int opcode, byte[] payload) {
+                blackhole.consume(payload);
+            }
+
+            @Override
+            public void onControl(int opcode, byte[] payload) {
+                blackhole.consume(payload);
+            }
+        });
+    }
+
+    @Benchmark
+    public int broadcast() {
+        return WebSocket.broadcast(sockets, message);
+    }
+
+    @Benchmark
+    public int sendEach() {
+        int sent = 0;
+        for (WebSocket socket : sockets) {
+            if (socket.send(message)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    private static final class DiscardingTransport implements WebSocket.Transport {
+        @Override
+        public boolean send(byte[] frame, boolean last) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void resume() {
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Limits how many requests run their handlers at once, adapting the limit
+ * to the latency it observes, and sheds the excess with a fast 503 instead
+ * of letting work pile up until the process runs out of threads or heap.
+ *
+ * <pre>{@code
+ * app.admissionControl(new AdmissionControl(20, 200)   // start at 20, never above 200
+ *         .queue(100, 500));                           // up to 100 waiting, at most 500 ms each
+ * }</pre>
+ *
+ * <p>The limit follows additive increase, multiplicative decrease. While
+ * at least half of it is in use and requests finish in time, it grows by
+ * one for every {@code limit} requests, about once per round trip. When a
+ * request takes longer than the latency target, or ends in 503 or 504, it
+ * shrinks by 10%, at most once per round trip since the requests already
+ * running report the same overload. A 504 sent because the request's own
+ * {@linkplain Request#getRemainingMillis() deadline} passed is not a sign
+ * of overload, as a client may ask for any deadline it likes; it only
+ * counts when the request was late even so. Without an explicit
+ * {@linkplain #latencyTarget(long) target}, a request is late when it takes
+ * over twice, and over a millisecond more than, the lowest latency seen in
+ * the last 10 to 20 seconds: queueing inside the server or its downstream
+ * dependencies shows up as latency before it shows up as errors.
+ *
+ * <p>Requests over the limit wait in a bounded FIFO queue until a request
+ * finishes. Requests that find the queue full, or wait longer than the
+ * queue allows or than their {@linkplain Request#getRemainingMillis()
+ * deadline}, are answered with 503 and {@code Retry-After: 1}, and their
+ * connection is closed. Taking a permit while nothing is queued is a
+ * single compare-and-set; the queue takes a lock.
+ *
+ * <p>The latency target is shared by all routes. When routes differ widely
+ * in how long they take, set a target that suits the slow ones, or the
+ * fast ones set a baseline the slow ones always miss.
+ */
+public class AdmissionControl {
+    private static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+    private static final double BACKOFF = 0.9;
+    private static final double TOLERANCE = 2.0;
+    // Below this, latency differences are jitter rather than queueing
+    private static final long MIN_TOLERANCE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Weight of the newest sample in the smoothed latency is 1/SMOOTHING
+    private static final int SMOOTHING = 8;
+
+    private final int maxLimit;
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger successes = new AtomicInteger();
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong windowMin = new AtomicLong(Long.MAX_VALUE);
+    private volatile long previousMin = Long.MAX_VALUE;
+    // Updated without a lock; a sample lost to a race hardly moves the average
+    private volatile long smoothedLatency;
+    private final LongAdder shed = new LongAdder();
+    private long targetNanos;
+    private int queueCapacity;
+    private long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WAIT_MILLIS);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private volatile int queued;
+
+    /**
+     * Create an admission control starting at {@code initialLimit}
+     * concurrent requests. The queue holds up to {@code maxLimit} requests
+     * for up to a second each.
+     *
+     * @param initialLimit Concurrent requests allowed at first
+     * @param maxLimit Most concurrent requests the limit grows to
+     */
+    public AdmissionControl(int initialLimit, int maxLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit must be positive: " + initialLimit);
+        }
+        if (maxLimit < initialLimit) {
+            throw new IllegalArgumentException("maxLimit must be at least initialLimit: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.limit = new AtomicInteger(initialLimit);
+        this.queueCapacity = maxLimit;
+    }
+
+    /**
+     * Set how many requests may wait for a permit, and for how long.
+     *
+     * @param capacity Maximum number of waiting requests; 0 sheds every
+     *                 request over the limit at once
+     * @param maxWaitMillis Longest a request waits before it is shed
+     * @return This instance for method chaining
+     */
+    public AdmissionControl queue(int capacity, long maxWaitMillis) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        if (maxWaitMillis < 1) {
+            throw new IllegalArgumentException("maxWaitMillis must be positive: " + maxWaitMillis);
+        }
+        this.queueCapacity = capacity;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        return this;
+    }
+
+    /**
+     * Set the latency above which a request counts as a sign of overload,
+     * instead of deriving it from the lowest latency observed.
+     *
+     * @param millis Latency target in milliseconds
+     * @return This instance for method chaining
+     */
+    public AdmissionControl latencyTarget(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("latencyTarget must be positive: " + millis);
+        }
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * Get the current concurrency limit.
+     *
+     * @return Requests allowed to run at once
+     */
+    public int getLimit() {
+        return limit.get();
+    }
+
+    /**
+     * Get the number of requests holding a permit.
+     *
+     * @return Admitted requests not yet finished
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of requests waiting for a permit.
+     *
+     * @return Queue length
+     */
+    public int getQueueLength() {
+        return queued;
+    }
+
+    /**
+     * Get the number of requests answered with 503 without running.
+     *
+     * @return Shed request count
+     */
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    /**
+     * Take a permit if one is free and no request is waiting.
+     *
+     * @param request Request to admit
+     * @return Whether the request was admitted
+     */
+    boolean tryAcquire(Request request) {
+        if (queued == 0 && tryIncrement()) {
+            admit(request, System.nanoTime());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a permit, waiting in the queue on this thread if none is free.
+     *
+     * @param request Request to admit
+     * @return false if the request was shed
+     */
+    boolean acquire(Request request) {
+        if (tryAcquire(request)) {
+            return true;
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        Waiter waiter = offer(request, result::complete);
+        if (waiter == null) {
+            return false;
+        }
+        try {
+            return result.get(waiter.expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // The waiter is dropped from the queue once it reaches the head
+            if (waiter.claim()) {
+                shed.increment();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.claim()) {
+                shed.increment();
+                return false;
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        // Admitted or shed just as the wait ended
+        return result.join();
+    }
+
+    /**
+     * Queue a request that found no free permit, without blocking.
+     *
+     * @param request Request to admit
+     * @param callback Called with true once the request holds a permit, or
+     *                 with false if it was shed, on whichever thread decided
+     */
+    void enqueue(Request request, Consumer<Boolean> callback) {
+        if (offer(request, callback) == null) {
+            callback.accept(false);
+        }
+    }
+
+    /**
+     * Return the permit a request holds, if any, and let the requests
+     * waiting for it in.
+     *
+     * @param request Finished request
+     * @param status Status of its response, or 0 if it did not run and its
+     *               latency says nothing about the load
+     */
+    void release(Request request, int status) {
+        long admittedAt = request.getAdmittedAt();
+        if (admittedAt == 0) {
+            return;
+        }
+        request.setAdmittedAt(0);
+        if (status != 0) {
+            long now = System.nanoTime();
+            long latency = now - admittedAt;
+            if (status == StatusCodes.GATEWAY_TIMEOUT && request.hasDeadline() && now - request.getDeadline() >= 0) {
+                // Cut short by its own deadline: the latency is only a lower bound, which can
+                // show that the request was late but never that it was on time
+                if (latency > threshold()) {
+                    decrease(now);
+                }
+            } else {
+                boolean overloaded = status == StatusCodes.SERVICE_UNAVAILABLE
+                        || status == StatusCodes.GATEWAY_TIMEOUT;
+                sample(latency, overloaded, now);
+            }
+        }
+        inFlight.decrementAndGet();
+        if (queued > 0) {
+            drain();
+        }
+    }
+
+    /**
+     * Shed the waiting requests whose time is up; called periodically, as
+     * no permit may be released for a while.
+     */
+    void expireWaiters() {
+        if (queued > 0) {
+            drain();
+        }
+    }
+
+    private boolean tryIncrement() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit.get()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static void admit(Request request, long now) {
+        // Zero means no permit is held
+        request.setAdmittedAt(now != 0 ? now : 1);
+    }
+
+    /**
+     * Add a waiter to the queue.
+     *
+     * @return The waiter, or null if the queue is full and the request was shed
+     */
+    private Waiter offer(Request request, Consumer<Boolean> callback) {
+        long expiresAt = System.nanoTime() + maxWaitNanos;
+        if (request.hasDeadline() && request.getDeadline() - expiresAt < 0) {
+            expiresAt = request.getDeadline();
+        }
+        Waiter waiter = new Waiter(request, callback, expiresAt);
+        lock.lock();
+        try {
+            if (queue.size() >= queueCapacity) {
+                shed.increment();
+                return null;
+            }
+            queue.add(waiter);
+            queued = queue.size();
+        } finally {
+            lock.unlock();
+        }
+        // A permit may have been released before the waiter was visible
+        drain();
+        return waiter;
+    }
+
+    /**
+     * Admit waiters while permits are free and shed those whose time is
+     * up, running their callbacks outside the lock.
+     */
+    private void drain() {
+        List<Waiter> admitted = null;
+        List<Waiter> expired = null;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            Waiter waiter;
+            while ((waiter = queue.peek()) != null) {
+                if (waiter.isClaimed()) {
+                    queue.poll();
+                } else if (now - waiter.expiresAt >= 0) {
+                    queue.poll();
+                    if (waiter.claim()) {
+                        expired = add(expired, waiter);
+                    }
+                } else if (tryIncrement()) {
+                    queue.poll();
+                    if (waiter.claim()) {
+                        admit(waiter.request, now);
+                        admitted = add(admitted, waiter);
+                    } else {
+                        inFlight.decrementAndGet();
+                    }
+                } else {
+                    break;
+                }
+            }
+            queued = queue.size();
+        } finally {
+            lock.unlock();
+        }
+        if (expired != null) {
+            shed.add(expired.size());
+            for (Waiter w : expired) {
+                w.callback.accept(false);
+            }
+        }
+        if (admitted != null) {
+            for (Waiter w : admitted) {
+                w.callback.accept(true);
+            }
+        }
+    }
+
+    private static List<Waiter> add(List<Waiter> list, Waiter waiter) {
+        List<Waiter> result = list != null ? list : new ArrayList<>();
+        result.add(waiter);
+        return result;
+    }
+
+    /**
+     * Adjust the limit for one finished request.
+     */
+    private void sample(long latency, boolean overloaded, long now) {
+        long smoothed = smoothedLatency;
+        smoothedLatency = smoothed == 0 ? latency : smoothed + (latency - smoothed) / SMOOTHING;
+        if (overloaded) {
+            decrease(now);
+            return;
+        }
+        recordLatency(latency, now);
+        if (latency > threshold()) {
+            decrease(now);
+            return;
+        }
+        int current = limit.get();
+        // A limit that is not being used says nothing about whether it could be higher
+        if (current < maxLimit && inFlight.get() * 2 >= current && successes.incrementAndGet() >= current) {
+            successes.set(0);
+            limit.compareAndSet(current, current + 1);
+        }
+    }
+
+    /**
+     * Shrink the limit, unless it already shrank within the last round
+     * trip. The round trip is the smoothed latency rather than that of
+     * the request reporting the overload, which may have been cut short.
+     */
+    private void decrease(long now) {
+        long last = lastDecrease.get();
+        if (now - last >= smoothedLatency && lastDecrease.compareAndSet(last, now)) {
+            successes.set(0);
+            limit.updateAndGet(current -> Math.max(1, (int) (current * BACKOFF)));
+        }
+    }
+
+    /**
+     * Get the latency above which a request is late: the target if one is
+     * set, otherwise a margin above the baseline.
+     *
+     * @return Threshold in nanoseconds, or {@link Long#MAX_VALUE} before
+     *         any latency has been recorded
+     */
+    private long threshold() {
+        if (targetNanos != 0) {
+            return targetNanos;
+        }
+        long baseline = Math.min(windowMin.get(), previousMin);
+        if (baseline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max((long) (baseline * TOLERANCE), baseline + MIN_TOLERANCE_NANOS);
+    }
+
+    /**
+     * Record a latency towards the baseline: the lowest seen over the
+     * current and the previous window, so it follows lasting changes.
+     */
+    private void recordLatency(long latency, long now) {
+        long start = windowStart.get();
+        if (now - start >= BASELINE_WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            previousMin = windowMin.getAndSet(Long.MAX_VALUE);
+        }
+        long min = windowMin.get();
+        while (latency < min && !windowMin.compareAndSet(min, latency)) {
+            min = windowMin.get();
+        }
+    }
+
+    /**
+     * A queued request; claimed exactly once, by whoever admits, sheds or
+     * abandons it.
+     */
+    private static final class Waiter {
+        final Request request;
+        final Consumer<Boolean> callback;
+        final long expiresAt;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Waiter(Request request, Consumer<Boolean> callback, long expiresAt) {
+            this.request = request;
+            this.callback = callback;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        boolean isClaimed() {
+            return claimed.get();
+        }
+    }
+}
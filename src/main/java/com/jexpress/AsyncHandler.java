@@ -0,0 +1,37 @@
+package com.jexpress;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Route handler that completes its response later, registered with
+ * {@link Router#getAsync(String, AsyncHandler)} and the other
+ * {@code ...Async} methods. The handler fills in the response and completes
+ * the returned stage; the response is written once it completes, and the
+ * worker thread is free in the meantime.
+ *
+ * <pre>{@code
+ * router.getAsync("/quotes/{symbol}", (req, res) ->
+ *     quoteService.fetch(req.getPathParam("symbol"))
+ *         .thenAccept(quote -> res.json(quote.toJson())));
+ * }</pre>
+ *
+ * <p>If the stage completes exceptionally the client gets 500. If it has
+ * not completed within the route's timeout it is completed with a
+ * {@link java.util.concurrent.TimeoutException} and the client gets 504.
+ * If the client disconnects first it is cancelled. Either way, later
+ * changes to the response are ignored.
+ *
+ * <p>Middleware code after {@link MiddlewareChain#next(Request, Response)}
+ * runs when the handler returns the stage, before the response is complete.
+ */
+@FunctionalInterface
+public interface AsyncHandler {
+    /**
+     * Start handling a request.
+     *
+     * @param request Request being handled
+     * @param response Response to fill in before the stage completes
+     * @return Stage that completes once the response is ready
+     */
+    CompletionStage<Void> handle(Request request, Response response);
+}
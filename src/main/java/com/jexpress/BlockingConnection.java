@@ -0,0 +1,419 @@
+package com.jexpress;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A client connection served by one executor thread with blocking socket I/O.
+ * Requests are read into a single reusable buffer, so pipelined requests are
+ * answered in order.
+ */
+final class BlockingConnection implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(BlockingConnection.class.getName());
+
+    private final JExpress app;
+    private final ServerConfig config;
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final Metrics metrics;
+    // Set while waiting for the next request; whoever clears it first, the
+    // connection on receiving bytes or stop() closing it, wins
+    private final AtomicBoolean idle = new AtomicBoolean();
+    // When the connection was accepted, if requests are being traced
+    private final long acceptedAt;
+    // Set once the connection has switched to the WebSocket protocol
+    private volatile WebSocket websocket;
+
+    BlockingConnection(JExpress app, ServerConfig config, SocketChannel channel) {
+        this.app = app;
+        this.config = config;
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.metrics = app.metrics();
+        this.acceptedAt = app.isTracing() ? System.nanoTime() : 0;
+    }
+
+    @Override
+    public void run() {
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        app.trackConnection(this, true);
+        try {
+            // Idle timeout between requests, also bounds hanging on incomplete requests
+            socket.setSoTimeout(config.keepAliveTimeoutMillis);
+
+            try (
+                    InputStream in = metrics != null
+                            ? new MeteredInputStream(socket.getInputStream(), metrics)
+                            : socket.getInputStream();
+                    OutputStream out = new ChannelOutputStream(channel, metrics)
+            ) {
+                serve(in, out);
+            }
+        } catch (SocketTimeoutException e) {
+            LOGGER.fine("Closing idle connection");
+        } catch (IOException e) {
+            // Closed by stop() while reading or writing
+            LOGGER.log(app.isRunning() ? Level.INFO : Level.FINE, "Request handling error: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // Handler failures are answered with 500, so this is a bug; keep the pool thread alive
+            LOGGER.log(Level.SEVERE, "Unexpected error serving connection: " + e.getMessage(), e);
+        } finally {
+            close();
+            app.trackConnection(this, false);
+            if (metrics != null) {
+                metrics.connectionClosed();
+            }
+        }
+    }
+
+    private void serve(InputStream in, OutputStream out) throws IOException {
+        // Time from accept until this thread picked the connection up, charged to the first request
+        long connectionQueued = acceptedAt != 0 ? System.nanoTime() - acceptedAt : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(config.readBufferSize());
+        buffer.limit(0);
+        HttpParser parser = new HttpParser(config);
+        Exchange exchange = new Exchange(config, Exchange.remoteAddress(channel));
+        int served = 0;
+
+        while (true) {
+            // Drop the previous request; pipelined bytes move to the front
+            buffer.compact().flip();
+            parser.reset(buffer);
+            exchange.next();
+            Request request = exchange.request();
+            RequestTrace trace = null;
+            BodyDecoder decoder;
+            if (buffer.hasRemaining() && app.isTracing()) {
+                trace = exchange.startTrace(System.nanoTime());
+            } else if (!buffer.hasRemaining()) {
+                idle.set(true);
+                if (!app.isRunning()) {
+                    // Stopping; the server no longer takes new requests
+                    return;
+                }
+            }
+
+            try {
+                while (!parser.parse(buffer, request)) {
+                    if (buffer.limit() == buffer.capacity()) {
+                        throw parser.overflow();
+                    }
+                    if (fill(in, buffer) < 0) {
+                        // Client closed the connection, possibly mid-request
+                        return;
+                    }
+                    if (idle.get() && !idle.compareAndSet(true, false)) {
+                        // Closed by stop() as the request arrived
+                        return;
+                    }
+                    if (trace == null && app.isTracing()) {
+                        trace = exchange.startTrace(System.nanoTime());
+                    }
+                }
+                if (trace != null) {
+                    trace.addQueued(connectionQueued);
+                    trace.enter(SlowRequestLog.Phase.QUEUE, System.nanoTime(), request);
+                }
+                connectionQueued = 0;
+                decoder = BodyDecoder.forRequest(request, config.maxBodySize);
+            } catch (HttpParseException e) {
+                LOGGER.fine("Rejecting request: " + e.getMessage());
+                if (metrics != null) {
+                    metrics.recordRejected(e.getStatusCode());
+                }
+                app.sendResponse(out, app.errorResponse(e.getStatusCode()), false);
+                return;
+            }
+
+            if (decoder != null) {
+                request.setBodyStream(new SocketBodyStream(decoder, buffer, in, out,
+                        BodyInputStream.expectsContinue(request)));
+            }
+
+            served++;
+            if (!app.serve(request, exchange.response(), out, served)) {
+                return;
+            }
+            WebSocket upgrade = request.getUpgrade();
+            if (upgrade != null) {
+                serveWebSocket(upgrade, buffer, in, out);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Carry on as a WebSocket connection once the handshake response is
+     * written: this thread reads frames and runs the handler for each
+     * message until the connection closes, while other threads may send.
+     * Bytes the client sent after the handshake are already buffered.
+     */
+    private void serveWebSocket(WebSocket upgrade, ByteBuffer buffer, InputStream in, OutputStream out)
+            throws IOException {
+        // A WebSocket may stay quiet for as long as it likes
+        socket.setSoTimeout(0);
+        // Published only once open, so stop() never closes a WebSocket without a transport
+        upgrade.open(new WebSocketTransport(out), Runnable::run, config.maxWebSocketMessageSize);
+        websocket = upgrade;
+        if (!app.isRunning()) {
+            // stop() may have looked for WebSocket connections before this one was published
+            upgrade.close(WebSocket.GOING_AWAY, "Server shutting down");
+        }
+        try {
+            buffer.compact().flip();
+            while (channel.isOpen()) {
+                upgrade.receive(buffer);
+                buffer.compact().flip();
+                if (!channel.isOpen() || fill(in, buffer) < 0) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Closed by either side, or by the closing handshake's timeout
+            LOGGER.log(Level.FINE, "WebSocket connection closed: " + e.getMessage(), e);
+        } finally {
+            upgrade.disconnected();
+        }
+    }
+
+    /**
+     * Close the connection if it is waiting for a request, rather than
+     * serving one; called by {@link JExpress#stop()}.
+     */
+    void closeIfIdle() {
+        if (idle.compareAndSet(true, false)) {
+            close();
+            return;
+        }
+        WebSocket upgraded = websocket;
+        if (upgraded != null) {
+            upgraded.close(WebSocket.GOING_AWAY, "Server shutting down");
+        }
+    }
+
+    /**
+     * Close the socket; from another thread, this fails any read or write
+     * blocked on it.
+     */
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing client socket", e);
+        }
+    }
+
+    /**
+     * Read more bytes into the free space after the buffer's limit.
+     *
+     * @return Number of bytes read, or -1 at end of stream
+     */
+    private static int fill(InputStream in, ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int n = in.read(buffer.array(), buffer.arrayOffset() + limit, buffer.capacity() - limit);
+        if (n > 0) {
+            buffer.limit(limit + n);
+        }
+        return n;
+    }
+
+    /**
+     * Writes WebSocket frames straight to the socket, one sender at a time.
+     */
+    private final class WebSocketTransport implements WebSocket.Transport {
+        private final OutputStream out;
+        private boolean ended;
+
+        WebSocketTransport(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized boolean send(byte[] frame, boolean last) {
+            if (ended || !channel.isOpen()) {
+                return false;
+            }
+            ended = last;
+            try {
+                out.write(frame, 0, frame.length);
+                return true;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error writing WebSocket frame: " + e.getMessage(), e);
+                close();
+                return false;
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            // Frames are written as they are sent, so nothing is pending
+            BlockingConnection.this.close();
+        }
+
+        @Override
+        public void abort() {
+            BlockingConnection.this.close();
+        }
+
+        @Override
+        public void resume() {
+            // Messages are handled on the reading thread, which never falls behind itself
+        }
+    }
+
+    /**
+     * Unbuffered stream straight to the blocking socket channel; responses
+     * are written in whole messages, and files go out with transferTo.
+     */
+    private static final class ChannelOutputStream extends OutputStream implements FileTransfer {
+        private final SocketChannel channel;
+        private final Metrics metrics;
+
+        ChannelOutputStream(SocketChannel channel, Metrics metrics) {
+            this.channel = channel;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (metrics != null) {
+                metrics.bytesSent(len);
+            }
+        }
+
+        @Override
+        public void transferFile(FileChannel file, long position, long count) throws IOException {
+            try (file) {
+                long end = position + count;
+                while (position < end) {
+                    long n = file.transferTo(position, end - position, channel);
+                    if (n == 0 && position >= file.size()) {
+                        throw new IOException("File ended " + (end - position) + " bytes short of its expected length");
+                    }
+                    position += n;
+                }
+            }
+            if (metrics != null) {
+                metrics.bytesSent(count);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the client.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final Metrics metrics;
+
+        MeteredInputStream(InputStream in, Metrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                metrics.bytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                metrics.bytesReceived(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Body read on demand from the space after the request head in the
+     * connection buffer, so bytes past the end of the body stay buffered
+     * for the next request.
+     */
+    private static final class SocketBodyStream extends BodyInputStream {
+        private final BodyDecoder decoder;
+        private final ByteBuffer buffer;
+        private final int bodyStart;
+        private final InputStream in;
+        private final OutputStream out;
+
+        SocketBodyStream(BodyDecoder decoder, ByteBuffer buffer, InputStream in, OutputStream out,
+                         boolean expectContinue) {
+            super(expectContinue);
+            this.decoder = decoder;
+            this.buffer = buffer;
+            this.bodyStart = buffer.position();
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        protected int readBody(byte[] b, int off, int len) throws IOException {
+            while (!decoder.isComplete()) {
+                if (buffer.hasRemaining()) {
+                    int n = decoder.decode(buffer, b, off, len);
+                    if (n > 0) {
+                        return n;
+                    }
+                    continue;
+                }
+                long fixed = decoder.fixedRemaining();
+                if (fixed > 0) {
+                    // Nothing buffered: read straight into the caller's array, never past the body
+                    int n = in.read(b, off, (int) Math.min(len, fixed));
+                    if (n < 0) {
+                        throw closedEarly();
+                    }
+                    decoder.advance(n);
+                    return n;
+                }
+                // Body bytes already consumed can be overwritten, the head cannot
+                buffer.limit(bodyStart).position(bodyStart);
+                if (fill(in, buffer) < 0) {
+                    throw closedEarly();
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        protected void sendContinue() throws IOException {
+            out.write(CONTINUE_RESPONSE);
+            out.flush();
+        }
+
+        @Override
+        boolean isComplete() {
+            return decoder.isComplete();
+        }
+
+        private static IOException closedEarly() {
+            return new IOException("Connection closed before request body was complete");
+        }
+    }
+}
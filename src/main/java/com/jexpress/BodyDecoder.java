@@ -0,0 +1,226 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental request body decoder for Content-Length and chunked bodies.
+ * Like {@link HttpParser} it can be fed partial reads and resumes where it
+ * stopped. It consumes exactly the bytes of the body, so whatever follows
+ * in the buffer is the start of the next request.
+ */
+final class BodyDecoder {
+    private static final int MAX_CHUNK_SIZE_DIGITS = 15;
+    private static final int MAX_CHUNK_EXTENSION_LENGTH = 1024;
+    private static final int MAX_TRAILER_SIZE = 8192;
+
+    private enum State {
+        SIZE,
+        EXTENSION,
+        SIZE_LF,
+        DATA,
+        DATA_CR,
+        DATA_LF,
+        TRAILER,
+        DONE
+    }
+
+    private final boolean chunked;
+    private final long maxBodySize;
+    private State state;
+    private long remaining;
+    private long decoded;
+    private int sizeDigits;
+    private int extensionLength;
+    private int trailerLineLength;
+    private int trailerSize;
+
+    private BodyDecoder(boolean chunked, long contentLength, long maxBodySize) {
+        this.chunked = chunked;
+        this.maxBodySize = maxBodySize;
+        if (chunked) {
+            state = State.SIZE;
+        } else {
+            remaining = contentLength;
+            state = contentLength > 0 ? State.DATA : State.DONE;
+        }
+    }
+
+    /**
+     * Create the decoder for a parsed request head.
+     *
+     * @param request Request whose head is complete
+     * @param maxBodySize Largest body accepted
+     * @return Decoder, or null if the request has no body
+     * @throws HttpParseException With 413 if the declared length exceeds the limit
+     */
+    static BodyDecoder forRequest(Request request, long maxBodySize) throws HttpParseException {
+        if (request.isChunked()) {
+            return new BodyDecoder(true, -1, maxBodySize);
+        }
+        long length = request.getContentLength();
+        if (length <= 0) {
+            return null;
+        }
+        if (length > maxBodySize) {
+            throw tooLarge();
+        }
+        return new BodyDecoder(false, length, maxBodySize);
+    }
+
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Get the number of body bytes left for a Content-Length body; those
+     * can be read straight from the socket into the caller's array.
+     *
+     * @return Bytes left, or -1 for a chunked body
+     */
+    long fixedRemaining() {
+        return chunked ? -1 : remaining;
+    }
+
+    /**
+     * Account for bytes of a Content-Length body read without going
+     * through {@link #decode}.
+     *
+     * @param n Number of body bytes read, at most {@link #fixedRemaining()}
+     */
+    void advance(int n) {
+        remaining -= n;
+        decoded += n;
+        if (remaining == 0) {
+            state = State.DONE;
+        }
+    }
+
+    /**
+     * Decode buffered bytes, advancing the buffer's position past the
+     * framing and data consumed.
+     *
+     * @param src Buffer holding received bytes between position and limit
+     * @param dst Destination for body bytes
+     * @param off Offset in dst
+     * @param len Maximum number of body bytes to produce
+     * @return Number of body bytes produced, possibly 0 if only framing was consumed
+     * @throws HttpParseException If the chunked framing is malformed or the body is too large
+     */
+    int decode(ByteBuffer src, byte[] dst, int off, int len) throws HttpParseException {
+        int written = 0;
+        while (src.hasRemaining() && state != State.DONE) {
+            if (state == State.DATA) {
+                int n = (int) Math.min(Math.min(remaining, src.remaining()), len - written);
+                if (n == 0) {
+                    break;
+                }
+                src.get(dst, off + written, n);
+                written += n;
+                remaining -= n;
+                decoded += n;
+                if (remaining == 0) {
+                    state = chunked ? State.DATA_CR : State.DONE;
+                }
+                continue;
+            }
+            step(src.get());
+        }
+        return written;
+    }
+
+    /**
+     * Advance the chunk framing state machine by one byte.
+     */
+    private void step(byte b) throws HttpParseException {
+        switch (state) {
+            case SIZE:
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (++sizeDigits > MAX_CHUNK_SIZE_DIGITS) {
+                        throw malformed("Chunk size too long");
+                    }
+                    remaining = remaining * 16 + digit;
+                } else if (sizeDigits == 0) {
+                    throw malformed("Missing chunk size");
+                } else if (b == ';' || b == ' ' || b == '\t') {
+                    state = State.EXTENSION;
+                } else if (b == '\r') {
+                    state = State.SIZE_LF;
+                } else if (b == '\n') {
+                    endSizeLine();
+                } else {
+                    throw malformed("Invalid chunk size");
+                }
+                break;
+            case EXTENSION:
+                // Chunk extensions are ignored
+                if (b == '\n') {
+                    endSizeLine();
+                } else if (++extensionLength > MAX_CHUNK_EXTENSION_LENGTH) {
+                    throw malformed("Chunk extension too long");
+                }
+                break;
+            case SIZE_LF:
+                if (b != '\n') {
+                    throw malformed("Invalid chunk size line");
+                }
+                endSizeLine();
+                break;
+            case DATA_CR:
+                if (b == '\r') {
+                    state = State.DATA_LF;
+                    break;
+                }
+                if (b != '\n') {
+                    throw malformed("Missing CRLF after chunk data");
+                }
+                state = State.SIZE;
+                break;
+            case DATA_LF:
+                if (b != '\n') {
+                    throw malformed("Missing CRLF after chunk data");
+                }
+                state = State.SIZE;
+                break;
+            case TRAILER:
+                // Trailer fields are read past and dropped; an empty line ends the body
+                if (++trailerSize > MAX_TRAILER_SIZE) {
+                    throw malformed("Chunked trailer too large");
+                }
+                if (b == '\n') {
+                    if (trailerLineLength == 0) {
+                        state = State.DONE;
+                    }
+                    trailerLineLength = 0;
+                } else if (b != '\r') {
+                    trailerLineLength++;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected decoder state " + state);
+        }
+    }
+
+    private void endSizeLine() throws HttpParseException {
+        sizeDigits = 0;
+        extensionLength = 0;
+        if (remaining == 0) {
+            state = State.TRAILER;
+            return;
+        }
+        if (decoded + remaining > maxBodySize) {
+            throw tooLarge();
+        }
+        state = State.DATA;
+    }
+
+    private static HttpParseException malformed(String message) {
+        return new HttpParseException(StatusCodes.BAD_REQUEST, message);
+    }
+
+    private static HttpParseException tooLarge() {
+        return new HttpParseException(StatusCodes.PAYLOAD_TOO_LARGE, "Request body too large");
+    }
+}
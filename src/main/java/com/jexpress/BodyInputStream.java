@@ -0,0 +1,124 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * A request body read lazily from the connection as the handler consumes
+ * it. Each server mode supplies the bytes; this class handles the common
+ * parts: remembering the first failure, the interim {@code 100 Continue}
+ * response and draining an unread body so the connection can be reused.
+ */
+abstract class BodyInputStream extends InputStream {
+    static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    private boolean continuePending;
+    private IOException failure;
+
+    /**
+     * @param expectContinue Whether the client waits for 100 Continue before sending the body
+     */
+    BodyInputStream(boolean expectContinue) {
+        this.continuePending = expectContinue;
+    }
+
+    /**
+     * Whether the client asked to be told to go ahead before sending the
+     * body. Only HTTP/1.1 clients are sent interim responses.
+     *
+     * @param request Parsed request
+     * @return true if 100 Continue must be sent before reading the body
+     */
+    static boolean expectsContinue(Request request) {
+        return HttpParser.HTTP_1_1.equals(request.getProtocol())
+                && "100-continue".equalsIgnoreCase(request.getHeader("Expect"));
+    }
+
+    /**
+     * Read decoded body bytes, blocking until at least one is available.
+     *
+     * @return Number of bytes read, or -1 once the body is complete
+     */
+    protected abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Tell the client to send the body.
+     */
+    protected abstract void sendContinue() throws IOException;
+
+    /**
+     * Whether every byte of the body has been received.
+     */
+    abstract boolean isComplete();
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (failure != null) {
+            throw failure;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            if (continuePending) {
+                continuePending = false;
+                sendContinue();
+            }
+            return readBody(b, off, len);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Get the error that ended reading the body, if any.
+     *
+     * @return The first failure, or null
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Read and discard what is left of the body so the next request can be
+     * read from the connection.
+     *
+     * @param limit Most bytes to discard before giving up
+     * @return true if the body is complete and the connection can be reused
+     */
+    boolean drain(long limit) {
+        if (failure != null) {
+            return false;
+        }
+        if (isComplete()) {
+            return true;
+        }
+        if (continuePending) {
+            // The client has not sent the body and never will
+            return false;
+        }
+        byte[] discard = new byte[DRAIN_BUFFER_SIZE];
+        long discarded = 0;
+        try {
+            int n;
+            while (discarded < limit && (n = read(discard, 0, discard.length)) >= 0) {
+                discarded += n;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return isComplete();
+    }
+}
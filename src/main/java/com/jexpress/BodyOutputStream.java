@@ -0,0 +1,118 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream a response body of unknown length is written through.
+ * Writes are coalesced into chunks of up to the buffer size and, when
+ * chunked, framed per RFC 9112 section 7.1. Each chunk is framed in place
+ * and reaches the connection as one write; the last data chunk and the
+ * terminating chunk share a write. Closing ends the body but leaves the
+ * connection stream open.
+ */
+final class BodyOutputStream extends OutputStream {
+    // Room before the data for the chunk size (up to 8 hex digits) and CRLF
+    private static final int HEADER_RESERVE = 10;
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    // Room after the data for its CRLF and the last chunk
+    private static final int TRAILER_RESERVE = 2 + LAST_CHUNK.length;
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private final OutputStream out;
+    private final boolean chunked;
+    private final int chunkSize;
+    private final byte[] buffer;
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param out Connection stream
+     * @param chunked Whether to use chunked framing; otherwise the body is
+     *                delimited by closing the connection
+     * @param chunkSize Largest chunk to buffer before writing
+     */
+    BodyOutputStream(OutputStream out, boolean chunked, int chunkSize) {
+        this.out = out;
+        this.chunked = chunked;
+        this.chunkSize = chunkSize;
+        this.buffer = new byte[HEADER_RESERVE + chunkSize + TRAILER_RESERVE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == chunkSize) {
+            writeBuffered(false);
+        }
+        buffer[HEADER_RESERVE + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (count == chunkSize) {
+                writeBuffered(false);
+            }
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, HEADER_RESERVE + count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeBuffered(false);
+        out.flush();
+    }
+
+    /**
+     * End the body, writing the last chunk when chunked.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        writeBuffered(true);
+        out.flush();
+        closed = true;
+    }
+
+    private void writeBuffered(boolean last) throws IOException {
+        int start = HEADER_RESERVE;
+        int end = HEADER_RESERVE + count;
+        if (chunked) {
+            // A zero-length chunk would end the body early, so empty data is not framed
+            if (count > 0) {
+                buffer[--start] = '\n';
+                buffer[--start] = '\r';
+                for (int size = count; size != 0; size >>>= 4) {
+                    buffer[--start] = HEX_DIGITS[size & 0xf];
+                }
+                buffer[end++] = '\r';
+                buffer[end++] = '\n';
+            }
+            if (last) {
+                System.arraycopy(LAST_CHUNK, 0, buffer, end, LAST_CHUNK.length);
+                end += LAST_CHUNK.length;
+            }
+        }
+        if (end > start) {
+            out.write(buffer, start, end - start);
+        }
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Response body already complete");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.jexpress;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool of equally sized heap buffers, so per-response scratch
+ * space is reused rather than allocated. Acquiring and releasing are
+ * lock-free and never allocate while the pool has buffers to hand out;
+ * when it runs dry a fresh buffer is allocated, and buffers released into
+ * a full pool are left to the garbage collector.
+ */
+final class BufferPool {
+    private final int bufferSize;
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final int mask;
+
+    /**
+     * @param bufferSize Capacity of each buffer
+     * @param maxPooled Most idle buffers kept, rounded up to a power of two
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        int size = Integer.highestOneBit(Math.max(1, maxPooled - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating one if none is idle.
+     *
+     * @return Buffer of {@link #bufferSize()} bytes
+     */
+    ByteBuffer acquire() {
+        // Threads start probing at different slots to spread contention
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            if (slots.get(slot) != null) {
+                ByteBuffer buffer = slots.getAndSet(slot, null);
+                if (buffer != null) {
+                    return buffer.clear();
+                }
+            }
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Return a buffer taken from {@link #acquire()}. Buffers of another size
+     * are ignored, so callers may release a buffer they had to replace with
+     * a larger one.
+     *
+     * @param buffer Buffer no longer in use
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.hasArray()) {
+            return;
+        }
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) {
+                return;
+            }
+        }
+    }
+}
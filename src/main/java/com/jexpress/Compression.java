@@ -0,0 +1,509 @@
+package com.jexpress;
+
+import com.jexpress.utils.MimeTypes;
+import com.jexpress.utils.StatusCodes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with the gzip or deflate content coding the
+ * client prefers in {@code Accept-Encoding}. Enabled for every response
+ * with {@link JExpress#compression(Compression)}, or used as middleware to
+ * compress only some routes, e.g. {@code router.use("/api", compression)}.
+ *
+ * <p>Only responses whose content type is on the allowlist are compressed.
+ * Bodies held in memory are compressed once the handler returns, and only
+ * from {@link #minSize(int)} bytes on; streamed bodies are compressed as
+ * they are written and sent chunked. File bodies are left alone so they
+ * keep going out with {@code transferTo}; serve precompressed siblings for
+ * those instead (see {@link StaticFiles#precompressed(boolean)}).
+ *
+ * <p>Deflaters are pooled, so compressing a body allocates nothing but the
+ * compressed bytes. With {@link #cache(int, int)} the compressed form of
+ * recently sent bodies is kept and reused for identical bodies.
+ */
+public class Compression implements Middleware {
+    private static final int SCRATCH_SIZE = 8192;
+    // Larger scratch buffers grown for big bodies are not kept in the pool
+    private static final int MAX_POOLED_SCRATCH_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_CODECS = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final Encoding[] encodings = {new Encoding("gzip", true), new Encoding("deflate", false)};
+    private int minSize = 1024;
+    private int level = 6;
+    private String[] mimeTypes = {
+            "text/*",
+            MimeTypes.APPLICATION_JSON,
+            MimeTypes.APPLICATION_XML,
+            "application/javascript",
+            "application/manifest+json",
+            MimeTypes.APPLICATION_WASM,
+            MimeTypes.IMAGE_SVG
+    };
+    private AtomicReferenceArray<CachedBody> cache;
+    private int maxCachedBodySize;
+
+    /**
+     * Set the smallest body compressed; smaller bodies gain too little to be
+     * worth the CPU. Defaults to 1024 bytes.
+     *
+     * @param bytes Minimum body size in bytes
+     * @return This instance for method chaining
+     */
+    public Compression minSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("minSize must not be negative: " + bytes);
+        }
+        this.minSize = bytes;
+        return this;
+    }
+
+    /**
+     * Set the compression level, from 1 (fastest) to 9 (smallest).
+     * Defaults to 6.
+     *
+     * @param level Deflate compression level
+     * @return This instance for method chaining
+     */
+    public Compression level(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Set the content types that are compressed, replacing the defaults
+     * (text, JSON, XML, JavaScript, SVG and WebAssembly). A type ending in
+     * {@code /*} matches every subtype.
+     *
+     * @param mimeTypes Content types, e.g. {@link MimeTypes#APPLICATION_JSON}
+     * @return This instance for method chaining
+     */
+    public Compression mimeTypes(String... mimeTypes) {
+        String[] types = new String[mimeTypes.length];
+        for (int i = 0; i < mimeTypes.length; i++) {
+            types[i] = mimeTypes[i].toLowerCase(Locale.ROOT);
+        }
+        this.mimeTypes = types;
+        return this;
+    }
+
+    /**
+     * Keep the compressed form of up to {@code entries} recently sent bodies
+     * of at most {@code maxBodySize} bytes, so repeated identical payloads
+     * are compressed once. Bodies are compared in full before a cached copy
+     * is used. Off by default.
+     *
+     * @param entries Number of bodies to keep, rounded up to a power of two; 0 disables the cache
+     * @param maxBodySize Largest uncompressed body cached
+     * @return This instance for method chaining
+     */
+    public Compression cache(int entries, int maxBodySize) {
+        if (entries < 0 || maxBodySize < 0) {
+            throw new IllegalArgumentException("Cache sizes must not be negative");
+        }
+        this.cache = entries > 0
+                ? new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(1, entries - 1)) << 1)
+                : null;
+        this.maxCachedBodySize = maxBodySize;
+        return this;
+    }
+
+    @Override
+    public void handle(Request request, Response response, MiddlewareChain chain) {
+        chain.next(request, response);
+        apply(request, response);
+    }
+
+    /**
+     * Compress a response for the client that sent the request, if the
+     * response and the client allow it.
+     *
+     * @param request Request being answered
+     * @param response Response produced by the handler
+     */
+    void apply(Request request, Response response) {
+        int status = response.getStatusCode();
+        if (request.getMethod() == HttpMethod.HEAD || status < StatusCodes.OK
+                || status == StatusCodes.NO_CONTENT || status == StatusCodes.NOT_MODIFIED
+                || response.getHeader("Content-Encoding") != null || response.getHeader("Content-Range") != null
+                || response.hasFileBody() || !isCompressible(response.getContentType())) {
+            return;
+        }
+        ByteBuffer body = response.getBufferedBody();
+        if (body != null && body.remaining() < minSize) {
+            return;
+        }
+        // From here on what is sent depends on Accept-Encoding
+        addVary(response, "Accept-Encoding");
+        Encoding encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            return;
+        }
+
+        if (body != null) {
+            byte[] compressed = compress(encoding, body);
+            if (compressed.length >= body.remaining()) {
+                return;
+            }
+            response.send(compressed);
+        } else {
+            Response.BodyWriter writer = response.detachStreamedBody();
+            response.stream(out -> {
+                Codec codec = encoding.acquire(level);
+                try (EncodingStream encoded = new EncodingStream(codec, out)) {
+                    writer.writeTo(encoded);
+                } finally {
+                    encoding.release(codec);
+                }
+            });
+        }
+        response.addHeader("Content-Encoding", encoding.token);
+        weakenEntityTag(response);
+    }
+
+    /**
+     * Get the quality an {@code Accept-Encoding} header gives a content
+     * coding, either by name or through {@code *}.
+     *
+     * @param header Accept-Encoding value, possibly null
+     * @param coding Content coding, e.g. {@code gzip}
+     * @return Quality between 0 and 1; 0 if the coding is not acceptable
+     */
+    static double quality(String header, String coding) {
+        if (header == null) {
+            return 0;
+        }
+        double wildcard = 0;
+        for (String part : header.split(",")) {
+            int semicolon = part.indexOf(';');
+            String name = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+            double quality = semicolon < 0 ? 1 : parseQuality(part.substring(semicolon + 1));
+            if (name.equalsIgnoreCase(coding)) {
+                return quality;
+            }
+            if (name.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        return wildcard;
+    }
+
+    private static double parseQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.startsWith("q=") || trimmed.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(trimmed.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Pick the acceptable encoding with the highest quality, gzip on a tie.
+     */
+    private Encoding negotiate(String acceptEncoding) {
+        Encoding chosen = null;
+        double best = 0;
+        for (Encoding encoding : encodings) {
+            double quality = quality(acceptEncoding, encoding.token);
+            if (quality > best) {
+                best = quality;
+                chosen = encoding;
+            }
+        }
+        return chosen;
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim()
+                .toLowerCase(Locale.ROOT);
+        for (String allowed : mimeTypes) {
+            if (allowed.endsWith("/*")
+                    ? type.regionMatches(0, allowed, 0, allowed.length() - 1)
+                    : type.equals(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * List a request header in the response's {@code Vary} header, unless
+     * it is already listed or the response varies on everything.
+     */
+    static void addVary(Response response, String header) {
+        String vary = response.getHeader("Vary");
+        if (vary == null) {
+            response.addHeader("Vary", header);
+        } else if (!vary.trim().equals("*")
+                && !vary.toLowerCase(Locale.ROOT).contains(header.toLowerCase(Locale.ROOT))) {
+            response.addHeader("Vary", vary + ", " + header);
+        }
+    }
+
+    /**
+     * The compressed bytes differ from the uncompressed ones, so a strong
+     * entity tag becomes weak: it still validates conditional GETs, which
+     * compare weakly, but no longer matches byte ranges.
+     */
+    private static void weakenEntityTag(Response response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && etag.startsWith("\"")) {
+            response.addHeader("ETag", "W/" + etag);
+        }
+    }
+
+    /**
+     * Compress a body held in memory, reusing the cached result for a body
+     * already compressed.
+     */
+    private byte[] compress(Encoding encoding, ByteBuffer body) {
+        boolean cacheable = cache != null && body.remaining() <= maxCachedBodySize;
+        int hash = 0;
+        int slot = 0;
+        if (cacheable) {
+            hash = hash(body);
+            slot = (hash * 31 + encoding.token.hashCode()) & (cache.length() - 1);
+            CachedBody cached = cache.get(slot);
+            if (cached != null && cached.hash == hash && cached.encoding == encoding
+                    && cached.body.equals(body)) {
+                return cached.compressed;
+            }
+        }
+
+        byte[] compressed;
+        Codec codec = encoding.acquire(level);
+        try {
+            compressed = codec.compress(body);
+        } finally {
+            encoding.release(codec);
+        }
+
+        if (cacheable) {
+            // Copy the body so later changes to the caller's array cannot match stale output
+            ByteBuffer copy = ByteBuffer.allocate(body.remaining()).put(body.duplicate()).flip();
+            cache.set(slot, new CachedBody(hash, encoding, copy, compressed));
+        }
+        return compressed;
+    }
+
+    private static int hash(ByteBuffer body) {
+        // Eight bytes per step; collisions only cost a failed comparison
+        long hash = body.remaining();
+        int i = body.position();
+        for (int end = body.limit() - Long.BYTES; i <= end; i += Long.BYTES) {
+            hash = 31 * hash + body.getLong(i);
+        }
+        for (; i < body.limit(); i++) {
+            hash = 31 * hash + body.get(i);
+        }
+        return Long.hashCode(hash);
+    }
+
+    /**
+     * One supported content coding and its pool of idle codecs.
+     */
+    private static final class Encoding {
+        final String token;
+        final boolean gzip;
+        private final ArrayBlockingQueue<Codec> pool = new ArrayBlockingQueue<>(MAX_POOLED_CODECS);
+
+        Encoding(String token, boolean gzip) {
+            this.token = token;
+            this.gzip = gzip;
+        }
+
+        Codec acquire(int level) {
+            Codec codec = pool.poll();
+            if (codec == null || codec.level != level) {
+                if (codec != null) {
+                    codec.deflater.end();
+                }
+                return new Codec(gzip, level);
+            }
+            codec.deflater.reset();
+            codec.crc.reset();
+            return codec;
+        }
+
+        void release(Codec codec) {
+            if (codec.scratch.length > MAX_POOLED_SCRATCH_SIZE) {
+                codec.scratch = new byte[SCRATCH_SIZE];
+            }
+            if (!pool.offer(codec)) {
+                // Free the native zlib state now rather than on collection
+                codec.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * A deflater with the state and scratch space needed to frame its output.
+     */
+    private static final class Codec {
+        final boolean gzip;
+        final int level;
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        byte[] scratch = new byte[SCRATCH_SIZE];
+
+        Codec(boolean gzip, int level) {
+            this.gzip = gzip;
+            this.level = level;
+            // gzip frames raw deflate data itself; deflate is the zlib format
+            this.deflater = new Deflater(level, gzip);
+        }
+
+        byte[] compress(ByteBuffer body) {
+            int position = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, scratch, 0, GZIP_HEADER.length);
+                position = GZIP_HEADER.length;
+                crc.update(body.duplicate());
+            }
+            int size = body.remaining();
+            deflater.setInput(body.duplicate());
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (position == scratch.length) {
+                    scratch = Arrays.copyOf(scratch, scratch.length * 2);
+                }
+                position += deflater.deflate(scratch, position, scratch.length - position);
+            }
+            if (gzip) {
+                if (scratch.length - position < GZIP_TRAILER_SIZE) {
+                    scratch = Arrays.copyOf(scratch, position + GZIP_TRAILER_SIZE);
+                }
+                position = writeTrailer(scratch, position, crc.getValue(), size);
+            }
+            return Arrays.copyOf(scratch, position);
+        }
+
+        static int writeTrailer(byte[] buffer, int position, long crc, long size) {
+            for (int i = 0; i < 4; i++) {
+                buffer[position++] = (byte) (crc >>> (8 * i));
+            }
+            for (int i = 0; i < 4; i++) {
+                buffer[position++] = (byte) (size >>> (8 * i));
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Compresses a streamed body as it is written. Flushing sends
+     * everything written so far, so streamed events are not held back.
+     */
+    private static final class EncodingStream extends OutputStream {
+        private final Codec codec;
+        private final OutputStream out;
+        private long size;
+        private boolean closed;
+
+        EncodingStream(Codec codec, OutputStream out) throws IOException {
+            this.codec = codec;
+            this.out = out;
+            if (codec.gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Response body already complete");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (codec.gzip) {
+                codec.crc.update(b, off, len);
+            }
+            size += len;
+            codec.deflater.setInput(b, off, len);
+            // The deflater holds on to the caller's array until it has taken all of it
+            while (!codec.deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            while (deflate(Deflater.SYNC_FLUSH) == codec.scratch.length) {
+                // A full buffer means more output may be pending
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            codec.deflater.finish();
+            while (!codec.deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (codec.gzip) {
+                byte[] trailer = new byte[GZIP_TRAILER_SIZE];
+                Codec.writeTrailer(trailer, 0, codec.crc.getValue(), size);
+                out.write(trailer);
+            }
+        }
+
+        private int deflate(int flush) throws IOException {
+            int n = codec.deflater.deflate(codec.scratch, 0, codec.scratch.length, flush);
+            if (n > 0) {
+                out.write(codec.scratch, 0, n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A body and its compressed form.
+     */
+    private static final class CachedBody {
+        final int hash;
+        final Encoding encoding;
+        final ByteBuffer body;
+        final byte[] compressed;
+
+        CachedBody(int hash, Encoding encoding, ByteBuffer body, byte[] compressed) {
+            this.hash = hash;
+            this.encoding = encoding;
+            this.body = body;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-threaded selector loop used by the non-blocking server.
+ * All channel registration and interest changes happen on the loop thread;
+ * other threads hand work over through {@link #execute(Runnable)}.
+ */
+final class EventLoop implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Callback attached to every selection key owned by a loop.
+     */
+    interface Handler {
+        void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * Called periodically so the handler can expire idle state.
+         *
+         * @param now Current time in milliseconds
+         */
+        default void onTick(long now) {
+        }
+
+        /**
+         * Called when the server stops taking requests, so the handler can
+         * close its channel if it is idle.
+         */
+        default void onDrain() {
+        }
+
+        void close();
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean running;
+    private long lastTick;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.thread = new Thread(this, name);
+        this.running = true;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread, waking the selector if necessary.
+     *
+     * @param task Task to run
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        lastTick = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                processSelectedKeys();
+                runTasks();
+                tick();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Event loop select error", e);
+            }
+        }
+        closeAll();
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Handler handler = (Handler) key.attachment();
+            try {
+                if (key.isValid()) {
+                    handler.onReady(key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Channel error: " + e.getMessage(), e);
+                handler.close();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Unexpected event loop error", e);
+                handler.close();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Event loop task failed", e);
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        if (now - lastTick < SELECT_TIMEOUT_MILLIS) {
+            return;
+        }
+        lastTick = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                ((Handler) key.attachment()).onTick(now);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            LOGGER.log(Level.FINE, "Error closing selector", e);
+        }
+    }
+
+    /**
+     * Let every handler on the loop close its channel if idle.
+     */
+    void drain() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    ((Handler) key.attachment()).onDrain();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the loop; registered channels are closed by the loop thread.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+}
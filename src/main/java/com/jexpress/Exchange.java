@@ -0,0 +1,84 @@
+package com.jexpress;
+
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The request and response objects of one connection. Without pooling each
+ * request gets new ones; with {@link JExpress#pooling(boolean)} the same two
+ * are reset and reused, and in debug mode the previous ones are poisoned
+ * and replaced, so a handler still holding them fails loudly.
+ */
+final class Exchange {
+    private final boolean pooling;
+    private final boolean debug;
+    private final String remoteAddress;
+    private Request request;
+    private Response response;
+    // Reused by every traced request on the connection
+    private RequestTrace trace;
+
+    /**
+     * @param config Server configuration
+     * @param remoteAddress Client address reported by every request, or null
+     */
+    Exchange(ServerConfig config, String remoteAddress) {
+        this.pooling = config.pooling;
+        this.debug = config.poolingDebug;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Get the textual address of the client at the other end of a channel,
+     * once per connection rather than per request.
+     *
+     * @return Address, or null if the channel is not connected
+     */
+    static String remoteAddress(SocketChannel channel) {
+        InetAddress address = channel.socket().getInetAddress();
+        return address != null ? address.getHostAddress() : null;
+    }
+
+    /**
+     * Get empty objects for the next request; only call once the previous
+     * response has been written.
+     */
+    void next() {
+        if (request == null || !pooling) {
+            request = new Request();
+            response = new Response();
+        } else if (debug) {
+            request.poison();
+            response.poison();
+            request = new Request();
+            response = new Response();
+        } else {
+            request.reset();
+            response.reset();
+        }
+        request.setRemoteAddress(remoteAddress);
+    }
+
+    /**
+     * Start timing the current request, whose first bytes have arrived.
+     *
+     * @param now {@link System#nanoTime()}
+     * @return Trace of the request
+     */
+    RequestTrace startTrace(long now) {
+        if (trace == null) {
+            trace = new RequestTrace();
+        }
+        trace.start(now);
+        request.setTrace(trace);
+        return trace;
+    }
+
+    Request request() {
+        return request;
+    }
+
+    Response response() {
+        return response;
+    }
+}
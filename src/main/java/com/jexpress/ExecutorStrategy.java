@@ -0,0 +1,95 @@
+package com.jexpress;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Strategy for creating the executor that runs request handling.
+ * A new executor is created each time the server starts.
+ */
+@FunctionalInterface
+public interface ExecutorStrategy {
+
+    /**
+     * What a bounded executor does when all threads are busy and the queue is full.
+     */
+    enum RejectionPolicy {
+        /** Answer the request with 503 Service Unavailable. */
+        REJECT,
+        /** Run the task on the submitting (accept or event loop) thread, slowing intake. */
+        CALLER_RUNS
+    }
+
+    /**
+     * Create the executor service.
+     *
+     * @return New executor service
+     */
+    ExecutorService create();
+
+    /**
+     * Unbounded pool that creates threads on demand and reuses idle ones.
+     *
+     * @return Executor strategy
+     */
+    static ExecutorStrategy cached() {
+        return Executors::newCachedThreadPool;
+    }
+
+    /**
+     * Fixed-size pool with a bounded queue.
+     *
+     * @param threads Number of worker threads
+     * @param queueCapacity Maximum number of queued tasks
+     * @param policy What to do when the queue is full
+     * @return Executor strategy
+     */
+    static ExecutorStrategy bounded(int threads, int queueCapacity, RejectionPolicy policy) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        return () -> {
+            RejectedExecutionHandler handler = policy == RejectionPolicy.CALLER_RUNS
+                    ? new ThreadPoolExecutor.CallerRunsPolicy()
+                    : new ThreadPoolExecutor.AbortPolicy();
+            return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), handler);
+        };
+    }
+
+    /**
+     * One virtual thread per task. Virtual threads are looked up reflectively
+     * so the library still runs on older runtimes; when they are not available
+     * this falls back to {@link #cached()}.
+     *
+     * @return Executor strategy
+     */
+    static ExecutorStrategy virtualThreads() {
+        return () -> {
+            ExecutorService executor = VirtualThreads.newExecutor();
+            if (executor != null) {
+                return executor;
+            }
+            Logger.getLogger(ExecutorStrategy.class.getName())
+                    .warning("Virtual threads are not supported by this runtime, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        };
+    }
+
+    /**
+     * Check whether the running JVM supports virtual threads.
+     *
+     * @return true if {@link #virtualThreads()} creates virtual threads
+     */
+    static boolean isVirtualThreadSupported() {
+        return VirtualThreads.isSupported();
+    }
+}
@@ -0,0 +1,22 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by connection streams that can send file contents straight
+ * from the file to the socket with {@link FileChannel#transferTo}, so the
+ * bytes never pass through the Java heap.
+ */
+interface FileTransfer {
+    /**
+     * Send part of a file after everything already written to the stream.
+     * The file must be the last part of the response.
+     *
+     * @param file Open file; the stream takes ownership and closes it once sent or on failure
+     * @param position Offset of the first byte to send
+     * @param count Number of bytes to send
+     * @throws IOException If the file cannot be sent
+     */
+    void transferFile(FileChannel file, long position, long count) throws IOException;
+}
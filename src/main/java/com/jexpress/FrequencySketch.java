@@ -0,0 +1,106 @@
+package com.jexpress;
+
+/**
+ * Approximate count of how often each key was seen recently, for deciding
+ * whether a new cache entry is worth more than the one it would replace.
+ * A count-min sketch of 4-bit counters: each key increments one counter in
+ * each of four rows and its frequency is the smallest of the four. After
+ * ten increments per counter every counter is halved, so the counts follow
+ * what is popular now rather than what was popular once.
+ *
+ * <p>Not thread safe; callers hold the lock of the cache it belongs to.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * @param expectedEntries Number of distinct keys to tell apart, rounded
+     *                        up to a power of two
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+        this.table = new long[length];
+        this.mask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * Get the estimated number of recent occurrences of a key.
+     *
+     * @param hashCode Hash code of the key
+     * @return Estimate between 0 and 15
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        // Each long holds 16 counters; the key uses four of them per row
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            long word = table[indexOf(hash, i)];
+            frequency = Math.min(frequency, (int) (word >>> ((start + i) << 2)) & 0xF);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record one occurrence of a key.
+     *
+     * @param hashCode Hash code of the key
+     */
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long counterMask = 0xFL << offset;
+        if ((table[index] & counterMask) == counterMask) {
+            return false;
+        }
+        table[index] += 1L << offset;
+        return true;
+    }
+
+    /**
+     * Halve every counter, correcting the sample size for the odd counts
+     * truncated on the way.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
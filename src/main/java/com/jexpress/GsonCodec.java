@@ -0,0 +1,73 @@
+package com.jexpress;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link JsonCodec} on Gson's streaming API. The type adapter for each class
+ * is looked up once and kept in a {@link ClassValue}, so binding skips
+ * Gson's per-call type token lookup. Input is decoded by a
+ * {@link Utf8Reader}, and output written to a {@link PooledOutputStream} is
+ * encoded as UTF-8 straight into its buffer.
+ */
+final class GsonCodec implements JsonCodec {
+    static final GsonCodec DEFAULT = new GsonCodec(new Gson());
+
+    private final Gson gson;
+    private final ClassValue<TypeAdapter<?>> adapters = new ClassValue<>() {
+        @Override
+        protected TypeAdapter<?> computeValue(Class<?> type) {
+            return gson.getAdapter(type);
+        }
+    };
+
+    GsonCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public <T> T read(InputStream in, Class<T> type) throws IOException {
+        JsonReader reader = gson.newJsonReader(new Utf8Reader(in));
+        try {
+            T value = adapter(type).read(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new IOException("Unexpected data after the JSON value");
+            }
+            return value;
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            // Input that does not fit the type
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void write(Object value, OutputStream out) throws IOException {
+        Writer writer = out instanceof PooledOutputStream
+                ? ((PooledOutputStream) out).writer()
+                : new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        JsonWriter json = gson.newJsonWriter(writer);
+        if (value == null) {
+            json.nullValue();
+        } else {
+            ((TypeAdapter<Object>) adapter(value.getClass())).write(json, value);
+        }
+        json.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> TypeAdapter<T> adapter(Class<T> type) {
+        return (TypeAdapter<T>) adapters.get(type);
+    }
+}
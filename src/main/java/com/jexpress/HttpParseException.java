@@ -0,0 +1,22 @@
+package com.jexpress;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request cannot be parsed. Carries the status code the
+ * server answers with before closing the connection.
+ */
+class HttpParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    HttpParseException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,324 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x request head parser working directly on a heap
+ * {@link ByteBuffer}. It can be fed partial reads: each call resumes where
+ * the previous one stopped. Header names and values are not decoded here;
+ * the request keeps their byte ranges and decodes them on first access.
+ * The query string is split from the path the same way and decoded by
+ * {@link QueryDecoder} when a handler first asks for it.
+ *
+ * <p>The buffer region holding the head must not move until the request
+ * has been handled, so callers only compact the buffer between requests.
+ */
+final class HttpParser {
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+    private static final byte[] HTTP_1_0_BYTES = HTTP_1_0.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1_BYTES = HTTP_1_1.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_PREFIX = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_NAMES[i] = METHODS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private enum State {
+        REQUEST_LINE,
+        HEADERS,
+        DONE
+    }
+
+    private final int maxRequestLineLength;
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+    private final QueryDecoder queryDecoder;
+
+    private State state;
+    private int headStart;
+    private int lineStart;
+    private int scanPos;
+
+    HttpParser(ServerConfig config) {
+        this.maxRequestLineLength = config.maxRequestLineLength;
+        this.maxHeaderSize = config.maxHeaderSize;
+        this.maxHeaderCount = config.maxHeaderCount;
+        this.queryDecoder = new QueryDecoder(config);
+    }
+
+    /**
+     * Prepare to parse a new request starting at the buffer's position.
+     *
+     * @param buffer Buffer holding the request bytes between position and limit
+     */
+    void reset(ByteBuffer buffer) {
+        state = State.REQUEST_LINE;
+        headStart = buffer.position();
+        lineStart = headStart;
+        scanPos = headStart;
+    }
+
+    /**
+     * Parse as much of the request head as is buffered.
+     * On completion the buffer position is moved past the head, so the
+     * remaining bytes are the start of the body or the next request.
+     *
+     * @param buffer Buffer holding the request bytes between position and limit
+     * @param request Request to populate
+     * @return true once the head is complete
+     * @throws HttpParseException If the request is malformed or exceeds a limit
+     */
+    boolean parse(ByteBuffer buffer, Request request) throws HttpParseException {
+        byte[] buf = buffer.array();
+        int end = buffer.limit();
+
+        while (scanPos < end) {
+            if (buf[scanPos] != '\n') {
+                scanPos++;
+                continue;
+            }
+            int lineEnd = scanPos;
+            if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            scanPos++;
+
+            if (state == State.REQUEST_LINE) {
+                if (lineEnd == lineStart) {
+                    // Ignore empty lines before the request line
+                    lineStart = scanPos;
+                    headStart = scanPos;
+                    continue;
+                }
+                if (lineEnd - lineStart > maxRequestLineLength) {
+                    throw new HttpParseException(StatusCodes.URI_TOO_LONG, "Request line too long");
+                }
+                request.setHead(buf);
+                parseRequestLine(buf, lineStart, lineEnd, request);
+                state = State.HEADERS;
+            } else if (lineEnd == lineStart) {
+                checkBodyFraming(request);
+                state = State.DONE;
+                buffer.position(scanPos);
+                return true;
+            } else {
+                parseHeaderLine(buf, lineStart, lineEnd, request);
+            }
+            lineStart = scanPos;
+            checkHeadSize();
+        }
+
+        if (state == State.REQUEST_LINE && scanPos - lineStart > maxRequestLineLength) {
+            throw new HttpParseException(StatusCodes.URI_TOO_LONG, "Request line too long");
+        }
+        checkHeadSize();
+        return false;
+    }
+
+    /**
+     * Build the error for a head that does not fit in the connection buffer.
+     *
+     * @return Exception describing the overflow
+     */
+    HttpParseException overflow() {
+        if (state == State.REQUEST_LINE) {
+            return new HttpParseException(StatusCodes.URI_TOO_LONG, "Request line too long");
+        }
+        return new HttpParseException(StatusCodes.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request headers too large");
+    }
+
+    private void checkHeadSize() throws HttpParseException {
+        if (scanPos - headStart > maxHeaderSize) {
+            throw overflow();
+        }
+    }
+
+    private void parseRequestLine(byte[] buf, int start, int end, Request request)
+            throws HttpParseException {
+        int firstSpace = indexOf(buf, start, end, (byte) ' ');
+        int lastSpace = lastIndexOf(buf, start, end, (byte) ' ');
+        if (firstSpace < 0 || lastSpace <= firstSpace + 1) {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Invalid request line");
+        }
+
+        HttpMethod method = null;
+        for (int i = 0; i < METHODS.length; i++) {
+            if (regionEquals(buf, start, firstSpace, METHOD_NAMES[i])) {
+                method = METHODS[i];
+                break;
+            }
+        }
+        if (method == null) {
+            throw new HttpParseException(StatusCodes.NOT_IMPLEMENTED, "Unsupported HTTP method");
+        }
+        request.setMethod(method);
+
+        int versionStart = lastSpace + 1;
+        if (regionEquals(buf, versionStart, end, HTTP_1_1_BYTES)) {
+            request.setProtocol(HTTP_1_1);
+        } else if (regionEquals(buf, versionStart, end, HTTP_1_0_BYTES)) {
+            request.setProtocol(HTTP_1_0);
+        } else if (end - versionStart > HTTP_PREFIX.length
+                && regionEquals(buf, versionStart, versionStart + HTTP_PREFIX.length, HTTP_PREFIX)) {
+            throw new HttpParseException(StatusCodes.HTTP_VERSION_NOT_SUPPORTED, "Unsupported HTTP version");
+        } else {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Invalid request line");
+        }
+
+        int targetStart = firstSpace + 1;
+        int query = indexOf(buf, targetStart, lastSpace, (byte) '?');
+        int pathEnd = query >= 0 ? query : lastSpace;
+        request.setPath(new String(buf, targetStart, pathEnd - targetStart, StandardCharsets.ISO_8859_1));
+        if (query >= 0) {
+            request.setRawQuery(query + 1, lastSpace, queryDecoder);
+        }
+    }
+
+    private void parseHeaderLine(byte[] buf, int start, int end, Request request) throws HttpParseException {
+        if (buf[start] == ' ' || buf[start] == '\t') {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Obsolete header line folding");
+        }
+        int colon = indexOf(buf, start, end, (byte) ':');
+        if (colon <= start || buf[colon - 1] == ' ' || buf[colon - 1] == '\t') {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Invalid header line");
+        }
+        if (request.getRawHeaderCount() >= maxHeaderCount) {
+            throw new HttpParseException(StatusCodes.REQUEST_HEADER_FIELDS_TOO_LARGE, "Too many headers");
+        }
+
+        int valueStart = colon + 1;
+        while (valueStart < end && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        request.addRawHeader(start, colon, valueStart, valueEnd);
+
+        if (equalsIgnoreCase(buf, start, colon, CONTENT_LENGTH)) {
+            long length = parseContentLength(buf, valueStart, valueEnd);
+            if (request.getContentLength() >= 0 && request.getContentLength() != length) {
+                throw new HttpParseException(StatusCodes.BAD_REQUEST, "Conflicting Content-Length headers");
+            }
+            request.setContentLength(length);
+        } else if (equalsIgnoreCase(buf, start, colon, TRANSFER_ENCODING)) {
+            parseTransferEncoding(buf, valueStart, valueEnd, request);
+        }
+    }
+
+    /**
+     * Only a lone {@code chunked} coding is supported; chunked must be the
+     * final coding of a request, so anything after it is malformed.
+     */
+    private static void parseTransferEncoding(byte[] buf, int start, int end, Request request)
+            throws HttpParseException {
+        if (request.isChunked()) {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Transfer coding after chunked");
+        }
+        if (equalsIgnoreCase(buf, start, end, CHUNKED)) {
+            request.setChunked(true);
+            return;
+        }
+        int lastCoding = lastIndexOf(buf, start, end, (byte) ',') + 1;
+        while (lastCoding < end && (buf[lastCoding] == ' ' || buf[lastCoding] == '\t')) {
+            lastCoding++;
+        }
+        if (lastCoding > start && equalsIgnoreCase(buf, lastCoding, end, CHUNKED)) {
+            throw new HttpParseException(StatusCodes.NOT_IMPLEMENTED, "Unsupported transfer coding");
+        }
+        throw new HttpParseException(StatusCodes.BAD_REQUEST, "Request body length cannot be determined");
+    }
+
+    /**
+     * Reject heads whose body length is ambiguous, the basis of request
+     * smuggling between proxies and servers.
+     */
+    private static void checkBodyFraming(Request request) throws HttpParseException {
+        if (!request.isChunked()) {
+            return;
+        }
+        if (request.getContentLength() >= 0) {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Both Content-Length and Transfer-Encoding");
+        }
+        if (HTTP_1_0.equals(request.getProtocol())) {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Transfer-Encoding in an HTTP/1.0 request");
+        }
+    }
+
+    private static long parseContentLength(byte[] buf, int start, int end) throws HttpParseException {
+        if (start == end || end - start > 18) {
+            throw new HttpParseException(StatusCodes.BAD_REQUEST, "Invalid Content-Length header");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new HttpParseException(StatusCodes.BAD_REQUEST, "Invalid Content-Length header");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = end - 1; i >= start; i--) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] buf, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare a byte range against a lower-case ASCII name, ignoring case.
+     */
+    static boolean equalsIgnoreCase(byte[] buf, int start, int end, byte[] lowerCase) {
+        if (end - start != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            int b = buf[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
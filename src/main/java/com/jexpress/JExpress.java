@@ -2,14 +2,26 @@ package com.jexpress;
 
 import com.jexpress.utils.StatusCodes;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.io.InputStreamReader;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,15 +31,46 @@ import java.util.logging.Logger;
 public class JExpress {
     private static final Logger LOGGER = Logger.getLogger(JExpress.class.getName());
 
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 30_000;
+    private static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30_000;
+    private static final int ACCEPT_BACKLOG = 1024;
+
     private Router router;
     private int port;
+    private final ServerConfig config;
+    private final ResponseWriter responseWriter;
+    private Compression compression;
+    private Metrics metrics;
+    private JsonCodec jsonCodec = GsonCodec.DEFAULT;
+    private long asyncTimeoutMillis = DEFAULT_ASYNC_TIMEOUT_MILLIS;
+    private ExecutorStrategy executorStrategy;
     private ExecutorService threadPool;
     private volatile boolean isRunning;
+    private int nioEventLoops;
+    private NioServer nioServer;
+    private boolean reuseAddress = true;
+    private boolean reusePort;
+    private long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+    private AdmissionControl admission;
+    private SlowRequestLog slowRequestLog;
+    private long deadlineMillis;
+    private String deadlineHeader;
+    private int acceptors = 1;
+    private final List<InetSocketAddress> extraListeners = new ArrayList<>();
+    private volatile List<ServerSocketChannel> serverChannels = List.of();
+    private volatile CompletableFuture<Void> ready = new CompletableFuture<>();
+    // Requests dispatched whose response has not been fully written
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object drainLock = new Object();
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
 
     public JExpress() {
         this.router = new Router();
+        this.router.setUnmatchedHandler(this::noRoute);
         this.port = 3000; // default port
-        this.threadPool = Executors.newCachedThreadPool();
+        this.config = new ServerConfig();
+        this.responseWriter = new ResponseWriter();
         this.isRunning = false;
     }
 
@@ -42,6 +85,427 @@ public class JExpress {
         return this;
     }
 
+    /**
+     * Also listen on another address, e.g. an admin port bound to the
+     * loopback interface only. Connections from every listener are served
+     * by the same routes.
+     *
+     * @param host Interface to bind, or null for all interfaces
+     * @param port Port number, or 0 for any free port
+     * @return Application instance for method chaining
+     */
+    public JExpress addListener(String host, int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("port out of range: " + port);
+        }
+        extraListeners.add(host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port));
+        return this;
+    }
+
+    /**
+     * Set the number of listening sockets opened on each address, each
+     * with its own accept loop. They share the port through
+     * {@code SO_REUSEPORT}, and the kernel spreads new connections between
+     * them, so accepting short-lived connections is no longer limited to
+     * one thread. In non-blocking mode each acceptor feeds its own group of
+     * event loops. Where SO_REUSEPORT is not supported, one socket is
+     * opened per address. Defaults to 1.
+     *
+     * @param acceptors Listening sockets per address
+     * @return Application instance for method chaining
+     */
+    public JExpress acceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("acceptors must be positive: " + acceptors);
+        }
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    /**
+     * Set how long an idle persistent connection is kept open waiting for the next request.
+     *
+     * @param millis Idle timeout in milliseconds
+     * @return Application instance for method chaining
+     */
+    public JExpress keepAliveTimeout(int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("keepAliveTimeout must be positive: " + millis);
+        }
+        config.keepAliveTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set how many requests may be served on one connection before it is closed.
+     * A value of 1 disables persistent connections.
+     *
+     * @param maxRequests Maximum requests per connection
+     * @return Application instance for method chaining
+     */
+    public JExpress maxRequestsPerConnection(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequestsPerConnection must be positive: " + maxRequests);
+        }
+        config.maxRequestsPerConnection = maxRequests;
+        return this;
+    }
+
+    /**
+     * Set the largest request head (request line plus headers) accepted.
+     * Larger heads are answered with 431.
+     *
+     * @param bytes Maximum head size in bytes
+     * @return Application instance for method chaining
+     */
+    public JExpress maxHeaderSize(int bytes) {
+        if (bytes < 256) {
+            throw new IllegalArgumentException("maxHeaderSize must be at least 256: " + bytes);
+        }
+        config.maxHeaderSize = bytes;
+        return this;
+    }
+
+    /**
+     * Set the largest request body accepted. Requests declaring a larger
+     * Content-Length are answered with 413 before any of the body is read;
+     * chunked bodies are cut off with 413 once they pass the limit.
+     *
+     * @param bytes Maximum body size in bytes
+     * @return Application instance for method chaining
+     */
+    public JExpress maxBodySize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("maxBodySize must not be negative: " + bytes);
+        }
+        config.maxBodySize = bytes;
+        return this;
+    }
+
+    /**
+     * Set the longest request line accepted. Longer request lines are answered with 414.
+     *
+     * @param bytes Maximum request line length in bytes
+     * @return Application instance for method chaining
+     */
+    public JExpress maxRequestLineLength(int bytes) {
+        if (bytes < 16) {
+            throw new IllegalArgumentException("maxRequestLineLength must be at least 16: " + bytes);
+        }
+        config.maxRequestLineLength = bytes;
+        return this;
+    }
+
+    /**
+     * Set the most query parameters a request may have. The query is only
+     * decoded when a handler reads it; one with more parameters makes the
+     * request fail with 400.
+     *
+     * @param count Maximum number of query parameters
+     * @return Application instance for method chaining
+     */
+    public JExpress maxQueryParams(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("maxQueryParams must be positive: " + count);
+        }
+        config.maxQueryParams = count;
+        return this;
+    }
+
+    /**
+     * Set the longest query parameter name or value, before decoding,
+     * accepted. A longer one makes the request fail with 400 once a
+     * handler reads the query.
+     *
+     * @param bytes Maximum length in bytes
+     * @return Application instance for method chaining
+     */
+    public JExpress maxQueryParamLength(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("maxQueryParamLength must be positive: " + bytes);
+        }
+        config.maxQueryParamLength = bytes;
+        return this;
+    }
+
+    /**
+     * Set the largest WebSocket message accepted from a client, counting
+     * all its fragments. A client sending a larger one is disconnected with
+     * close code 1009. Defaults to 1 MiB.
+     *
+     * @param bytes Maximum message size in bytes
+     * @return Application instance for method chaining
+     */
+    public JExpress maxWebSocketMessageSize(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("maxWebSocketMessageSize must be positive: " + bytes);
+        }
+        config.maxWebSocketMessageSize = bytes;
+        return this;
+    }
+
+    /**
+     * Set how long asynchronous handlers may take before the client is
+     * answered with 504, for routes without their own timeout. Defaults to
+     * 30 seconds.
+     *
+     * @param millis Timeout in milliseconds
+     * @return Application instance for method chaining
+     * @see Router.Route#timeout(long)
+     */
+    public JExpress asyncTimeout(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("asyncTimeout must be positive: " + millis);
+        }
+        this.asyncTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Give every request a deadline, measured from when its head has been
+     * read. Requests still waiting when it passes are answered with 504
+     * instead of running their handler, and asynchronous handlers time out
+     * at it. Handlers can read the time left with
+     * {@link Request#getRemainingMillis()}. Off by default.
+     *
+     * @param millis Deadline in milliseconds, or 0 for none
+     * @return Application instance for method chaining
+     */
+    public JExpress deadline(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("deadline must not be negative: " + millis);
+        }
+        this.deadlineMillis = millis;
+        return this;
+    }
+
+    /**
+     * Take each request's deadline from a header in which the client, or a
+     * proxy in front, sends how many milliseconds it will wait, such as
+     * {@code X-Request-Timeout: 250}. A default {@linkplain #deadline(long)
+     * deadline} still applies when it is shorter or the header is missing.
+     *
+     * @param name Header name, or null to ignore timeouts sent by clients
+     * @return Application instance for method chaining
+     */
+    public JExpress deadlineHeader(String name) {
+        this.deadlineHeader = name;
+        return this;
+    }
+
+    /**
+     * Limit how many requests run at once, queueing and shedding the rest.
+     *
+     * @param admission Admission control, or null to admit every request
+     * @return Application instance for method chaining
+     * @see AdmissionControl
+     */
+    public JExpress admissionControl(AdmissionControl admission) {
+        this.admission = admission;
+        return this;
+    }
+
+    /**
+     * Set how long {@link #stop()} waits for requests in flight to
+     * complete before closing their connections. Defaults to 30 seconds.
+     *
+     * @param millis Drain timeout in milliseconds
+     * @return Application instance for method chaining
+     */
+    public JExpress drainTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("drainTimeout must not be negative: " + millis);
+        }
+        this.drainTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set {@code SO_REUSEADDR} on the listening socket, so a restarted
+     * server can bind its port while connections of the previous one are
+     * still in {@code TIME_WAIT}. On by default.
+     *
+     * @param reuseAddress Whether to set SO_REUSEADDR
+     * @return Application instance for method chaining
+     */
+    public JExpress reuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+        return this;
+    }
+
+    /**
+     * Set {@code SO_REUSEPORT} on the listening socket, so several
+     * processes can listen on the same port and the kernel spreads new
+     * connections between them. A new instance can then start while the
+     * old one drains. Off by default; not available on every platform.
+     *
+     * @param reusePort Whether to set SO_REUSEPORT
+     * @return Application instance for method chaining
+     */
+    public JExpress reusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * Reuse one {@link Request} and {@link Response} object for all the
+     * requests on a connection instead of allocating new ones per request,
+     * to cut garbage under load. Handlers must then not keep either object,
+     * or pass it to another thread, once the response is complete; an
+     * asynchronous handler's objects are only reused after its result
+     * completes. Off by default.
+     *
+     * @param pooling Whether to recycle request and response objects
+     * @return Application instance for method chaining
+     * @see #poolingDebug(boolean)
+     */
+    public JExpress pooling(boolean pooling) {
+        config.pooling = pooling;
+        return this;
+    }
+
+    /**
+     * Check that handlers do not keep recycled objects: with pooling on, a
+     * request and response are marked released once answered, instead of
+     * being reused, and any later use throws {@link IllegalStateException}.
+     * Meant for tests; each request allocates as it would without pooling.
+     *
+     * @param poolingDebug Whether to poison released objects
+     * @return Application instance for method chaining
+     */
+    public JExpress poolingDebug(boolean poolingDebug) {
+        config.poolingDebug = poolingDebug;
+        return this;
+    }
+
+    /**
+     * Run middleware for every request.
+     *
+     * @param middleware Middleware to run
+     * @return Application instance for method chaining
+     * @see Router#use(Middleware)
+     */
+    public JExpress use(Middleware middleware) {
+        router.use(middleware);
+        return this;
+    }
+
+    /**
+     * Run middleware for the routes at or below a path.
+     *
+     * @param prefix Path prefix
+     * @param middleware Middleware to run
+     * @return Application instance for method chaining
+     * @see Router#use(String, Middleware)
+     */
+    public JExpress use(String prefix, Middleware middleware) {
+        router.use(prefix, middleware);
+        return this;
+    }
+
+    /**
+     * Compress response bodies for clients that accept gzip or deflate.
+     *
+     * @param compression Compression settings, or null to turn compression off
+     * @return Application instance for method chaining
+     */
+    public JExpress compression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Set the codec for {@link Request#bodyAs(Class)} and
+     * {@link Response#sendJson(Object)}. Defaults to Gson.
+     *
+     * @param jsonCodec JSON codec
+     * @return Application instance for method chaining
+     */
+    public JExpress jsonCodec(JsonCodec jsonCodec) {
+        if (jsonCodec == null) {
+            throw new IllegalArgumentException("jsonCodec must not be null");
+        }
+        this.jsonCodec = jsonCodec;
+        return this;
+    }
+
+    /**
+     * Record request, connection and executor metrics.
+     *
+     * @param metrics Metrics to record into, or null to stop recording
+     * @return Application instance for method chaining
+     * @see Metrics
+     */
+    public JExpress metrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Time every request phase by phase and keep the slowest in a log.
+     * Requests are also timed while a Flight Recorder recording has the
+     * {@code com.jexpress.RequestPhase} event enabled.
+     *
+     * @param slowRequestLog Log to keep slow requests in, or null to stop
+     * @return Application instance for method chaining
+     * @see SlowRequestLog
+     */
+    public JExpress slowRequestLog(SlowRequestLog slowRequestLog) {
+        this.slowRequestLog = slowRequestLog;
+        return this;
+    }
+
+    /**
+     * Use the non-blocking server core with one event loop per available processor.
+     *
+     * @return Application instance for method chaining
+     */
+    public JExpress nio() {
+        return nio(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Use the non-blocking server core. Connections are multiplexed over a
+     * fixed number of selector event loops and route handlers run on a
+     * separate bounded worker pool, so idle or slow clients do not each
+     * occupy a thread.
+     *
+     * @param eventLoops Number of selector event loops
+     * @return Application instance for method chaining
+     */
+    public JExpress nio(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be positive: " + eventLoops);
+        }
+        this.nioEventLoops = eventLoops;
+        return this;
+    }
+
+    /**
+     * Set how the executor that runs request handling is created.
+     * Defaults to {@link ExecutorStrategy#cached()} in blocking mode and to a
+     * bounded pool of four threads per core in non-blocking mode.
+     *
+     * @param executorStrategy Executor strategy
+     * @return Application instance for method chaining
+     */
+    public JExpress executor(ExecutorStrategy executorStrategy) {
+        this.executorStrategy = executorStrategy;
+        return this;
+    }
+
+    /**
+     * Run request handling on a fixed number of threads with a bounded queue;
+     * requests beyond that are answered with 503.
+     *
+     * @param workerThreads Number of worker threads
+     * @return Application instance for method chaining
+     */
+    public JExpress workerThreads(int workerThreads) {
+        return executor(ExecutorStrategy.bounded(workerThreads, DEFAULT_QUEUE_CAPACITY,
+                ExecutorStrategy.RejectionPolicy.REJECT));
+    }
+
     /**
      * Get the router for adding routes.
      *
@@ -52,176 +516,784 @@ public class JExpress {
     }
 
     /**
-     * Start the server and begin accepting connections.
+     * Bind the listening sockets without accepting connections yet, e.g. to
+     * find the port chosen for {@code listen(0)} or to fail early if the
+     * port is taken. {@link #start()} binds them if this has not been called.
+     *
+     * @return Application instance for method chaining
+     * @throws IOException If an address cannot be bound
+     * @throws UnsupportedOperationException If SO_REUSEPORT is requested but
+     *         not supported on this platform
+     */
+    public synchronized JExpress bind() throws IOException {
+        if (!serverChannels.isEmpty()) {
+            return this;
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        addresses.add(new InetSocketAddress(port));
+        addresses.addAll(extraListeners);
+        int perAddress = acceptors;
+        if (perAddress > 1 && !reusePortSupported()) {
+            LOGGER.warning("SO_REUSEPORT is not supported on this platform, opening one listening socket per address");
+            perAddress = 1;
+        }
+
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            for (InetSocketAddress address : addresses) {
+                ServerSocketChannel first = openChannel(address, reusePort || perAddress > 1);
+                channels.add(first);
+                // Further sockets join the port the first one got, which matters for port 0
+                InetSocketAddress bound = new InetSocketAddress(address.getAddress(), first.socket().getLocalPort());
+                for (int i = 1; i < perAddress; i++) {
+                    channels.add(openChannel(bound, true));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ServerSocketChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        serverChannels = List.copyOf(channels);
+        return this;
+    }
+
+    private ServerSocketChannel openChannel(InetSocketAddress address, boolean shared) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+            if (shared) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address, ACCEPT_BACKLOG);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * Get the port the server listens on: once bound, the actual port,
+     * which differs from the one configured for {@code listen(0)}.
+     *
+     * @return Port number
+     */
+    public int getPort() {
+        List<ServerSocketChannel> channels = serverChannels;
+        return channels.isEmpty() ? port : channels.get(0).socket().getLocalPort();
+    }
+
+    /**
+     * Get the addresses the server is bound to, the one given to
+     * {@link #listen(int)} first and then those added with
+     * {@link #addListener(String, int)}, with the actual ports.
+     *
+     * @return Bound addresses, or an empty list if not bound
+     */
+    public List<InetSocketAddress> getLocalAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ServerSocketChannel channel : serverChannels) {
+            InetSocketAddress address = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+            if (address != null && !addresses.contains(address)) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Get a future that completes once the server accepts connections,
+     * or completes exceptionally if it fails to start. {@link #start()}
+     * blocks, so run it on another thread and wait on this, e.g. before
+     * reporting the instance healthy to a load balancer.
+     *
+     * <pre>{@code
+     * new Thread(app::start).start();
+     * app.ready().get(10, TimeUnit.SECONDS);
+     * }</pre>
+     *
+     * @return Future for the current start
+     */
+    public CompletableFuture<Void> ready() {
+        return ready.copy();
+    }
+
+    /**
+     * Start the server and begin accepting connections. Blocks until
+     * {@link #stop()} is called.
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            isRunning = true;
-            LOGGER.info("Server started on port " + port);
+        CompletableFuture<Void> started = ready;
+        try {
+            bind();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Server startup error", e);
+            started.completeExceptionally(e);
+            return;
+        }
+        threadPool = createExecutor();
+        if (metrics != null) {
+            metrics.bindExecutor(threadPool);
+        }
+        isRunning = true;
+        if (nioEventLoops > 0) {
+            startNio(started);
+            return;
+        }
 
-            while (isRunning) {
+        List<ServerSocketChannel> channels = serverChannels;
+        LOGGER.info("Server started on " + describeListeners());
+        started.complete(null);
+        for (int i = 1; i < channels.size(); i++) {
+            ServerSocketChannel channel = channels.get(i);
+            new Thread(() -> acceptLoop(channel), "jexpress-acceptor-" + i).start();
+        }
+        acceptLoop(channels.get(0));
+    }
+
+    /**
+     * Accept connections from one listening channel and hand each to the
+     * executor, until the channel is closed by {@link #stop()}.
+     */
+    private void acceptLoop(ServerSocketChannel channel) {
+        // Sockets accepted through a channel can send files with transferTo
+        while (isRunning && channel.isOpen()) {
+            try {
+                SocketChannel clientChannel = channel.accept();
+                clientChannel.socket().setTcpNoDelay(true);
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    threadPool.submit(() -> handleRequest(clientSocket));
-                } catch (IOException e) {
-                    if (isRunning) {
-                        LOGGER.log(Level.SEVERE, "Error accepting client connection", e);
-                    }
+                    threadPool.execute(new BlockingConnection(this, config, clientChannel));
+                } catch (RejectedExecutionException e) {
+                    rejectConnection(clientChannel.socket());
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    LOGGER.log(Level.SEVERE, "Error accepting client connection", e);
                 }
             }
+        }
+    }
+
+    private String describeListeners() {
+        List<InetSocketAddress> addresses = getLocalAddresses();
+        String description = extraListeners.isEmpty() ? "port " + getPort() : addresses.toString();
+        int perAddress = serverChannels.size() / addresses.size();
+        return perAddress > 1 ? description + " with " + perAddress + " acceptors each" : description;
+    }
+
+    private ExecutorService createExecutor() {
+        if (executorStrategy != null) {
+            return executorStrategy.create();
+        }
+        if (nioEventLoops > 0) {
+            int threads = Runtime.getRuntime().availableProcessors() * 4;
+            return ExecutorStrategy.bounded(threads, DEFAULT_QUEUE_CAPACITY,
+                    ExecutorStrategy.RejectionPolicy.REJECT).create();
+        }
+        return ExecutorStrategy.cached().create();
+    }
+
+    /**
+     * Answer a connection the executor could not accept with 503 and close it.
+     *
+     * @param clientSocket Socket for the client connection
+     */
+    private void rejectConnection(Socket clientSocket) {
+        LOGGER.warning("Executor saturated, rejecting connection");
+        if (metrics != null) {
+            metrics.recordRejected(StatusCodes.SERVICE_UNAVAILABLE);
+        }
+        try (Socket socket = clientSocket) {
+            socket.getOutputStream().write(serviceUnavailable());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error rejecting connection", e);
+        }
+    }
+
+    /**
+     * Run the non-blocking server core until {@link #stop()} is called.
+     */
+    private void startNio(CompletableFuture<Void> started) {
+        try {
+            nioServer = new NioServer(this, config, nioEventLoops, threadPool);
+            nioServer.start(serverChannels);
+            LOGGER.info("Server started on " + describeListeners() + " and " + nioEventLoops + " event loops");
+            started.complete(null);
+            nioServer.awaitTermination();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Server startup error", e);
+            started.completeExceptionally(e);
+            isRunning = false;
+            closeServerChannels();
+            threadPool.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            nioServer.stop();
         }
     }
 
     /**
-     * Stop the server gracefully.
+     * Stop the server gracefully, waiting up to the
+     * {@linkplain #drainTimeout(long) drain timeout} for requests in flight.
+     *
+     * <ol>
+     *   <li>The listening socket is closed, so new connections go to other
+     *       instances sharing the port, or are refused.</li>
+     *   <li>Idle persistent connections are closed. Responses to requests
+     *       still in flight carry {@code Connection: close}.</li>
+     *   <li>Once no request is in flight, or the timeout passes, the
+     *       remaining connections are closed and the worker threads
+     *       stopped; after the timeout, handlers still running are
+     *       interrupted.</li>
+     * </ol>
+     *
+     * <p>Blocks until the server has stopped. {@link #start()} may be
+     * called again afterwards.
      */
     public void stop() {
         isRunning = false;
-        threadPool.shutdown();
+        closeServerChannels();
+        if (nioServer != null) {
+            nioServer.closeIdle();
+        }
+        for (BlockingConnection connection : connections) {
+            connection.closeIfIdle();
+        }
+
+        boolean drained = awaitDrain(drainTimeoutMillis);
+        if (!drained) {
+            LOGGER.warning(inFlight.get() + " requests still in flight after " + drainTimeoutMillis
+                    + " ms, closing their connections");
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        for (BlockingConnection connection : connections) {
+            connection.close();
+        }
+        if (threadPool != null) {
+            if (drained) {
+                threadPool.shutdown();
+            } else {
+                threadPool.shutdownNow();
+            }
+        }
+        ready = new CompletableFuture<>();
         LOGGER.info("Server stopped");
     }
 
+    private synchronized void closeServerChannels() {
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing server channel", e);
+            }
+        }
+        serverChannels = List.of();
+    }
+
     /**
-     * Handle an individual client request.
+     * Wait until no request is in flight.
      *
-     * @param clientSocket Socket for the client connection
+     * @return false if requests were still in flight at the deadline
      */
-    private void handleRequest(Socket clientSocket) {
-        try {
-            // Set a timeout to prevent hanging on incomplete requests
-            clientSocket.setSoTimeout(5000);
-
-            try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)
-            ) {
-                // Check if there's data available to read
-                if (!in.ready()) {
-                    LOGGER.info("Received empty or incomplete request");
-                    return;
+    private boolean awaitDrain(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (drainLock) {
+            while (inFlight.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
                 }
-
-                // Parse request
-                Request request = parseRequest(in);
-                Response response = new Response();
-
-                // Find and handle route
-                Router.Route route = router.findRoute(request.getMethod(), request.getPath());
-
-                if (route != null) {
-                    route.handle(request, response);
-                    sendResponse(out, response);
-                } else {
-                    // No route found
-                    response.setStatusCode(StatusCodes.NOT_FOUND);
-                    response.setBody("404 Not Found");
-                    sendResponse(out, response);
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
-        } catch (IOException e) {
-            LOGGER.log(Level.INFO, "Request handling error: " + e.getMessage(), e);
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Error closing client socket", e);
+        }
+        return true;
+    }
+
+    boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Count a request as in flight from dispatch until its response has
+     * been written, so {@link #stop()} can wait for it.
+     */
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void requestFinished() {
+        if (inFlight.decrementAndGet() == 0 && !isRunning) {
+            synchronized (drainLock) {
+                drainLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Track a blocking connection so {@link #stop()} can close it.
+     *
+     * @param connection Connection starting or ending
+     * @param open Whether the connection is starting
+     */
+    void trackConnection(BlockingConnection connection, boolean open) {
+        if (open) {
+            connections.add(connection);
+        } else {
+            connections.remove(connection);
+        }
+    }
+
+    /**
+     * Decide whether the connection stays open after answering a request.
+     * HTTP/1.1 connections persist unless either side asks to close; HTTP/1.0
+     * connections only persist when the client sends {@code Connection: keep-alive}.
+     * Any body the handler left unread is discarded first, up to a limit.
+     *
+     * @param request Request being answered
+     * @param served Number of requests served on the connection, including this one
+     * @return true if the connection should be kept open
+     */
+    boolean isKeepAlive(Request request, int served) {
+        if (!isRunning || served >= config.maxRequestsPerConnection) {
+            return false;
+        }
+        String connection = request.getHeader("Connection");
+        boolean keepAlive = HttpParser.HTTP_1_0.equals(request.getProtocol())
+                ? hasToken(connection, "keep-alive")
+                : !hasToken(connection, "close");
+        // Unread body bytes would be taken for the next request
+        return keepAlive && request.finishBody(config.maxBodyDrain);
+    }
+
+    /**
+     * Whether a comma-separated header value lists a token, ignoring case.
+     */
+    static boolean hasToken(String headerValue, String token) {
+        if (headerValue == null) {
+            return false;
+        }
+        for (String part : headerValue.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
-     * Parse the HTTP request from the input stream.
+     * Get the metrics being recorded.
      *
-     * @param in BufferedReader containing the request
-     * @return Parsed Request object
-     * @throws IOException If there's an error reading the request
+     * @return Metrics, or null when not enabled
      */
-    private Request parseRequest(BufferedReader in) throws IOException {
-        Request request = new Request();
+    Metrics metrics() {
+        return metrics;
+    }
 
-        // Read the first line (request line)
-        String requestLine = in.readLine();
-        if (requestLine == null || requestLine.trim().isEmpty()) {
-            throw new IOException("Empty or invalid request line");
+    /**
+     * Route a parsed request, run its handler and write the response,
+     * waiting on this thread for an asynchronous handler to complete.
+     *
+     * @param request Parsed request
+     * @param response Empty response for the handler to fill in
+     * @param out Stream to write the response to
+     * @param served Number of requests served on the connection, including this one
+     * @return Whether the connection can stay open after the response
+     * @throws IOException If the response cannot be written
+     */
+    boolean serve(Request request, Response response, OutputStream out, int served) throws IOException {
+        requestStarted();
+        try {
+            received(request);
+            if (admission != null && !admission.acquire(request)) {
+                out.write(shed(request));
+                return false;
+            }
+            Response result = begin(request, response);
+            CompletableFuture<Void> pending = request.getAsyncResult();
+            Throwable failure = pending != null ? await(pending) : null;
+            return finish(request, complete(request, result, failure), out, served, failure == null);
+        } finally {
+            requestFinished();
         }
+    }
 
-        // Parse request line
-        String[] parts = requestLine.split(" ");
-        if (parts.length < 3) {
-            throw new IOException("Invalid request line: " + requestLine);
+    /**
+     * Route a parsed request and run its handler. When the handler is
+     * asynchronous its result is left in {@link Request#getAsyncResult()},
+     * already bounded by the route's timeout. A handler or middleware that
+     * throws leaves a result failed with its exception, so the caller
+     * answers it through {@link #complete} as it would an asynchronous
+     * failure.
+     *
+     * @param request Parsed request
+     * @param response Empty response for the handler to fill in
+     * @return Response to send: the one given, or an error response if the
+     *         request body could not be read
+     */
+    Response begin(Request request, Response response) {
+        long start = System.nanoTime();
+        request.setDispatchStart(start);
+        RequestTrace trace = request.getTrace();
+        if (trace != null) {
+            trace.enter(SlowRequestLog.Phase.ROUTE, start, request);
+        }
+        request.setJsonCodec(jsonCodec);
+        response.setJsonCodec(jsonCodec, responseWriter.bufferPool());
+        Router.Route route = router.match(request);
+        request.setRoute(route);
+        if (trace != null) {
+            trace.enter(SlowRequestLog.Phase.HANDLER, System.nanoTime(), request);
         }
+        if (request.isExpired()) {
+            // The client has given up; answering is cheaper than running the handler
+            LOGGER.fine("Deadline passed before dispatch: " + request.getMethod() + " " + request.getPath());
+            return errorResponse(StatusCodes.GATEWAY_TIMEOUT);
+        }
+        Response result;
+        try {
+            result = route(request, route, response);
+        } catch (RuntimeException e) {
+            // Answered like a failed asynchronous handler: a 500, and the connection is closed
+            CompletableFuture<Void> started = request.getAsyncResult();
+            if (started != null) {
+                started.cancel(false);
+            }
+            request.setAsyncResult(CompletableFuture.failedFuture(e));
+            return response;
+        }
+        CompletableFuture<Void> pending = request.getAsyncResult();
+        if (pending != null) {
+            long timeout = TimeUnit.MILLISECONDS.toNanos(
+                    route.getTimeoutMillis() > 0 ? route.getTimeoutMillis() : asyncTimeoutMillis);
+            if (request.hasDeadline()) {
+                // To the nanosecond, so a handler cut short by the deadline times out once it has
+                // passed, which tells the admission control the client rather than the load ended it
+                timeout = Math.max(1, Math.min(timeout, request.getDeadline() - System.nanoTime()));
+            }
+            pending.orTimeout(timeout, TimeUnit.NANOSECONDS);
+        }
+        return result;
+    }
 
-        // Set method
+    /**
+     * Wait for an asynchronous result.
+     *
+     * @param result Result to wait for
+     * @return Exception the result completed with, or null if it succeeded
+     */
+    static Throwable await(CompletableFuture<Void> result) {
         try {
-            request.setMethod(HttpMethod.valueOf(parts[0]));
-        } catch (IllegalArgumentException e) {
-            throw new IOException("Unsupported HTTP method: " + parts[0]);
+            result.join();
+            return null;
+        } catch (CompletionException | CancellationException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Pick the response to send once an asynchronous handler is done: its
+     * own response if it succeeded, otherwise an error in a new response,
+     * since the handler may still be changing its own.
+     *
+     * @param request Request being handled
+     * @param response Response filled in by the handler
+     * @param failure Exception the handler's result completed with, or null
+     * @return Response to send
+     */
+    Response complete(Request request, Response response, Throwable failure) {
+        if (failure == null) {
+            return response;
+        }
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        if (cause instanceof TimeoutException) {
+            LOGGER.warning("Handler timed out: " + request.getMethod() + " " + request.getPath());
+            return errorResponse(StatusCodes.GATEWAY_TIMEOUT);
         }
+        if (cause instanceof CancellationException) {
+            LOGGER.fine("Handler cancelled: " + request.getMethod() + " " + request.getPath());
+            return errorResponse(StatusCodes.SERVICE_UNAVAILABLE);
+        }
+        LOGGER.log(Level.WARNING, "Handler failed: " + request.getMethod() + " " + request.getPath(), cause);
+        return errorResponse(StatusCodes.INTERNAL_SERVER_ERROR);
+    }
 
-        // Set path
-        request.setPath(parts[1]);
+    /**
+     * Write the response to a request and record it.
+     *
+     * @param request Request being answered
+     * @param response Response to write
+     * @param out Stream to write the response to
+     * @param served Number of requests served on the connection, including this one
+     * @param reusable Whether the connection may be kept open; false once a
+     *                 handler has failed, as it may still be reading the body
+     * @return Whether the connection can stay open after the response
+     * @throws IOException If the response cannot be written
+     */
+    boolean finish(Request request, Response response, OutputStream out, int served, boolean reusable)
+            throws IOException {
+        RequestTrace trace = request.getTrace();
+        if (trace != null) {
+            trace.enter(SlowRequestLog.Phase.WRITE, System.nanoTime(), request);
+        }
+        try {
+            if (compression != null) {
+                compression.apply(request, response);
+            }
+            if (request.getMethod() == HttpMethod.HEAD) {
+                // Headers as for GET, but a HEAD response never carries the body
+                response.omitBody();
+            }
+            if (request.getUpgrade() != null && response.getStatusCode() != StatusCodes.SWITCHING_PROTOCOLS) {
+                // The handshake response was replaced, e.g. by middleware or an error
+                request.setUpgrade(null);
+            }
+            return sendResponse(out, response, reusable && isKeepAlive(request, served),
+                    acceptsChunked(request));
+        } finally {
+            record(request, response.getStatusCode());
+        }
+    }
 
-        // Read headers
-        String headerLine;
-        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-            int colonIndex = headerLine.indexOf(":");
-            if (colonIndex > 0) {
-                String headerName = headerLine.substring(0, colonIndex).trim();
-                String headerValue = headerLine.substring(colonIndex + 1).trim();
-                request.addHeader(headerName, headerValue);
+    private void record(Request request, int status) {
+        long now = System.nanoTime();
+        if (metrics != null) {
+            metrics.recordRequest(request.getRoute(), request.getMethod(), status,
+                    now - request.getDispatchStart());
+        }
+        RequestTrace trace = request.getTrace();
+        if (trace != null) {
+            trace.end(now, request);
+            SlowRequestLog log = slowRequestLog;
+            if (log != null) {
+                log.offer(request, status, trace);
             }
         }
+        if (admission != null) {
+            admission.release(request, status);
+        }
+    }
 
-        // Check for content length to read body
-        String contentLength = request.getHeader("Content-Length");
-        if (contentLength != null && !contentLength.isEmpty()) {
-            try {
-                int length = Integer.parseInt(contentLength);
-                if (length > 0) {
-                    char[] bodyChars = new char[length];
-                    int charsRead = in.read(bodyChars, 0, length);
-                    if (charsRead > 0) {
-                        request.setBody(new String(bodyChars, 0, charsRead));
+    /**
+     * Whether new requests are timed phase by phase.
+     *
+     * @return true while a slow request log is set or a recording wants the events
+     */
+    boolean isTracing() {
+        return slowRequestLog != null || RequestTrace.isRecording();
+    }
+
+    /**
+     * Get the admission control in front of the handlers.
+     *
+     * @return Admission control, or null when every request is admitted
+     */
+    AdmissionControl admission() {
+        return admission;
+    }
+
+    /**
+     * Set a request's deadline once its head has been read.
+     *
+     * @param request Parsed request
+     */
+    void received(Request request) {
+        long millis = deadlineMillis;
+        if (deadlineHeader != null) {
+            String value = request.getHeader(deadlineHeader);
+            if (value != null) {
+                try {
+                    long requested = Long.parseLong(value.trim());
+                    if (requested >= 0 && (millis == 0 || requested < millis)) {
+                        // A client that will not wait at all gets the shortest deadline possible
+                        millis = Math.max(1, requested);
                     }
+                } catch (NumberFormatException e) {
+                    LOGGER.fine("Ignoring invalid " + deadlineHeader + " header: " + value);
                 }
-            } catch (NumberFormatException e) {
-                LOGGER.warning("Invalid Content-Length header: " + contentLength);
             }
         }
-
-        return request;
+        if (millis > 0) {
+            request.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+        }
     }
 
     /**
-     * Send the HTTP response back to the client.
+     * Serialize the 503 for a request shed by the admission control and
+     * record it. The connection is closed afterwards, as the request body
+     * has not been read.
      *
-     * @param out PrintWriter to send the response
-     * @param response Response object to send
+     * @param request Shed request
+     * @return Serialized response
      */
-    private void sendResponse(PrintWriter out, Response response) {
-        // Write status line
-        out.println("HTTP/1.1 " + response.getStatusCode() + " " +
-                com.jexpress.utils.StatusCodes.getMessage(response.getStatusCode()));
+    byte[] shed(Request request) {
+        LOGGER.fine("Shedding request: " + request.getMethod() + " " + request.getPath());
+        if (metrics != null) {
+            metrics.recordRejected(StatusCodes.SERVICE_UNAVAILABLE);
+        }
+        Response response = errorResponse(StatusCodes.SERVICE_UNAVAILABLE);
+        response.addHeader("Retry-After", "1");
+        return serialize(response, false);
+    }
 
-        // Write headers
-        out.println("Content-Type: " + response.getContentType());
-        out.println("Content-Length: " + (response.getBody() != null ? response.getBody().length() : 0));
-        out.println("Connection: close"); // Explicitly close connection
+    private Response route(Request request, Router.Route route, Response response) {
+        try {
+            if (route != null) {
+                route.invoke(request, response);
+            } else {
+                // Global middleware still runs, e.g. to answer CORS preflight requests
+                router.getUnmatchedChain().run(request, response);
+            }
+        } catch (RuntimeException e) {
+            if (requestFailure(request) == null) {
+                throw e;
+            }
+        }
+        // A body or query that could not be read or decoded is answered for, whatever the handler did
+        IOException failure = requestFailure(request);
+        if (failure != null) {
+            CompletableFuture<Void> pending = request.getAsyncResult();
+            if (pending != null) {
+                pending.cancel(false);
+                request.setAsyncResult(null);
+            }
+            LOGGER.fine("Request failed: " + failure.getMessage());
+            return errorResponse(failure instanceof HttpParseException
+                    ? ((HttpParseException) failure).getStatusCode()
+                    : StatusCodes.BAD_REQUEST);
+        }
+        return response;
+    }
 
-        // Write additional headers
-        for (var entry : response.getHeaders().entrySet()) {
-            out.println(entry.getKey() + ": " + entry.getValue());
+    private static IOException requestFailure(Request request) {
+        IOException failure = request.getBodyFailure();
+        return failure != null ? failure : request.getReadFailure();
+    }
+
+    /**
+     * Answer a request that matches no route.
+     */
+    private void noRoute(Request request, Response response) {
+        // The path exists for other methods: 405 with the methods that would work
+        Set<HttpMethod> allowed = router.getAllowedMethods(request.getPath());
+        if (!allowed.isEmpty()) {
+            setError(response, StatusCodes.METHOD_NOT_ALLOWED);
+            StringBuilder allow = new StringBuilder();
+            for (HttpMethod method : allowed) {
+                if (allow.length() > 0) {
+                    allow.append(", ");
+                }
+                allow.append(method.name());
+            }
+            response.addHeader("Allow", allow.toString());
+            return;
         }
 
-        // End of headers
-        out.println();
+        // No route found
+        setError(response, StatusCodes.NOT_FOUND);
+    }
+
+    /**
+     * Build a plain error response for a status code.
+     *
+     * @param statusCode HTTP status code
+     * @return Response with a short text body
+     */
+    Response errorResponse(int statusCode) {
+        Response response = new Response();
+        setError(response, statusCode);
+        return response;
+    }
+
+    private static void setError(Response response, int statusCode) {
+        response.setStatusCode(statusCode);
+        response.text();
+        response.setBody(statusCode + " " + StatusCodes.getMessage(statusCode));
+    }
 
-        // Write body
-        if (response.getBody() != null) {
-            out.println(response.getBody());
+    /**
+     * Serialized 503 response used when the worker pool rejects a request.
+     *
+     * @return Serialized response
+     */
+    byte[] serviceUnavailable() {
+        return serialize(errorResponse(StatusCodes.SERVICE_UNAVAILABLE), false);
+    }
+
+    /**
+     * Serialize a response to bytes.
+     *
+     * @param response Response to serialize
+     * @param keepAlive Whether the connection stays open afterwards
+     * @return Serialized response
+     */
+    byte[] serialize(Response response, boolean keepAlive) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            sendResponse(bytes, response, keepAlive);
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(e);
         }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Whether a client can receive a chunked response; HTTP/1.0 cannot.
+     *
+     * @param request Parsed request
+     * @return true if chunked transfer coding may be used
+     */
+    static boolean acceptsChunked(Request request) {
+        return !HttpParser.HTTP_1_0.equals(request.getProtocol());
+    }
+
+    /**
+     * Send an HTTP response with a body of known length.
+     *
+     * @param out OutputStream to send the response
+     * @param response Response object to send
+     * @param keepAlive Whether the connection stays open afterwards
+     * @throws IOException If the response cannot be written
+     */
+    void sendResponse(OutputStream out, Response response, boolean keepAlive) throws IOException {
+        sendResponse(out, response, keepAlive, true);
+    }
+
+    /**
+     * Send the HTTP response back to the client.
+     *
+     * @param out OutputStream to send the response
+     * @param response Response object to send
+     * @param keepAlive Whether the connection should stay open afterwards
+     * @param chunkedAllowed Whether the client accepts chunked encoding
+     * @return Whether the connection can stay open after the response
+     * @throws IOException If the response cannot be written
+     * @see ResponseWriter#write
+     */
+    boolean sendResponse(OutputStream out, Response response, boolean keepAlive, boolean chunkedAllowed)
+            throws IOException {
+        return responseWriter.write(out, response, keepAlive, chunkedAllowed);
     }
 
     /**
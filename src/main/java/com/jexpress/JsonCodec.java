@@ -0,0 +1,59 @@
+package com.jexpress;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts between JSON and objects for {@link Request#bodyAs(Class)} and
+ * {@link Response#sendJson(Object)}. Set one with
+ * {@link JExpress#jsonCodec(JsonCodec)}; the default uses Gson.
+ *
+ * <p>Implementations are shared by all requests, so they must be thread-safe.
+ * Both methods work on byte streams: requests are read as the body arrives
+ * and responses are written into the buffer they are sent from, so neither
+ * passes through an intermediate String.
+ */
+public interface JsonCodec {
+    /**
+     * Read one JSON value.
+     *
+     * @param in UTF-8 JSON input, read to its end
+     * @param type Type to bind the value to
+     * @param <T> Type of the value
+     * @return Decoded value
+     * @throws IOException If the input cannot be read or is not valid JSON for the type
+     */
+    <T> T read(InputStream in, Class<T> type) throws IOException;
+
+    /**
+     * Write a value as UTF-8 JSON.
+     *
+     * @param value Value to write, possibly null
+     * @param out Stream to write to; not closed
+     * @throws IOException If the value cannot be written
+     */
+    void write(Object value, OutputStream out) throws IOException;
+
+    /**
+     * Create a codec backed by a default Gson instance.
+     *
+     * @return Gson codec
+     */
+    static JsonCodec gson() {
+        return new GsonCodec(new Gson());
+    }
+
+    /**
+     * Create a codec backed by a configured Gson instance, e.g. one with
+     * custom type adapters or naming rules.
+     *
+     * @param gson Gson instance
+     * @return Gson codec
+     */
+    static JsonCodec gson(Gson gson) {
+        return new GsonCodec(gson);
+    }
+}
@@ -0,0 +1,93 @@
+package com.jexpress;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in microseconds, in
+ * the style of HdrHistogram: every power of two is split into four
+ * sub-buckets, so a bucket is at most 25% wide relative to its values.
+ * Buckets are {@link LongAdder}s, so threads recording at the same time
+ * update separate cells instead of contending on one counter.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^26 µs (67 s) on share the last bucket
+    private static final int MAX_EXPONENT = 26;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sumMicros = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record one duration.
+     *
+     * @param nanos Duration in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[index(micros)].increment();
+        sumMicros.add(micros);
+    }
+
+    /**
+     * Find the bucket a value falls in: values below four have a bucket
+     * each, larger ones are placed by their highest bit and the two bits
+     * after it.
+     */
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the smallest value above every value in a bucket.
+     *
+     * @param index Bucket index
+     * @return Exclusive upper bound in microseconds
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int exponent = index / SUB_BUCKETS + 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Copy the bucket counts. Recording continues meanwhile, so the copy is
+     * not an atomic snapshot, but each count is exact at the time it was read.
+     *
+     * @return Count per bucket
+     */
+    long[] counts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Get the total of all recorded durations.
+     *
+     * @return Sum in microseconds
+     */
+    long sumMicros() {
+        return sumMicros.sum();
+    }
+}
@@ -0,0 +1,257 @@
+package com.jexpress;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Request, connection and executor metrics, enabled with
+ * {@link JExpress#metrics(Metrics)} and served in the Prometheus text
+ * format by registering the instance as a route:
+ *
+ * <pre>{@code
+ * Metrics metrics = new Metrics();
+ * app.metrics(metrics);
+ * app.getRouter().get("/metrics", metrics);
+ * }</pre>
+ *
+ * <p>Requests are counted per route and status code, with a latency
+ * histogram per route covering the time from routing until the response,
+ * including any streamed body, is written. Routes are labelled by their
+ * path template, such as {@code /users/{id}}, so the number of series stays
+ * bounded whatever paths clients send; requests that match no route share
+ * the {@code unmatched} label. All counters are {@link LongAdder}s, so
+ * recording takes no locks and concurrent requests rarely contend.
+ */
+public class Metrics implements BiConsumer<Request, Response> {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String UNMATCHED = "unmatched";
+    private static final int MAX_STATUS = 600;
+    // Histogram buckets exported: every other power of two from 32 µs to 33.5 s
+    private static final int FIRST_EXPORTED_EXPONENT = 4;
+    private static final int LAST_EXPORTED_EXPONENT = 24;
+
+    private final ConcurrentHashMap<Router.Route, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<RouteMetrics> unmatched =
+            new AtomicReferenceArray<>(HttpMethod.values().length);
+    private final AtomicReferenceArray<LongAdder> rejected = new AtomicReferenceArray<>(MAX_STATUS);
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsActive = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private volatile ThreadPoolExecutor executor;
+
+    /**
+     * Serve the current metrics in the Prometheus text format.
+     */
+    @Override
+    public void accept(Request request, Response response) {
+        response.setContentType(CONTENT_TYPE);
+        response.setBody(scrape());
+    }
+
+    /**
+     * Render the current metrics in the Prometheus text exposition format.
+     *
+     * @return Metrics text
+     */
+    public String scrape() {
+        List<RouteMetrics> all = new ArrayList<>(routes.values());
+        for (int i = 0; i < unmatched.length(); i++) {
+            if (unmatched.get(i) != null) {
+                all.add(unmatched.get(i));
+            }
+        }
+        all.sort(Comparator.comparing((RouteMetrics route) -> route.path).thenComparing(route -> route.method));
+
+        StringBuilder out = new StringBuilder(1024 + all.size() * 2048);
+        family(out, "jexpress_http_requests_total", "counter", "Requests answered, by route and status code.");
+        for (RouteMetrics route : all) {
+            for (int status = 0; status < MAX_STATUS; status++) {
+                LongAdder count = route.statuses.get(status);
+                if (count != null) {
+                    out.append("jexpress_http_requests_total{method=\"").append(route.method)
+                            .append("\",route=\"").append(route.label)
+                            .append("\",status=\"").append(status).append("\"} ")
+                            .append(count.sum()).append('\n');
+                }
+            }
+        }
+
+        family(out, "jexpress_http_request_duration_seconds", "histogram",
+                "Time from routing a request until its response was written.");
+        for (RouteMetrics route : all) {
+            String labels = "method=\"" + route.method + "\",route=\"" + route.label + "\"";
+            long[] counts = route.latency.counts();
+            long cumulative = 0;
+            int next = 0;
+            for (int exponent = FIRST_EXPORTED_EXPONENT; exponent <= LAST_EXPORTED_EXPONENT; exponent += 2) {
+                // The bucket before the one starting at the next power of two ends there
+                int last = LatencyHistogram.index(1L << (exponent + 1)) - 1;
+                for (; next <= last; next++) {
+                    cumulative += counts[next];
+                }
+                out.append("jexpress_http_request_duration_seconds_bucket{").append(labels)
+                        .append(",le=\"").append(seconds(LatencyHistogram.upperBound(last))).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            for (; next < counts.length; next++) {
+                cumulative += counts[next];
+            }
+            out.append("jexpress_http_request_duration_seconds_bucket{").append(labels)
+                    .append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append("jexpress_http_request_duration_seconds_sum{").append(labels).append("} ")
+                    .append(seconds(route.latency.sumMicros())).append('\n');
+            out.append("jexpress_http_request_duration_seconds_count{").append(labels).append("} ")
+                    .append(cumulative).append('\n');
+        }
+
+        family(out, "jexpress_http_requests_rejected_total", "counter",
+                "Requests answered with an error before reaching routing, such as malformed requests or 503 when the executor is saturated.");
+        for (int status = 0; status < MAX_STATUS; status++) {
+            LongAdder count = rejected.get(status);
+            if (count != null) {
+                out.append("jexpress_http_requests_rejected_total{status=\"").append(status).append("\"} ")
+                        .append(count.sum()).append('\n');
+            }
+        }
+
+        sample(out, "jexpress_connections_total", "counter", "Client connections accepted.",
+                connectionsOpened.sum());
+        sample(out, "jexpress_connections_active", "gauge", "Client connections currently open.",
+                connectionsActive.sum());
+        sample(out, "jexpress_received_bytes_total", "counter", "Bytes read from clients.",
+                bytesReceived.sum());
+        sample(out, "jexpress_sent_bytes_total", "counter", "Bytes written to clients.",
+                bytesSent.sum());
+
+        ThreadPoolExecutor pool = executor;
+        if (pool != null) {
+            sample(out, "jexpress_executor_queue_size", "gauge", "Tasks waiting for a worker thread.",
+                    pool.getQueue().size());
+            sample(out, "jexpress_executor_active_threads", "gauge", "Worker threads running a task.",
+                    pool.getActiveCount());
+            sample(out, "jexpress_executor_pool_size", "gauge", "Worker threads in the pool.",
+                    pool.getPoolSize());
+        }
+        return out.toString();
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String type, String help, long value) {
+        family(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Record a request that was routed and answered.
+     *
+     * @param route Route that handled the request, or null if none matched
+     * @param method Request method
+     * @param status Status code of the response
+     * @param nanos Time from routing until the response was written
+     */
+    void recordRequest(Router.Route route, HttpMethod method, int status, long nanos) {
+        RouteMetrics metrics = route != null ? forRoute(route) : forUnmatched(method);
+        metrics.latency.record(nanos);
+        counter(metrics.statuses, status).increment();
+    }
+
+    /**
+     * Record a request answered with an error before it was routed.
+     *
+     * @param status Status code of the error response
+     */
+    void recordRejected(int status) {
+        counter(rejected, status).increment();
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+        connectionsActive.increment();
+    }
+
+    void connectionClosed() {
+        connectionsActive.decrement();
+    }
+
+    void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Report the queue and threads of the executor running request handling.
+     * Only {@link ThreadPoolExecutor}s expose these; others are not reported.
+     *
+     * @param executorService Executor created when the server started
+     */
+    void bindExecutor(ExecutorService executorService) {
+        executor = executorService instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executorService : null;
+    }
+
+    private RouteMetrics forRoute(Router.Route route) {
+        RouteMetrics metrics = routes.get(route);
+        if (metrics == null) {
+            metrics = routes.computeIfAbsent(route, r -> new RouteMetrics(r.getMethod().name(), r.getPath()));
+        }
+        return metrics;
+    }
+
+    private RouteMetrics forUnmatched(HttpMethod method) {
+        int index = method.ordinal();
+        RouteMetrics metrics = unmatched.get(index);
+        if (metrics == null) {
+            unmatched.compareAndSet(index, null, new RouteMetrics(method.name(), UNMATCHED));
+            metrics = unmatched.get(index);
+        }
+        return metrics;
+    }
+
+    private static LongAdder counter(AtomicReferenceArray<LongAdder> counters, int status) {
+        int index = status >= 0 && status < MAX_STATUS ? status : 0;
+        LongAdder counter = counters.get(index);
+        if (counter == null) {
+            counters.compareAndSet(index, null, new LongAdder());
+            counter = counters.get(index);
+        }
+        return counter;
+    }
+
+    /**
+     * Counters for one route, or for the requests of one method that matched no route.
+     */
+    private static final class RouteMetrics {
+        final String method;
+        final String path;
+        // Path with the characters that need it escaped for a label value
+        final String label;
+        final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS);
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        RouteMetrics(String method, String path) {
+            this.method = method;
+            this.path = path;
+            this.label = path.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
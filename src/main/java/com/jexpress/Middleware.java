@@ -0,0 +1,33 @@
+package com.jexpress;
+
+/**
+ * Code run around route handlers, such as authentication, logging or CORS.
+ *
+ * <p>Middleware is registered globally with {@link Router#use(Middleware)},
+ * for the routes under a path with {@link Router#use(String, Middleware)},
+ * or for a single route with {@link Router.Route#use(Middleware...)}. It
+ * runs in that order, then in registration order within each level, before
+ * the route handler.
+ *
+ * <pre>{@code
+ * router.use((req, res, chain) -> {
+ *     long start = System.nanoTime();
+ *     chain.next(req, res);
+ *     log(req.getPath(), System.nanoTime() - start);
+ * });
+ * }</pre>
+ */
+@FunctionalInterface
+public interface Middleware {
+    /**
+     * Handle a request. Call {@link MiddlewareChain#next(Request, Response)}
+     * once to continue with the rest of the chain, with code after the call
+     * running once the handler has returned; return without calling it to
+     * answer the request here instead.
+     *
+     * @param request Request being handled
+     * @param response Response to the request
+     * @param chain Remaining middleware and the route handler
+     */
+    void handle(Request request, Response response, MiddlewareChain chain);
+}
@@ -0,0 +1,46 @@
+package com.jexpress;
+
+import java.util.function.BiConsumer;
+
+/**
+ * The middleware that applies to a route, followed by its handler,
+ * resolved when routes and middleware are registered. Each route has one
+ * chain shared by all its requests; the position in the chain is kept in
+ * the request, so walking it allocates nothing.
+ */
+public final class MiddlewareChain {
+    private final Middleware[] middleware;
+    private final BiConsumer<Request, Response> handler;
+
+    MiddlewareChain(Middleware[] middleware, BiConsumer<Request, Response> handler) {
+        this.middleware = middleware;
+        this.handler = handler;
+    }
+
+    /**
+     * Run the whole chain for a request.
+     */
+    void run(Request request, Response response) {
+        request.setMiddlewareIndex(0);
+        next(request, response);
+    }
+
+    /**
+     * Continue with the next middleware, or the route handler once all
+     * middleware has run.
+     *
+     * @param request Request being handled
+     * @param response Response to the request
+     */
+    public void next(Request request, Response response) {
+        int index = request.getMiddlewareIndex();
+        if (index < middleware.length) {
+            request.setMiddlewareIndex(index + 1);
+            middleware[index].handle(request, response, this);
+        } else if (index == middleware.length) {
+            // Past the end, so calling next again does not run the handler twice
+            request.setMiddlewareIndex(index + 1);
+            handler.accept(request, response);
+        }
+    }
+}
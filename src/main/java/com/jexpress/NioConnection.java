@@ -0,0 +1,899 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A client connection owned by a single {@link EventLoop}.
+ * The request head is parsed incrementally on the loop as bytes arrive,
+ * then the request is handed to the worker pool. Its body keeps arriving
+ * on the loop, which decodes it into pooled chunks queued for the handler
+ * to read; reads from the client stop while {@value #HIGH_WATERMARK} bytes
+ * of chunks are waiting for the handler. Once the body is complete, reads are suspended
+ * until the response is written, so pipelined requests are dispatched one
+ * at a time and answered in order.
+ *
+ * <p>The worker writes the response through {@link #responseStream()} into
+ * an outbound queue that the loop drains. Once more than
+ * {@value #HIGH_WATERMARK} bytes are queued the worker blocks until the
+ * client has read the queue down to {@value #LOW_WATERMARK} bytes. A file
+ * body is not queued as bytes: the loop sends it with
+ * {@link FileChannel#transferTo} once the queue ahead of it has drained.
+ *
+ * <p>After a WebSocket handshake the connection stops speaking HTTP: the
+ * loop decodes frames as they arrive and hands complete messages to the
+ * worker pool one at a time, and frames sent from any thread are queued
+ * without blocking. Reads stop while the handler is more than 64 KB of
+ * messages behind.
+ */
+final class NioConnection implements EventLoop.Handler {
+    private static final Logger LOGGER = Logger.getLogger(NioConnection.class.getName());
+
+    static final int OUTPUT_CHUNK_SIZE = 8192;
+    private static final int HIGH_WATERMARK = 64 * 1024;
+    private static final int LOW_WATERMARK = 16 * 1024;
+    private static final int MAX_GATHER = 16;
+
+    private enum State {
+        READING_HEAD,
+        READING_BODY,
+        DISPATCHED,
+        WEBSOCKET
+    }
+
+    private final NioServer server;
+    private final ServerConfig config;
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Metrics metrics;
+    private final ByteBuffer in;
+    private final HttpParser parser;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final Exchange exchange;
+    private final BufferPool chunkPool;
+    private final ResponseStream responseStream = new ResponseStream();
+    private SelectionKey key;
+    private State state;
+    private Request request;
+    private BodyDecoder decoder;
+    private PipeBodyStream bodyStream;
+    private int bodyStart;
+    private boolean bodyPaused;
+    private boolean writeStalled;
+    private long lastActivity;
+    private int served;
+    // A dispatched request whose response is not yet written, counted by the server
+    private boolean inFlight;
+    // Run if the client disconnects while an asynchronous handler is pending
+    private Runnable disconnectAction;
+    private WebSocket websocket;
+    private boolean framesPaused;
+
+    // State shared with the worker handling the request
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>();
+    private int queuedBytes;
+    // File sent after the queue; its position is only advanced on the loop
+    private FileChannel outFile;
+    private long outFilePosition;
+    private long outFileEnd;
+    private boolean responseComplete;
+    private boolean keepAlive;
+    private boolean flushScheduled;
+    private boolean writerBlocked;
+    private boolean closed;
+    // WebSocket to switch to once the handshake response is written
+    private WebSocket upgrade;
+    // Set once the WebSocket close frame is queued
+    private boolean framesEnded;
+
+    NioConnection(NioServer server, ServerConfig config, SocketChannel channel, EventLoop loop,
+                  Metrics metrics) {
+        this.server = server;
+        this.config = config;
+        this.channel = channel;
+        this.loop = loop;
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        this.in = ByteBuffer.allocate(config.readBufferSize());
+        this.in.limit(0);
+        this.parser = new HttpParser(config);
+        this.exchange = new Exchange(config, Exchange.remoteAddress(channel));
+        this.chunkPool = server.chunkPool();
+    }
+
+    /**
+     * Register with the owning loop; must run on the loop thread.
+     */
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            lastActivity = System.currentTimeMillis();
+            beginRequest();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to register client channel", e);
+            close();
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void read() throws IOException {
+        int position = in.position();
+        int limit = in.limit();
+        if (state == State.READING_BODY && position == limit) {
+            // Decoded body bytes can be overwritten, the head cannot
+            position = bodyStart;
+            limit = bodyStart;
+        }
+        in.position(limit).limit(in.capacity());
+        int n = channel.read(in);
+        in.limit(in.position()).position(position);
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (metrics != null) {
+            metrics.bytesReceived(n);
+        }
+        if (state == State.WEBSOCKET) {
+            receiveFrames();
+            return;
+        }
+        if (state == State.DISPATCHED) {
+            // Only watching for a disconnect; pipelined bytes wait in the buffer
+            updateInterest();
+            return;
+        }
+        processBuffered();
+    }
+
+    /**
+     * Start a new request: drop the bytes of the previous one and keep any
+     * pipelined bytes that follow it.
+     */
+    private void beginRequest() {
+        in.compact().flip();
+        parser.reset(in);
+        exchange.next();
+        request = exchange.request();
+        decoder = null;
+        bodyStream = null;
+        bodyPaused = false;
+        disconnectAction = null;
+        state = State.READING_HEAD;
+    }
+
+    /**
+     * Advance parsing with whatever is buffered, dispatch the request once
+     * its head is complete and pass body bytes on to the handler.
+     */
+    private void processBuffered() {
+        try {
+            if (state == State.READING_HEAD) {
+                if (request.getTrace() == null && in.hasRemaining() && server.isTracing()) {
+                    exchange.startTrace(System.nanoTime());
+                }
+                if (!parser.parse(in, request)) {
+                    if (in.limit() == in.capacity()) {
+                        throw parser.overflow();
+                    }
+                    return;
+                }
+                decoder = BodyDecoder.forRequest(request, config.maxBodySize);
+                dispatch();
+            }
+            if (state == State.READING_BODY && !bodyPaused && channel.isOpen()) {
+                feedBody();
+            }
+        } catch (HttpParseException e) {
+            LOGGER.fine("Rejecting request: " + e.getMessage());
+            if (state == State.READING_BODY) {
+                // The handler is already running and answers once it sees the failure
+                bodyStream.fail(e);
+                state = State.DISPATCHED;
+                updateInterest();
+                return;
+            }
+            state = State.DISPATCHED;
+            updateInterest();
+            respond(server.serialize(e.getStatusCode()), false);
+        }
+    }
+
+    private void dispatch() {
+        served++;
+        if (decoder == null) {
+            state = State.DISPATCHED;
+        } else {
+            bodyStart = in.position();
+            boolean expectContinue = BodyInputStream.expectsContinue(request);
+            bodyStream = new PipeBodyStream(expectContinue);
+            request.setBodyStream(bodyStream);
+            state = State.READING_BODY;
+            // Clients expecting 100 Continue send nothing until the handler reads
+            bodyPaused = expectContinue;
+        }
+        updateInterest();
+        RequestTrace trace = request.getTrace();
+        if (trace != null) {
+            trace.enter(SlowRequestLog.Phase.QUEUE, System.nanoTime(), request);
+        }
+        inFlight = true;
+        server.requestStarted();
+        server.dispatch(this, request, exchange.response(), served);
+    }
+
+    /**
+     * Decode all buffered body bytes into the handler's queue, in chunks
+     * from the server's pool that the handler returns once it has read them.
+     */
+    private void feedBody() throws HttpParseException {
+        while (in.hasRemaining() && !decoder.isComplete()) {
+            ByteBuffer chunk = chunkPool.acquire();
+            int n = decoder.decode(in, chunk.array(), 0, chunk.capacity());
+            if (n == 0) {
+                chunkPool.release(chunk);
+            } else if (bodyStream.offer(chunk, n)) {
+                bodyPaused = true;
+            }
+        }
+        if (decoder.isComplete()) {
+            bodyStream.finish();
+            state = State.DISPATCHED;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Resume reading the body once the handler has caught up or asked for
+     * it with 100 Continue.
+     */
+    private void resumeBody() {
+        if (state == State.READING_BODY && bodyPaused && channel.isOpen()) {
+            bodyPaused = false;
+            processBuffered();
+        }
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (state == State.READING_HEAD || (state == State.READING_BODY && !bodyPaused)
+                || (state == State.DISPATCHED && disconnectAction != null && in.limit() < in.capacity())
+                || (state == State.WEBSOCKET && !framesPaused)) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (writeStalled) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Queue a serialized response for writing; may be called from any thread.
+     * Once the response has been written the connection either resumes
+     * reading the next request or is closed.
+     *
+     * @param response Serialized response, or null to close without replying
+     * @param keepAlive Whether to keep the connection open afterwards
+     */
+    void respond(byte[] response, boolean keepAlive) {
+        if (response == null) {
+            abort();
+            return;
+        }
+        synchronized (lock) {
+            // Read-only buffers are never returned to the chunk pool
+            outQueue.add(ByteBuffer.wrap(response).asReadOnlyBuffer());
+            queuedBytes += response.length;
+        }
+        endResponse(keepAlive);
+    }
+
+    /**
+     * Get the stream for writing the response from a worker thread.
+     * Writes block while the client is not keeping up. The same stream
+     * serves every response on the connection.
+     *
+     * @return Stream to the client
+     */
+    OutputStream responseStream() {
+        return responseStream;
+    }
+
+    /**
+     * Mark the response written through {@link #responseStream()} as
+     * complete; the connection carries on once the queue has drained.
+     *
+     * @param keepAlive Whether to keep the connection open afterwards
+     */
+    void endResponse(boolean keepAlive) {
+        synchronized (lock) {
+            this.keepAlive = keepAlive;
+            responseComplete = true;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Switch to the WebSocket protocol once the response being written,
+     * the handshake, has gone out; call before {@link #endResponse}.
+     *
+     * @param websocket WebSocket to take over the connection
+     */
+    void upgradeAfterResponse(WebSocket websocket) {
+        synchronized (lock) {
+            upgrade = websocket;
+        }
+    }
+
+    /**
+     * Run an action if the client disconnects before the response is
+     * complete, e.g. to cancel an asynchronous handler; may be called from
+     * any thread. Reads resume to notice the disconnect, and any pipelined
+     * bytes are buffered until the response is written.
+     *
+     * @param action Action to run on the loop thread
+     */
+    void onDisconnect(Runnable action) {
+        loop.execute(() -> {
+            if (!channel.isOpen()) {
+                action.run();
+                return;
+            }
+            if (state == State.DISPATCHED) {
+                disconnectAction = action;
+                updateInterest();
+            }
+        });
+    }
+
+    /**
+     * Whether the connection is still open; callable from any thread.
+     *
+     * @return false once the connection has been closed
+     */
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Close the connection from any thread, e.g. after a failed response.
+     */
+    void abort() {
+        loop.execute(this::close);
+    }
+
+    /**
+     * Queue bytes written by a worker, blocking above the high watermark.
+     */
+    private void enqueue(ByteBuffer buffer) throws IOException {
+        synchronized (lock) {
+            while (queuedBytes >= HIGH_WATERMARK && !closed) {
+                writerBlocked = true;
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client to read");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            outQueue.add(buffer);
+            queuedBytes += buffer.remaining();
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        synchronized (lock) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        loop.execute(() -> {
+            synchronized (lock) {
+                flushScheduled = false;
+            }
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error writing response: " + e.getMessage(), e);
+                close();
+            }
+        });
+    }
+
+    /**
+     * Write queued bytes until the socket is full or the queue is empty;
+     * runs on the loop thread. Queued buffers go out together in one
+     * gathering write.
+     */
+    private void flush() throws IOException {
+        while (true) {
+            int count = 0;
+            boolean complete;
+            synchronized (lock) {
+                for (ByteBuffer buffer : outQueue) {
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                    gather[count++] = buffer;
+                }
+                complete = responseComplete;
+            }
+            if (count == 0) {
+                if (!transferFile()) {
+                    writeStalled = true;
+                    updateInterest();
+                    return;
+                }
+                writeStalled = false;
+                if (complete) {
+                    finishResponse();
+                } else {
+                    // Waiting on the worker for more of the response
+                    updateInterest();
+                }
+                return;
+            }
+            long written = channel.write(gather, 0, count);
+            if (written > 0) {
+                lastActivity = System.currentTimeMillis();
+                if (metrics != null) {
+                    metrics.bytesSent(written);
+                }
+            }
+            boolean stalled = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+            synchronized (lock) {
+                ByteBuffer head;
+                while ((head = outQueue.peek()) != null && !head.hasRemaining()) {
+                    outQueue.poll();
+                    queuedBytes -= head.limit();
+                    if (!head.isReadOnly()) {
+                        chunkPool.release(head);
+                    }
+                }
+                if (writerBlocked && queuedBytes <= LOW_WATERMARK) {
+                    writerBlocked = false;
+                    lock.notifyAll();
+                }
+            }
+            if (stalled) {
+                writeStalled = true;
+                updateInterest();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send as much of the pending file as the socket takes.
+     *
+     * @return true once no file remains to be sent
+     */
+    private boolean transferFile() throws IOException {
+        FileChannel file;
+        synchronized (lock) {
+            file = outFile;
+        }
+        if (file == null) {
+            return true;
+        }
+        while (outFilePosition < outFileEnd) {
+            long n = file.transferTo(outFilePosition, outFileEnd - outFilePosition, channel);
+            if (n == 0) {
+                if (outFilePosition >= file.size()) {
+                    throw new IOException("File ended " + (outFileEnd - outFilePosition)
+                            + " bytes short of its expected length");
+                }
+                return false;
+            }
+            outFilePosition += n;
+            lastActivity = System.currentTimeMillis();
+            if (metrics != null) {
+                metrics.bytesSent(n);
+            }
+        }
+        synchronized (lock) {
+            outFile = null;
+        }
+        file.close();
+        return true;
+    }
+
+    private void finishResponse() {
+        boolean reuse;
+        WebSocket switchTo;
+        synchronized (lock) {
+            responseComplete = false;
+            reuse = keepAlive;
+            switchTo = upgrade;
+            upgrade = null;
+        }
+        endRequest();
+        if (!reuse) {
+            close();
+            return;
+        }
+        if (switchTo != null) {
+            startWebSocket(switchTo);
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        beginRequest();
+        updateInterest();
+        processBuffered();
+    }
+
+    /**
+     * Hand the connection over to a WebSocket; bytes after the handshake
+     * request are already frames.
+     */
+    private void startWebSocket(WebSocket switchTo) {
+        in.compact().flip();
+        websocket = switchTo;
+        state = State.WEBSOCKET;
+        switchTo.open(new WebSocketTransport(), new SerialExecutor(server.workers()),
+                config.maxWebSocketMessageSize);
+        receiveFrames();
+    }
+
+    /**
+     * Decode the buffered frames, then pause reading if the handler has
+     * fallen behind.
+     */
+    private void receiveFrames() {
+        websocket.receive(in);
+        in.compact().flip();
+        if (websocket.isBacklogged()) {
+            framesPaused = true;
+        }
+        updateInterest();
+    }
+
+    private void resumeFrames() {
+        if (state == State.WEBSOCKET && framesPaused && channel.isOpen() && !websocket.isBacklogged()) {
+            framesPaused = false;
+            receiveFrames();
+        }
+    }
+
+    @Override
+    public void onTick(long now) {
+        if (state == State.WEBSOCKET) {
+            // Idle WebSockets are normal; the application pings to detect dead ones
+            return;
+        }
+        if (now - lastActivity <= config.keepAliveTimeoutMillis) {
+            return;
+        }
+        // Connections waiting on a worker are not idle, unless the client stopped reading
+        boolean stalled;
+        synchronized (lock) {
+            stalled = !outQueue.isEmpty() || outFile != null;
+        }
+        boolean waitingOnClient = state == State.READING_HEAD || (state == State.READING_BODY && !bodyPaused);
+        if (waitingOnClient || stalled) {
+            LOGGER.fine("Closing idle connection");
+            close();
+        }
+    }
+
+    private void endRequest() {
+        if (inFlight) {
+            inFlight = false;
+            server.requestFinished();
+        }
+    }
+
+    @Override
+    public void onDrain() {
+        if (state == State.READING_HEAD && !in.hasRemaining()) {
+            close();
+        } else if (state == State.WEBSOCKET) {
+            websocket.close(WebSocket.GOING_AWAY, "Server shutting down");
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            // Wake a worker blocked on backpressure or on the body so it can give up
+            closed = true;
+            outQueue.clear();
+            queuedBytes = 0;
+            if (outFile != null) {
+                try {
+                    outFile.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error closing response file", e);
+                }
+                outFile = null;
+            }
+            if (bodyStream != null) {
+                bodyStream.fail(new IOException("Connection closed before request body was complete"));
+            }
+            lock.notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing client channel", e);
+        }
+        if (metrics != null) {
+            metrics.connectionClosed();
+        }
+        endRequest();
+        if (disconnectAction != null) {
+            disconnectAction.run();
+            disconnectAction = null;
+        }
+        if (websocket != null) {
+            websocket.disconnected();
+        }
+    }
+
+    /**
+     * Queues WebSocket frames for the loop to write, never blocking the
+     * sender; a client that does not read them is disconnected.
+     */
+    private final class WebSocketTransport implements WebSocket.Transport {
+        @Override
+        public boolean send(byte[] frame, boolean last) {
+            boolean overflow;
+            synchronized (lock) {
+                if (closed || framesEnded) {
+                    return false;
+                }
+                overflow = queuedBytes >= WebSocket.MAX_SEND_BACKLOG;
+                if (!overflow) {
+                    // The same frame may be queued on many connections
+                    outQueue.add(ByteBuffer.wrap(frame).asReadOnlyBuffer());
+                    queuedBytes += frame.length;
+                    framesEnded = last;
+                }
+            }
+            if (overflow) {
+                LOGGER.fine("Closing WebSocket connection that is not reading its messages");
+                abort();
+                return false;
+            }
+            scheduleFlush();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            endResponse(false);
+        }
+
+        @Override
+        public void abort() {
+            NioConnection.this.abort();
+        }
+
+        @Override
+        public void resume() {
+            loop.execute(NioConnection.this::resumeFrames);
+        }
+    }
+
+    /**
+     * Buffers worker writes into pooled chunks handed to the outbound queue;
+     * the loop returns each chunk to the pool once it has been written.
+     */
+    private final class ResponseStream extends OutputStream implements FileTransfer {
+        private ByteBuffer buffer;
+
+        @Override
+        public void write(int b) throws IOException {
+            chunk().put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ByteBuffer chunk = chunk();
+                int n = Math.min(len, chunk.remaining());
+                chunk.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Get the chunk being filled, queueing it first if it is full.
+         */
+        private ByteBuffer chunk() throws IOException {
+            if (buffer != null && !buffer.hasRemaining()) {
+                flush();
+            }
+            if (buffer == null) {
+                buffer = chunkPool.acquire();
+            }
+            return buffer;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer == null || buffer.position() == 0) {
+                return;
+            }
+            // The queued chunk now belongs to the loop
+            ByteBuffer chunk = buffer.flip();
+            buffer = null;
+            enqueue(chunk);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        @Override
+        public void transferFile(FileChannel file, long position, long count) throws IOException {
+            try {
+                flush();
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            synchronized (lock) {
+                if (closed) {
+                    file.close();
+                    throw new IOException("Connection closed");
+                }
+                outFile = file;
+                outFilePosition = position;
+                outFileEnd = position + count;
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Body handed from the loop to the handler through a bounded queue of
+     * decoded chunks. The queue is bounded by the capacity of its chunks
+     * rather than the bytes in them, so a client trickling a few bytes per
+     * read cannot make it hold many mostly empty chunks.
+     */
+    private final class PipeBodyStream extends BodyInputStream {
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        private int queued;
+        private boolean paused;
+        private boolean finished;
+        private IOException error;
+
+        PipeBodyStream(boolean expectContinue) {
+            super(expectContinue);
+        }
+
+        /**
+         * Queue a chunk of decoded bytes; called on the loop.
+         *
+         * @param chunk Pooled chunk holding the bytes from position 0
+         * @param length Number of bytes in the chunk
+         * @return true if the loop should stop reading until the handler catches up
+         */
+        boolean offer(ByteBuffer chunk, int length) {
+            synchronized (lock) {
+                chunk.limit(length);
+                chunks.add(chunk);
+                queued += chunk.capacity();
+                if (queued >= HIGH_WATERMARK) {
+                    paused = true;
+                }
+                lock.notifyAll();
+                return paused;
+            }
+        }
+
+        void finish() {
+            synchronized (lock) {
+                finished = true;
+                lock.notifyAll();
+            }
+        }
+
+        void fail(IOException e) {
+            synchronized (lock) {
+                if (!finished && error == null) {
+                    error = e;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        protected int readBody(byte[] b, int off, int len) throws IOException {
+            int n;
+            boolean resume = false;
+            synchronized (lock) {
+                while (chunks.isEmpty() && !finished && error == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the request body");
+                    }
+                }
+                ByteBuffer chunk = chunks.peek();
+                if (chunk == null) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                n = Math.min(len, chunk.remaining());
+                chunk.get(b, off, n);
+                if (!chunk.hasRemaining()) {
+                    chunks.poll();
+                    queued -= chunk.capacity();
+                    chunkPool.release(chunk);
+                }
+                if (paused && queued <= LOW_WATERMARK) {
+                    paused = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                loop.execute(NioConnection.this::resumeBody);
+            }
+            return n;
+        }
+
+        @Override
+        protected void sendContinue() throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                outQueue.add(ByteBuffer.wrap(CONTINUE_RESPONSE).asReadOnlyBuffer());
+                queuedBytes += CONTINUE_RESPONSE.length;
+            }
+            scheduleFlush();
+            loop.execute(NioConnection.this::resumeBody);
+        }
+
+        @Override
+        boolean isComplete() {
+            synchronized (lock) {
+                return finished && chunks.isEmpty();
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking server core: a set of selector event loops handles accept,
+ * read and write, while route handlers run on a separate worker pool.
+ */
+final class NioServer {
+    private static final Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private final JExpress app;
+    private final ServerConfig config;
+    private final ExecutorService workers;
+    private final EventLoop[] loops;
+    // Response chunks shared by all connections, queued by workers and released by the loops
+    private final BufferPool chunkPool = new BufferPool(NioConnection.OUTPUT_CHUNK_SIZE, MAX_POOLED_CHUNKS);
+    private List<ServerSocketChannel> serverChannels = List.of();
+
+    NioServer(JExpress app, ServerConfig config, int eventLoops, ExecutorService workers) throws IOException {
+        this.app = app;
+        this.config = config;
+        this.workers = workers;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop("jexpress-nio-" + i);
+        }
+    }
+
+    BufferPool chunkPool() {
+        return chunkPool;
+    }
+
+    /**
+     * Get the pool that runs route handlers, which also runs WebSocket handlers.
+     */
+    ExecutorService workers() {
+        return workers;
+    }
+
+    /**
+     * Accept connections from bound listening channels and start all
+     * event loops. Each channel gets its own acceptor, running on the
+     * first loop of a group of loops it alone feeds; with more channels
+     * than loops, groups of one loop are shared.
+     *
+     * @param serverChannels Bound channels to accept from
+     * @throws IOException If a channel cannot be made non-blocking
+     */
+    void start(List<ServerSocketChannel> serverChannels) throws IOException {
+        this.serverChannels = serverChannels;
+        int acceptors = serverChannels.size();
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel channel = serverChannels.get(i);
+            channel.configureBlocking(false);
+            EventLoop[] group;
+            if (acceptors >= loops.length) {
+                group = new EventLoop[] {loops[i % loops.length]};
+            } else {
+                group = new EventLoop[(loops.length - i + acceptors - 1) / acceptors];
+                for (int j = 0; j < group.length; j++) {
+                    group[j] = loops[i + j * acceptors];
+                }
+            }
+            Acceptor acceptor = new Acceptor(channel, group);
+            group[0].execute(() -> {
+                try {
+                    channel.register(group[0].selector(), SelectionKey.OP_ACCEPT, acceptor);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Unable to register server channel", e);
+                }
+            });
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Hand a fully buffered request to the worker pool.
+     *
+     * @param connection Connection the request arrived on
+     * @param request Parsed request
+     * @param response Empty response for the handler to fill in
+     * @param served Number of requests served on the connection, including this one
+     */
+    void dispatch(NioConnection connection, Request request, Response response, int served) {
+        app.received(request);
+        AdmissionControl admission = app.admission();
+        if (admission == null || admission.tryAcquire(request)) {
+            execute(connection, request, response, served);
+            return;
+        }
+        // Wait for a permit without holding a worker or the loop
+        admission.enqueue(request, admitted -> {
+            if (!admitted) {
+                connection.respond(app.shed(request), false);
+            } else if (!connection.isOpen()) {
+                // The client left while the request was queued
+                admission.release(request, 0);
+            } else {
+                execute(connection, request, response, served);
+            }
+        });
+    }
+
+    private void execute(NioConnection connection, Request request, Response response, int served) {
+        try {
+            workers.execute(() -> handle(connection, request, response, served));
+        } catch (RejectedExecutionException e) {
+            abandon(request);
+            reject(connection);
+        }
+    }
+
+    /**
+     * Run the handler on a worker. An asynchronous handler's response is
+     * written by another worker once its result completes, so no thread
+     * waits for it meanwhile; if the client disconnects first, the result
+     * is cancelled.
+     */
+    private void handle(NioConnection connection, Request request, Response empty, int served) {
+        Response response;
+        try {
+            response = app.begin(request, empty);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Error handling request: " + e.getMessage(), e);
+            connection.abort();
+            return;
+        }
+        CompletableFuture<Void> pending = request.getAsyncResult();
+        if (pending == null || pending.isDone()) {
+            Throwable failure = pending != null ? JExpress.await(pending) : null;
+            finish(connection, request, response, served, failure);
+            return;
+        }
+        connection.onDisconnect(() -> pending.cancel(false));
+        pending.whenComplete((result, failure) -> {
+            try {
+                workers.execute(() -> finish(connection, request, response, served, failure));
+            } catch (RejectedExecutionException e) {
+                abandon(request);
+                reject(connection);
+            }
+        });
+    }
+
+    private void finish(NioConnection connection, Request request, Response response, int served,
+                        Throwable failure) {
+        try {
+            boolean keepAlive = app.finish(request, app.complete(request, response, failure),
+                    connection.responseStream(), served, failure == null);
+            if (request.getUpgrade() != null) {
+                connection.upgradeAfterResponse(request.getUpgrade());
+            }
+            connection.endResponse(keepAlive);
+        } catch (IOException | RuntimeException e) {
+            // Part of the response may already be on the wire
+            LOGGER.log(Level.FINE, "Error writing response: " + e.getMessage(), e);
+            connection.abort();
+        }
+    }
+
+    /**
+     * Return the admission permit of a request that will not be finished.
+     */
+    private void abandon(Request request) {
+        if (app.admission() != null) {
+            app.admission().release(request, StatusCodes.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void reject(NioConnection connection) {
+        LOGGER.warning("Executor saturated, rejecting request");
+        if (app.metrics() != null) {
+            app.metrics().recordRejected(StatusCodes.SERVICE_UNAVAILABLE);
+        }
+        connection.respond(app.serviceUnavailable(), false);
+    }
+
+    /**
+     * Serialize a plain error response that closes the connection, for a
+     * request rejected before it was dispatched.
+     *
+     * @param statusCode HTTP status code
+     * @return Serialized response
+     */
+    byte[] serialize(int statusCode) {
+        if (app.metrics() != null) {
+            app.metrics().recordRejected(statusCode);
+        }
+        return app.serialize(app.errorResponse(statusCode), false);
+    }
+
+    boolean isTracing() {
+        return app.isTracing();
+    }
+
+    /**
+     * Count a request as in flight until its response is written.
+     */
+    void requestStarted() {
+        app.requestStarted();
+    }
+
+    void requestFinished() {
+        app.requestFinished();
+    }
+
+    /**
+     * Close every connection waiting for its next request; the others
+     * close once their response is written.
+     */
+    void closeIdle() {
+        for (EventLoop loop : loops) {
+            loop.drain();
+        }
+    }
+
+    /**
+     * Stop accepting, close all connections and stop the event loops.
+     */
+    void stop() {
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing server channel", e);
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Block until every event loop thread has finished.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.join(0);
+        }
+    }
+
+    /**
+     * Accepts connections from one listening channel and spreads them
+     * round-robin over its group of event loops.
+     */
+    private final class Acceptor implements EventLoop.Handler {
+        private final ServerSocketChannel serverChannel;
+        private final EventLoop[] group;
+        private int nextLoop;
+
+        Acceptor(ServerSocketChannel serverChannel, EventLoop[] group) {
+            this.serverChannel = serverChannel;
+            this.group = group;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = group[nextLoop];
+                nextLoop = (nextLoop + 1) % group.length;
+                NioConnection connection = new NioConnection(NioServer.this, config, channel, loop, app.metrics());
+                loop.execute(connection::register);
+            }
+        }
+
+        @Override
+        public void onTick(long now) {
+            AdmissionControl admission = app.admission();
+            if (admission != null) {
+                admission.expireWaiters();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing server channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.jexpress;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory output for a body serialized before its length is known,
+ * starting in a pooled buffer and moving to larger ones as needed. Text
+ * written through {@link #writer()} is encoded as UTF-8 straight into the
+ * buffer, without the intermediate buffers of an OutputStreamWriter.
+ */
+final class PooledOutputStream extends OutputStream {
+    private static final int UNPOOLED_INITIAL_SIZE = 1024;
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+    private Utf8Writer writer;
+
+    /**
+     * @param pool Pool to take the first buffer from, or null to allocate it
+     */
+    PooledOutputStream(BufferPool pool) {
+        this.pool = pool;
+        this.buffer = pool != null ? pool.acquire() : ByteBuffer.allocate(UNPOOLED_INITIAL_SIZE);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Get a writer encoding text as UTF-8 into this stream. Unpaired
+     * surrogates are written as {@code '?'}.
+     *
+     * @return Writer; flushing and closing it do nothing
+     */
+    Writer writer() {
+        if (writer == null) {
+            writer = new Utf8Writer();
+        }
+        return writer;
+    }
+
+    /**
+     * Hand over what was written. The buffer is one from the pool if the
+     * output fitted in it, to be released once sent.
+     *
+     * @return Buffer holding the output between position and limit
+     */
+    ByteBuffer toBuffer() {
+        if (writer != null) {
+            writer.close();
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Return the buffer to the pool, discarding the output.
+     */
+    void release() {
+        if (pool != null) {
+            pool.release(buffer);
+        }
+    }
+
+    private void ensureRemaining(int needed) {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        larger.put(buffer.flip());
+        release();
+        buffer = larger;
+    }
+
+    private final class Utf8Writer extends Writer {
+        // High surrogate waiting for the low surrogate that completes it
+        private char pending;
+
+        @Override
+        public void write(int c) {
+            writeChar((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                writeChar(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureRemaining(len);
+            for (int i = off; i < off + len; i++) {
+                char c = str.charAt(i);
+                if (c < 0x80 && pending == 0 && buffer.hasRemaining()) {
+                    buffer.put((byte) c);
+                } else {
+                    writeChar(c);
+                }
+            }
+        }
+
+        private void writeChar(char c) {
+            if (pending != 0) {
+                char high = pending;
+                pending = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    ensureRemaining(4);
+                    buffer.put((byte) (0xF0 | codePoint >> 18))
+                            .put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                            .put((byte) (0x80 | codePoint >> 6 & 0x3F))
+                            .put((byte) (0x80 | codePoint & 0x3F));
+                    return;
+                }
+                PooledOutputStream.this.write('?');
+            }
+            if (c < 0x80) {
+                PooledOutputStream.this.write(c);
+            } else if (c < 0x800) {
+                ensureRemaining(2);
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                pending = c;
+            } else if (Character.isLowSurrogate(c)) {
+                PooledOutputStream.this.write('?');
+            } else {
+                ensureRemaining(3);
+                buffer.put((byte) (0xE0 | c >> 12))
+                        .put((byte) (0x80 | c >> 6 & 0x3F))
+                        .put((byte) (0x80 | c & 0x3F));
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Everything is already in the buffer
+        }
+
+        @Override
+        public void close() {
+            if (pending != 0) {
+                pending = 0;
+                PooledOutputStream.this.write('?');
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes an {@code application/x-www-form-urlencoded} query string from
+ * the raw request head. Runs the first time a handler asks for a query
+ * parameter, so requests that never read their query pay nothing beyond
+ * finding the {@code '?'}.
+ *
+ * <p>Names and values are percent-decoded byte by byte and the result read
+ * as UTF-8, with {@code '+'} standing for a space. Components without
+ * escapes become strings straight from the head. Malformed escapes are kept
+ * literally.
+ */
+final class QueryDecoder {
+    private final int maxParams;
+    private final int maxParamLength;
+
+    QueryDecoder(ServerConfig config) {
+        this.maxParams = config.maxQueryParams;
+        this.maxParamLength = config.maxQueryParamLength;
+    }
+
+    /**
+     * Decode every parameter of a query into the request, in order.
+     * Repeated names are kept as separate values.
+     *
+     * @param buf Head buffer
+     * @param start Start of the query, after the {@code '?'}
+     * @param end End of the query
+     * @param request Request to add the parameters to
+     * @throws HttpParseException With 400 if the query has too many
+     *         parameters or a name or value is too long
+     */
+    void decode(byte[] buf, int start, int end, Request request) throws HttpParseException {
+        byte[] scratch = null;
+        int count = 0;
+        int pairStart = start;
+        while (pairStart < end) {
+            int pairEnd = pairStart;
+            int equals = -1;
+            while (pairEnd < end && buf[pairEnd] != '&') {
+                if (equals < 0 && buf[pairEnd] == '=') {
+                    equals = pairEnd;
+                }
+                pairEnd++;
+            }
+            if (pairEnd > pairStart) {
+                if (++count > maxParams) {
+                    throw new HttpParseException(StatusCodes.BAD_REQUEST, "Too many query parameters");
+                }
+                int nameEnd = equals >= 0 ? equals : pairEnd;
+                int valueStart = equals >= 0 ? equals + 1 : pairEnd;
+                if (nameEnd - pairStart > maxParamLength || pairEnd - valueStart > maxParamLength) {
+                    throw new HttpParseException(StatusCodes.BAD_REQUEST, "Query parameter too long");
+                }
+                if (scratch == null && needsDecoding(buf, pairStart, pairEnd)) {
+                    scratch = new byte[end - start];
+                }
+                request.addQueryParam(decodeComponent(buf, pairStart, nameEnd, scratch),
+                        decodeComponent(buf, valueStart, pairEnd, scratch));
+            }
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    private static boolean needsDecoding(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '%' || buf[i] == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode one name or value.
+     *
+     * @param scratch Array to decode escapes into, at least as long as the
+     *                component; may be null if the component has none
+     */
+    static String decodeComponent(byte[] buf, int start, int end, byte[] scratch) {
+        if (start == end) {
+            return "";
+        }
+        if (!needsDecoding(buf, start, end)) {
+            return new String(buf, start, end - start, StandardCharsets.UTF_8);
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < end) {
+                int high = hexValue(buf[i + 1]);
+                int low = hexValue(buf[i + 2]);
+                if (high >= 0 && low >= 0) {
+                    b = (byte) (high << 4 | low);
+                    i += 2;
+                }
+            }
+            scratch[length++] = b;
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hexValue(int b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,196 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Limits how often each client may call the routes it is attached to,
+ * answering requests over the limit with 429 and a {@code Retry-After}
+ * header before the handler runs. Attach it globally, under a path prefix
+ * or to single routes like any other middleware; each instance keeps its
+ * own budgets, so routes that should be limited separately need separate
+ * instances.
+ *
+ * <pre>{@code
+ * // 10 requests per second per client address, in bursts of up to 20
+ * router.use(new RateLimiter(10, 20));
+ *
+ * // 1 request per second per API key on one expensive route
+ * router.post("/reports", this::createReport)
+ *         .use(new RateLimiter(1, 5).byHeader("X-Api-Key"));
+ * }</pre>
+ *
+ * <p>Each client has a token bucket holding up to {@code burst} permits,
+ * refilled at {@code permitsPerSecond}. A bucket is a single
+ * {@code AtomicLong}: the time at which it would next be full, from which
+ * the number of permits left follows. Taking a permit is one
+ * compare-and-set, with no locks, so concurrent requests from the same
+ * client only contend on that one word.
+ *
+ * <p>A full bucket is no different from a new one, so buckets of clients
+ * idle long enough to refill are dropped in a periodic sweep. The table is
+ * bounded by {@link #maxKeys(int)}; clients beyond that share one bucket
+ * until the sweep makes room.
+ */
+public class RateLimiter implements Middleware {
+    private static final int DEFAULT_MAX_KEYS = 100_000;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // A full table is swept on demand, but not so often that new keys make every request scan it
+    private static final long FULL_SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long permitNanos;
+    private final long burstNanos;
+    private final long origin = System.nanoTime();
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong overflow = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private Function<Request, String> keyFunction = Request::getRemoteAddress;
+    private int maxKeys = DEFAULT_MAX_KEYS;
+
+    /**
+     * Create a limiter allowing each client {@code permitsPerSecond}
+     * requests per second on average, and up to {@code burst} at once.
+     *
+     * @param permitsPerSecond Sustained request rate per client
+     * @param burst Requests a client may send at once after being idle
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+        this.permitNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burstNanos = Math.multiplyExact(permitNanos, (long) burst);
+    }
+
+    /**
+     * Set how requests are attributed to clients. Defaults to the client
+     * address; behind a proxy, key on the header it forwards instead.
+     * Requests whose key is null are not limited.
+     *
+     * @param keyFunction Function returning the client key for a request
+     * @return This instance for method chaining
+     */
+    public RateLimiter keyBy(Function<Request, String> keyFunction) {
+        if (keyFunction == null) {
+            throw new IllegalArgumentException("keyFunction must not be null");
+        }
+        this.keyFunction = keyFunction;
+        return this;
+    }
+
+    /**
+     * Attribute requests to clients by the value of a header, such as an
+     * API key, falling back to the client address without it.
+     *
+     * @param name Header name
+     * @return This instance for method chaining
+     */
+    public RateLimiter byHeader(String name) {
+        return keyBy(request -> {
+            String value = request.getHeader(name);
+            return value != null ? value : request.getRemoteAddress();
+        });
+    }
+
+    /**
+     * Set the most clients tracked at once. Defaults to 100,000.
+     *
+     * @param maxKeys Maximum number of buckets kept
+     * @return This instance for method chaining
+     */
+    public RateLimiter maxKeys(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("maxKeys must be positive: " + maxKeys);
+        }
+        this.maxKeys = maxKeys;
+        return this;
+    }
+
+    /**
+     * Get the number of requests answered with 429.
+     *
+     * @return Rejected request count
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void handle(Request request, Response response, MiddlewareChain chain) {
+        String key = keyFunction.apply(request);
+        long wait = key != null ? tryAcquire(key) : 0;
+        if (wait > 0) {
+            rejected.increment();
+            response.setStatusCode(StatusCodes.TOO_MANY_REQUESTS);
+            // Whole seconds, rounded up so a client retrying on time finds a permit
+            response.addHeader("Retry-After", Long.toString((wait + 999_999_999) / 1_000_000_000));
+            response.text();
+            response.setBody(StatusCodes.TOO_MANY_REQUESTS + " "
+                    + StatusCodes.getMessage(StatusCodes.TOO_MANY_REQUESTS));
+            return;
+        }
+        chain.next(request, response);
+    }
+
+    /**
+     * Take a permit from a client's bucket.
+     *
+     * @param key Client key
+     * @return 0 if a permit was taken, otherwise the nanoseconds until one is available
+     */
+    long tryAcquire(String key) {
+        long now = System.nanoTime() - origin;
+        sweep(now, SWEEP_INTERVAL_NANOS);
+        AtomicLong bucket = bucket(key, now);
+        while (true) {
+            // The bucket is full from this time on; each permit moves it one interval later
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + permitNanos;
+            long wait = next - burstNanos - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private AtomicLong bucket(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxKeys) {
+            sweep(now, FULL_SWEEP_INTERVAL_NANOS);
+            if (buckets.size() >= maxKeys) {
+                return overflow;
+            }
+        }
+        AtomicLong created = new AtomicLong();
+        bucket = buckets.putIfAbsent(key, created);
+        return bucket != null ? bucket : created;
+    }
+
+    /**
+     * Drop the buckets that have refilled completely, at most once per
+     * interval across all threads. A request that took its bucket just
+     * before the bucket is dropped may leave its client one extra permit.
+     */
+    private void sweep(long now, long interval) {
+        long last = lastSweep.get();
+        if (now - last < interval || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.get() <= now);
+    }
+}
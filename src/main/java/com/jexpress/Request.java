@@ -1,91 +1,814 @@
 package com.jexpress;
 
+import com.jexpress.utils.StatusCodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents an HTTP request in the REST API framework.
+ *
+ * <p>Headers parsed from the wire are kept as byte ranges into the
+ * connection's read buffer and decoded only when a handler asks for them.
+ * That buffer is reused for the next request on the connection, so header
+ * values must be read while the request is being handled.
+ *
+ * <p>The body is not read before the handler runs. It is streamed from the
+ * connection through {@link #getBodyStream()}, or read completely into
+ * memory on the first call to {@link #getBody()} or {@link #getBodyBytes()}.
+ *
+ * <p>The query string is split from the path when the head is parsed and
+ * kept as a byte range like the headers; its parameters are decoded on the
+ * first call to a query method.
  */
 public class Request {
+    private static final int INITIAL_HEADER_CAPACITY = 16;
+    private static final int INITIAL_QUERY_CAPACITY = 8;
+
     private HttpMethod method;
     private String path;
+    private String protocol;
     private Map<String, String> headers;
+    // Query parameters in order, repeated names included, decoded from the head on first use
+    private String[] queryNames;
+    private String[] queryValues;
+    private int queryCount;
+    private boolean queryDecoded;
     private Map<String, String> queryParams;
+    private int queryStart = -1;
+    private int queryEnd;
+    private QueryDecoder queryDecoder;
+    // Query or JSON body a handler asked for that could not be decoded
+    private HttpParseException readFailure;
+    private JsonCodec jsonCodec;
     private Map<String, String> pathParams;
+    // Path parameters bound by the router, materialized into pathParams on demand
+    private String[] pathParamNames;
+    private String[] pathParamValues;
+    // Capture array kept for the router across requests on a recycled request
+    private String[] pathParamBuffer;
     private String body;
+    private byte[] bodyBytes;
     private String contentType;
+    private long contentLength;
+    private boolean chunked;
+    private BodyInputStream bodyStream;
+    // Position in the route's middleware chain
+    private int middlewareIndex;
+    // Set by the server while dispatching
+    private Router.Route route;
+    private long dispatchStart;
+    private CompletableFuture<Void> asyncResult;
+    private String remoteAddress;
+    // System.nanoTime() values, 0 when not set
+    private long deadline;
+    private long admittedAt;
+    private RequestTrace trace;
+    // Set by a WebSocket handshake the response switches protocols for
+    private WebSocket upgrade;
+
+    // Raw head bytes and, per header, [nameStart, nameEnd, valueStart, valueEnd]
+    private byte[] head;
+    private int[] headerRanges;
+    private String[] headerValues;
+    private int headerCount;
+    // Set once the server has released a recycled request in debug mode
+    private boolean released;
 
     public Request() {
-        this.headers = new HashMap<>();
-        this.queryParams = new HashMap<>();
-        this.pathParams = new HashMap<>();
+        this.contentLength = -1;
     }
 
     public HttpMethod getMethod() {
+        checkLive();
         return method;
     }
 
     public void setMethod(HttpMethod method) {
+        checkLive();
         this.method = method;
     }
 
     public String getPath() {
+        checkLive();
         return path;
     }
 
     public void setPath(String path) {
+        checkLive();
         this.path = path;
     }
 
+    /**
+     * Get the protocol version from the request line, e.g. {@code HTTP/1.1}.
+     *
+     * @return Protocol version
+     */
+    public String getProtocol() {
+        checkLive();
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        checkLive();
+        this.protocol = protocol;
+    }
+
+    /**
+     * Get all headers. Header names are case-insensitive. The first call
+     * decodes every raw header, so prefer {@link #getHeader(String)}.
+     *
+     * @return Mutable map of headers
+     */
     public Map<String, String> getHeaders() {
+        checkLive();
+        if (headers == null) {
+            headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < headerCount; i++) {
+                int nameStart = headerRanges[i * 4];
+                int nameEnd = headerRanges[i * 4 + 1];
+                headers.put(new String(head, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1),
+                        headerValue(i));
+            }
+        }
         return headers;
     }
 
     public void addHeader(String key, String value) {
-        this.headers.put(key, value);
+        checkLive();
+        getHeaders().put(key, value);
     }
 
+    /**
+     * Get a header value by case-insensitive name. When a header is repeated
+     * the last value wins.
+     *
+     * @param key Header name
+     * @return Header value, or null if absent
+     */
     public String getHeader(String key) {
-        return this.headers.get(key);
+        checkLive();
+        if (headers != null) {
+            return headers.get(key);
+        }
+        for (int i = headerCount - 1; i >= 0; i--) {
+            if (nameEquals(i, key)) {
+                return headerValue(i);
+            }
+        }
+        return null;
     }
 
+    private boolean nameEquals(int index, String name) {
+        int start = headerRanges[index * 4];
+        int end = headerRanges[index * 4 + 1];
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char a = (char) (head[start + i] & 0xFF);
+            char b = name.charAt(i);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String headerValue(int index) {
+        String value = headerValues[index];
+        if (value == null) {
+            int start = headerRanges[index * 4 + 2];
+            int end = headerRanges[index * 4 + 3];
+            value = new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+            headerValues[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Set the buffer the raw header ranges refer to.
+     *
+     * @param head Buffer holding the request head
+     */
+    void setHead(byte[] head) {
+        this.head = head;
+    }
+
+    /**
+     * Record a header parsed from the request head without decoding it.
+     */
+    void addRawHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headerRanges == null) {
+            headerRanges = new int[INITIAL_HEADER_CAPACITY * 4];
+            headerValues = new String[INITIAL_HEADER_CAPACITY];
+        } else if (headerCount == headerValues.length) {
+            headerRanges = Arrays.copyOf(headerRanges, headerRanges.length * 2);
+            headerValues = Arrays.copyOf(headerValues, headerValues.length * 2);
+        }
+        int base = headerCount * 4;
+        headerRanges[base] = nameStart;
+        headerRanges[base + 1] = nameEnd;
+        headerRanges[base + 2] = valueStart;
+        headerRanges[base + 3] = valueEnd;
+        headerCount++;
+    }
+
+    int getRawHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * Get the declared body length.
+     *
+     * @return Content-Length, or -1 if the request did not declare one
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Get the raw query string, still percent-encoded.
+     *
+     * @return Text after the {@code '?'} in the request target, or null if there was none
+     */
+    public String getQueryString() {
+        checkLive();
+        if (queryStart < 0) {
+            return null;
+        }
+        return new String(head, queryStart, queryEnd - queryStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get all query parameters. The first value of a repeated name is
+     * used; see {@link #getQueryParamValues(String)} for the others.
+     *
+     * @return Mutable map of query parameters, in request order
+     * @throws UncheckedIOException If the query exceeds the configured limits
+     */
     public Map<String, String> getQueryParams() {
+        checkLive();
+        if (queryParams == null) {
+            decodeQuery();
+            queryParams = new LinkedHashMap<>();
+            for (int i = 0; i < queryCount; i++) {
+                queryParams.putIfAbsent(queryNames[i], queryValues[i]);
+            }
+        }
         return queryParams;
     }
 
+    /**
+     * Add a query parameter after those of the request. A name that is
+     * already present gets another value.
+     *
+     * @param key Parameter name
+     * @param value Parameter value
+     */
     public void addQueryParam(String key, String value) {
-        this.queryParams.put(key, value);
+        checkLive();
+        decodeQuery();
+        if (queryNames == null) {
+            queryNames = new String[INITIAL_QUERY_CAPACITY];
+            queryValues = new String[INITIAL_QUERY_CAPACITY];
+        } else if (queryCount == queryNames.length) {
+            queryNames = Arrays.copyOf(queryNames, queryCount * 2);
+            queryValues = Arrays.copyOf(queryValues, queryCount * 2);
+        }
+        queryNames[queryCount] = key;
+        queryValues[queryCount] = value;
+        queryCount++;
+        if (queryParams != null) {
+            queryParams.putIfAbsent(key, value);
+        }
     }
 
+    /**
+     * Get a decoded query parameter. When a name is repeated the first
+     * value is returned.
+     *
+     * @param key Parameter name
+     * @return Parameter value, empty if the name had no {@code '='}, or null if absent
+     * @throws UncheckedIOException If the query exceeds the configured limits
+     */
     public String getQueryParam(String key) {
-        return this.queryParams.get(key);
+        checkLive();
+        if (queryParams != null) {
+            return queryParams.get(key);
+        }
+        decodeQuery();
+        for (int i = 0; i < queryCount; i++) {
+            if (queryNames[i].equals(key)) {
+                return queryValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get every value of a repeated query parameter, such as
+     * {@code ?tag=a&tag=b}.
+     *
+     * @param key Parameter name
+     * @return Values in request order, empty if absent
+     * @throws UncheckedIOException If the query exceeds the configured limits
+     */
+    public List<String> getQueryParamValues(String key) {
+        checkLive();
+        decodeQuery();
+        List<String> values = null;
+        for (int i = 0; i < queryCount; i++) {
+            if (queryNames[i].equals(key)) {
+                if (values == null) {
+                    values = new ArrayList<>(2);
+                }
+                values.add(queryValues[i]);
+            }
+        }
+        return values != null ? values : Collections.emptyList();
+    }
+
+    /**
+     * Record where the query string is in the head, to be decoded on first use.
+     *
+     * @param start Start of the query, after the {@code '?'}
+     * @param end End of the query
+     * @param decoder Decoder applying the server's limits
+     */
+    void setRawQuery(int start, int end, QueryDecoder decoder) {
+        this.queryStart = start;
+        this.queryEnd = end;
+        this.queryDecoder = decoder;
+    }
+
+    private void decodeQuery() {
+        if (!queryDecoded) {
+            queryDecoded = true;
+            if (queryStart >= 0) {
+                try {
+                    queryDecoder.decode(head, queryStart, queryEnd, this);
+                } catch (HttpParseException e) {
+                    readFailure = e;
+                    clearQuery();
+                }
+            }
+        }
+        if (readFailure != null) {
+            throw new UncheckedIOException("Invalid query string", readFailure);
+        }
+    }
+
+    private void clearQuery() {
+        if (queryCount > 0) {
+            Arrays.fill(queryNames, 0, queryCount, null);
+            Arrays.fill(queryValues, 0, queryCount, null);
+            queryCount = 0;
+        }
+    }
+
+    /**
+     * Get the error that made the query string or a JSON body unreadable,
+     * if a handler asked for it.
+     *
+     * @return Failure, or null
+     */
+    HttpParseException getReadFailure() {
+        return readFailure;
     }
 
     public Map<String, String> getPathParams() {
+        checkLive();
+        if (pathParams == null) {
+            pathParams = new HashMap<>();
+            if (pathParamNames != null) {
+                for (int i = 0; i < pathParamNames.length; i++) {
+                    pathParams.put(pathParamNames[i], pathParamValues[i]);
+                }
+            }
+        }
         return pathParams;
     }
 
     public void addPathParam(String key, String value) {
-        this.pathParams.put(key, value);
+        checkLive();
+        getPathParams().put(key, value);
     }
 
     public String getPathParam(String key) {
-        return this.pathParams.get(key);
+        checkLive();
+        if (pathParams != null) {
+            return pathParams.get(key);
+        }
+        if (pathParamNames != null) {
+            // Last occurrence wins, as when materialized into a map
+            for (int i = pathParamNames.length - 1; i >= 0; i--) {
+                if (pathParamNames[i].equals(key)) {
+                    return pathParamValues[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get an array for the router to capture path parameters into, reused
+     * when the request is recycled.
+     *
+     * @param size Most parameters any route captures
+     * @return Array of at least {@code size} elements
+     */
+    String[] pathParamBuffer(int size) {
+        if (pathParamBuffer == null || pathParamBuffer.length < size) {
+            pathParamBuffer = new String[size];
+        }
+        return pathParamBuffer;
+    }
+
+    /**
+     * Bind the path parameters captured while matching the route.
+     *
+     * @param names Parameter names in template order
+     * @param values Captured values, at least as long as names
+     */
+    void setPathParams(String[] names, String[] values) {
+        this.pathParamNames = names;
+        this.pathParamValues = values;
+        this.pathParams = null;
     }
 
+    /**
+     * Get the request body decoded as UTF-8, reading it first if needed.
+     *
+     * @return Body text, or null if the request had no body
+     * @throws UncheckedIOException If the body cannot be read
+     */
     public String getBody() {
+        checkLive();
+        if (body == null) {
+            byte[] bytes = getBodyBytes();
+            if (bytes != null) {
+                body = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
         return body;
     }
 
     public void setBody(String body) {
+        checkLive();
         this.body = body;
+        this.bodyBytes = null;
+    }
+
+    /**
+     * Get the raw request body, reading what is left of it from the
+     * connection first if needed.
+     *
+     * @return Body bytes, or null if the request had no body
+     * @throws UncheckedIOException If the body cannot be read
+     */
+    public byte[] getBodyBytes() {
+        checkLive();
+        if (bodyBytes == null && body != null) {
+            return body.getBytes(StandardCharsets.UTF_8);
+        }
+        if (bodyBytes == null && bodyStream != null) {
+            try {
+                bodyBytes = bodyStream.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read request body", e);
+            }
+        }
+        return bodyBytes;
+    }
+
+    /**
+     * Read the body as JSON into an object of the given type with the
+     * application's {@link JsonCodec}. The body is decoded as it is read
+     * from the connection, without first being held as text.
+     *
+     * @param type Type to bind the body to
+     * @param <T> Type of the body
+     * @return Decoded body, or null if the request had no body
+     * @throws UncheckedIOException If the body cannot be read or is not valid
+     *         JSON for the type; the client is then answered with 400
+     */
+    public <T> T bodyAs(Class<T> type) {
+        checkLive();
+        if (body == null && bodyBytes == null && bodyStream == null) {
+            return null;
+        }
+        try {
+            return (jsonCodec != null ? jsonCodec : GsonCodec.DEFAULT).read(getBodyStream(), type);
+        } catch (IOException e) {
+            if (getBodyFailure() == null) {
+                readFailure = new HttpParseException(StatusCodes.BAD_REQUEST, "Invalid JSON body: " + e.getMessage());
+            }
+            throw new UncheckedIOException("Unable to read JSON body", e);
+        }
+    }
+
+    void setJsonCodec(JsonCodec jsonCodec) {
+        this.jsonCodec = jsonCodec;
+    }
+
+    /**
+     * Get the request body as a stream read from the connection as it is
+     * consumed, without holding the whole body in memory. The body can be
+     * read once; reads block until the client has sent more of it.
+     *
+     * @return Body stream, empty if the request had no body
+     */
+    public InputStream getBodyStream() {
+        checkLive();
+        if (bodyBytes != null || body != null) {
+            return new ByteArrayInputStream(getBodyBytes());
+        }
+        return bodyStream != null ? bodyStream : InputStream.nullInputStream();
+    }
+
+    /**
+     * Get the request body as a channel; see {@link #getBodyStream()}.
+     *
+     * @return Body channel
+     */
+    public ReadableByteChannel getBodyChannel() {
+        checkLive();
+        return Channels.newChannel(getBodyStream());
+    }
+
+    void setBodyBytes(byte[] bodyBytes) {
+        this.bodyBytes = bodyBytes;
+        this.body = null;
+    }
+
+    void setBodyStream(BodyInputStream bodyStream) {
+        this.bodyStream = bodyStream;
+    }
+
+    /**
+     * Get the error that ended reading the body from the connection, if any.
+     *
+     * @return Failure, or null
+     */
+    IOException getBodyFailure() {
+        return bodyStream != null ? bodyStream.getFailure() : null;
+    }
+
+    /**
+     * Discard any part of the body the handler did not read.
+     *
+     * @param limit Most bytes to discard
+     * @return true if the connection is positioned at the next request
+     */
+    boolean finishBody(long limit) {
+        return bodyStream == null || bodyStream.drain(limit);
+    }
+
+    /**
+     * Whether the body uses chunked transfer coding.
+     */
+    boolean isChunked() {
+        return chunked;
+    }
+
+    void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    int getMiddlewareIndex() {
+        return middlewareIndex;
+    }
+
+    void setMiddlewareIndex(int middlewareIndex) {
+        this.middlewareIndex = middlewareIndex;
+    }
+
+    /**
+     * Get the route the request was dispatched to.
+     *
+     * @return Matched route, or null if none matched
+     */
+    Router.Route getRoute() {
+        return route;
+    }
+
+    void setRoute(Router.Route route) {
+        this.route = route;
+    }
+
+    /**
+     * Get when dispatching started, for measuring latency.
+     *
+     * @return {@link System#nanoTime()} at dispatch
+     */
+    long getDispatchStart() {
+        return dispatchStart;
+    }
+
+    void setDispatchStart(long dispatchStart) {
+        this.dispatchStart = dispatchStart;
+    }
+
+    /**
+     * Whether the request has a deadline, from the client's timeout header
+     * or the server's default.
+     *
+     * @return true if the request has a deadline
+     */
+    public boolean hasDeadline() {
+        checkLive();
+        return deadline != 0;
+    }
+
+    /**
+     * Get the time left before the request's deadline, e.g. to pass on as
+     * the timeout of calls made to answer it, so downstream services stop
+     * working on it when the client has given up.
+     *
+     * @return Milliseconds left, zero or less once the deadline has passed,
+     *         or {@link Long#MAX_VALUE} if the request has no deadline
+     */
+    public long getRemainingMillis() {
+        checkLive();
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * Whether the request's deadline has passed.
+     *
+     * @return true if the request has a deadline and it has passed
+     */
+    public boolean isExpired() {
+        checkLive();
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        // Zero means no deadline
+        this.deadline = deadline != 0 ? deadline : 1;
+    }
+
+    /**
+     * Get when the request was admitted by the admission control.
+     *
+     * @return {@link System#nanoTime()} at admission, or 0 if it holds no permit
+     */
+    long getAdmittedAt() {
+        return admittedAt;
+    }
+
+    void setAdmittedAt(long admittedAt) {
+        this.admittedAt = admittedAt;
+    }
+
+    /**
+     * Get the phase timings of the request.
+     *
+     * @return Trace, or null if the request is not traced
+     */
+    RequestTrace getTrace() {
+        return trace;
+    }
+
+    void setTrace(RequestTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Get the WebSocket the connection switches to once the response is
+     * written.
+     *
+     * @return WebSocket, or null if the connection stays HTTP
+     */
+    WebSocket getUpgrade() {
+        return upgrade;
+    }
+
+    void setUpgrade(WebSocket upgrade) {
+        this.upgrade = upgrade;
+    }
+
+    /**
+     * Get the pending result of an asynchronous handler.
+     *
+     * @return Result the response waits for, or null if the handler was synchronous
+     */
+    CompletableFuture<Void> getAsyncResult() {
+        return asyncResult;
+    }
+
+    void setAsyncResult(CompletableFuture<Void> asyncResult) {
+        this.asyncResult = asyncResult;
+    }
+
+    /**
+     * Get the IP address of the client connected to the server, which is
+     * the proxy's address when the server runs behind one.
+     *
+     * @return Address in its textual form, or null if not known
+     */
+    public String getRemoteAddress() {
+        checkLive();
+        return remoteAddress;
+    }
+
+    void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
     }
 
     public String getContentType() {
+        checkLive();
         return contentType;
     }
 
     public void setContentType(String contentType) {
+        checkLive();
         this.contentType = contentType;
     }
-}
\ No newline at end of file
+
+    /**
+     * Clear the request for reuse by the next request on the connection,
+     * keeping its arrays. The head buffer stays set, as it
+     * belongs to the connection.
+     */
+    void reset() {
+        method = null;
+        path = null;
+        protocol = null;
+        headers = null;
+        clearQuery();
+        queryDecoded = false;
+        queryParams = null;
+        queryStart = -1;
+        queryEnd = 0;
+        queryDecoder = null;
+        readFailure = null;
+        pathParams = null;
+        pathParamNames = null;
+        pathParamValues = null;
+        if (pathParamBuffer != null) {
+            Arrays.fill(pathParamBuffer, null);
+        }
+        body = null;
+        bodyBytes = null;
+        contentType = null;
+        contentLength = -1;
+        chunked = false;
+        bodyStream = null;
+        middlewareIndex = 0;
+        route = null;
+        dispatchStart = 0;
+        asyncResult = null;
+        remoteAddress = null;
+        deadline = 0;
+        admittedAt = 0;
+        trace = null;
+        upgrade = null;
+        if (headerCount > 0) {
+            Arrays.fill(headerValues, 0, headerCount, null);
+            headerCount = 0;
+        }
+    }
+
+    /**
+     * Mark the request as released, so a handler that kept it fails on its
+     * next use instead of reading a later request.
+     */
+    void poison() {
+        released = true;
+    }
+
+    private void checkLive() {
+        if (released) {
+            throw new IllegalStateException("Request used after its response was sent; handlers must not "
+                    + "keep the request once it is complete when pooling is enabled");
+        }
+    }
+}
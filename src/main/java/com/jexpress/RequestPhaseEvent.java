@@ -0,0 +1,39 @@
+package com.jexpress;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one phase of a request, so request latency can
+ * be lined up with GC pauses, safepoints and lock contention in the same
+ * recording. Committed by the thread that ends the phase.
+ */
+@Name("com.jexpress.RequestPhase")
+@Label("HTTP Request Phase")
+@Category({"JExpress", "HTTP"})
+@Description("Time a request spent in one phase of its handling")
+@StackTrace(false)
+final class RequestPhaseEvent extends Event {
+    private static final EventType TYPE = EventType.getEventType(RequestPhaseEvent.class);
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Method")
+    String method;
+
+    @Label("Path")
+    String path;
+
+    /**
+     * Whether a running recording has this event enabled.
+     */
+    static boolean isRecording() {
+        return TYPE.isEnabled();
+    }
+}
@@ -0,0 +1,126 @@
+package com.jexpress;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Phase timings of the request in progress on a connection, kept as
+ * {@link System#nanoTime()} deltas and reused by each request on it, so
+ * tracing allocates nothing unless a Flight Recorder recording wants
+ * {@link RequestPhaseEvent}s. A request is only traced while a
+ * {@link SlowRequestLog} is set or such a recording is running.
+ *
+ * <p>Phases follow each other; entering one ends the previous. The
+ * threads involved hand the request over through the executor or the
+ * connection's lock, so no field needs to be volatile.
+ */
+final class RequestTrace {
+    private static final Logger LOGGER = Logger.getLogger(RequestTrace.class.getName());
+    private static final SlowRequestLog.Phase[] PHASES = SlowRequestLog.Phase.values();
+    private static final boolean FLIGHT_RECORDER = flightRecorderAvailable();
+
+    private final long[] nanos = new long[PHASES.length];
+    private long startMillis;
+    private SlowRequestLog.Phase phase;
+    private long phaseStart;
+    private RequestPhaseEvent event;
+
+    /**
+     * Whether a Flight Recorder recording has request phase events enabled.
+     */
+    static boolean isRecording() {
+        return FLIGHT_RECORDER && RequestPhaseEvent.isRecording();
+    }
+
+    private static boolean flightRecorderAvailable() {
+        try {
+            RequestPhaseEvent.isRecording();
+            return true;
+        } catch (LinkageError e) {
+            // A runtime image built without the jdk.jfr module
+            LOGGER.log(Level.FINE, "Flight Recorder not available", e);
+            return false;
+        }
+    }
+
+    /**
+     * Start timing a new request with its first byte in hand.
+     *
+     * @param now {@link System#nanoTime()}
+     */
+    void start(long now) {
+        Arrays.fill(nanos, 0);
+        startMillis = System.currentTimeMillis();
+        phase = null;
+        event = null;
+        enter(SlowRequestLog.Phase.PARSE, now, null);
+    }
+
+    /**
+     * Add time the request waited before it was started, such as a new
+     * connection waiting for a thread.
+     */
+    void addQueued(long queuedNanos) {
+        nanos[SlowRequestLog.Phase.QUEUE.ordinal()] += queuedNanos;
+    }
+
+    /**
+     * End the current phase and start the next.
+     *
+     * @param next Phase starting now
+     * @param now {@link System#nanoTime()}
+     * @param request Request being timed, once its head is parsed
+     */
+    void enter(SlowRequestLog.Phase next, long now, Request request) {
+        end(now, request);
+        phase = next;
+        phaseStart = now;
+        if (FLIGHT_RECORDER && RequestPhaseEvent.isRecording()) {
+            event = new RequestPhaseEvent();
+            event.begin();
+        }
+    }
+
+    /**
+     * End the current phase, if any.
+     *
+     * @param now {@link System#nanoTime()}
+     * @param request Request being timed
+     */
+    void end(long now, Request request) {
+        if (phase == null) {
+            return;
+        }
+        nanos[phase.ordinal()] += now - phaseStart;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.label();
+                if (request != null) {
+                    event.method = request.getMethod() != null ? request.getMethod().name() : null;
+                    event.path = request.getPath();
+                }
+                event.commit();
+            }
+            event = null;
+        }
+        phase = null;
+    }
+
+    long nanos(SlowRequestLog.Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    long totalNanos() {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total;
+    }
+
+    long startMillis() {
+        return startMillis;
+    }
+}
@@ -3,60 +3,209 @@ package com.jexpress;
 import com.jexpress.utils.MimeTypes;
 import com.jexpress.utils.StatusCodes;
 
-import java.util.HashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Represents an HTTP response in the REST API framework.
+ *
+ * <p>The body is either text, bytes, a file, an {@link InputStream}, a
+ * {@link BodyWriter} that streams it, or an object serialized as JSON by
+ * the application's {@link JsonCodec} into a pooled buffer. Files are sent with
+ * {@link FileChannel#transferTo} where the connection supports it. Bodies of unknown length are sent
+ * with {@code Transfer-Encoding: chunked} (or by closing the connection for
+ * HTTP/1.0 clients). Streamed writes block while the client is not reading,
+ * so a slow client cannot make the server buffer an unbounded body.
  */
 public class Response {
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+    private static final int INITIAL_HEADER_CAPACITY = 8;
+
     private int statusCode;
     private String body;
-    private Map<String, String> headers;
+    private byte[] bodyBytes;
+    private ByteBuffer bodyBuffer;
+    // Whether bodyBuffer came from bodyPool and goes back once sent
+    private boolean bodyBufferPooled;
+    private Object bodyValue;
+    private boolean bodyValuePending;
+    // Set by the server before the handler runs
+    private JsonCodec jsonCodec;
+    private BufferPool bodyPool;
+    private InputStream bodyStream;
+    private long bodyStreamLength = -1;
+    private BodyWriter bodyWriter;
+    private FileChannel bodyFile;
+    private long bodyFilePosition;
+    private long bodyFileLength;
+    private boolean bodyOmitted;
+    // Headers in insertion order; names match case-insensitively
+    private String[] headerNames;
+    private String[] headerValues;
+    private int headerCount;
+    private Map<String, String> headerView;
     private String contentType;
+    // Set once the server has released a recycled response in debug mode
+    private boolean released;
+
+    /**
+     * Writes a response body to the client.
+     * Use {@link java.nio.channels.Channels#newChannel(OutputStream)} to write
+     * through a {@link java.nio.channels.WritableByteChannel} instead.
+     */
+    @FunctionalInterface
+    public interface BodyWriter {
+        /**
+         * Write the body. The stream must not be used after this returns;
+         * closing it is optional and does not close the connection.
+         *
+         * @param out Stream to the client
+         * @throws IOException If the client goes away or the body cannot be produced
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
 
     public Response() {
         this.statusCode = StatusCodes.OK;
-        this.headers = new HashMap<>();
         this.contentType = MimeTypes.APPLICATION_JSON;
     }
 
     public int getStatusCode() {
+        checkLive();
         return statusCode;
     }
 
     public void setStatusCode(int statusCode) {
+        checkLive();
         this.statusCode = statusCode;
     }
 
     public String getBody() {
+        checkLive();
         return body;
     }
 
     public void setBody(String body) {
+        clearBody();
         this.body = body;
     }
 
+    /**
+     * Get all headers as a map backed by the response, so changes to it
+     * change the response. Prefer {@link #addHeader(String, String)} and
+     * {@link #getHeader(String)}, which do not create the view.
+     *
+     * @return Mutable view of the headers
+     */
     public Map<String, String> getHeaders() {
-        return headers;
+        checkLive();
+        if (headerView == null) {
+            headerView = new HeaderMap();
+        }
+        return headerView;
     }
 
+    /**
+     * Set a header, replacing any value it already has. Header names are
+     * case-insensitive.
+     *
+     * @param key Header name
+     * @param value Header value
+     */
     public void addHeader(String key, String value) {
-        this.headers.put(key, value);
+        checkLive();
+        int index = indexOfHeader(key);
+        if (index >= 0) {
+            headerValues[index] = value;
+            return;
+        }
+        if (headerNames == null) {
+            headerNames = new String[INITIAL_HEADER_CAPACITY];
+            headerValues = new String[INITIAL_HEADER_CAPACITY];
+        } else if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = key;
+        headerValues[headerCount] = value;
+        headerCount++;
     }
 
+    /**
+     * Get a header value by case-insensitive name.
+     *
+     * @param key Header name
+     * @return Header value, or null if not set
+     */
     public String getHeader(String key) {
-        return this.headers.get(key);
+        checkLive();
+        int index = indexOfHeader(key);
+        return index >= 0 ? headerValues[index] : null;
     }
 
     public String getContentType() {
+        checkLive();
         return contentType;
     }
 
     public void setContentType(String contentType) {
+        checkLive();
         this.contentType = contentType;
     }
 
+    private int indexOfHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (name.equalsIgnoreCase(headerNames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int getHeaderCount() {
+        return headerCount;
+    }
+
+    String getHeaderName(int index) {
+        return headerNames[index];
+    }
+
+    String getHeaderValue(int index) {
+        return headerValues[index];
+    }
+
+    private void removeHeader(int index) {
+        int moved = headerCount - index - 1;
+        System.arraycopy(headerNames, index + 1, headerNames, index, moved);
+        System.arraycopy(headerValues, index + 1, headerValues, index, moved);
+        headerCount--;
+        headerNames[headerCount] = null;
+        headerValues[headerCount] = null;
+    }
+
+    void clearHeaders() {
+        if (headerCount > 0) {
+            Arrays.fill(headerNames, 0, headerCount, null);
+            Arrays.fill(headerValues, 0, headerCount, null);
+            headerCount = 0;
+        }
+    }
+
     /**
      * Convenience method to set JSON content type.
      */
@@ -77,7 +226,94 @@ public class Response {
      * @param body Response body
      */
     public void send(String body) {
-        this.body = body;
+        setBody(body);
+    }
+
+    /**
+     * Send raw bytes as the body.
+     *
+     * @param body Response body
+     */
+    public void send(byte[] body) {
+        clearBody();
+        this.bodyBytes = body;
+    }
+
+    /**
+     * Send the remaining bytes of a buffer as the body.
+     *
+     * @param body Response body
+     */
+    public void send(ByteBuffer body) {
+        clearBody();
+        this.bodyBuffer = body;
+    }
+
+    /**
+     * Stream the body from an input stream of unknown length.
+     * The stream is closed once it has been sent.
+     *
+     * @param body Response body
+     */
+    public void send(InputStream body) {
+        send(body, -1);
+    }
+
+    /**
+     * Stream the body from an input stream.
+     * The stream is closed once it has been sent.
+     *
+     * @param body Response body
+     * @param length Number of bytes the stream provides, or -1 if unknown
+     */
+    public void send(InputStream body, long length) {
+        clearBody();
+        this.bodyStream = body;
+        this.bodyStreamLength = length;
+    }
+
+    /**
+     * Send a file as the body, with the content type derived from its name.
+     *
+     * @param file File to send
+     * @throws UncheckedIOException If the file cannot be opened
+     */
+    public void sendFile(Path file) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            sendFile(channel, 0, channel.size());
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new UncheckedIOException(e);
+        }
+        setContentType(MimeTypes.getContentType(String.valueOf(file.getFileName())));
+    }
+
+    /**
+     * Send part of an open file as the body. The channel is closed once it
+     * has been sent.
+     *
+     * @param file Open file
+     * @param position Offset of the first byte to send
+     * @param length Number of bytes to send
+     */
+    void sendFile(FileChannel file, long position, long length) {
+        clearBody();
+        this.bodyFile = file;
+        this.bodyFilePosition = position;
+        this.bodyFileLength = length;
+    }
+
+    /**
+     * Stream the body from a callback, run after the handler returns.
+     * The body is sent chunked since its length is not known up front.
+     *
+     * @param writer Body writer
+     */
+    public void stream(BodyWriter writer) {
+        clearBody();
+        this.bodyWriter = writer;
     }
 
     /**
@@ -87,6 +323,398 @@ public class Response {
      */
     public void json(String jsonBody) {
         json();
-        this.body = jsonBody;
+        setBody(jsonBody);
+    }
+
+    /**
+     * Send an object serialized as JSON. It is serialized once the handler
+     * is done, by the application's {@link JsonCodec}, straight into the
+     * buffer the response is sent from. Unlike {@link #json(String)}, a
+     * String argument is sent as a JSON string.
+     *
+     * @param value Object to send, possibly null
+     */
+    public void sendJson(Object value) {
+        clearBody();
+        json();
+        bodyValue = value;
+        bodyValuePending = true;
+    }
+
+    /**
+     * Set the codec and buffer pool for {@link #sendJson(Object)} bodies.
+     *
+     * @param codec Codec to serialize with
+     * @param pool Pool to serialize into, or null to allocate
+     */
+    void setJsonCodec(JsonCodec codec, BufferPool pool) {
+        this.jsonCodec = codec;
+        this.bodyPool = pool;
+    }
+
+    private void clearBody() {
+        checkLive();
+        body = null;
+        bodyBytes = null;
+        releaseBodyBuffer();
+        bodyValue = null;
+        bodyValuePending = false;
+        bodyStream = null;
+        bodyStreamLength = -1;
+        bodyWriter = null;
+        closeQuietly(bodyFile);
+        bodyFile = null;
+    }
+
+    /**
+     * Clear the response for reuse by the next request on the connection,
+     * keeping the header arrays.
+     */
+    void reset() {
+        discardBody();
+        clearBody();
+        clearHeaders();
+        statusCode = StatusCodes.OK;
+        contentType = MimeTypes.APPLICATION_JSON;
+        bodyOmitted = false;
+    }
+
+    /**
+     * Mark the response as released, so a handler that kept it fails on its
+     * next use instead of changing the response to a later request.
+     */
+    void poison() {
+        discardBody();
+        released = true;
+    }
+
+    private void checkLive() {
+        if (released) {
+            throw new IllegalStateException("Response used after it was sent; handlers must not keep "
+                    + "the response once it is complete when pooling is enabled");
+        }
+    }
+
+    /**
+     * Leave the body out of the response while keeping the headers that
+     * describe it, as the answer to a HEAD request.
+     */
+    void omitBody() {
+        bodyOmitted = true;
+    }
+
+    boolean isBodyOmitted() {
+        return bodyOmitted;
+    }
+
+    /**
+     * Release any stream or file the body was to be read from without
+     * sending it.
+     */
+    void discardBody() {
+        releaseBodyBuffer();
+        bodyValue = null;
+        bodyValuePending = false;
+        closeQuietly(bodyStream);
+        closeQuietly(bodyFile);
+        bodyStream = null;
+        bodyFile = null;
+    }
+
+    private void releaseBodyBuffer() {
+        if (bodyBufferPooled) {
+            bodyPool.release(bodyBuffer);
+            bodyBufferPooled = false;
+        }
+        bodyBuffer = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to read from it
+        }
+    }
+
+    /**
+     * Encode a text or JSON body once so its length and content agree.
+     *
+     * @throws UncheckedIOException If the codec cannot serialize the JSON body
+     */
+    private void encodeBody() {
+        if (body != null && bodyBytes == null) {
+            bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        } else if (bodyValuePending) {
+            bodyValuePending = false;
+            PooledOutputStream out = new PooledOutputStream(bodyPool);
+            try {
+                (jsonCodec != null ? jsonCodec : GsonCodec.DEFAULT).write(bodyValue, out);
+            } catch (IOException e) {
+                out.release();
+                throw new UncheckedIOException("Unable to serialize JSON body", e);
+            } finally {
+                bodyValue = null;
+            }
+            bodyBuffer = out.toBuffer();
+            bodyBufferPooled = bodyPool != null;
+        }
+    }
+
+    /**
+     * Get the body length in bytes.
+     *
+     * @return Body length, or -1 if it is only known once written
+     */
+    long getBodyLength() {
+        encodeBody();
+        if (bodyBytes != null) {
+            return bodyBytes.length;
+        }
+        if (bodyBuffer != null) {
+            return bodyBuffer.remaining();
+        }
+        if (bodyStream != null) {
+            return bodyStreamLength;
+        }
+        if (bodyFile != null) {
+            return bodyFileLength;
+        }
+        return bodyWriter != null ? -1 : 0;
+    }
+
+    /**
+     * Get a body held in memory.
+     *
+     * @return View of the body, or null if it is streamed or sent from a file
+     */
+    ByteBuffer getBufferedBody() {
+        encodeBody();
+        if (bodyBytes != null) {
+            return ByteBuffer.wrap(bodyBytes);
+        }
+        if (bodyBuffer != null) {
+            return bodyBuffer.duplicate();
+        }
+        return bodyStream != null || bodyWriter != null || bodyFile != null ? null : ByteBuffer.allocate(0);
+    }
+
+    boolean hasFileBody() {
+        return bodyFile != null;
+    }
+
+    /**
+     * Take a body streamed from an input stream or a {@link BodyWriter} out
+     * of the response, e.g. to send it through an encoder.
+     *
+     * @return Writer producing the body, or null if the body is not streamed
+     */
+    BodyWriter detachStreamedBody() {
+        if (bodyWriter != null) {
+            BodyWriter writer = bodyWriter;
+            bodyWriter = null;
+            return writer;
+        }
+        if (bodyStream != null) {
+            InputStream stream = bodyStream;
+            long length = bodyStreamLength;
+            bodyStream = null;
+            bodyStreamLength = -1;
+            return out -> copyStream(stream, length, out);
+        }
+        return null;
+    }
+
+    /**
+     * Copy a body held in memory into a buffer with room for
+     * {@link #getBodyLength()} bytes.
+     *
+     * @param dst Buffer to copy into
+     * @return false, copying nothing, if the body is streamed
+     */
+    boolean copyBody(ByteBuffer dst) {
+        encodeBody();
+        if (bodyBytes != null) {
+            dst.put(bodyBytes);
+        } else if (bodyBuffer != null) {
+            dst.put(bodyBuffer.duplicate());
+        } else if (bodyStream != null || bodyWriter != null || bodyFile != null) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the body and release any stream it came from.
+     *
+     * @param out Stream to the client, already framed for the body length
+     * @throws IOException If the body cannot be written
+     */
+    void writeBody(OutputStream out) throws IOException {
+        encodeBody();
+        if (bodyBytes != null) {
+            out.write(bodyBytes);
+        } else if (bodyBuffer != null) {
+            ByteBuffer buffer = bodyBuffer.duplicate();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] chunk = new byte[Math.min(buffer.remaining(), TRANSFER_BUFFER_SIZE)];
+                while (buffer.hasRemaining()) {
+                    int n = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+        } else if (bodyStream != null) {
+            copyStream(bodyStream, bodyStreamLength, out);
+        } else if (bodyFile != null) {
+            FileChannel file = bodyFile;
+            bodyFile = null;
+            if (out instanceof FileTransfer) {
+                ((FileTransfer) out).transferFile(file, bodyFilePosition, bodyFileLength);
+            } else {
+                copyFile(file, out);
+            }
+        } else if (bodyWriter != null) {
+            bodyWriter.writeTo(out);
+        }
+    }
+
+    private static void copyStream(InputStream body, long length, OutputStream out) throws IOException {
+        try (InputStream in = body) {
+            long remaining = length < 0 ? Long.MAX_VALUE : length;
+            byte[] chunk = new byte[TRANSFER_BUFFER_SIZE];
+            int n;
+            while (remaining > 0 && (n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining))) >= 0) {
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+            if (length >= 0 && remaining > 0) {
+                throw new IOException("Body stream ended " + remaining + " bytes short of its declared length");
+            }
+        }
+    }
+
+    private void copyFile(FileChannel file, OutputStream out) throws IOException {
+        try (file) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(bodyFileLength, TRANSFER_BUFFER_SIZE));
+            long position = bodyFilePosition;
+            long end = bodyFilePosition + bodyFileLength;
+            while (position < end) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+                int n = file.read(chunk, position);
+                if (n < 0) {
+                    throw new IOException("File ended " + (end - position) + " bytes short of its expected length");
+                }
+                out.write(chunk.array(), 0, n);
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * Map view of the headers, read and written through to the arrays.
+     */
+    private final class HeaderMap extends AbstractMap<String, String> {
+        @Override
+        public int size() {
+            return headerCount;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOfHeader((String) key) >= 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? getHeader((String) key) : null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String previous = getHeader(key);
+            addHeader(key, value);
+            return previous;
+        }
+
+        @Override
+        public String remove(Object key) {
+            int index = key instanceof String ? indexOfHeader((String) key) : -1;
+            if (index < 0) {
+                return null;
+            }
+            String previous = headerValues[index];
+            removeHeader(index);
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            clearHeaders();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return headerCount;
+                }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next;
+                        private int last = -1;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < headerCount;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            last = next++;
+                            return new HeaderEntry(last);
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last < 0) {
+                                throw new IllegalStateException();
+                            }
+                            removeHeader(last);
+                            next = last;
+                            last = -1;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    private final class HeaderEntry extends AbstractMap.SimpleEntry<String, String> {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+
+        HeaderEntry(int index) {
+            super(headerNames[index], headerValues[index]);
+            this.index = index;
+        }
+
+        @Override
+        public String setValue(String value) {
+            headerValues[index] = value;
+            return super.setValue(value);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,323 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the serialized responses of GET and HEAD routes for a while, so
+ * repeated requests are answered without running the handler. One cache
+ * holds the responses of any number of routes within one memory budget,
+ * each route with its own time to live:
+ *
+ * <pre>{@code
+ * ResponseCache cache = new ResponseCache(64 * 1024 * 1024);
+ * router.get("/products", this::listProducts).cache(cache, 5_000);
+ * router.get("/products/{id}", this::getProduct).cache(cache, 30_000, "Accept-Language");
+ * }</pre>
+ *
+ * <p>Responses are keyed on the method, path and query string and the
+ * values of the request headers the route varies on. Only 200 responses
+ * with a body held in memory are kept, and not those that set a cookie,
+ * carry a {@code Content-Encoding} or say {@code Cache-Control: no-store},
+ * {@code no-cache} or {@code private}. Requests with an
+ * {@code Authorization} header bypass the cache unless the route varies on
+ * it. Asynchronous handlers complete after the middleware returns, so their
+ * responses are not kept.
+ *
+ * <p>Every response kept gets an {@code ETag} derived from its body unless
+ * the handler set one, and a request whose {@code If-None-Match} lists it
+ * is answered with 304. When several requests miss on the same key at
+ * once, only the first runs the handler; the others wait for and share its
+ * response.
+ *
+ * <p>The budget counts body and header bytes. When it is full, entries
+ * are evicted by W-TinyLFU: a new response only displaces an older one if
+ * its key has been requested more often recently, so a burst of one-off
+ * URLs cannot push out the popular ones. See {@link WeightedCache}.
+ */
+public class ResponseCache {
+    // Key, node, arrays and object headers of an entry, beyond its bytes
+    private static final long ENTRY_OVERHEAD = 160;
+    // Typical size of a cached response, to size the frequency sketch
+    private static final long TYPICAL_ENTRY_SIZE = 2048;
+    private static final int MAX_SKETCH_ENTRIES = 1 << 20;
+
+    private final WeightedCache<CachedResponse> store;
+    private final ConcurrentHashMap<String, CompletableFuture<CachedResponse>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache holding at most {@code maxBytes} of responses.
+     *
+     * @param maxBytes Memory budget in bytes
+     */
+    public ResponseCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        int expectedEntries = (int) Math.min(MAX_SKETCH_ENTRIES, maxBytes / TYPICAL_ENTRY_SIZE);
+        this.store = new WeightedCache<>(maxBytes, expectedEntries);
+    }
+
+    /**
+     * Choose between frequency-aware eviction, the default, and evicting
+     * the least recently used responses regardless of how often they are
+     * requested.
+     *
+     * @param enabled false for plain LRU eviction
+     * @return This instance for method chaining
+     */
+    public ResponseCache frequencyAdmission(boolean enabled) {
+        store.setAdmission(enabled);
+        return this;
+    }
+
+    /**
+     * Get middleware that caches a route's responses in this cache. Add it
+     * to routes with {@link Router.Route#cache(ResponseCache, long, String...)},
+     * or with {@link Router.Route#use(Middleware...)} ahead of the route's
+     * other middleware so that hits skip it too.
+     *
+     * @param millis How long a response is served from the cache
+     * @param varyHeaders Request headers whose values select different responses
+     * @return Middleware for one or more routes
+     */
+    public Middleware ttl(long millis, String... varyHeaders) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("ttl must be positive: " + millis);
+        }
+        return new Policy(TimeUnit.MILLISECONDS.toNanos(millis), varyHeaders.clone());
+    }
+
+    /**
+     * Get the number of requests answered from the cache, including those
+     * that waited for another request's handler.
+     *
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of requests that ran their handler.
+     *
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the memory currently taken by cached responses.
+     *
+     * @return Size in bytes, at most the budget
+     */
+    public long getSize() {
+        return store.weight();
+    }
+
+    /**
+     * Drop every cached response, e.g. after the data behind them changed.
+     */
+    public void clear() {
+        store.clear();
+    }
+
+    /**
+     * Build the entity tag for a body: its length and CRC-32C, which the
+     * CPU computes in hardware.
+     */
+    static String entityTag(byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return "\"" + Integer.toHexString(body.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    private static boolean isCacheable(String cacheControl) {
+        if (cacheControl == null) {
+            return true;
+        }
+        String directives = cacheControl.toLowerCase(Locale.ROOT);
+        return !directives.contains("no-store") && !directives.contains("no-cache")
+                && !directives.contains("private");
+    }
+
+    private final class Policy implements Middleware {
+        private final long ttlNanos;
+        private final String[] varyHeaders;
+        private final boolean varyOnAuthorization;
+
+        Policy(long ttlNanos, String[] varyHeaders) {
+            this.ttlNanos = ttlNanos;
+            this.varyHeaders = varyHeaders;
+            boolean authorization = false;
+            for (String header : varyHeaders) {
+                authorization |= header.equalsIgnoreCase("Authorization");
+            }
+            this.varyOnAuthorization = authorization;
+        }
+
+        @Override
+        public void handle(Request request, Response response, MiddlewareChain chain) {
+            HttpMethod method = request.getMethod();
+            if ((method != HttpMethod.GET && method != HttpMethod.HEAD)
+                    || (!varyOnAuthorization && request.getHeader("Authorization") != null)) {
+                chain.next(request, response);
+                return;
+            }
+            String key = key(request);
+            CachedResponse cached = store.get(key, System.nanoTime());
+            if (cached != null) {
+                hits.increment();
+                cached.writeTo(request, response);
+                return;
+            }
+
+            CompletableFuture<CachedResponse> pending = new CompletableFuture<>();
+            CompletableFuture<CachedResponse> leader = inFlight.putIfAbsent(key, pending);
+            if (leader != null) {
+                // Another request is already running the handler for this key
+                cached = leader.join();
+                if (cached != null) {
+                    hits.increment();
+                    cached.writeTo(request, response);
+                    return;
+                }
+                misses.increment();
+                chain.next(request, response);
+                return;
+            }
+
+            misses.increment();
+            CachedResponse captured = null;
+            try {
+                int headersBefore = response.getHeaderCount();
+                chain.next(request, response);
+                captured = capture(request, response, headersBefore);
+                if (captured != null) {
+                    store.put(key, captured, captured.weight + 2L * key.length(), captured.storedAt + ttlNanos);
+                }
+            } finally {
+                inFlight.remove(key, pending);
+                pending.complete(captured);
+            }
+            if (captured != null && captured.notModified(request)) {
+                response.setStatusCode(StatusCodes.NOT_MODIFIED);
+            }
+        }
+
+        private String key(Request request) {
+            String query = request.getQueryString();
+            if (query == null && varyHeaders.length == 0) {
+                return request.getMethod().name() + " " + request.getPath();
+            }
+            StringBuilder key = new StringBuilder(64)
+                    .append(request.getMethod().name()).append(' ').append(request.getPath());
+            if (query != null) {
+                key.append('?').append(query);
+            }
+            for (String header : varyHeaders) {
+                // Separated by a byte that cannot occur in a path or header value
+                String value = request.getHeader(header);
+                key.append('\n');
+                if (value != null) {
+                    key.append(value);
+                }
+            }
+            return key.toString();
+        }
+
+        /**
+         * Copy a response the handler produced if it can be shared, tagging
+         * it with an ETag and listing the headers it varies on.
+         *
+         * @param headersBefore Number of headers set before the handler ran,
+         *                      by outer middleware; those are not kept
+         * @return Copy of the response, or null if it cannot be cached
+         */
+        private CachedResponse capture(Request request, Response response, int headersBefore) {
+            if (request.getAsyncResult() != null || response.getStatusCode() != StatusCodes.OK
+                    || response.getHeader("Set-Cookie") != null || response.getHeader("Content-Encoding") != null
+                    || !isCacheable(response.getHeader("Cache-Control"))) {
+                return null;
+            }
+            ByteBuffer buffered = response.getBufferedBody();
+            if (buffered == null) {
+                return null;
+            }
+            byte[] body = new byte[buffered.remaining()];
+            buffered.get(body);
+            if (response.getHeader("ETag") == null) {
+                response.addHeader("ETag", entityTag(body));
+            }
+            for (String header : varyHeaders) {
+                Compression.addVary(response, header);
+            }
+
+            int count = Math.max(0, response.getHeaderCount() - headersBefore);
+            String[] names = new String[count];
+            String[] values = new String[count];
+            long weight = ENTRY_OVERHEAD + body.length;
+            for (int i = 0; i < count; i++) {
+                names[i] = response.getHeaderName(headersBefore + i);
+                values[i] = response.getHeaderValue(headersBefore + i);
+                weight += 2L * (names[i].length() + values[i].length());
+            }
+            return new CachedResponse(response.getContentType(), names, values, body,
+                    response.getHeader("ETag"), weight, System.nanoTime());
+        }
+    }
+
+    /**
+     * A 200 response as the handler left it, shared by every request it
+     * answers; never modified once stored.
+     */
+    private static final class CachedResponse {
+        final String contentType;
+        final String[] headerNames;
+        final String[] headerValues;
+        final byte[] body;
+        final String etag;
+        final long weight;
+        final long storedAt;
+
+        CachedResponse(String contentType, String[] headerNames, String[] headerValues, byte[] body,
+                       String etag, long weight, long storedAt) {
+            this.contentType = contentType;
+            this.headerNames = headerNames;
+            this.headerValues = headerValues;
+            this.body = body;
+            this.etag = etag;
+            this.weight = weight;
+            this.storedAt = storedAt;
+        }
+
+        boolean notModified(Request request) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            return ifNoneMatch != null && StaticFiles.etagMatches(ifNoneMatch, etag);
+        }
+
+        void writeTo(Request request, Response response) {
+            response.setContentType(contentType);
+            for (int i = 0; i < headerNames.length; i++) {
+                response.addHeader(headerNames[i], headerValues[i]);
+            }
+            if (notModified(request)) {
+                response.setStatusCode(StatusCodes.NOT_MODIFIED);
+                return;
+            }
+            response.setStatusCode(StatusCodes.OK);
+            // The response only reads the array, so every hit can share it
+            response.send(body);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes responses straight into pooled byte buffers.
+ *
+ * <p>Status lines are encoded once per status code and header bytes are
+ * written without building intermediate strings. A response whose head and
+ * body fit in one buffer reaches the connection as a single write; larger
+ * bodies follow the head as one more write, and streamed bodies go out one
+ * chunk per write. File bodies are handed to connections implementing
+ * {@link FileTransfer} to be sent without copying.
+ */
+final class ResponseWriter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int MIN_STATUS_CODE = 100;
+    private static final int MAX_STATUS_CODE = 599;
+
+    private static final byte[][] STATUS_LINES = new byte[MAX_STATUS_CODE + 1][];
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] UPGRADE = ascii("Connection: Upgrade\r\n");
+
+    static {
+        for (int code = MIN_STATUS_CODE; code <= MAX_STATUS_CODE; code++) {
+            STATUS_LINES[code] = statusLine(code);
+        }
+    }
+
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    /**
+     * Get the pool responses are serialized into, which bodies serialized
+     * ahead of writing can also use.
+     *
+     * @return Pool of {@value #BUFFER_SIZE}-byte buffers
+     */
+    BufferPool bufferPool() {
+        return pool;
+    }
+
+    /**
+     * Write a response.
+     * A body of known length is framed by its exact byte length; otherwise
+     * it is sent chunked, or delimited by closing the connection when the
+     * client cannot accept chunked encoding. Either way the body is written
+     * to {@code out} as it is produced, so blocking writes hold back the
+     * producer. Responses to HEAD requests, and 1xx, 204 and 304 responses,
+     * are sent without a body. A 101 response switches the connection to
+     * another protocol, so it carries only its own headers and keeps the
+     * connection open.
+     *
+     * @param out Connection stream; written to in whole messages, so it need not be buffered
+     * @param response Response to write
+     * @param keepAlive Whether the connection should stay open afterwards
+     * @param chunkedAllowed Whether the client accepts chunked encoding
+     * @return Whether the connection can stay open after the response
+     * @throws IOException If the response cannot be written
+     */
+    boolean write(OutputStream out, Response response, boolean keepAlive, boolean chunkedAllowed)
+            throws IOException {
+        int code = response.getStatusCode();
+        if (code == StatusCodes.SWITCHING_PROTOCOLS) {
+            keepAlive = true;
+        }
+        boolean bodyAllowed = code >= 200 && code != StatusCodes.NO_CONTENT && code != StatusCodes.NOT_MODIFIED;
+        // No framing headers at all for statuses that never have a body
+        long length = bodyAllowed ? response.getBodyLength() : -1;
+        boolean sendBody = bodyAllowed && !response.isBodyOmitted();
+        boolean chunked = sendBody && length < 0 && chunkedAllowed;
+        if (sendBody && length < 0 && !chunked) {
+            // The end of the body is signalled by closing the connection
+            keepAlive = false;
+        }
+
+        ByteBuffer buffer = pool.acquire();
+        try {
+            buffer = encodeHead(buffer, response, length, chunked, keepAlive);
+            if (!sendBody) {
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            } else if (length >= 0 && length <= buffer.remaining() && response.copyBody(buffer)) {
+                // Head and body in one write
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            } else {
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                if (length >= 0) {
+                    response.writeBody(out);
+                } else {
+                    BodyOutputStream body = new BodyOutputStream(out, chunked, BUFFER_SIZE);
+                    response.writeBody(body);
+                    body.close();
+                }
+            }
+            out.flush();
+        } finally {
+            pool.release(buffer);
+            // Close whatever the body was not read from
+            response.discardBody();
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Encode the status line and headers, growing the buffer if they do not fit.
+     *
+     * @return The buffer holding the head, positioned after it
+     */
+    static ByteBuffer encodeHead(ByteBuffer buffer, Response response, long length, boolean chunked,
+                                 boolean keepAlive) {
+        int code = response.getStatusCode();
+        buffer = put(buffer, code >= MIN_STATUS_CODE && code <= MAX_STATUS_CODE
+                ? STATUS_LINES[code]
+                : statusLine(code));
+
+        if (code == StatusCodes.SWITCHING_PROTOCOLS) {
+            buffer = put(buffer, UPGRADE);
+        } else {
+            buffer = encodeFraming(buffer, response, length, chunked, keepAlive);
+        }
+
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+            buffer = putLatin1(buffer, response.getHeaderName(i));
+            buffer = put(buffer, HEADER_SEPARATOR);
+            buffer = putLatin1(buffer, response.getHeaderValue(i));
+            buffer = put(buffer, CRLF);
+        }
+        return put(buffer, CRLF);
+    }
+
+    /**
+     * Encode the Content-Type, body framing and Connection headers of a
+     * response that stays HTTP.
+     */
+    private static ByteBuffer encodeFraming(ByteBuffer buffer, Response response, long length, boolean chunked,
+                                            boolean keepAlive) {
+        buffer = put(buffer, CONTENT_TYPE);
+        buffer = putLatin1(buffer, response.getContentType());
+        buffer = put(buffer, CRLF);
+        if (length >= 0) {
+            buffer = put(buffer, CONTENT_LENGTH);
+            buffer = putDecimal(buffer, length);
+            buffer = put(buffer, CRLF);
+        } else if (chunked) {
+            buffer = put(buffer, CHUNKED);
+        }
+        return put(buffer, keepAlive ? KEEP_ALIVE : CLOSE);
+    }
+
+    private static ByteBuffer put(ByteBuffer buffer, byte[] bytes) {
+        buffer = ensureRemaining(buffer, bytes.length);
+        return buffer.put(bytes);
+    }
+
+    /**
+     * Header text is ISO-8859-1; characters outside it are sent as '?'.
+     */
+    private static ByteBuffer putLatin1(ByteBuffer buffer, String value) {
+        String text = String.valueOf(value);
+        int length = text.length();
+        buffer = ensureRemaining(buffer, length);
+        byte[] array = buffer.array();
+        int pos = buffer.arrayOffset() + buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            array[pos + i] = c <= 0xff ? (byte) c : (byte) '?';
+        }
+        return buffer.position(buffer.position() + length);
+    }
+
+    private static ByteBuffer putDecimal(ByteBuffer buffer, long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        buffer = ensureRemaining(buffer, digits);
+        byte[] array = buffer.array();
+        int end = buffer.arrayOffset() + buffer.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--) {
+            array[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return buffer.position(buffer.position() + digits);
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        return larger.put(buffer.flip());
+    }
+
+    private static byte[] statusLine(int code) {
+        return ascii("HTTP/1.1 " + code + " " + StatusCodes.getMessage(code) + "\r\n");
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,375 @@
+package com.jexpress;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Segment tree used by {@link Router} to look up routes without scanning
+ * every registered route.
+ *
+ * <p>Each template segment becomes one edge. Segments are matched with a
+ * fixed precedence, backtracking when a more specific branch has no route:
+ * <ol>
+ *     <li>static segments, e.g. {@code /users/me}</li>
+ *     <li>segments mixing text and placeholders, e.g. {@code /files/{name}.json}</li>
+ *     <li>whole-segment parameters, e.g. {@code /users/{id}}</li>
+ *     <li>{@code *} in the middle of a template, matching exactly one segment</li>
+ *     <li>{@code *} as the last segment, matching the rest of the path</li>
+ * </ol>
+ */
+final class RouteTree {
+    private static final int METHOD_COUNT = HttpMethod.values().length;
+
+    private final Node root = new Node();
+    private int maxParamCount;
+
+    /**
+     * Add a route. When an equivalent template is already registered for the
+     * same method the first registration wins.
+     *
+     * @param route Route to add
+     */
+    void add(Router.Route route) {
+        String template = route.getPath();
+        if (template.isEmpty() || template.charAt(0) != '/') {
+            throw new IllegalArgumentException("Route path must start with '/': " + template);
+        }
+
+        Node node = root;
+        String[] segments = template.substring(1).split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            node = node.child(segments[i], i == segments.length - 1);
+        }
+        if (node.routes == null) {
+            node.routes = new Router.Route[METHOD_COUNT];
+        }
+        int slot = route.getMethod().ordinal();
+        if (node.routes[slot] == null) {
+            node.routes[slot] = route;
+            maxParamCount = Math.max(maxParamCount, route.getParamCount());
+        }
+    }
+
+    /**
+     * @return The largest number of path parameters captured by any route
+     */
+    int getMaxParamCount() {
+        return maxParamCount;
+    }
+
+    /**
+     * Find the route for a method and path.
+     *
+     * @param method HTTP method
+     * @param path Request path
+     * @return Matching route or null
+     */
+    Router.Route find(HttpMethod method, String path) {
+        return find(method, path, null);
+    }
+
+    /**
+     * Find the route for a method and path, capturing path parameter values
+     * in the order the route declares them.
+     *
+     * @param method HTTP method
+     * @param path Request path
+     * @param captures Receives the parameter values, sized to at least
+     *                 {@link #getMaxParamCount()}; null to skip capturing
+     * @return Matching route or null
+     */
+    Router.Route find(HttpMethod method, String path, String[] captures) {
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        return find(root, path, 1, method.ordinal(), captures, 0);
+    }
+
+    /**
+     * Collect the methods that have a route matching the path.
+     *
+     * @param path Request path
+     * @return Allowed methods, empty if no route matches the path at all
+     */
+    Set<HttpMethod> allowedMethods(String path) {
+        Set<HttpMethod> allowed = EnumSet.noneOf(HttpMethod.class);
+        if (path != null && !path.isEmpty() && path.charAt(0) == '/') {
+            collectAllowed(root, path, 1, allowed);
+        }
+        return allowed;
+    }
+
+    /**
+     * Captured values are written from {@code captured} on; a branch that
+     * fails simply leaves them to be overwritten by the next one tried.
+     *
+     * @param segStart Start of the next segment, or -1 once the path is consumed
+     * @param captured Number of parameter values captured so far
+     */
+    private static Router.Route find(Node node, String path, int segStart, int method,
+                                     String[] captures, int captured) {
+        if (segStart < 0) {
+            return node.routes != null ? node.routes[method] : null;
+        }
+        int segEnd = segmentEnd(path, segStart);
+        int next = segEnd < path.length() ? segEnd + 1 : -1;
+        Router.Route route;
+
+        Node child = node.staticChild(path, segStart, segEnd);
+        if (child != null && (route = find(child, path, next, method, captures, captured)) != null) {
+            return route;
+        }
+        for (int i = 0; i < node.patternCount; i++) {
+            SegmentPattern pattern = node.patterns[i];
+            if (pattern.match(path, segStart, segEnd, captures, captured)
+                    && (route = find(node.patternNodes[i], path, next, method,
+                            captures, captured + pattern.groupCount)) != null) {
+                return route;
+            }
+        }
+        if (node.param != null && segEnd > segStart) {
+            if (captures != null) {
+                captures[captured] = path.substring(segStart, segEnd);
+            }
+            if ((route = find(node.param, path, next, method, captures, captured + 1)) != null) {
+                return route;
+            }
+        }
+        if (node.wildcard != null && (route = find(node.wildcard, path, next, method, captures, captured)) != null) {
+            return route;
+        }
+        if (node.catchAll != null && node.catchAll.routes != null) {
+            route = node.catchAll.routes[method];
+            if (route != null && captures != null) {
+                captures[captured] = path.substring(segStart);
+            }
+            return route;
+        }
+        return null;
+    }
+
+    private static void collectAllowed(Node node, String path, int segStart, Set<HttpMethod> allowed) {
+        if (segStart < 0) {
+            addMethods(node, allowed);
+            return;
+        }
+        int segEnd = segmentEnd(path, segStart);
+        int next = segEnd < path.length() ? segEnd + 1 : -1;
+
+        Node child = node.staticChild(path, segStart, segEnd);
+        if (child != null) {
+            collectAllowed(child, path, next, allowed);
+        }
+        for (int i = 0; i < node.patternCount; i++) {
+            if (node.patterns[i].match(path, segStart, segEnd, null, 0)) {
+                collectAllowed(node.patternNodes[i], path, next, allowed);
+            }
+        }
+        if (node.param != null && segEnd > segStart) {
+            collectAllowed(node.param, path, next, allowed);
+        }
+        if (node.wildcard != null) {
+            collectAllowed(node.wildcard, path, next, allowed);
+        }
+        if (node.catchAll != null) {
+            addMethods(node.catchAll, allowed);
+        }
+    }
+
+    private static void addMethods(Node node, Set<HttpMethod> allowed) {
+        if (node.routes == null) {
+            return;
+        }
+        for (Router.Route route : node.routes) {
+            if (route != null) {
+                allowed.add(route.getMethod());
+            }
+        }
+    }
+
+    private static int segmentEnd(String path, int segStart) {
+        int slash = path.indexOf('/', segStart);
+        return slash < 0 ? path.length() : slash;
+    }
+
+    /**
+     * A tree node; its routes are indexed by {@link HttpMethod#ordinal()}.
+     */
+    private static final class Node {
+        // Static children sorted by key for binary search over path regions
+        String[] staticKeys = new String[0];
+        Node[] staticNodes = new Node[0];
+        SegmentPattern[] patterns = new SegmentPattern[0];
+        Node[] patternNodes = new Node[0];
+        int patternCount;
+        Node param;
+        Node wildcard;
+        Node catchAll;
+        Router.Route[] routes;
+
+        Node child(String segment, boolean last) {
+            if (segment.equals("*")) {
+                if (last) {
+                    return catchAll != null ? catchAll : (catchAll = new Node());
+                }
+                return wildcard != null ? wildcard : (wildcard = new Node());
+            }
+            if (isParam(segment)) {
+                return param != null ? param : (param = new Node());
+            }
+            if (segment.indexOf('{') >= 0 || segment.indexOf('*') >= 0) {
+                return patternChild(segment);
+            }
+            return staticChild(segment);
+        }
+
+        private Node staticChild(String segment) {
+            int index = Arrays.binarySearch(staticKeys, segment);
+            if (index >= 0) {
+                return staticNodes[index];
+            }
+            int insert = -index - 1;
+            Node node = new Node();
+            staticKeys = insert(staticKeys, insert, segment);
+            staticNodes = insert(staticNodes, insert, node);
+            return node;
+        }
+
+        private Node patternChild(String segment) {
+            for (int i = 0; i < patternCount; i++) {
+                if (patterns[i].source.equals(segment)) {
+                    return patternNodes[i];
+                }
+            }
+            Node node = new Node();
+            patterns = Arrays.copyOf(patterns, patternCount + 1);
+            patternNodes = Arrays.copyOf(patternNodes, patternCount + 1);
+            patterns[patternCount] = new SegmentPattern(segment);
+            patternNodes[patternCount] = node;
+            patternCount++;
+            return node;
+        }
+
+        /**
+         * Binary search the static children for a region of the path
+         * without creating a substring.
+         */
+        Node staticChild(String path, int start, int end) {
+            int low = 0;
+            int high = staticKeys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(staticKeys[mid], path, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return staticNodes[mid];
+                }
+            }
+            return null;
+        }
+
+        private static int compare(String key, String path, int start, int end) {
+            int len = Math.min(key.length(), end - start);
+            for (int i = 0; i < len; i++) {
+                int diff = key.charAt(i) - path.charAt(start + i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return key.length() - (end - start);
+        }
+
+        private static <T> T[] insert(T[] array, int index, T value) {
+            T[] result = Arrays.copyOf(array, array.length + 1);
+            System.arraycopy(array, index, result, index + 1, array.length - index);
+            result[index] = value;
+            return result;
+        }
+    }
+
+    static boolean isParam(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}'
+                && segment.indexOf('}') == segment.length() - 1;
+    }
+
+    /**
+     * Translate one template segment mixing literal text with
+     * {@code {param}} or {@code *} into a regex, with one capture group per
+     * parameter.
+     *
+     * @param segment Template segment
+     * @param names Receives the parameter names in group order, may be null
+     * @return Regex source for the segment
+     */
+    static String segmentRegex(String segment, List<String> names) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        int i = 0;
+        while (i < segment.length()) {
+            char c = segment.charAt(i);
+            int close = c == '{' ? segment.indexOf('}', i) : -1;
+            if (c == '*' || close > i) {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(segment.substring(literalStart, i)));
+                }
+                if (c == '*') {
+                    regex.append("[^/]*");
+                    i++;
+                } else {
+                    regex.append("([^/]+)");
+                    if (names != null) {
+                        names.add(segment.substring(i + 1, close));
+                    }
+                    i = close + 1;
+                }
+                literalStart = i;
+            } else {
+                i++;
+            }
+        }
+        if (literalStart < segment.length()) {
+            regex.append(Pattern.quote(segment.substring(literalStart)));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * A single segment mixing literal text with {@code {param}} or {@code *}.
+     */
+    static final class SegmentPattern {
+        final String source;
+        final Pattern pattern;
+        final int groupCount;
+
+        SegmentPattern(String source) {
+            this.source = source;
+            this.pattern = Pattern.compile(segmentRegex(source, null));
+            this.groupCount = pattern.matcher("").groupCount();
+        }
+
+        /**
+         * Match a region of the path, copying the parameter values into
+         * {@code captures} from {@code offset} on when captures is non-null.
+         */
+        boolean match(String path, int start, int end, String[] captures, int offset) {
+            Matcher matcher = pattern.matcher(path);
+            matcher.region(start, end);
+            if (!matcher.matches()) {
+                return false;
+            }
+            if (captures != null) {
+                for (int g = 1; g <= groupCount; g++) {
+                    captures[offset + g - 1] = matcher.group(g);
+                }
+            }
+            return true;
+        }
+    }
+}
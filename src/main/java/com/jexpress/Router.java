@@ -1,21 +1,37 @@
 package com.jexpress;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
 import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Handles routing for the REST API framework with enhanced path matching.
+ *
+ * <p>Each route's middleware chain is resolved whenever routes or middleware
+ * are registered, so dispatching a request only walks a fixed array.
  */
 public class Router {
+    private static final Middleware[] NO_MIDDLEWARE = new Middleware[0];
+
     private List<Route> routes;
+    private final RouteTree tree;
+    // Global (null prefix) and path middleware in registration order
+    private final List<Mount> mounts = new ArrayList<>();
+    private BiConsumer<Request, Response> unmatchedHandler = (request, response) -> { };
+    private MiddlewareChain unmatchedChain;
 
     public Router() {
         this.routes = new ArrayList<>();
+        this.tree = new RouteTree();
+        this.unmatchedChain = new MiddlewareChain(NO_MIDDLEWARE, unmatchedHandler);
     }
 
     /**
@@ -24,9 +40,84 @@ public class Router {
      * @param method HTTP method
      * @param path Route path
      * @param handler Route handler
+     * @return The route, to add middleware to
+     */
+    public synchronized Route addRoute(HttpMethod method, String path, BiConsumer<Request, Response> handler) {
+        Route route = new Route(method, path, handler);
+        tree.add(route);
+        routes.add(route);
+        route.router = this;
+        compile(route);
+        return route;
+    }
+
+    /**
+     * Run middleware for every request, including requests that match no
+     * route and are answered with 404 or 405.
+     *
+     * @param middleware Middleware to run
+     */
+    public synchronized void use(Middleware middleware) {
+        mounts.add(new Mount(null, middleware));
+        compileAll();
+    }
+
+    /**
+     * Run middleware for the routes at or below a path, e.g. {@code "/api"}
+     * applies to {@code /api} and {@code /api/users/{id}} but not
+     * {@code /apiary}. Which routes it covers is decided by their
+     * templates, when they are registered.
+     *
+     * @param prefix Path prefix
+     * @param middleware Middleware to run
+     */
+    public synchronized void use(String prefix, Middleware middleware) {
+        if (prefix.isEmpty() || prefix.charAt(0) != '/') {
+            throw new IllegalArgumentException("Middleware path must start with '/': " + prefix);
+        }
+        String trimmed = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        mounts.add(new Mount(trimmed, middleware));
+        compileAll();
+    }
+
+    /**
+     * Set what answers requests that match no route, after the global middleware.
+     */
+    synchronized void setUnmatchedHandler(BiConsumer<Request, Response> handler) {
+        this.unmatchedHandler = handler;
+        compileAll();
+    }
+
+    /**
+     * Get the chain for requests that match no route: the global
+     * middleware followed by the unmatched handler.
      */
-    public void addRoute(HttpMethod method, String path, BiConsumer<Request, Response> handler) {
-        routes.add(new Route(method, path, handler));
+    MiddlewareChain getUnmatchedChain() {
+        return unmatchedChain;
+    }
+
+    private void compileAll() {
+        for (Route route : routes) {
+            compile(route);
+        }
+        List<Middleware> global = new ArrayList<>();
+        for (Mount mount : mounts) {
+            if (mount.prefix == null) {
+                global.add(mount.middleware);
+            }
+        }
+        unmatchedChain = new MiddlewareChain(global.toArray(NO_MIDDLEWARE), unmatchedHandler);
+    }
+
+    private synchronized void compile(Route route) {
+        List<Middleware> chain = new ArrayList<>();
+        for (Mount mount : mounts) {
+            if (mount.covers(route.pathTemplate)) {
+                chain.add(mount.middleware);
+            }
+        }
+        chain.addAll(route.middleware);
+        route.chain = new MiddlewareChain(chain.toArray(NO_MIDDLEWARE), route.handler);
     }
 
     /**
@@ -34,9 +125,10 @@ public class Router {
      *
      * @param path Route path
      * @param handler Route handler
+     * @return The route, to add middleware to
      */
-    public void get(String path, BiConsumer<Request, Response> handler) {
-        addRoute(HttpMethod.GET, path, handler);
+    public Route get(String path, BiConsumer<Request, Response> handler) {
+        return addRoute(HttpMethod.GET, path, handler);
     }
 
     /**
@@ -44,9 +136,10 @@ public class Router {
      *
      * @param path Route path
      * @param handler Route handler
+     * @return The route, to add middleware to
      */
-    public void post(String path, BiConsumer<Request, Response> handler) {
-        addRoute(HttpMethod.POST, path, handler);
+    public Route post(String path, BiConsumer<Request, Response> handler) {
+        return addRoute(HttpMethod.POST, path, handler);
     }
 
     /**
@@ -54,9 +147,10 @@ public class Router {
      *
      * @param path Route path
      * @param handler Route handler
+     * @return The route, to add middleware to
      */
-    public void put(String path, BiConsumer<Request, Response> handler) {
-        addRoute(HttpMethod.PUT, path, handler);
+    public Route put(String path, BiConsumer<Request, Response> handler) {
+        return addRoute(HttpMethod.PUT, path, handler);
     }
 
     /**
@@ -64,25 +158,161 @@ public class Router {
      *
      * @param path Route path
      * @param handler Route handler
+     * @return The route, to add middleware to
+     */
+    public Route delete(String path, BiConsumer<Request, Response> handler) {
+        return addRoute(HttpMethod.DELETE, path, handler);
+    }
+
+    /**
+     * Add a route whose handler completes the response asynchronously.
+     *
+     * @param method HTTP method
+     * @param path Route path
+     * @param handler Route handler
+     * @return The route, to add middleware to or set its timeout
+     */
+    public Route addAsyncRoute(HttpMethod method, String path, AsyncHandler handler) {
+        return addRoute(method, path, (request, response) -> {
+            CompletionStage<Void> result = handler.handle(request, response);
+            request.setAsyncResult(result != null ? result.toCompletableFuture() : null);
+        });
+    }
+
+    /**
+     * Convenience method for asynchronous GET routes.
+     *
+     * @param path Route path
+     * @param handler Route handler
+     * @return The route, to add middleware to or set its timeout
+     */
+    public Route getAsync(String path, AsyncHandler handler) {
+        return addAsyncRoute(HttpMethod.GET, path, handler);
+    }
+
+    /**
+     * Convenience method for asynchronous POST routes.
+     *
+     * @param path Route path
+     * @param handler Route handler
+     * @return The route, to add middleware to or set its timeout
      */
-    public void delete(String path, BiConsumer<Request, Response> handler) {
-        addRoute(HttpMethod.DELETE, path, handler);
+    public Route postAsync(String path, AsyncHandler handler) {
+        return addAsyncRoute(HttpMethod.POST, path, handler);
+    }
+
+    /**
+     * Convenience method for asynchronous PUT routes.
+     *
+     * @param path Route path
+     * @param handler Route handler
+     * @return The route, to add middleware to or set its timeout
+     */
+    public Route putAsync(String path, AsyncHandler handler) {
+        return addAsyncRoute(HttpMethod.PUT, path, handler);
+    }
+
+    /**
+     * Convenience method for asynchronous DELETE routes.
+     *
+     * @param path Route path
+     * @param handler Route handler
+     * @return The route, to add middleware to or set its timeout
+     */
+    public Route deleteAsync(String path, AsyncHandler handler) {
+        return addAsyncRoute(HttpMethod.DELETE, path, handler);
+    }
+
+    /**
+     * Add a WebSocket endpoint. A GET request to the path carrying a valid
+     * upgrade handshake switches the connection to the WebSocket protocol;
+     * other requests to it are answered with 426 Upgrade Required. Route
+     * middleware runs on the handshake request, so it can authenticate the
+     * client or refuse the upgrade by answering itself.
+     *
+     * @param path Route path, which may capture path parameters
+     * @param handler Handler for the connections' messages
+     * @return The route, to add middleware to
+     */
+    public Route websocket(String path, WebSocketHandler handler) {
+        return addRoute(HttpMethod.GET, path, (request, response) -> WebSocket.handshake(request, response, handler));
+    }
+
+    /**
+     * Serve the files under a directory for GET and HEAD requests below a
+     * path prefix, e.g. {@code serveStatic("/assets", Path.of("public"))}
+     * answers {@code /assets/css/site.css} with {@code public/css/site.css}.
+     *
+     * @param prefix Path prefix the files are mounted at
+     * @param root Directory to serve files from
+     * @return The mounted handler, for further configuration
+     */
+    public StaticFiles serveStatic(String prefix, Path root) {
+        StaticFiles files = new StaticFiles(root);
+        String template = (prefix.endsWith("/") ? prefix : prefix + "/") + "*";
+        addRoute(HttpMethod.GET, template, files);
+        addRoute(HttpMethod.HEAD, template, files);
+        return files;
     }
 
     /**
      * Find a route that matches the request method and path.
+     * Static segments take precedence over {param} captures, which take
+     * precedence over * wildcards, regardless of registration order.
      *
      * @param method HTTP method
      * @param path Request path
      * @return Matching route or null
      */
     public Route findRoute(HttpMethod method, String path) {
-        for (Route route : routes) {
-            if (route.matches(method, path)) {
-                return route;
-            }
+        return tree.find(method, path);
+    }
+
+    /**
+     * Find the methods that have a route for a path, used to answer
+     * 405 Method Not Allowed with an Allow header.
+     *
+     * @param path Request path
+     * @return Allowed methods, empty if no route matches the path
+     */
+    public Set<HttpMethod> getAllowedMethods(String path) {
+        return tree.allowedMethods(path);
+    }
+
+    /**
+     * Find the route for a request and bind its path parameters in the same
+     * pass, so the path is only matched once.
+     *
+     * @param request Parsed request
+     * @return Matching route or null
+     */
+    Route match(Request request) {
+        int maxParams = tree.getMaxParamCount();
+        String[] values = maxParams > 0 ? request.pathParamBuffer(maxParams) : null;
+        Route route = tree.find(request.getMethod(), request.getPath(), values);
+        if (route != null && route.paramNames.length > 0) {
+            request.setPathParams(route.paramNames, values);
+        }
+        return route;
+    }
+
+    /**
+     * Middleware registered with {@link #use}; a null prefix applies to every route.
+     */
+    private static final class Mount {
+        final String prefix;
+        final Middleware middleware;
+
+        Mount(String prefix, Middleware middleware) {
+            this.prefix = prefix;
+            this.middleware = middleware;
+        }
+
+        boolean covers(String template) {
+            return prefix == null
+                    || template.startsWith(prefix)
+                    && (template.length() == prefix.length() || template.charAt(prefix.length()) == '/');
         }
-        return null;
     }
 
     /**
@@ -92,30 +322,87 @@ public class Router {
         private HttpMethod method;
         private String pathTemplate;
         private Pattern pathPattern;
+        private final String[] paramNames;
         private BiConsumer<Request, Response> handler;
+        private final List<Middleware> middleware = new ArrayList<>();
+        // 0 uses the application's async timeout
+        private volatile long timeoutMillis;
+        private Router router;
+        private MiddlewareChain chain;
 
         public Route(HttpMethod method, String pathTemplate, BiConsumer<Request, Response> handler) {
             this.method = method;
             this.pathTemplate = pathTemplate;
             this.handler = handler;
-            this.pathPattern = compilePathPattern(pathTemplate);
+            List<String> names = new ArrayList<>();
+            this.pathPattern = compilePathPattern(pathTemplate, names);
+            this.paramNames = names.toArray(new String[0]);
+            this.chain = new MiddlewareChain(NO_MIDDLEWARE, handler);
         }
 
         /**
-         * Compile path template to a regex pattern.
+         * Run middleware for this route only, after the global and path
+         * middleware.
          *
-         * @param pathTemplate Path template with optional {param} placeholders
-         * @return Compiled regex Pattern
+         * @param middleware Middleware to run, in order
+         * @return This route for method chaining
          */
-        private Pattern compilePathPattern(String pathTemplate) {
-            // Escape any regex special characters
-            String regexPath = pathTemplate.replace(".", "\\.")
-                    .replace("*", ".*");
+        public Route use(Middleware... middleware) {
+            this.middleware.addAll(Arrays.asList(middleware));
+            if (router != null) {
+                router.compile(this);
+            } else {
+                chain = new MiddlewareChain(this.middleware.toArray(NO_MIDDLEWARE), handler);
+            }
+            return this;
+        }
 
-            // Replace {param} with named capture groups
-            regexPath = regexPath.replaceAll("\\{([^}]+)\\}", "(?<$1>[^/]+)");
+        /**
+         * Serve this route's responses from a cache for a while instead of
+         * running the handler for every request. Add it before the route's
+         * other middleware so that cache hits skip that too.
+         *
+         * @param cache Cache to keep the responses in
+         * @param ttlMillis How long a response is served from the cache
+         * @param varyHeaders Request headers whose values select different responses
+         * @return This route for method chaining
+         * @see ResponseCache#ttl(long, String...)
+         */
+        public Route cache(ResponseCache cache, long ttlMillis, String... varyHeaders) {
+            return use(cache.ttl(ttlMillis, varyHeaders));
+        }
 
-            return Pattern.compile("^" + regexPath + "$");
+        /**
+         * Compile path template to a regex pattern, collecting parameter
+         * names in capture-group order. A trailing * is captured as the
+         * parameter named "*".
+         *
+         * @param pathTemplate Path template with optional {param} placeholders
+         * @param names Receives the parameter names
+         * @return Compiled regex Pattern
+         */
+        private static Pattern compilePathPattern(String pathTemplate, List<String> names) {
+            StringBuilder regex = new StringBuilder("^");
+            String[] segments = pathTemplate.split("/", -1);
+            // segments[0] is the empty text before the leading slash
+            for (int i = 1; i < segments.length; i++) {
+                String segment = segments[i];
+                regex.append('/');
+                if (segment.equals("*")) {
+                    if (i == segments.length - 1) {
+                        regex.append("(.*)");
+                        names.add("*");
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                } else if (RouteTree.isParam(segment)) {
+                    regex.append("([^/]+)");
+                    names.add(segment.substring(1, segment.length() - 1));
+                } else {
+                    regex.append(RouteTree.segmentRegex(segment, names));
+                }
+            }
+            return Pattern.compile(regex.append('$').toString());
         }
 
         /**
@@ -138,6 +425,9 @@ public class Router {
 
         /**
          * Extract path parameters from the request path.
+         * Requests dispatched by the server already have their parameters
+         * bound by {@link Router#match(Request)}; this is for callers holding a
+         * route and a raw path.
          *
          * @param requestPath Request path
          * @return Map of path parameters
@@ -147,15 +437,10 @@ public class Router {
             Matcher matcher = pathPattern.matcher(requestPath);
 
             if (matcher.matches()) {
-                // Get parameter names from the original path template
-                Pattern paramPattern = Pattern.compile("\\{([^}]+)\\}");
-                Matcher paramMatcher = paramPattern.matcher(pathTemplate);
-
-                while (paramMatcher.find()) {
-                    String paramName = paramMatcher.group(1);
-                    String paramValue = matcher.group(paramName);
+                for (int i = 0; i < paramNames.length; i++) {
+                    String paramValue = matcher.group(i + 1);
                     if (paramValue != null) {
-                        pathParams.put(paramName, paramValue);
+                        pathParams.put(paramNames[i], paramValue);
                     }
                 }
             }
@@ -164,7 +449,8 @@ public class Router {
         }
 
         /**
-         * Handle the request by executing the route handler.
+         * Handle the request by executing the route handler, extracting the
+         * path parameters from the request path first.
          *
          * @param request Request object
          * @param response Response object
@@ -174,7 +460,40 @@ public class Router {
             Map<String, String> pathParams = extractPathParams(request.getPath());
             pathParams.forEach(request::addPathParam);
 
-            handler.accept(request, response);
+            chain.run(request, response);
+        }
+
+        /**
+         * Run the middleware chain and handler for a request whose path
+         * parameters were bound by {@link Router#match(Request)}.
+         */
+        void invoke(Request request, Response response) {
+            chain.run(request, response);
+        }
+
+        /**
+         * Set how long an asynchronous handler on this route may take before
+         * the client is answered with 504, instead of the application default.
+         *
+         * @param millis Timeout in milliseconds
+         * @return This route for method chaining
+         * @see JExpress#asyncTimeout(long)
+         */
+        public Route timeout(long millis) {
+            if (millis < 1) {
+                throw new IllegalArgumentException("timeout must be positive: " + millis);
+            }
+            this.timeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * Get the timeout set with {@link #timeout(long)}.
+         *
+         * @return Timeout in milliseconds, or 0 if the application default applies
+         */
+        long getTimeoutMillis() {
+            return timeoutMillis;
         }
 
         public HttpMethod getMethod() {
@@ -184,5 +503,14 @@ public class Router {
         public String getPath() {
             return pathTemplate;
         }
+
+        /**
+         * Get the number of values this route captures from the path.
+         *
+         * @return Number of path parameters
+         */
+        int getParamCount() {
+            return paramNames.length;
+        }
     }
-}
\ No newline at end of file
+}
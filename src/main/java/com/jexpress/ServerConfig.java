@@ -0,0 +1,64 @@
+package com.jexpress;
+
+/**
+ * Connection-level settings shared by both server modes.
+ * Populated through the fluent setters on {@link JExpress}.
+ */
+final class ServerConfig {
+    static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MILLIS = 5000;
+    static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 1000;
+    static final int DEFAULT_MAX_REQUEST_LINE_LENGTH = 8192;
+    static final int DEFAULT_MAX_HEADER_SIZE = 16384;
+    static final int DEFAULT_MAX_HEADER_COUNT = 100;
+    static final long DEFAULT_MAX_BODY_SIZE = 10L * 1024 * 1024;
+    static final long DEFAULT_MAX_BODY_DRAIN = 64 * 1024;
+    static final int DEFAULT_MAX_QUERY_PARAMS = 100;
+    static final int DEFAULT_MAX_QUERY_PARAM_LENGTH = 4096;
+    static final int DEFAULT_MAX_WEBSOCKET_MESSAGE_SIZE = 1024 * 1024;
+
+    /** How long a connection may sit idle waiting for the next request. */
+    int keepAliveTimeoutMillis = DEFAULT_KEEP_ALIVE_TIMEOUT_MILLIS;
+
+    /** Requests served on one connection before it is closed; 1 disables keep-alive. */
+    int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+    /** Longest request line accepted before answering 414. */
+    int maxRequestLineLength = DEFAULT_MAX_REQUEST_LINE_LENGTH;
+
+    /** Largest request head (request line plus headers) accepted before answering 431. */
+    int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+    /** Most header lines accepted before answering 431. */
+    int maxHeaderCount = DEFAULT_MAX_HEADER_COUNT;
+
+    /** Largest request body accepted before answering 413. */
+    long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+    /** Most unread body bytes discarded to keep a connection open after the handler returns. */
+    long maxBodyDrain = DEFAULT_MAX_BODY_DRAIN;
+
+    /** Most query parameters decoded before answering 400. */
+    int maxQueryParams = DEFAULT_MAX_QUERY_PARAMS;
+
+    /** Longest encoded query parameter name or value accepted before answering 400. */
+    int maxQueryParamLength = DEFAULT_MAX_QUERY_PARAM_LENGTH;
+
+    /** Largest WebSocket message accepted, across its fragments, before closing with 1009. */
+    int maxWebSocketMessageSize = DEFAULT_MAX_WEBSOCKET_MESSAGE_SIZE;
+
+    /** Whether each connection reuses one request and response object for all its requests. */
+    boolean pooling;
+
+    /** Whether recycled objects are poisoned instead of reused, to catch handlers that keep them. */
+    boolean poolingDebug;
+
+    /**
+     * Size of the per-connection read buffer. The whole request head must
+     * fit, with room left over for body bytes that arrive in the same read.
+     *
+     * @return Buffer size in bytes
+     */
+    int readBufferSize() {
+        return maxHeaderSize + 4096;
+    }
+}
@@ -0,0 +1,222 @@
+package com.jexpress;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps the most recent requests that took longer than a threshold, with
+ * the time each spent in every phase of its lifecycle, enabled with
+ * {@link JExpress#slowRequestLog(SlowRequestLog)} and dumped as text by
+ * registering the instance as a route:
+ *
+ * <pre>{@code
+ * SlowRequestLog slow = new SlowRequestLog(250, 200);  // over 250 ms, the last 200
+ * app.slowRequestLog(slow);
+ * app.getRouter().get("/debug/slow", slow);
+ * }</pre>
+ *
+ * <p>The phases are:
+ * <ul>
+ *   <li>{@link Phase#PARSE PARSE}: from the first byte of the request head
+ *       to the parsed head</li>
+ *   <li>{@link Phase#QUEUE QUEUE}: waiting for a thread or an
+ *       {@linkplain AdmissionControl admission} permit; in blocking mode
+ *       this includes, for the first request on a connection, the time
+ *       from accept until a thread picked the connection up</li>
+ *   <li>{@link Phase#ROUTE ROUTE}: matching the route</li>
+ *   <li>{@link Phase#HANDLER HANDLER}: middleware and the handler,
+ *       including the wait for an asynchronous result</li>
+ *   <li>{@link Phase#WRITE WRITE}: compressing and writing the response;
+ *       in non-blocking mode, until it is queued for the event loop</li>
+ * </ul>
+ *
+ * <p>Timings are {@link System#nanoTime()} deltas kept with the
+ * connection, so timing a request allocates nothing; only requests over
+ * the threshold are copied into the log. The log is a ring buffer written
+ * with one atomic increment, so slow requests never wait for each other or
+ * for a dump in progress.
+ */
+public class SlowRequestLog implements BiConsumer<Request, Response> {
+
+    /**
+     * A phase of handling a request, in the order they occur.
+     */
+    public enum Phase {
+        PARSE,
+        QUEUE,
+        ROUTE,
+        HANDLER,
+        WRITE;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+
+        String label() {
+            return label;
+        }
+    }
+
+    private final long thresholdNanos;
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Create a log of requests slower than {@code thresholdMillis}.
+     *
+     * @param thresholdMillis Total time above which a request is kept
+     * @param capacity Number of most recent slow requests kept
+     */
+    public SlowRequestLog(long thresholdMillis, int capacity) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("thresholdMillis must not be negative: " + thresholdMillis);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.entries = new AtomicReferenceArray<>(capacity);
+    }
+
+    @Override
+    public void accept(Request request, Response response) {
+        response.text();
+        response.setBody(dump());
+    }
+
+    /**
+     * Get the slow requests kept, most recent first.
+     *
+     * @return Snapshot of the log
+     */
+    public List<Entry> getEntries() {
+        List<Entry> snapshot = new ArrayList<>(entries.length());
+        for (int i = 0; i < entries.length(); i++) {
+            Entry entry = entries.get(i);
+            if (entry != null) {
+                snapshot.add(entry);
+            }
+        }
+        snapshot.sort(Comparator.comparingLong((Entry entry) -> entry.sequence).reversed());
+        return snapshot;
+    }
+
+    /**
+     * Get the number of slow requests logged since the log was created,
+     * including those since overwritten.
+     *
+     * @return Slow request count
+     */
+    public long getCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Render the log as text, one request per line, most recent first.
+     *
+     * @return Log text
+     */
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Entry entry : getEntries()) {
+            text.append(entry).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Keep a finished request if it was slow.
+     */
+    void offer(Request request, int status, RequestTrace trace) {
+        long total = trace.totalNanos();
+        if (total < thresholdNanos) {
+            return;
+        }
+        long[] phases = new long[Phase.values().length];
+        for (Phase phase : Phase.values()) {
+            phases[phase.ordinal()] = trace.nanos(phase);
+        }
+        long seq = sequence.getAndIncrement();
+        entries.set((int) (seq % entries.length()), new Entry(seq, trace.startMillis(),
+                request.getMethod(), request.getPath(), status, total, phases));
+    }
+
+    /**
+     * One slow request.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final HttpMethod method;
+        private final String path;
+        private final int status;
+        private final long totalNanos;
+        private final long[] phaseNanos;
+
+        Entry(long sequence, long timestamp, HttpMethod method, String path, int status, long totalNanos,
+              long[] phaseNanos) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.method = method;
+            this.path = path;
+            this.status = status;
+            this.totalNanos = totalNanos;
+            this.phaseNanos = phaseNanos;
+        }
+
+        /**
+         * @return When the request started, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return Time spent in all phases, in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @param phase Phase of the request
+         * @return Time spent in the phase, in nanoseconds
+         */
+        public long getNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder(160)
+                    .append(Instant.ofEpochMilli(timestamp)).append(' ')
+                    .append(method).append(' ').append(path).append(' ').append(status)
+                    .append(" total=").append(millis(totalNanos));
+            for (Phase phase : Phase.values()) {
+                line.append(' ').append(phase.label()).append('=').append(millis(phaseNanos[phase.ordinal()]));
+            }
+            return line.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package com.jexpress;
+
+import com.jexpress.utils.MimeTypes;
+import com.jexpress.utils.StatusCodes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the files under a directory, mounted with
+ * {@link Router#serveStatic(String, Path)}.
+ *
+ * <p>Files are sent with {@link FileChannel#transferTo}, so their bytes do
+ * not pass through the heap; small files are instead kept in memory and
+ * sent together with the response head in one write. Every response carries
+ * an {@code ETag} and {@code Last-Modified}, and conditional requests that
+ * match them are answered with 304. A single byte range is answered with
+ * 206; requests for several ranges get the whole file. When precompressed
+ * files are enabled, a {@code .br} or {@code .gz} file next to the
+ * requested one is sent instead to clients that accept that encoding.
+ *
+ * <p>Paths are resolved within the root directory. Files and directories
+ * whose names start with a dot are not served; symbolic links inside the
+ * root are followed.
+ */
+public class StaticFiles implements BiConsumer<Request, Response> {
+    private static final Logger LOGGER = Logger.getLogger(StaticFiles.class.getName());
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // Returned by parseRange for a range that lies outside the file
+    private static final long[] NOT_SATISFIABLE = new long[0];
+    // Cached files are revalidated against the file system, not expired
+    private static final long NO_EXPIRY = Long.MAX_VALUE / 2;
+
+    private final Path root;
+    private String index = "index.html";
+    private long maxAgeSeconds;
+    private boolean precompressed;
+    private int maxCachedFileSize = 64 * 1024;
+    private volatile WeightedCache<Entity> cache = newCache(16L * 1024 * 1024);
+
+    /**
+     * @param root Directory to serve files from
+     * @throws IllegalArgumentException If root is not a directory
+     */
+    public StaticFiles(Path root) {
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException("Static root is not a directory: " + root);
+        }
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Set the file served for a request naming a directory, or null to
+     * answer such requests with 404. Defaults to {@code index.html}.
+     *
+     * @param index File name within the directory
+     * @return This instance for method chaining
+     */
+    public StaticFiles index(String index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Set how long clients may cache files without revalidating them.
+     * Defaults to 0, so clients revalidate with a conditional request.
+     *
+     * @param seconds {@code max-age} sent in {@code Cache-Control}
+     * @return This instance for method chaining
+     */
+    public StaticFiles maxAge(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("maxAge must not be negative: " + seconds);
+        }
+        this.maxAgeSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Serve {@code name.br} or {@code name.gz}, when present, in place of
+     * {@code name} to clients accepting that encoding. Brotli is preferred.
+     * Off by default since it costs a file lookup per encoding and request.
+     *
+     * @param precompressed Whether to look for precompressed files
+     * @return This instance for method chaining
+     */
+    public StaticFiles precompressed(boolean precompressed) {
+        this.precompressed = precompressed;
+        return this;
+    }
+
+    /**
+     * Keep files of up to {@code maxFileSize} bytes in memory, up to
+     * {@code maxTotalSize} bytes in all. Cached files are checked against
+     * the file system on every request and reloaded when changed; when the
+     * cache is full, the files asked for least are evicted, as in
+     * {@link ResponseCache}. Defaults to 64 KB per file and 16 MB in all;
+     * zero disables caching.
+     *
+     * @param maxFileSize Largest file kept in memory
+     * @param maxTotalSize Most bytes kept in memory
+     * @return This instance for method chaining
+     */
+    public StaticFiles cache(int maxFileSize, long maxTotalSize) {
+        if (maxFileSize < 0 || maxTotalSize < 0) {
+            throw new IllegalArgumentException("Cache sizes must not be negative");
+        }
+        this.maxCachedFileSize = maxFileSize;
+        this.cache = maxFileSize > 0 ? newCache(maxTotalSize) : null;
+        return this;
+    }
+
+    private static WeightedCache<Entity> newCache(long maxTotalSize) {
+        if (maxTotalSize == 0) {
+            return null;
+        }
+        // Sized for files averaging 4 KB
+        return new WeightedCache<>(maxTotalSize, (int) Math.min(1 << 20, Math.max(16, maxTotalSize / 4096)));
+    }
+
+    /**
+     * Get the number of bytes of file content held in memory.
+     */
+    long cachedBytes() {
+        WeightedCache<Entity> cache = this.cache;
+        return cache != null ? cache.weight() : 0;
+    }
+
+    @Override
+    public void accept(Request request, Response response) {
+        String relative = decodePath(request.getPathParam("*"));
+        if (relative == null) {
+            error(response, StatusCodes.BAD_REQUEST);
+            return;
+        }
+        if (relative.isEmpty() || relative.endsWith("/")) {
+            if (index == null) {
+                error(response, StatusCodes.NOT_FOUND);
+                return;
+            }
+            relative += index;
+        }
+        Path file = resolve(relative);
+        BasicFileAttributes attributes = file != null ? attributes(file) : null;
+        if (attributes == null) {
+            if (file != null) {
+                evict(file);
+            }
+            error(response, StatusCodes.NOT_FOUND);
+            return;
+        }
+        if (attributes.isDirectory() && index != null) {
+            // Relative links in the index resolve against the directory only with the slash
+            String path = request.getPath();
+            int query = path.indexOf('?');
+            response.setStatusCode(StatusCodes.MOVED_PERMANENTLY);
+            response.addHeader("Location", (query < 0 ? path : path.substring(0, query)) + "/");
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            evict(file);
+            error(response, StatusCodes.NOT_FOUND);
+            return;
+        }
+
+        Path source = file;
+        String encoding = null;
+        if (precompressed) {
+            response.addHeader("Vary", "Accept-Encoding");
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            BasicFileAttributes compressed;
+            if (Compression.quality(acceptEncoding, "br") > 0
+                    && (compressed = regularFile(sibling(file, ".br"))) != null) {
+                source = sibling(file, ".br");
+                encoding = "br";
+                attributes = compressed;
+            } else if (Compression.quality(acceptEncoding, "gzip") > 0
+                    && (compressed = regularFile(sibling(file, ".gz"))) != null) {
+                source = sibling(file, ".gz");
+                encoding = "gzip";
+                attributes = compressed;
+            }
+        }
+        send(request, response, file, source, entity(source, attributes, encoding));
+    }
+
+    private void send(Request request, Response response, Path file, Path source, Entity entity) {
+        response.setContentType(MimeTypes.getContentType(file.getFileName().toString()));
+        if (entity.encoding != null) {
+            response.addHeader("Content-Encoding", entity.encoding);
+        }
+        response.addHeader("ETag", entity.etag);
+        response.addHeader("Last-Modified", entity.lastModified);
+        response.addHeader("Cache-Control", "public, max-age=" + maxAgeSeconds);
+        response.addHeader("Accept-Ranges", "bytes");
+
+        // If-None-Match takes precedence over If-Modified-Since
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null
+                ? etagMatches(ifNoneMatch, entity.etag)
+                : notModifiedSince(request.getHeader("If-Modified-Since"), entity.modified)) {
+            response.setStatusCode(StatusCodes.NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long length = entity.size;
+        String range = request.getMethod() == HttpMethod.GET ? request.getHeader("Range") : null;
+        if (range != null && ifRangeMatches(request.getHeader("If-Range"), entity)) {
+            long[] bounds = parseRange(range, entity.size);
+            if (bounds == NOT_SATISFIABLE) {
+                error(response, StatusCodes.RANGE_NOT_SATISFIABLE);
+                response.addHeader("Content-Range", "bytes */" + entity.size);
+                return;
+            }
+            if (bounds != null) {
+                start = bounds[0];
+                length = bounds[1] - bounds[0] + 1;
+                response.setStatusCode(StatusCodes.PARTIAL_CONTENT);
+                response.addHeader("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + entity.size);
+            }
+        }
+
+        if (entity.content != null) {
+            response.send(ByteBuffer.wrap(entity.content, (int) start, (int) length));
+            return;
+        }
+        try {
+            response.sendFile(FileChannel.open(source, StandardOpenOption.READ), start, length);
+        } catch (IOException e) {
+            // Removed since it was looked up
+            evict(source);
+            LOGGER.log(Level.FINE, "Unable to open " + source, e);
+            response.clearHeaders();
+            error(response, StatusCodes.NOT_FOUND);
+        }
+    }
+
+    /**
+     * Resolve a decoded request path within the root.
+     *
+     * @return The file, or null if the path names a hidden file or leaves the root
+     */
+    private Path resolve(String relative) {
+        Path file = root;
+        try {
+            for (String segment : relative.split("/")) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                // Also rules out "." and ".."
+                if (segment.charAt(0) == '.' || segment.indexOf('\\') >= 0 || segment.indexOf('\0') >= 0) {
+                    return null;
+                }
+                file = file.resolve(segment);
+            }
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return file.startsWith(root) ? file : null;
+    }
+
+    /**
+     * Get the metadata and, for small files, the content of a file,
+     * reusing the cached copy while the file is unchanged. A cached copy
+     * that is out of date is dropped even when the file is no longer
+     * cached, so it does not hold on to its share of the cache.
+     */
+    private Entity entity(Path path, BasicFileAttributes attributes, String encoding) {
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        WeightedCache<Entity> cache = this.cache;
+        if (cache == null) {
+            return new Entity(size, modified, encoding, null);
+        }
+        String key = path.toString();
+        Entity cached = cache.get(key, System.nanoTime());
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached;
+        }
+
+        byte[] content = size <= maxCachedFileSize ? read(path, size, modified) : null;
+        Entity entity = new Entity(size, modified, encoding, content);
+        if (content == null || !cache.put(key, entity, size, System.nanoTime() + NO_EXPIRY)) {
+            if (cached != null) {
+                cache.remove(key);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Drop the cached copy of a file that is gone.
+     */
+    private void evict(Path path) {
+        WeightedCache<Entity> cache = this.cache;
+        if (cache != null) {
+            cache.remove(path.toString());
+        }
+    }
+
+    /**
+     * Read a whole file, as long as it is not changed while being read.
+     *
+     * @return File content, or null if it could not be read consistently
+     */
+    private static byte[] read(Path path, long size, long modified) {
+        byte[] content = new byte[(int) size];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until full or at end of file
+            }
+            BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+            if (buffer.hasRemaining() || channel.size() != size
+                    || after.lastModifiedTime().toMillis() != modified) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return content;
+    }
+
+    private static BasicFileAttributes attributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static BasicFileAttributes regularFile(Path path) {
+        BasicFileAttributes attributes = attributes(path);
+        return attributes != null && attributes.isRegularFile() ? attributes : null;
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    private static void error(Response response, int statusCode) {
+        response.setStatusCode(statusCode);
+        response.text();
+        response.setBody(statusCode + " " + StatusCodes.getMessage(statusCode));
+    }
+
+    /**
+     * Percent-decode a request path as UTF-8. The query string, if the path
+     * still carries one, is dropped.
+     *
+     * @param raw Path as received
+     * @return Decoded path, or null if it is malformed
+     */
+    static String decodePath(String raw) {
+        if (raw == null) {
+            return "";
+        }
+        int query = raw.indexOf('?');
+        if (query >= 0) {
+            raw = raw.substring(0, query);
+        }
+        if (raw.indexOf('%') < 0) {
+            return raw;
+        }
+        byte[] bytes = new byte[raw.length()];
+        int count = 0;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= raw.length()) {
+                    return null;
+                }
+                int high = Character.digit(raw.charAt(i + 1), 16);
+                int low = Character.digit(raw.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes[count++] = (byte) (high << 4 | low);
+                i += 2;
+            } else {
+                bytes[count++] = (byte) c;
+            }
+        }
+        return new String(bytes, 0, count, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list against the current tag.
+     */
+    static boolean etagMatches(String header, String etag) {
+        for (String part : header.split(",")) {
+            String tag = part.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean notModifiedSince(String header, long modified) {
+        if (header == null) {
+            return false;
+        }
+        try {
+            Instant since = DateTimeFormatter.RFC_1123_DATE_TIME.parse(header, Instant::from);
+            // Last-Modified only has second precision
+            return modified / 1000 <= since.getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * If-Range needs an exact, strong match; otherwise the whole file is sent.
+     */
+    private static boolean ifRangeMatches(String header, Entity entity) {
+        if (header == null) {
+            return true;
+        }
+        return header.startsWith("\"") ? header.equals(entity.etag) : header.equals(entity.lastModified);
+    }
+
+    /**
+     * Parse a single {@code bytes} range.
+     *
+     * @param header Range value
+     * @param size File size
+     * @return First and last byte offsets, {@link #NOT_SATISFIABLE}, or null
+     *         if the range should be ignored and the whole file sent
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            // Several ranges would need a multipart response
+            return null;
+        }
+        if (dash == 0) {
+            long suffix = parseDigits(spec.substring(1));
+            if (suffix < 0) {
+                return null;
+            }
+            if (suffix == 0 || size == 0) {
+                return NOT_SATISFIABLE;
+            }
+            return new long[]{Math.max(0, size - suffix), size - 1};
+        }
+        long first = parseDigits(spec.substring(0, dash));
+        long last = dash == spec.length() - 1 ? Long.MAX_VALUE : parseDigits(spec.substring(dash + 1));
+        if (first < 0 || last < first) {
+            return null;
+        }
+        if (first >= size) {
+            return NOT_SATISFIABLE;
+        }
+        return new long[]{first, Math.min(last, size - 1)};
+    }
+
+    /**
+     * @return The value, or -1 if the text is not a plain decimal number
+     */
+    private static long parseDigits(String text) {
+        if (text.isEmpty() || text.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Validators and, when cached, content of one file.
+     */
+    private static final class Entity {
+        final long size;
+        final long modified;
+        final String encoding;
+        final String etag;
+        final String lastModified;
+        final byte[] content;
+
+        Entity(long size, long modified, String encoding, byte[] content) {
+            this.size = size;
+            this.modified = modified;
+            this.encoding = encoding;
+            this.etag = "\"" + Long.toHexString(modified) + "-" + Long.toHexString(size)
+                    + (encoding != null ? "-" + encoding : "") + "\"";
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+            this.content = content;
+        }
+    }
+}
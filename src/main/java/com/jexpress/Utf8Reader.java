@@ -0,0 +1,149 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Decodes UTF-8 from a stream through a small buffer, for parsers that read
+ * characters. An InputStreamReader allocates an 8 KB decoder buffer per
+ * instance, more than most request bodies. Malformed input decodes to
+ * U+FFFD. A read returns as soon as it has decoded some characters rather
+ * than blocking for more.
+ */
+final class Utf8Reader extends Reader {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int MIN_BUFFER_SIZE = 64;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private boolean eof;
+    // Second half of a supplementary character that did not fit the last read
+    private char pendingLow;
+
+    Utf8Reader(InputStream in) throws IOException {
+        this.in = in;
+        // Input already in memory needs no more room than its length
+        int available = in.available();
+        this.buffer = new byte[available > 0
+                ? Math.max(MIN_BUFFER_SIZE, Math.min(BUFFER_SIZE, available))
+                : BUFFER_SIZE];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (pendingLow != 0) {
+            cbuf[off + n++] = pendingLow;
+            pendingLow = 0;
+        }
+        while (n < len) {
+            if (position == limit) {
+                if (n > 0 || !fill(1)) {
+                    break;
+                }
+            }
+            // Runs of ASCII, most of a JSON document, copy straight across
+            int end = position + Math.min(len - n, limit - position);
+            while (position < end && buffer[position] >= 0) {
+                cbuf[off + n++] = (char) buffer[position++];
+            }
+            if (n == len || position == limit) {
+                continue;
+            }
+            int b = buffer[position] & 0xFF;
+            int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 0;
+            if (length == 0 || b > 0xF4) {
+                cbuf[off + n++] = REPLACEMENT;
+                position++;
+                continue;
+            }
+            if (limit - position < length) {
+                if (n > 0) {
+                    // Decode the split sequence on the next read rather than block now
+                    break;
+                }
+                if (!fill(length)) {
+                    // Truncated at the end of input
+                    cbuf[off + n++] = REPLACEMENT;
+                    position++;
+                    continue;
+                }
+            }
+            int codePoint = decode(b, length);
+            if (codePoint < 0) {
+                cbuf[off + n++] = REPLACEMENT;
+                position++;
+                continue;
+            }
+            position += length;
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                cbuf[off + n++] = (char) codePoint;
+            } else {
+                cbuf[off + n++] = Character.highSurrogate(codePoint);
+                if (n < len) {
+                    cbuf[off + n++] = Character.lowSurrogate(codePoint);
+                } else {
+                    pendingLow = Character.lowSurrogate(codePoint);
+                }
+            }
+        }
+        return n > 0 ? n : -1;
+    }
+
+    /**
+     * Decode the sequence at the current position.
+     *
+     * @return Code point, or -1 if the sequence is malformed
+     */
+    private int decode(int first, int length) {
+        int codePoint = first & (0x7F >> length);
+        for (int i = 1; i < length; i++) {
+            int b = buffer[position + i] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                return -1;
+            }
+            codePoint = codePoint << 6 | b & 0x3F;
+        }
+        int min = length == 2 ? 0x80 : length == 3 ? 0x800 : Character.MIN_SUPPLEMENTARY_CODE_POINT;
+        if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return -1;
+        }
+        return codePoint;
+    }
+
+    /**
+     * Read until at least {@code needed} bytes are buffered, keeping those
+     * not yet decoded.
+     *
+     * @return false if the input ended first
+     */
+    private boolean fill(int needed) throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < needed && !eof) {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+        return limit >= needed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
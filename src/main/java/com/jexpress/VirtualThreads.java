@@ -0,0 +1,49 @@
+package com.jexpress;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reflective access to {@code Executors.newVirtualThreadPerTaskExecutor()},
+ * which only exists on JDK 21+ (or 19/20 with previews enabled).
+ */
+final class VirtualThreads {
+    private static final Method FACTORY = lookup();
+
+    private VirtualThreads() {
+        // Prevent instantiation
+    }
+
+    private static Method lookup() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // Preview releases expose the method but throw unless previews are enabled
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Create a virtual-thread-per-task executor.
+     *
+     * @return New executor, or null if virtual threads are not supported
+     */
+    static ExecutorService newExecutor() {
+        if (FACTORY == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) FACTORY.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A WebSocket connection (RFC 6455), opened by a request to a route
+ * registered with {@link Router#websocket(String, WebSocketHandler)}.
+ *
+ * <p>Messages may be sent from any thread; each goes out as one frame and
+ * frames are never interleaved. In non-blocking mode sending never blocks:
+ * frames are queued for the event loop, and a client that lets more than
+ * {@value #MAX_SEND_BACKLOG} bytes pile up is disconnected. In blocking
+ * mode the sender writes to the socket itself.
+ *
+ * <p>The request's path, headers and parameters are copied at the
+ * handshake and stay readable for the life of the connection. State of
+ * the application's own can be kept with {@link #setAttachment(Object)}.
+ *
+ * <p>To send the same message to many connections, {@link #broadcast}
+ * encodes its frame once and queues the same bytes on each of them.
+ */
+public class WebSocket {
+    private static final Logger LOGGER = Logger.getLogger(WebSocket.class.getName());
+
+    /** Close code for a normal closure. */
+    public static final int NORMAL_CLOSURE = 1000;
+    /** Close code for an endpoint going away, such as the server stopping. */
+    public static final int GOING_AWAY = 1001;
+    /** Close code for a frame that breaks the protocol. */
+    public static final int PROTOCOL_ERROR = 1002;
+    /** Close code for a message of a type the endpoint does not accept. */
+    public static final int UNSUPPORTED_DATA = 1003;
+    /** Reported when a close frame carried no code; never sent. */
+    public static final int NO_STATUS = 1005;
+    /** Reported when the connection was dropped without a close frame; never sent. */
+    public static final int ABNORMAL_CLOSURE = 1006;
+    /** Close code for a text message that is not valid UTF-8. */
+    public static final int INVALID_PAYLOAD = 1007;
+    /** Close code for a message that breaks the application's policy. */
+    public static final int POLICY_VIOLATION = 1008;
+    /** Close code for a message larger than the server accepts. */
+    public static final int MESSAGE_TOO_BIG = 1009;
+    /** Close code for a failure in the server. */
+    public static final int INTERNAL_ERROR = 1011;
+
+    /** Frame bytes queued for a client, beyond which it is disconnected. */
+    static final int MAX_SEND_BACKLOG = 1024 * 1024;
+    /** Message bytes waiting for the handler, beyond which reading stops. */
+    private static final int HIGH_WATERMARK = 64 * 1024;
+    private static final int LOW_WATERMARK = 16 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String VERSION = "13";
+
+    private final WebSocketHandler handler;
+    private final String path;
+    private final Map<String, String> headers;
+    private final Map<String, String> pathParams;
+    private final Map<String, String> queryParams;
+    private final String remoteAddress;
+    private volatile Object attachment;
+
+    // Set by the connection once it has switched protocols
+    private volatile Transport transport;
+    private Executor events;
+    private WebSocketFrames.Decoder decoder;
+    private final FrameListener listener = new FrameListener();
+    private final AtomicBoolean closeSent = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Bytes of messages passed on to the handler but not yet handled
+    private final AtomicLong backlog = new AtomicLong();
+
+    WebSocket(WebSocketHandler handler, Request request) {
+        this.handler = handler;
+        this.path = request.getPath();
+        Map<String, String> headerCopy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headerCopy.putAll(request.getHeaders());
+        this.headers = Collections.unmodifiableMap(headerCopy);
+        this.pathParams = Collections.unmodifiableMap(new HashMap<>(request.getPathParams()));
+        this.queryParams = Collections.unmodifiableMap(new HashMap<>(request.getQueryParams()));
+        this.remoteAddress = request.getRemoteAddress();
+    }
+
+    /**
+     * Answer a WebSocket handshake request: switch protocols if it is a
+     * valid version 13 upgrade, otherwise answer 426 or 400.
+     *
+     * @param request Handshake request
+     * @param response Response to fill in
+     * @param handler Handler for the connection
+     */
+    static void handshake(Request request, Response response, WebSocketHandler handler) {
+        if (!JExpress.hasToken(request.getHeader("Upgrade"), "websocket")
+                || !JExpress.hasToken(request.getHeader("Connection"), "upgrade")
+                || HttpParser.HTTP_1_0.equals(request.getProtocol())) {
+            reject(response, StatusCodes.UPGRADE_REQUIRED);
+            response.addHeader("Upgrade", "websocket");
+            return;
+        }
+        if (!VERSION.equals(request.getHeader("Sec-WebSocket-Version"))) {
+            reject(response, StatusCodes.UPGRADE_REQUIRED);
+            response.addHeader("Sec-WebSocket-Version", VERSION);
+            return;
+        }
+        String key = request.getHeader("Sec-WebSocket-Key");
+        if (!isValidKey(key)) {
+            reject(response, StatusCodes.BAD_REQUEST);
+            return;
+        }
+        response.setStatusCode(StatusCodes.SWITCHING_PROTOCOLS);
+        response.addHeader("Upgrade", "websocket");
+        response.addHeader("Sec-WebSocket-Accept", acceptKey(key.trim()));
+        request.setUpgrade(new WebSocket(handler, request));
+    }
+
+    private static void reject(Response response, int statusCode) {
+        response.setStatusCode(statusCode);
+        response.text();
+        response.setBody(statusCode + " " + StatusCodes.getMessage(statusCode));
+    }
+
+    private static boolean isValidKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compute the Sec-WebSocket-Accept value proving the server read the key.
+     *
+     * @param key Client's Sec-WebSocket-Key
+     * @return Base64 SHA-1 of the key and the protocol GUID
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Send a text message to every open connection in a collection,
+     * encoding its frame only once. Connections that are closing are skipped.
+     *
+     * @param sockets Connections to send to
+     * @param message Message text
+     * @return Number of connections the message was sent or queued on
+     */
+    public static int broadcast(Iterable<WebSocket> sockets, String message) {
+        return broadcastFrame(sockets, WebSocketFrames.encode(WebSocketFrames.TEXT,
+                message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Send a binary message to every open connection in a collection,
+     * encoding its frame only once. Connections that are closing are skipped.
+     *
+     * @param sockets Connections to send to
+     * @param message Message bytes
+     * @return Number of connections the message was sent or queued on
+     */
+    public static int broadcast(Iterable<WebSocket> sockets, byte[] message) {
+        return broadcastFrame(sockets, WebSocketFrames.encode(WebSocketFrames.BINARY, message));
+    }
+
+    static int broadcastFrame(Iterable<WebSocket> sockets, byte[] frame) {
+        int sent = 0;
+        for (WebSocket socket : sockets) {
+            if (socket.sendFrame(frame)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Send a text message.
+     *
+     * @param message Message text
+     * @return false if the connection is closing or closed and nothing was sent
+     */
+    public boolean send(String message) {
+        return sendFrame(WebSocketFrames.encode(WebSocketFrames.TEXT, message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Send a binary message.
+     *
+     * @param message Message bytes
+     * @return false if the connection is closing or closed and nothing was sent
+     */
+    public boolean send(byte[] message) {
+        return sendFrame(WebSocketFrames.encode(WebSocketFrames.BINARY, message));
+    }
+
+    /**
+     * Send a ping, which the client answers with a pong; useful to keep
+     * connections through proxies alive and to detect dead ones.
+     *
+     * @param payload Up to 125 bytes echoed in the pong
+     * @return false if the connection is closing or closed and nothing was sent
+     */
+    public boolean ping(byte[] payload) {
+        if (payload.length > WebSocketFrames.MAX_CONTROL_PAYLOAD) {
+            throw new IllegalArgumentException("Ping payload longer than "
+                    + WebSocketFrames.MAX_CONTROL_PAYLOAD + " bytes: " + payload.length);
+        }
+        return sendFrame(WebSocketFrames.encode(WebSocketFrames.PING, payload));
+    }
+
+    /**
+     * Start the closing handshake. The connection closes when the client
+     * answers with its own close frame, or after five seconds.
+     *
+     * @param code Close code, such as {@link #NORMAL_CLOSURE}, or one of
+     *             the application's in the range 4000-4999
+     * @param reason Reason text, at most 123 bytes in UTF-8
+     */
+    public void close(int code, String reason) {
+        if (!WebSocketFrames.isValidCloseCode(code)) {
+            throw new IllegalArgumentException("Invalid close code: " + code);
+        }
+        byte[] payload = WebSocketFrames.closePayload(code, reason);
+        if (!closeSent.compareAndSet(false, true)) {
+            return;
+        }
+        Transport current = transport;
+        current.send(WebSocketFrames.encode(WebSocketFrames.CLOSE, payload), true);
+        CompletableFuture.delayedExecutor(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).execute(current::abort);
+    }
+
+    /**
+     * Close the connection normally.
+     */
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Whether messages can still be sent.
+     *
+     * @return false once either side has started closing the connection
+     */
+    public boolean isOpen() {
+        return !closeSent.get() && !closed.get();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get a header of the handshake request by case-insensitive name.
+     *
+     * @param name Header name
+     * @return Header value, or null if absent
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Get a path parameter bound by the route, e.g. {@code room} in
+     * {@code /chat/{room}}.
+     *
+     * @param name Parameter name
+     * @return Parameter value, or null if absent
+     */
+    public String getPathParam(String name) {
+        return pathParams.get(name);
+    }
+
+    /**
+     * Get a decoded query parameter of the handshake request.
+     *
+     * @param name Parameter name
+     * @return Parameter value, or null if absent
+     */
+    public String getQueryParam(String name) {
+        return queryParams.get(name);
+    }
+
+    /**
+     * @return Address of the client, or null if not known
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return Object set with {@link #setAttachment(Object)}, or null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment() {
+        return (T) attachment;
+    }
+
+    /**
+     * Keep application state with the connection, such as the user it
+     * belongs to.
+     *
+     * @param attachment Any object, or null
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Take over a connection that has sent the handshake response.
+     *
+     * @param transport Writes frames to the connection
+     * @param events Runs the handler's callbacks in order
+     * @param maxMessageSize Largest message accepted from the client
+     */
+    void open(Transport transport, Executor events, int maxMessageSize) {
+        this.events = events;
+        this.decoder = new WebSocketFrames.Decoder(maxMessageSize);
+        this.transport = transport;
+        dispatch(() -> handler.onOpen(this));
+    }
+
+    /**
+     * Decode the frames read from the client, answering control frames and
+     * passing complete messages to the handler; called by the thread that
+     * reads the connection. Consumes everything but a partial frame header.
+     *
+     * @param in Bytes read from the client
+     */
+    void receive(ByteBuffer in) {
+        if (closed.get()) {
+            in.position(in.limit());
+            return;
+        }
+        try {
+            decoder.decode(in, listener);
+        } catch (WebSocketFrames.ProtocolException e) {
+            LOGGER.fine("Failing WebSocket connection: " + e.getMessage());
+            in.position(in.limit());
+            fail(e.getCloseCode(), e.getMessage());
+        }
+    }
+
+    /**
+     * Whether reading should pause until the handler has caught up with
+     * the messages passed to it.
+     *
+     * @return true while too many message bytes wait for the handler
+     */
+    boolean isBacklogged() {
+        return backlog.get() > HIGH_WATERMARK;
+    }
+
+    /**
+     * The connection has closed, whether or not after a closing handshake.
+     */
+    void disconnected() {
+        closed(ABNORMAL_CLOSURE, "");
+    }
+
+    boolean sendFrame(byte[] frame) {
+        Transport current = transport;
+        return current != null && !closeSent.get() && current.send(frame, false);
+    }
+
+    /**
+     * Fail the connection: send a close frame with the code and close
+     * without waiting for the client's.
+     */
+    private void fail(int code, String reason) {
+        if (closeSent.compareAndSet(false, true)) {
+            byte[] payload = WebSocketFrames.closePayload(code, truncate(reason));
+            transport.send(WebSocketFrames.encode(WebSocketFrames.CLOSE, payload), true);
+        }
+        // Before closing, which reports a dropped connection if it runs first
+        closed(code, reason);
+        transport.close();
+    }
+
+    private static String truncate(String reason) {
+        // Protocol error messages are ASCII
+        return reason.length() > 123 ? reason.substring(0, 123) : reason;
+    }
+
+    private void closed(int code, String reason) {
+        if (closed.compareAndSet(false, true)) {
+            dispatch(() -> handler.onClose(this, code, reason));
+        }
+    }
+
+    /**
+     * Run a callback on the connection's event executor.
+     */
+    private void dispatch(Runnable callback) {
+        try {
+            events.execute(() -> {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.fine("WebSocket event rejected by the executor, closing connection");
+            transport.abort();
+        }
+    }
+
+    private void failed(RuntimeException error) {
+        LOGGER.log(Level.WARNING, "WebSocket handler failed: " + path, error);
+        try {
+            handler.onError(this, error);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "WebSocket error handler failed: " + path, e);
+        }
+        close(INTERNAL_ERROR, "Internal error");
+    }
+
+    /**
+     * Passes decoded frames on; runs on the reading thread.
+     */
+    private final class FrameListener implements WebSocketFrames.Listener {
+        @Override
+        public void onMessage(int opcode, byte[] payload) throws WebSocketFrames.ProtocolException {
+            if (closeSent.get() || closed.get()) {
+                // Messages after our close frame are discarded
+                return;
+            }
+            int size = payload.length;
+            Runnable callback;
+            if (opcode == WebSocketFrames.TEXT) {
+                String text = decodeText(payload);
+                callback = () -> handler.onText(WebSocket.this, text);
+            } else {
+                callback = () -> handler.onBinary(WebSocket.this, payload);
+            }
+            backlog.addAndGet(size);
+            dispatch(() -> {
+                try {
+                    callback.run();
+                } finally {
+                    long left = backlog.addAndGet(-size);
+                    if (left <= LOW_WATERMARK && left + size > LOW_WATERMARK) {
+                        transport.resume();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onControl(int opcode, byte[] payload) throws WebSocketFrames.ProtocolException {
+            if (closed.get()) {
+                return;
+            }
+            if (opcode == WebSocketFrames.PING) {
+                if (!closeSent.get()) {
+                    transport.send(WebSocketFrames.encode(WebSocketFrames.PONG, payload), false);
+                }
+            } else if (opcode == WebSocketFrames.CLOSE) {
+                onCloseFrame(payload);
+            }
+            // Unsolicited pongs need no answer
+        }
+
+        private void onCloseFrame(byte[] payload) throws WebSocketFrames.ProtocolException {
+            int code = NO_STATUS;
+            String reason = "";
+            if (payload.length == 1) {
+                throw new WebSocketFrames.ProtocolException(PROTOCOL_ERROR, "Close frame with a one-byte payload");
+            }
+            if (payload.length >= 2) {
+                code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+                if (!WebSocketFrames.isValidCloseCode(code)) {
+                    throw new WebSocketFrames.ProtocolException(PROTOCOL_ERROR, "Invalid close code " + code);
+                }
+                reason = decodeText(ByteBuffer.wrap(payload, 2, payload.length - 2));
+            }
+            if (closeSent.compareAndSet(false, true)) {
+                // The client started closing; echo its code and close
+                transport.send(WebSocketFrames.encode(WebSocketFrames.CLOSE,
+                        WebSocketFrames.closePayload(code, reason)), true);
+            }
+            closed(code, reason);
+            transport.close();
+        }
+    }
+
+    private static String decodeText(byte[] bytes) throws WebSocketFrames.ProtocolException {
+        return decodeText(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decode UTF-8 strictly, as the protocol requires invalid text to fail
+     * the connection rather than be replaced.
+     */
+    private static String decodeText(ByteBuffer bytes) throws WebSocketFrames.ProtocolException {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(bytes)
+                    .toString();
+        } catch (CharacterCodingException e) {
+            throw new WebSocketFrames.ProtocolException(INVALID_PAYLOAD, "Text is not valid UTF-8");
+        }
+    }
+
+    /**
+     * The connection a WebSocket writes its frames to.
+     */
+    interface Transport {
+        /**
+         * Write or queue one whole frame; callable from any thread.
+         *
+         * @param frame Encoded frame
+         * @param last Whether it is the close frame, after which nothing more is sent
+         * @return false if the connection is closed and nothing was sent
+         */
+        boolean send(byte[] frame, boolean last);
+
+        /**
+         * Close the connection once the frames already sent are written.
+         */
+        void close();
+
+        /**
+         * Close the connection at once.
+         */
+        void abort();
+
+        /**
+         * Resume reading if it paused because the handler fell behind.
+         */
+        void resume();
+    }
+}
@@ -0,0 +1,328 @@
+package com.jexpress;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * WebSocket frame encoding and decoding (RFC 6455, section 5).
+ *
+ * <p>The server sends every message as a single unmasked frame, so a
+ * message is encoded once and the same bytes can be written to any number
+ * of connections. Frames from the client are decoded incrementally: a
+ * payload is unmasked straight into the message it belongs to as its
+ * bytes arrive, so a frame never has to fit in the read buffer.
+ */
+final class WebSocketFrames {
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int MAX_CLOSE_REASON = MAX_CONTROL_PAYLOAD - 2;
+    private static final byte[] EMPTY = new byte[0];
+    // Eight payload bytes at a time, unmasked with one XOR
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private WebSocketFrames() {
+    }
+
+    /**
+     * Encode a complete, unmasked frame.
+     *
+     * @param opcode Frame opcode
+     * @param payload Payload bytes
+     * @return Frame bytes
+     */
+    static byte[] encode(int opcode, byte[] payload) {
+        int length = payload.length;
+        int headerLength = length <= MAX_CONTROL_PAYLOAD ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[headerLength + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (headerLength == 2) {
+            frame[1] = (byte) length;
+        } else if (headerLength == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            // Lengths above 2^31 never occur, so the first four bytes stay zero
+            for (int i = 6; i < 10; i++) {
+                frame[i] = (byte) (length >>> (8 * (9 - i)));
+            }
+        }
+        System.arraycopy(payload, 0, frame, headerLength, length);
+        return frame;
+    }
+
+    /**
+     * Encode the payload of a close frame.
+     *
+     * @param code Close code, or {@link WebSocket#NO_STATUS} for an empty payload
+     * @param reason Reason text, at most 123 bytes in UTF-8
+     * @return Payload bytes
+     */
+    static byte[] closePayload(int code, String reason) {
+        if (code == WebSocket.NO_STATUS) {
+            return EMPTY;
+        }
+        byte[] text = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        if (text.length > MAX_CLOSE_REASON) {
+            throw new IllegalArgumentException("Close reason longer than " + MAX_CLOSE_REASON + " bytes: " + reason);
+        }
+        byte[] payload = new byte[2 + text.length];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, text.length);
+        return payload;
+    }
+
+    /**
+     * Whether a close code may be sent in a close frame: the codes defined
+     * by RFC 6455 that are not reserved for local use, and the ranges for
+     * libraries and applications.
+     *
+     * @param code Close code
+     * @return true if the code may appear on the wire
+     */
+    static boolean isValidCloseCode(int code) {
+        if (code >= 3000 && code <= 4999) {
+            return true;
+        }
+        return code >= 1000 && code <= 1011 && code != 1004 && code != 1005 && code != 1006;
+    }
+
+    /**
+     * Receives what a {@link Decoder} decodes.
+     */
+    interface Listener {
+        /**
+         * A complete data message, reassembled from its fragments.
+         *
+         * @param opcode {@link #TEXT} or {@link #BINARY}
+         * @param payload Message bytes, owned by the listener
+         */
+        void onMessage(int opcode, byte[] payload) throws ProtocolException;
+
+        /**
+         * A control frame, which may arrive between the fragments of a message.
+         *
+         * @param opcode {@link #CLOSE}, {@link #PING} or {@link #PONG}
+         * @param payload Frame payload, owned by the listener
+         */
+        void onControl(int opcode, byte[] payload) throws ProtocolException;
+    }
+
+    /**
+     * A frame that breaks the protocol, failing the connection with a
+     * close code.
+     */
+    static final class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int closeCode;
+
+        ProtocolException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+
+        int getCloseCode() {
+            return closeCode;
+        }
+    }
+
+    /**
+     * Decodes the frames of one connection; used by one thread at a time.
+     */
+    static final class Decoder {
+        private final int maxMessageSize;
+        // Frame being read, once its header has been
+        private boolean inPayload;
+        private boolean fin;
+        private int opcode;
+        private long remaining;
+        // Mask repeated twice, to read eight bytes of it from any index
+        private final byte[] mask = new byte[12];
+        private int maskIndex;
+        // Data message being assembled; opcode 0 while none is
+        private int messageOpcode;
+        private byte[] message = EMPTY;
+        private int messageLength;
+        private final byte[] control = new byte[MAX_CONTROL_PAYLOAD];
+        private int controlLength;
+
+        /**
+         * @param maxMessageSize Largest message accepted, across all its fragments
+         */
+        Decoder(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+
+        /**
+         * Consume the frames in the buffer, passing on each complete message
+         * and control frame. A partial frame header is left in the buffer
+         * for the next call.
+         *
+         * @param in Bytes from the client
+         * @param listener Receiver of messages and control frames
+         * @throws ProtocolException If the client broke the protocol
+         */
+        void decode(ByteBuffer in, Listener listener) throws ProtocolException {
+            while (true) {
+                if (!inPayload && !readHeader(in)) {
+                    return;
+                }
+                if (remaining > 0) {
+                    if (!in.hasRemaining()) {
+                        return;
+                    }
+                    int n = (int) Math.min(remaining, in.remaining());
+                    byte[] target;
+                    int offset;
+                    if (opcode >= CLOSE) {
+                        target = control;
+                        offset = controlLength;
+                        controlLength += n;
+                    } else {
+                        target = message;
+                        offset = messageLength;
+                        messageLength += n;
+                    }
+                    in.get(target, offset, n);
+                    unmask(target, offset, n);
+                    remaining -= n;
+                    if (remaining > 0) {
+                        return;
+                    }
+                }
+                inPayload = false;
+                if (opcode >= CLOSE) {
+                    listener.onControl(opcode, Arrays.copyOf(control, controlLength));
+                } else if (fin) {
+                    listener.onMessage(messageOpcode, takeMessage());
+                }
+            }
+        }
+
+        /**
+         * Read a frame header if it is buffered in full, and check it.
+         *
+         * @return false if more bytes are needed
+         */
+        private boolean readHeader(ByteBuffer in) throws ProtocolException {
+            if (in.remaining() < 2) {
+                return false;
+            }
+            int start = in.position();
+            int b0 = in.get(start) & 0xFF;
+            int b1 = in.get(start + 1) & 0xFF;
+            if ((b0 & 0x70) != 0) {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Reserved bits set without an extension");
+            }
+            if ((b1 & 0x80) == 0) {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Client frame not masked");
+            }
+            int length7 = b1 & 0x7F;
+            int lengthBytes = length7 == 126 ? 2 : length7 == 127 ? 8 : 0;
+            int headerLength = 2 + lengthBytes + 4;
+            if (in.remaining() < headerLength) {
+                return false;
+            }
+            long length = length7;
+            if (lengthBytes == 2) {
+                length = in.getShort(start + 2) & 0xFFFF;
+            } else if (lengthBytes == 8) {
+                length = in.getLong(start + 2);
+                if (length < 0) {
+                    throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Frame length out of range");
+                }
+            }
+            fin = (b0 & 0x80) != 0;
+            opcode = b0 & 0x0F;
+            check(length);
+
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] = in.get(start + 2 + lengthBytes + (i & 3));
+            }
+            in.position(start + headerLength);
+            maskIndex = 0;
+            remaining = length;
+            inPayload = true;
+            return true;
+        }
+
+        private void check(long length) throws ProtocolException {
+            if (opcode >= CLOSE) {
+                if (opcode > PONG) {
+                    throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Unknown opcode " + opcode);
+                }
+                if (!fin || length > MAX_CONTROL_PAYLOAD) {
+                    throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Control frames must be one frame of "
+                            + MAX_CONTROL_PAYLOAD + " bytes at most");
+                }
+                controlLength = 0;
+                return;
+            }
+            if (opcode == CONTINUATION) {
+                if (messageOpcode == 0) {
+                    throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Continuation frame outside a message");
+                }
+            } else if (opcode == TEXT || opcode == BINARY) {
+                if (messageOpcode != 0) {
+                    throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "New message before the last one ended");
+                }
+                messageOpcode = opcode;
+            } else {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (messageLength + length > maxMessageSize) {
+                throw new ProtocolException(WebSocket.MESSAGE_TOO_BIG,
+                        "Message larger than " + maxMessageSize + " bytes");
+            }
+            int needed = (int) (messageLength + length);
+            if (needed > message.length) {
+                // Exact for a message in one frame, so it is handed over without a copy
+                int capacity = messageLength == 0
+                        ? needed
+                        : Math.min(maxMessageSize, Math.max(needed, message.length * 2));
+                message = Arrays.copyOf(message, capacity);
+            }
+        }
+
+        private void unmask(byte[] bytes, int offset, int length) {
+            int m = maskIndex;
+            int i = offset;
+            int end = offset + length;
+            if (length >= 8) {
+                // Eight bytes advance the mask by a whole number of turns
+                long wide = (long) LONGS.get(mask, m);
+                for (; i <= end - 8; i += 8) {
+                    LONGS.set(bytes, i, (long) LONGS.get(bytes, i) ^ wide);
+                }
+            }
+            for (; i < end; i++) {
+                bytes[i] ^= mask[m];
+                m = (m + 1) & 3;
+            }
+            maskIndex = m;
+        }
+
+        private byte[] takeMessage() {
+            byte[] payload = messageLength == message.length ? message : Arrays.copyOf(message, messageLength);
+            message = EMPTY;
+            messageLength = 0;
+            messageOpcode = 0;
+            return payload;
+        }
+    }
+}
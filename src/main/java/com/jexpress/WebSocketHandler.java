@@ -0,0 +1,66 @@
+package com.jexpress;
+
+/**
+ * Handles the messages of WebSocket connections registered with
+ * {@link Router#websocket(String, WebSocketHandler)}.
+ *
+ * <p>The callbacks for one connection are never run concurrently and
+ * arrive in order: {@link #onOpen}, the messages, then {@link #onClose}
+ * exactly once. A callback that throws is reported to {@link #onError}
+ * and the connection is closed with {@link WebSocket#INTERNAL_ERROR}.
+ * Only {@link #onText} must be implemented, so an echo endpoint can be
+ * a lambda:
+ *
+ * <pre>{@code
+ * router.websocket("/echo", (socket, message) -> socket.send(message));
+ * }</pre>
+ */
+@FunctionalInterface
+public interface WebSocketHandler {
+
+    /**
+     * The handshake is complete and messages can be sent.
+     *
+     * @param socket New connection
+     */
+    default void onOpen(WebSocket socket) {
+    }
+
+    /**
+     * A text message arrived.
+     *
+     * @param socket Connection it arrived on
+     * @param message Message text
+     */
+    void onText(WebSocket socket, String message);
+
+    /**
+     * A binary message arrived. Ignored unless overridden.
+     *
+     * @param socket Connection it arrived on
+     * @param message Message bytes
+     */
+    default void onBinary(WebSocket socket, byte[] message) {
+    }
+
+    /**
+     * The connection is closed.
+     *
+     * @param socket Closed connection
+     * @param code Close code from the client's close frame, or
+     *             {@link WebSocket#ABNORMAL_CLOSURE} if the connection was
+     *             dropped without one
+     * @param reason Close reason, possibly empty
+     */
+    default void onClose(WebSocket socket, int code, String reason) {
+    }
+
+    /**
+     * Another callback failed; the connection is closed afterwards.
+     *
+     * @param socket Connection the failure occurred on
+     * @param error Exception thrown
+     */
+    default void onError(WebSocket socket, Throwable error) {
+    }
+}
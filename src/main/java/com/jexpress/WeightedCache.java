@@ -0,0 +1,288 @@
+package com.jexpress;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache bounded by the total weight of its values, in bytes, rather than
+ * their number, with a time to live per entry. Eviction follows
+ * W-TinyLFU: new entries enter a small LRU window; when the window
+ * overflows, its oldest entry only displaces the oldest entry of the main
+ * space if the key has been asked for more often recently, as estimated by
+ * a {@link FrequencySketch}. The main space is a segmented LRU, where
+ * entries hit a second time are protected from entries hit once. One-off
+ * requests therefore cannot flush out the entries that are popular. With
+ * admission off, every entry leaving the window is admitted and the cache
+ * is a plain segmented LRU.
+ *
+ * <p>Lookups read a concurrent map without locking. The access bookkeeping
+ * after a hit is skipped when another thread holds the lock, so hits never
+ * wait; the recency and frequency information lost that way is only ever a
+ * small sample. Insertions and evictions take the lock.
+ */
+final class WeightedCache<V> {
+    private static final int REMOVED = -1;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<String, Node<V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+    private final Queue<V> window = new Queue<>();
+    private final Queue<V> probation = new Queue<>();
+    private final Queue<V> protectedQueue = new Queue<>();
+    private volatile boolean admission = true;
+
+    /**
+     * @param maxWeight Largest total weight kept
+     * @param expectedEntries Rough number of entries that fit, to size the
+     *                        frequency sketch
+     */
+    WeightedCache(long maxWeight, int expectedEntries) {
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, maxWeight / 100);
+        this.mainMax = maxWeight - windowMax;
+        this.protectedMax = mainMax * 4 / 5;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    void setAdmission(boolean admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Get an entry that has not expired, counting the lookup towards the
+     * key's frequency either way.
+     *
+     * @param key Key to look up
+     * @param now Current {@link System#nanoTime()}
+     * @return Value, or null if absent or expired
+     */
+    V get(String key, long now) {
+        Node<V> node = map.get(key);
+        if (node != null && now - node.expiresAt >= 0) {
+            lock.lock();
+            try {
+                if (map.remove(key, node)) {
+                    unlink(node);
+                }
+                sketch.increment(key.hashCode());
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key.hashCode());
+                if (node != null && node.queue != REMOVED) {
+                    onAccess(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Add or replace an entry, evicting others to make room for it.
+     *
+     * @param key Key to store the value under
+     * @param value Value to store
+     * @param weight Weight of the entry, in bytes
+     * @param expiresAt {@link System#nanoTime()} after which the entry is stale
+     * @return false if the entry is too heavy to be kept at all
+     */
+    boolean put(String key, V value, long weight, long expiresAt) {
+        if (weight > mainMax) {
+            return false;
+        }
+        Node<V> node = new Node<>(key, value, weight, expiresAt);
+        lock.lock();
+        try {
+            Node<V> previous = map.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+            }
+            window.addLast(node);
+            node.queue = WINDOW;
+            while (window.weight > windowMax) {
+                Node<V> candidate = window.first;
+                window.remove(candidate);
+                admit(candidate, System.nanoTime());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Remove an entry, if present.
+     *
+     * @param key Key of the entry
+     */
+    void remove(String key) {
+        lock.lock();
+        try {
+            Node<V> node = map.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move an entry out of the window into the main space if it is worth
+     * more than the entries it would displace, otherwise drop it.
+     */
+    private void admit(Node<V> candidate, long now) {
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        while (probation.weight + protectedQueue.weight + candidate.weight > mainMax) {
+            Node<V> victim = probation.first != null ? probation.first : protectedQueue.first;
+            if (admission && now - victim.expiresAt < 0
+                    && candidateFrequency <= sketch.frequency(victim.key.hashCode())) {
+                map.remove(candidate.key, candidate);
+                candidate.queue = REMOVED;
+                return;
+            }
+            map.remove(victim.key, victim);
+            unlink(victim);
+        }
+        probation.addLast(candidate);
+        candidate.queue = PROBATION;
+    }
+
+    private void onAccess(Node<V> node) {
+        if (node.queue == WINDOW) {
+            window.moveToLast(node);
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.moveToLast(node);
+        } else {
+            // A second hit promotes the entry, demoting the least recent protected ones
+            probation.remove(node);
+            protectedQueue.addLast(node);
+            node.queue = PROTECTED;
+            while (protectedQueue.weight > protectedMax) {
+                Node<V> demoted = protectedQueue.first;
+                protectedQueue.remove(demoted);
+                probation.addLast(demoted);
+                demoted.queue = PROBATION;
+            }
+        }
+    }
+
+    private void unlink(Node<V> node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.remove(node);
+        }
+        node.queue = REMOVED;
+    }
+
+    /**
+     * Get the total weight of the entries held.
+     *
+     * @return Weight in bytes
+     */
+    long weight() {
+        lock.lock();
+        try {
+            return window.weight + probation.weight + protectedQueue.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long maxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Remove every entry.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (Node<V> node : map.values()) {
+                unlink(node);
+            }
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Node<V> {
+        final String key;
+        final V value;
+        final long weight;
+        final long expiresAt;
+        // Guarded by the cache lock
+        int queue = REMOVED;
+        Node<V> prev;
+        Node<V> next;
+
+        Node(String key, V value, long weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Doubly linked list from least to most recently used.
+     */
+    private static final class Queue<V> {
+        Node<V> first;
+        Node<V> last;
+        long weight;
+
+        void addLast(Node<V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node<V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.jexpress.utils;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * Utility class for handling MIME types.
  */
@@ -9,8 +13,54 @@ public final class MimeTypes {
     public static final String APPLICATION_XML = "application/xml";
     public static final String TEXT_HTML = "text/html";
     public static final String TEXT_PLAIN = "text/plain";
+    public static final String TEXT_CSS = "text/css";
+    public static final String TEXT_JAVASCRIPT = "text/javascript";
+    public static final String APPLICATION_WASM = "application/wasm";
+    public static final String IMAGE_SVG = "image/svg+xml";
     public static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
 
+    // Lower-case file extension, without the dot, to MIME type
+    private static final Map<String, String> BY_EXTENSION = new HashMap<>();
+
+    static {
+        BY_EXTENSION.put("json", APPLICATION_JSON);
+        BY_EXTENSION.put("map", APPLICATION_JSON);
+        BY_EXTENSION.put("xml", APPLICATION_XML);
+        BY_EXTENSION.put("html", TEXT_HTML);
+        BY_EXTENSION.put("htm", TEXT_HTML);
+        BY_EXTENSION.put("txt", TEXT_PLAIN);
+        BY_EXTENSION.put("css", TEXT_CSS);
+        BY_EXTENSION.put("js", TEXT_JAVASCRIPT);
+        BY_EXTENSION.put("mjs", TEXT_JAVASCRIPT);
+        BY_EXTENSION.put("csv", "text/csv");
+        BY_EXTENSION.put("md", "text/markdown");
+        BY_EXTENSION.put("webmanifest", "application/manifest+json");
+        BY_EXTENSION.put("wasm", APPLICATION_WASM);
+        BY_EXTENSION.put("pdf", "application/pdf");
+        BY_EXTENSION.put("zip", "application/zip");
+        BY_EXTENSION.put("gz", "application/gzip");
+
+        BY_EXTENSION.put("png", "image/png");
+        BY_EXTENSION.put("jpg", "image/jpeg");
+        BY_EXTENSION.put("jpeg", "image/jpeg");
+        BY_EXTENSION.put("gif", "image/gif");
+        BY_EXTENSION.put("webp", "image/webp");
+        BY_EXTENSION.put("avif", "image/avif");
+        BY_EXTENSION.put("svg", IMAGE_SVG);
+        BY_EXTENSION.put("ico", "image/x-icon");
+
+        BY_EXTENSION.put("woff", "font/woff");
+        BY_EXTENSION.put("woff2", "font/woff2");
+        BY_EXTENSION.put("ttf", "font/ttf");
+        BY_EXTENSION.put("otf", "font/otf");
+
+        BY_EXTENSION.put("mp3", "audio/mpeg");
+        BY_EXTENSION.put("ogg", "audio/ogg");
+        BY_EXTENSION.put("wav", "audio/wav");
+        BY_EXTENSION.put("mp4", "video/mp4");
+        BY_EXTENSION.put("webm", "video/webm");
+    }
+
     private MimeTypes() {
         // Prevent instantiation
     }
@@ -26,18 +76,11 @@ public final class MimeTypes {
             return APPLICATION_OCTET_STREAM;
         }
 
-        filename = filename.toLowerCase();
-
-        if (filename.endsWith(".json")) {
-            return APPLICATION_JSON;
-        } else if (filename.endsWith(".xml")) {
-            return APPLICATION_XML;
-        } else if (filename.endsWith(".html") || filename.endsWith(".htm")) {
-            return TEXT_HTML;
-        } else if (filename.endsWith(".txt")) {
-            return TEXT_PLAIN;
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0 || filename.indexOf('/', dot) >= 0) {
+            return APPLICATION_OCTET_STREAM;
         }
-
-        return APPLICATION_OCTET_STREAM;
+        String type = BY_EXTENSION.get(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type != null ? type : APPLICATION_OCTET_STREAM;
     }
-}
\ No newline at end of file
+}
@@ -13,6 +13,7 @@ public final class StatusCodes {
     public static final int CREATED = 201;
     public static final int ACCEPTED = 202;
     public static final int NO_CONTENT = 204;
+    public static final int PARTIAL_CONTENT = 206;
 
     // 3xx Redirection
     public static final int MOVED_PERMANENTLY = 301;
@@ -26,12 +27,20 @@ public final class StatusCodes {
     public static final int NOT_FOUND = 404;
     public static final int METHOD_NOT_ALLOWED = 405;
     public static final int NOT_ACCEPTABLE = 406;
+    public static final int PAYLOAD_TOO_LARGE = 413;
+    public static final int URI_TOO_LONG = 414;
+    public static final int RANGE_NOT_SATISFIABLE = 416;
+    public static final int UPGRADE_REQUIRED = 426;
+    public static final int TOO_MANY_REQUESTS = 429;
+    public static final int REQUEST_HEADER_FIELDS_TOO_LARGE = 431;
 
     // 5xx Server Errors
     public static final int INTERNAL_SERVER_ERROR = 500;
     public static final int NOT_IMPLEMENTED = 501;
     public static final int BAD_GATEWAY = 502;
     public static final int SERVICE_UNAVAILABLE = 503;
+    public static final int GATEWAY_TIMEOUT = 504;
+    public static final int HTTP_VERSION_NOT_SUPPORTED = 505;
 
     private StatusCodes() {
         // Prevent instantiation
@@ -54,6 +63,7 @@ public final class StatusCodes {
             case CREATED: return "Created";
             case ACCEPTED: return "Accepted";
             case NO_CONTENT: return "No Content";
+            case PARTIAL_CONTENT: return "Partial Content";
 
             // 3xx
             case MOVED_PERMANENTLY: return "Moved Permanently";
@@ -67,12 +77,20 @@ public final class StatusCodes {
             case NOT_FOUND: return "Not Found";
             case METHOD_NOT_ALLOWED: return "Method Not Allowed";
             case NOT_ACCEPTABLE: return "Not Acceptable";
+            case PAYLOAD_TOO_LARGE: return "Payload Too Large";
+            case URI_TOO_LONG: return "URI Too Long";
+            case RANGE_NOT_SATISFIABLE: return "Range Not Satisfiable";
+            case UPGRADE_REQUIRED: return "Upgrade Required";
+            case TOO_MANY_REQUESTS: return "Too Many Requests";
+            case REQUEST_HEADER_FIELDS_TOO_LARGE: return "Request Header Fields Too Large";
 
             // 5xx
             case INTERNAL_SERVER_ERROR: return "Internal Server Error";
             case NOT_IMPLEMENTED: return "Not Implemented";
             case BAD_GATEWAY: return "Bad Gateway";
             case SERVICE_UNAVAILABLE: return "Service Unavailable";
+            case GATEWAY_TIMEOUT: return "Gateway Timeout";
+            case HTTP_VERSION_NOT_SUPPORTED: return "HTTP Version Not Supported";
 
             default: return "Unknown Status";
         }
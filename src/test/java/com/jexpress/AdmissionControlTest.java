@@ -0,0 +1,180 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the limit of {@link AdmissionControl} with synthetic latencies:
+ * each request is admitted, backdated by the latency it should report and
+ * released with a status.
+ */
+class AdmissionControlTest {
+    // Long enough that scheduling jitter never makes a request late
+    private static final long ON_TIME = 50;
+
+    private static Request admit(AdmissionControl admission, long latencyMillis) {
+        Request request = new Request();
+        assertTrue(admission.tryAcquire(request), "no permit free");
+        request.setAdmittedAt(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+        return request;
+    }
+
+    private static void finish(AdmissionControl admission, long latencyMillis, int status) {
+        admission.release(admit(admission, latencyMillis), status);
+    }
+
+    /**
+     * Wait out the round trip in which the limit last shrank.
+     */
+    private static void nextRoundTrip(long latencyMillis) throws InterruptedException {
+        Thread.sleep(latencyMillis * 3);
+    }
+
+    @Test
+    void timeoutsFromClientDeadlinesDoNotShrinkTheLimit() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(50, 200);
+        for (int i = 0; i < 10; i++) {
+            finish(admission, 20, StatusCodes.OK);
+        }
+        nextRoundTrip(20);
+        for (int i = 0; i < 60; i++) {
+            Request request = admit(admission, 1);
+            request.setDeadline(System.nanoTime() - 1);
+            admission.release(request, StatusCodes.GATEWAY_TIMEOUT);
+        }
+        assertEquals(50, admission.getLimit());
+    }
+
+    @Test
+    void timeoutsFromClientDeadlinesCountWhenLateEvenSo() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(50, 200).latencyTarget(10);
+        nextRoundTrip(1);
+        Request request = admit(admission, 50);
+        request.setDeadline(System.nanoTime() - 1);
+        admission.release(request, StatusCodes.GATEWAY_TIMEOUT);
+        assertEquals(45, admission.getLimit());
+    }
+
+    @Test
+    void timeoutsBeforeTheDeadlineShrinkTheLimit() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(50, 200);
+        nextRoundTrip(1);
+        Request request = admit(admission, 1);
+        request.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        admission.release(request, StatusCodes.GATEWAY_TIMEOUT);
+        assertEquals(45, admission.getLimit());
+    }
+
+    @Test
+    void overloadShrinksTheLimitOncePerRoundTrip() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(50, 200);
+        for (int i = 0; i < 10; i++) {
+            finish(admission, 20, StatusCodes.OK);
+        }
+        nextRoundTrip(20);
+        for (int i = 0; i < 20; i++) {
+            // Requests already running report the same overload
+            finish(admission, 20, StatusCodes.SERVICE_UNAVAILABLE);
+        }
+        assertEquals(45, admission.getLimit());
+
+        nextRoundTrip(20);
+        finish(admission, 20, StatusCodes.SERVICE_UNAVAILABLE);
+        assertEquals(40, admission.getLimit());
+    }
+
+    @Test
+    void latencyAboveTheBaselineShrinksTheLimit() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(50, 200);
+        for (int i = 0; i < 10; i++) {
+            finish(admission, 10, StatusCodes.OK);
+        }
+        finish(admission, 15, StatusCodes.OK);
+        nextRoundTrip(60);
+        assertEquals(50, admission.getLimit());
+        finish(admission, 60, StatusCodes.OK);
+        assertEquals(45, admission.getLimit());
+    }
+
+    @Test
+    void limitGrowsByOnePerLimitSuccessesWhileInUse() {
+        AdmissionControl admission = new AdmissionControl(4, 5);
+        List<Request> running = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            running.add(admit(admission, ON_TIME));
+        }
+        for (int i = 0; i < 3; i++) {
+            admission.release(running.remove(0), StatusCodes.OK);
+            running.add(admit(admission, ON_TIME));
+        }
+        assertEquals(4, admission.getLimit());
+        admission.release(running.remove(0), StatusCodes.OK);
+        assertEquals(5, admission.getLimit());
+
+        for (int i = 0; i < 20; i++) {
+            running.add(admit(admission, ON_TIME));
+            admission.release(running.remove(0), StatusCodes.OK);
+        }
+        assertEquals(5, admission.getLimit(), "grew past maxLimit");
+    }
+
+    @Test
+    void unusedLimitDoesNotGrow() {
+        AdmissionControl admission = new AdmissionControl(10, 100);
+        for (int i = 0; i < 100; i++) {
+            finish(admission, ON_TIME, StatusCodes.OK);
+        }
+        assertEquals(10, admission.getLimit());
+    }
+
+    @Test
+    void releaseAdmitsTheNextWaiter() {
+        AdmissionControl admission = new AdmissionControl(1, 1).queue(1, 10_000);
+        Request first = admit(admission, 1);
+        AtomicReference<Boolean> admitted = new AtomicReference<>();
+        Request second = new Request();
+        assertFalse(admission.tryAcquire(second));
+        admission.enqueue(second, admitted::set);
+        assertNull(admitted.get());
+        assertEquals(1, admission.getQueueLength());
+
+        admission.release(first, 0);
+        assertEquals(Boolean.TRUE, admitted.get());
+        assertEquals(1, admission.getInFlight());
+        assertEquals(0, admission.getQueueLength());
+    }
+
+    @Test
+    void fullQueueShedsAtOnce() {
+        AdmissionControl admission = new AdmissionControl(1, 1).queue(0, 10_000);
+        admit(admission, 1);
+        AtomicReference<Boolean> admitted = new AtomicReference<>();
+        admission.enqueue(new Request(), admitted::set);
+        assertEquals(Boolean.FALSE, admitted.get());
+        assertEquals(1, admission.getShedCount());
+    }
+
+    @Test
+    void waitersExpireAtTheirDeadline() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(1, 1).queue(1, 10_000);
+        admit(admission, 1);
+        Request waiting = new Request();
+        waiting.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5));
+        AtomicReference<Boolean> admitted = new AtomicReference<>();
+        admission.enqueue(waiting, admitted::set);
+        Thread.sleep(10);
+        admission.expireWaiters();
+        assertEquals(Boolean.FALSE, admitted.get());
+        assertEquals(1, admission.getShedCount());
+    }
+}
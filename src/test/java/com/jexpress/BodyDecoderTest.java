@@ -0,0 +1,188 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BodyDecoderTest {
+    private static final long MAX_BODY_SIZE = 1024;
+    private static final String NEXT = "GET /next HTTP/1.1\r\n\r\n";
+
+    private static Request chunked() {
+        Request request = new Request();
+        request.setChunked(true);
+        return request;
+    }
+
+    private static Request withLength(long length) {
+        Request request = new Request();
+        request.setContentLength(length);
+        return request;
+    }
+
+    private static ByteBuffer buffer(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Decode everything buffered, in reads of at most {@code step} bytes.
+     *
+     * @return Decoded body; the buffer is left at the first byte after it
+     */
+    private static String decode(BodyDecoder decoder, ByteBuffer src, int step) throws HttpParseException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64];
+        int end = src.limit();
+        int limit = src.position();
+        while (!decoder.isComplete() && limit < end) {
+            limit = Math.min(end, limit + step);
+            src.limit(limit);
+            int n;
+            while ((n = decoder.decode(src, chunk, 0, chunk.length)) > 0) {
+                body.write(chunk, 0, n);
+            }
+        }
+        src.limit(end);
+        return body.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int reject(Request request, String text) {
+        return assertThrows(HttpParseException.class, () -> {
+            BodyDecoder decoder = BodyDecoder.forRequest(request, MAX_BODY_SIZE);
+            decode(decoder, buffer(text), Integer.MAX_VALUE);
+        }).getStatusCode();
+    }
+
+    @Test
+    void noBodyWithoutLengthOrChunking() throws HttpParseException {
+        assertNull(BodyDecoder.forRequest(new Request(), MAX_BODY_SIZE));
+        assertNull(BodyDecoder.forRequest(withLength(0), MAX_BODY_SIZE));
+    }
+
+    @Test
+    void decodesAContentLengthBodyAndStopsAtItsEnd() throws HttpParseException {
+        BodyDecoder decoder = BodyDecoder.forRequest(withLength(5), MAX_BODY_SIZE);
+        assertEquals(5, decoder.fixedRemaining());
+        ByteBuffer src = buffer("hello" + NEXT);
+        assertEquals("hello", decode(decoder, src, Integer.MAX_VALUE));
+        assertTrue(decoder.isComplete());
+        assertEquals(NEXT, StandardCharsets.ISO_8859_1.decode(src).toString());
+    }
+
+    @Test
+    void countsBytesReadAroundTheDecoder() throws HttpParseException {
+        BodyDecoder decoder = BodyDecoder.forRequest(withLength(10), MAX_BODY_SIZE);
+        decoder.advance(6);
+        assertEquals(4, decoder.fixedRemaining());
+        assertFalse(decoder.isComplete());
+        assertEquals("tail", decode(decoder, buffer("tail" + NEXT), Integer.MAX_VALUE));
+        assertTrue(decoder.isComplete());
+    }
+
+    @Test
+    void decodesChunksWithExtensionsAndTrailers() throws HttpParseException {
+        String body = "5;name=value\r\nhello\r\n"
+                + "6 ; quoted=\"a;b\"\r\n world\r\n"
+                + "A\r\n0123456789\r\n"
+                + "0\r\n"
+                + "X-Checksum: abc\r\n"
+                + "X-Other: def\r\n"
+                + "\r\n";
+        BodyDecoder decoder = BodyDecoder.forRequest(chunked(), MAX_BODY_SIZE);
+        assertEquals(-1, decoder.fixedRemaining());
+        ByteBuffer src = buffer(body + NEXT);
+        assertEquals("hello world0123456789", decode(decoder, src, Integer.MAX_VALUE));
+        assertTrue(decoder.isComplete());
+        assertEquals(NEXT, StandardCharsets.ISO_8859_1.decode(src).toString());
+    }
+
+    @Test
+    void resumesAfterASplitAtEveryByte() throws HttpParseException {
+        String body = "5;ext\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\n";
+        for (int split = 1; split < body.length(); split++) {
+            BodyDecoder decoder = BodyDecoder.forRequest(chunked(), MAX_BODY_SIZE);
+            ByteBuffer src = buffer(body + NEXT);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[64];
+            src.limit(split);
+            out.write(chunk, 0, decoder.decode(src, chunk, 0, chunk.length));
+            assertFalse(decoder.isComplete(), "split at " + split);
+            src.limit(body.length() + NEXT.length());
+            int n;
+            while ((n = decoder.decode(src, chunk, 0, chunk.length)) > 0) {
+                out.write(chunk, 0, n);
+            }
+            assertTrue(decoder.isComplete(), "split at " + split);
+            assertEquals("hello world", out.toString(StandardCharsets.ISO_8859_1), "split at " + split);
+            assertEquals(body.length(), src.position(), "split at " + split);
+        }
+    }
+
+    @Test
+    void decodesOneByteAtATime() throws HttpParseException {
+        String body = "3\r\nabc\r\n1;x=y\r\nd\r\n0\r\n\r\n";
+        BodyDecoder decoder = BodyDecoder.forRequest(chunked(), MAX_BODY_SIZE);
+        ByteBuffer src = buffer(body + NEXT);
+        assertEquals("abcd", decode(decoder, src, 1));
+        assertEquals(body.length(), src.position());
+    }
+
+    @Test
+    void honoursTheOutputLength() throws HttpParseException {
+        BodyDecoder decoder = BodyDecoder.forRequest(chunked(), MAX_BODY_SIZE);
+        ByteBuffer src = buffer("8\r\nabcdefgh\r\n0\r\n\r\n");
+        byte[] dst = new byte[8];
+        assertEquals(3, decoder.decode(src, dst, 0, 3));
+        assertEquals(5, decoder.decode(src, dst, 3, 5));
+        assertEquals("abcdefgh", new String(dst, StandardCharsets.ISO_8859_1));
+        assertEquals(0, decoder.decode(src, dst, 0, 8));
+        assertTrue(decoder.isComplete());
+    }
+
+    @Test
+    void acceptsBareLineFeeds() throws HttpParseException {
+        BodyDecoder decoder = BodyDecoder.forRequest(chunked(), MAX_BODY_SIZE);
+        assertEquals("abc", decode(decoder, buffer("3\nabc\n0\n\n"), Integer.MAX_VALUE));
+        assertTrue(decoder.isComplete());
+    }
+
+    @Test
+    void rejectsOversizeBodies() {
+        HttpParseException e = assertThrows(HttpParseException.class,
+                () -> BodyDecoder.forRequest(withLength(MAX_BODY_SIZE + 1), MAX_BODY_SIZE));
+        assertEquals(StatusCodes.PAYLOAD_TOO_LARGE, e.getStatusCode());
+
+        // Known from the chunk size, before the data arrives
+        assertEquals(StatusCodes.PAYLOAD_TOO_LARGE, reject(chunked(), "401\r\n"));
+        // Or from the sum of the chunks
+        String half = "200\r\n" + "x".repeat(512) + "\r\n";
+        assertEquals(StatusCodes.PAYLOAD_TOO_LARGE, reject(chunked(), half + half + "1\r\n"));
+    }
+
+    @Test
+    void rejectsMalformedChunkFraming() {
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), ";ext\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "5x\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "5\rx"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "3\r\nabcX\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "3\r\nabc\rX"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "1000000000000000\r\n"));
+    }
+
+    @Test
+    void limitsExtensionsAndTrailers() {
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "1;" + "e".repeat(1025) + "\r\n"));
+        String trailers = "X-Trailer: " + "t".repeat(100) + "\r\n";
+        assertEquals(StatusCodes.BAD_REQUEST, reject(chunked(), "0\r\n" + trailers.repeat(100) + "\r\n"));
+    }
+}
@@ -0,0 +1,291 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compresses responses as {@link JExpress} does after the handler returns,
+ * and decodes them with the JDK's own gzip and zlib readers.
+ */
+class CompressionTest {
+    private static final String TEXT = "All work and no play makes Jack a dull boy. ".repeat(100);
+
+    private static Request request(String acceptEncoding) {
+        Request request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.setPath("/");
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        return request;
+    }
+
+    private static Response text(String body) {
+        Response response = new Response();
+        response.setContentType("text/plain; charset=utf-8");
+        response.send(body);
+        return response;
+    }
+
+    private static Response compress(Compression compression, String acceptEncoding, Response response) {
+        compression.apply(request(acceptEncoding), response);
+        return response;
+    }
+
+    private static byte[] body(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeBody(out);
+        return out.toByteArray();
+    }
+
+    private static String decode(Response response) throws IOException {
+        byte[] body = body(response);
+        String encoding = response.getHeader("Content-Encoding");
+        InputStream in = new ByteArrayInputStream(body);
+        if ("gzip".equals(encoding)) {
+            in = new GZIPInputStream(in);
+        } else if ("deflate".equals(encoding)) {
+            in = new InflaterInputStream(in);
+        }
+        try (InputStream decoded = in) {
+            return new String(decoded.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Letters at random: compresses, but not so well that the output fits
+     * the initial scratch buffer.
+     */
+    private static String letters(int length) {
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    @Test
+    void roundTripsBufferedBodies() throws IOException {
+        Compression compression = new Compression();
+        for (String body : new String[]{TEXT, letters(100_000)}) {
+            Response gzip = compress(compression, "gzip", text(body));
+            assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+            assertTrue(gzip.getBodyLength() < body.length());
+            assertEquals(body, decode(gzip));
+
+            Response deflate = compress(compression, "deflate", text(body));
+            assertEquals("deflate", deflate.getHeader("Content-Encoding"));
+            assertEquals(body, decode(deflate));
+        }
+    }
+
+    @Test
+    void roundTripsStreamedBodies() throws IOException {
+        Compression compression = new Compression();
+        String large = letters(50_000);
+        for (String coding : new String[]{"gzip", "deflate"}) {
+            Response response = new Response();
+            response.setContentType("text/event-stream");
+            response.stream(out -> {
+                out.write('>');
+                out.flush();
+                out.write(TEXT.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                out.write(new byte[0]);
+                out.write(large.getBytes(StandardCharsets.UTF_8));
+            });
+            compress(compression, coding, response);
+            assertEquals(coding, response.getHeader("Content-Encoding"));
+            assertEquals(-1, response.getBodyLength());
+            assertEquals(">" + TEXT + large, decode(response), coding);
+        }
+
+        // Streamed bodies are compressed whatever their size
+        Response small = new Response();
+        small.setContentType("text/plain");
+        small.stream(out -> out.write('x'));
+        compress(compression, "gzip", small);
+        assertEquals("x", decode(small));
+    }
+
+    @Test
+    void negotiatesQualityValues() {
+        assertEquals(1, Compression.quality("gzip, deflate", "gzip"));
+        assertEquals(0.5, Compression.quality("deflate, GZIP;q=0.5", "gzip"));
+        assertEquals(0.3, Compression.quality("br;q=1, *;q=0.3", "gzip"));
+        assertEquals(0, Compression.quality("gzip;q=0, *", "gzip"));
+        assertEquals(0, Compression.quality("gzip;q=x", "gzip"));
+        assertEquals(0, Compression.quality("identity", "gzip"));
+        assertEquals(0, Compression.quality(null, "gzip"));
+
+        Compression compression = new Compression();
+        assertEquals("gzip", compress(compression, "deflate, gzip", text(TEXT)).getHeader("Content-Encoding"));
+        assertEquals("deflate",
+                compress(compression, "gzip;q=0.8, deflate;q=0.9", text(TEXT)).getHeader("Content-Encoding"));
+        assertEquals("deflate", compress(compression, "gzip;q=0, *", text(TEXT)).getHeader("Content-Encoding"));
+        assertEquals("gzip", compress(compression, "*", text(TEXT)).getHeader("Content-Encoding"));
+        for (String refused : new String[]{"identity", "gzip;q=0, deflate;q=0", "br", "*;q=0", ""}) {
+            Response response = compress(compression, refused, text(TEXT));
+            assertNull(response.getHeader("Content-Encoding"), refused);
+            assertEquals("Accept-Encoding", response.getHeader("Vary"), refused);
+        }
+        assertNull(compress(compression, null, text(TEXT)).getHeader("Content-Encoding"));
+    }
+
+    @Test
+    void leavesSmallBodiesAlone() {
+        Compression compression = new Compression().minSize(100);
+        Response small = compress(compression, "gzip", text("x".repeat(99)));
+        assertNull(small.getHeader("Content-Encoding"));
+        assertNull(small.getHeader("Vary"), "the response is the same for every client");
+        assertEquals("gzip", compress(compression, "gzip", text("x".repeat(100))).getHeader("Content-Encoding"));
+    }
+
+    @Test
+    void leavesIncompressibleBodiesAlone() {
+        byte[] noise = new byte[4096];
+        new Random(1).nextBytes(noise);
+        Response response = new Response();
+        response.setContentType("application/json");
+        response.send(noise);
+        compress(new Compression(), "gzip", response);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertSame(noise, response.getBufferedBody().array());
+    }
+
+    @Test
+    void extendsVaryAndWeakensTheEntityTag() throws IOException {
+        Compression compression = new Compression();
+        Response response = text(TEXT);
+        response.addHeader("Vary", "Origin");
+        response.addHeader("ETag", "\"v1\"");
+        compress(compression, "gzip", response);
+        assertEquals("Origin, Accept-Encoding", response.getHeader("Vary"));
+        assertEquals("W/\"v1\"", response.getHeader("ETag"));
+        assertEquals(TEXT, decode(response));
+
+        Response weak = text(TEXT);
+        weak.addHeader("Vary", "*");
+        weak.addHeader("ETag", "W/\"v1\"");
+        compress(compression, "gzip", weak);
+        assertEquals("*", weak.getHeader("Vary"));
+        assertEquals("W/\"v1\"", weak.getHeader("ETag"));
+
+        Response listed = text(TEXT);
+        listed.addHeader("Vary", "accept-encoding");
+        compress(compression, "gzip", listed);
+        assertEquals("accept-encoding", listed.getHeader("Vary"));
+    }
+
+    @Test
+    void skipsResponsesThatMustNotBeCompressed() throws IOException {
+        Compression compression = new Compression();
+
+        Response partial = text(TEXT);
+        partial.setStatusCode(StatusCodes.PARTIAL_CONTENT);
+        partial.addHeader("Content-Range", "bytes 0-9/100");
+        Response noContent = text(TEXT);
+        noContent.setStatusCode(StatusCodes.NO_CONTENT);
+        Response notModified = text(TEXT);
+        notModified.setStatusCode(StatusCodes.NOT_MODIFIED);
+        Response encoded = text(TEXT);
+        encoded.addHeader("Content-Encoding", "br");
+        Response image = text(TEXT);
+        image.setContentType("image/png");
+
+        for (Response response : new Response[]{partial, noContent, notModified, encoded, image}) {
+            compress(compression, "gzip", response);
+            String encoding = response.getHeader("Content-Encoding");
+            assertTrue(encoding == null || encoding.equals("br"), encoding);
+            assertNull(response.getHeader("Vary"));
+            assertEquals(TEXT, new String(body(response), StandardCharsets.UTF_8));
+        }
+
+        Request head = request("gzip");
+        head.setMethod(HttpMethod.HEAD);
+        Response headResponse = text(TEXT);
+        compression.apply(head, headResponse);
+        assertNull(headResponse.getHeader("Content-Encoding"));
+
+        Path file = Files.createTempFile("compression", ".txt");
+        try {
+            Files.writeString(file, TEXT);
+            Response fileResponse = new Response();
+            fileResponse.setContentType("text/plain");
+            fileResponse.sendFile(FileChannel.open(file, StandardOpenOption.READ), 0, TEXT.length());
+            compress(compression, "gzip", fileResponse);
+            assertNull(fileResponse.getHeader("Content-Encoding"));
+            assertTrue(fileResponse.hasFileBody());
+            fileResponse.discardBody();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void reusesTheCompressedFormOfIdenticalBodies() throws IOException {
+        Compression compression = new Compression().cache(1, 64 * 1024);
+        byte[] first = body(compress(compression, "gzip", text(TEXT)));
+        byte[] again = compress(compression, "gzip", text(TEXT)).getBufferedBody().array();
+        assertArrayEquals(first, again);
+        assertSame(compress(compression, "gzip", text(TEXT)).getBufferedBody().array(), again);
+
+        // Other bodies and codings take over the slots, and are never mixed up
+        assertEquals(TEXT, decode(compress(compression, "deflate", text(TEXT))));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(TEXT + i, decode(compress(compression, "gzip", text(TEXT + i))));
+        }
+        byte[] recompressed = compress(compression, "gzip", text(TEXT)).getBufferedBody().array();
+        assertNotSame(again, recompressed);
+        assertArrayEquals(first, recompressed);
+    }
+
+    @Test
+    void doesNotReuseAnEntryForAChangedArray() throws IOException {
+        Compression compression = new Compression().cache(16, 64 * 1024);
+        byte[] content = TEXT.getBytes(StandardCharsets.UTF_8);
+        Response first = new Response();
+        first.setContentType("text/plain");
+        first.send(content);
+        compress(compression, "gzip", first);
+
+        content[0] = 'a';
+        Response second = new Response();
+        second.setContentType("text/plain");
+        second.send(content);
+        compress(compression, "gzip", second);
+        assertEquals("a" + TEXT.substring(1), decode(second));
+    }
+
+    @Test
+    void doesNotCacheBodiesAboveTheLimit() {
+        Compression compression = new Compression().cache(16, 100);
+        byte[] first = compress(compression, "gzip", text(TEXT)).getBufferedBody().array();
+        byte[] second = compress(compression, "gzip", text(TEXT)).getBufferedBody().array();
+        assertNotSame(first, second);
+        assertArrayEquals(first, second);
+        assertEquals(ByteBuffer.wrap(first), ByteBuffer.wrap(second));
+    }
+}
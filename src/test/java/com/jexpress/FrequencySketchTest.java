@@ -0,0 +1,59 @@
+package com.jexpress;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrequencySketchTest {
+
+    @Test
+    void countsUpToFifteen() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        int key = "/popular".hashCode();
+        assertEquals(0, sketch.frequency(key));
+        for (int i = 1; i <= 20; i++) {
+            sketch.increment(key);
+            assertEquals(Math.min(i, 15), sketch.frequency(key));
+        }
+    }
+
+    @Test
+    void keepsKeysApart() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("/a".hashCode());
+        }
+        sketch.increment("/b".hashCode());
+        assertEquals(5, sketch.frequency("/a".hashCode()));
+        assertEquals(1, sketch.frequency("/b".hashCode()));
+        assertEquals(0, sketch.frequency("/c".hashCode()));
+    }
+
+    @Test
+    void halvesCountsAfterTenIncrementsPerCounter() {
+        // 16 expected entries gives 32 words, so a sample of 320 increments
+        FrequencySketch sketch = new FrequencySketch(16);
+        int popular = "/popular".hashCode();
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(popular);
+        }
+        int key = 0;
+        while (sketch.frequency(popular) == 15) {
+            sketch.increment(key++);
+        }
+        // Saturated increments are not counted, so the others make up the sample
+        assertEquals(320 - 15, key);
+        assertEquals(7, sketch.frequency(popular));
+
+        // After a reset the sample restarts from the halved counts, so the
+        // next one comes after about half as many increments, not at once
+        int resetAt = key;
+        while (sketch.frequency(popular) >= 7) {
+            sketch.increment(key++);
+        }
+        int period = key - resetAt;
+        assertTrue(period > 100 && period <= 320, "next reset after " + period);
+        assertTrue(sketch.frequency(popular) <= 4);
+    }
+}
@@ -0,0 +1,251 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpParserTest {
+    private static final String HEAD = "POST /users/42?page=2 HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "X-Padded: \t spaced value \t\r\n"
+            + "Content-Length: 5\r\n"
+            + "\r\n";
+    private static final String BODY = "hello";
+
+    /**
+     * Copy text into a buffer the way a connection reads it, with the
+     * whole of it available.
+     */
+    private static ByteBuffer buffer(ServerConfig config, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(config.readBufferSize(), bytes.length));
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static Request parse(ServerConfig config, String text) throws HttpParseException {
+        ByteBuffer buffer = buffer(config, text);
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        Request request = new Request();
+        assertTrue(parser.parse(buffer, request), "head incomplete");
+        return request;
+    }
+
+    private static Request parse(String text) throws HttpParseException {
+        return parse(new ServerConfig(), text);
+    }
+
+    private static int reject(ServerConfig config, String text) {
+        return assertThrows(HttpParseException.class, () -> parse(config, text)).getStatusCode();
+    }
+
+    private static int reject(String text) {
+        return reject(new ServerConfig(), text);
+    }
+
+    private static void assertParsed(Request request) {
+        assertEquals(HttpMethod.POST, request.getMethod());
+        assertEquals("/users/42", request.getPath());
+        assertEquals("page=2", request.getQueryString());
+        assertEquals("2", request.getQueryParam("page"));
+        assertEquals(HttpParser.HTTP_1_1, request.getProtocol());
+        assertEquals("example.com", request.getHeader("host"));
+        assertEquals("spaced value", request.getHeader("X-Padded"));
+        assertEquals(5, request.getContentLength());
+        assertFalse(request.isChunked());
+    }
+
+    @Test
+    void parsesRequestLineAndHeaders() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        ByteBuffer buffer = buffer(config, HEAD + BODY);
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        Request request = new Request();
+        assertTrue(parser.parse(buffer, request));
+        assertParsed(request);
+        assertEquals(HEAD.length(), buffer.position(), "position must be at the body");
+    }
+
+    @Test
+    void resumesAfterASplitAtEveryByte() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        String text = HEAD + BODY;
+        for (int split = 0; split <= text.length(); split++) {
+            ByteBuffer buffer = buffer(config, text);
+            HttpParser parser = new HttpParser(config);
+            parser.reset(buffer);
+            Request request = new Request();
+            buffer.limit(split);
+            boolean done = parser.parse(buffer, request);
+            assertEquals(split >= HEAD.length(), done, "split at " + split);
+            if (!done) {
+                buffer.limit(text.length());
+                assertTrue(parser.parse(buffer, request), "split at " + split);
+            }
+            assertParsed(request);
+            assertEquals(HEAD.length(), buffer.position(), "split at " + split);
+        }
+    }
+
+    @Test
+    void parsesOneByteAtATime() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        ByteBuffer buffer = buffer(config, HEAD + BODY);
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        Request request = new Request();
+        int limit = 0;
+        do {
+            buffer.limit(++limit);
+        } while (!parser.parse(buffer, request));
+        assertEquals(HEAD.length(), limit);
+        assertParsed(request);
+    }
+
+    @Test
+    void parsesPipelinedRequestsFromOneBuffer() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        ByteBuffer buffer = buffer(config, "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        Request first = new Request();
+        assertTrue(parser.parse(buffer, first));
+        parser.reset(buffer);
+        Request second = new Request();
+        assertTrue(parser.parse(buffer, second));
+        assertEquals("/a", first.getPath());
+        assertEquals("/b", second.getPath());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void acceptsBareLineFeedsAndLeadingEmptyLines() throws HttpParseException {
+        Request request = parse("\r\n\nGET / HTTP/1.0\nHost: a\n\n");
+        assertEquals(HttpMethod.GET, request.getMethod());
+        assertEquals(HttpParser.HTTP_1_0, request.getProtocol());
+        assertEquals("a", request.getHeader("Host"));
+        assertNull(request.getQueryString());
+    }
+
+    @Test
+    void rejectsContentLengthWithTransferEncoding() {
+        assertEquals(StatusCodes.BAD_REQUEST, reject("POST / HTTP/1.1\r\n"
+                + "Content-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n"));
+    }
+
+    @Test
+    void acceptsOnlyALoneChunkedCoding() throws HttpParseException {
+        assertTrue(parse("POST / HTTP/1.1\r\nTransfer-Encoding: Chunked\r\n\r\n").isChunked());
+        assertEquals(StatusCodes.NOT_IMPLEMENTED,
+                reject("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST,
+                reject("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST,
+                reject("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST,
+                reject("POST / HTTP/1.0\r\nTransfer-Encoding: chunked\r\n\r\n"));
+    }
+
+    @Test
+    void checksContentLength() throws HttpParseException {
+        assertEquals(7, parse("POST / HTTP/1.1\r\nContent-Length: 7\r\ncontent-length: 7\r\n\r\n")
+                .getContentLength());
+        assertEquals(StatusCodes.BAD_REQUEST,
+                reject("POST / HTTP/1.1\r\nContent-Length: 7\r\nContent-Length: 8\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("POST / HTTP/1.1\r\nContent-Length: 1e3\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST,
+                reject("POST / HTTP/1.1\r\nContent-Length: 1234567890123456789\r\n\r\n"));
+    }
+
+    @Test
+    void rejectsObsoleteLineFolding() {
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET / HTTP/1.1\r\nX-A: one\r\n two\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET / HTTP/1.1\r\nX-A: one\r\n\ttwo\r\n\r\n"));
+    }
+
+    @Test
+    void rejectsMalformedHeaderLines() {
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET / HTTP/1.1\r\nNo colon\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET / HTTP/1.1\r\n: empty name\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET / HTTP/1.1\r\nHost : a\r\n\r\n"));
+    }
+
+    @Test
+    void rejectsMalformedRequestLines() {
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET HTTP/1.1\r\n\r\n"));
+        assertEquals(StatusCodes.BAD_REQUEST, reject("GET / FTP/1.1\r\n\r\n"));
+        assertEquals(StatusCodes.NOT_IMPLEMENTED, reject("BREW / HTTP/1.1\r\n\r\n"));
+        assertEquals(StatusCodes.HTTP_VERSION_NOT_SUPPORTED, reject("GET / HTTP/2.0\r\n\r\n"));
+    }
+
+    @Test
+    void limitsTheRequestLine() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        config.maxRequestLineLength = 32;
+        String path = "/" + "a".repeat(32);
+        assertEquals("/" + "a".repeat(16), parse(config, "GET /" + "a".repeat(16) + " HTTP/1.1\r\n\r\n").getPath());
+        assertEquals(StatusCodes.URI_TOO_LONG, reject(config, "GET " + path + " HTTP/1.1\r\n\r\n"));
+
+        // Rejected before the line ends
+        ByteBuffer buffer = buffer(config, "GET " + path);
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        HttpParseException e = assertThrows(HttpParseException.class, () -> parser.parse(buffer, new Request()));
+        assertEquals(StatusCodes.URI_TOO_LONG, e.getStatusCode());
+    }
+
+    @Test
+    void limitsTheHeadSize() {
+        ServerConfig config = new ServerConfig();
+        config.maxHeaderSize = 64;
+        assertEquals(StatusCodes.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                reject(config, "GET / HTTP/1.1\r\nX-Long: " + "v".repeat(64) + "\r\n\r\n"));
+
+        // Rejected before the header line ends
+        ByteBuffer buffer = buffer(config, "GET / HTTP/1.1\r\nX-Long: " + "v".repeat(64));
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        HttpParseException e = assertThrows(HttpParseException.class, () -> parser.parse(buffer, new Request()));
+        assertEquals(StatusCodes.REQUEST_HEADER_FIELDS_TOO_LARGE, e.getStatusCode());
+    }
+
+    @Test
+    void limitsTheHeaderCount() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        config.maxHeaderCount = 3;
+        parse(config, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n");
+        assertEquals(StatusCodes.REQUEST_HEADER_FIELDS_TOO_LARGE,
+                reject(config, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\n\r\n"));
+    }
+
+    @Test
+    void overflowDependsOnWhereTheHeadWasCutOff() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        ByteBuffer buffer = buffer(config, "GET /partial");
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        Request request = new Request();
+        assertFalse(parser.parse(buffer, request));
+        assertEquals(StatusCodes.URI_TOO_LONG, parser.overflow().getStatusCode());
+
+        ByteBuffer headers = buffer(config, "GET / HTTP/1.1\r\nX-Partial: ");
+        parser.reset(headers);
+        assertFalse(parser.parse(headers, new Request()));
+        assertEquals(StatusCodes.REQUEST_HEADER_FIELDS_TOO_LARGE, parser.overflow().getStatusCode());
+    }
+}
@@ -0,0 +1,109 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decodes queries the way a handler sees them: parsed from a request line
+ * and decoded on first access.
+ */
+class QueryDecoderTest {
+
+    private static Request request(ServerConfig config, String query) throws HttpParseException {
+        byte[] head = ("GET /search?" + query + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(head);
+        HttpParser parser = new HttpParser(config);
+        parser.reset(buffer);
+        Request request = new Request();
+        assertTrue(parser.parse(buffer, request));
+        return request;
+    }
+
+    private static Request request(String query) throws HttpParseException {
+        return request(new ServerConfig(), query);
+    }
+
+    @Test
+    void decodesEscapesAndPlus() throws HttpParseException {
+        Request request = request("q=caf%C3%A9+au+lait&sym=%26%3D%2b&empty=&flag");
+        assertEquals("café au lait", request.getQueryParam("q"));
+        assertEquals("&=+", request.getQueryParam("sym"));
+        assertEquals("", request.getQueryParam("empty"));
+        assertEquals("", request.getQueryParam("flag"));
+        assertNull(request.getQueryParam("missing"));
+        assertEquals("q=caf%C3%A9+au+lait&sym=%26%3D%2b&empty=&flag", request.getQueryString());
+    }
+
+    @Test
+    void decodesNames() throws HttpParseException {
+        Request request = request("first+name=Ada&a%5Bb%5D=1");
+        assertEquals("Ada", request.getQueryParam("first name"));
+        assertEquals("1", request.getQueryParam("a[b]"));
+    }
+
+    @Test
+    void keepsMalformedEscapesLiterally() throws HttpParseException {
+        Request request = request("a=%zz&b=%4&c=%&d=100%&e=%G1&f=%%41&g=%4%41");
+        assertEquals("%zz", request.getQueryParam("a"));
+        assertEquals("%4", request.getQueryParam("b"));
+        assertEquals("%", request.getQueryParam("c"));
+        assertEquals("100%", request.getQueryParam("d"));
+        assertEquals("%G1", request.getQueryParam("e"));
+        assertEquals("%A", request.getQueryParam("f"));
+        assertEquals("%4A", request.getQueryParam("g"));
+    }
+
+    @Test
+    void keepsEveryValueOfARepeatedName() throws HttpParseException {
+        Request request = request("tag=a&x=1&tag=b&tag=&tag=c");
+        assertEquals("a", request.getQueryParam("tag"));
+        assertEquals(Arrays.asList("a", "b", "", "c"), request.getQueryParamValues("tag"));
+        assertEquals(Collections.singletonList("1"), request.getQueryParamValues("x"));
+        assertEquals(Collections.emptyList(), request.getQueryParamValues("missing"));
+
+        Map<String, String> params = request.getQueryParams();
+        assertEquals(Arrays.asList("tag", "x"), Arrays.asList(params.keySet().toArray()));
+        assertEquals("a", params.get("tag"));
+    }
+
+    @Test
+    void skipsEmptyPairsAndSplitsOnTheFirstEquals() throws HttpParseException {
+        Request request = request("&&k=a=b&&");
+        assertEquals(1, request.getQueryParams().size());
+        assertEquals("a=b", request.getQueryParam("k"));
+        assertEquals(Collections.emptyMap(), request("").getQueryParams());
+    }
+
+    @Test
+    void limitsTheParameterCount() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        config.maxQueryParams = 3;
+        assertEquals(3, request(config, "a=1&b=2&c=3").getQueryParams().size());
+        Request request = request(config, "a=1&b=2&c=3&d=4");
+        UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> request.getQueryParam("a"));
+        assertEquals(StatusCodes.BAD_REQUEST, ((HttpParseException) e.getCause()).getStatusCode());
+        // The failure sticks, so the handler cannot read a partial query
+        assertThrows(UncheckedIOException.class, request::getQueryParams);
+    }
+
+    @Test
+    void limitsTheEncodedLengthOfNamesAndValues() throws HttpParseException {
+        ServerConfig config = new ServerConfig();
+        config.maxQueryParamLength = 6;
+        assertEquals("é", request(config, "k=%C3%A9").getQueryParam("k"));
+        assertThrows(UncheckedIOException.class, () -> request(config, "k=%C3%A9%C3%A9").getQueryParam("k"));
+        assertThrows(UncheckedIOException.class, () -> request(config, "longname=1").getQueryParams());
+    }
+}
@@ -0,0 +1,128 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static Request request(String remoteAddress, String apiKey) {
+        Request request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.setPath("/");
+        request.setRemoteAddress(remoteAddress);
+        if (apiKey != null) {
+            request.addHeader("X-Api-Key", apiKey);
+        }
+        return request;
+    }
+
+    private static Response send(RateLimiter limiter, Request request) {
+        MiddlewareChain chain = new MiddlewareChain(new Middleware[]{limiter}, (req, res) -> res.send("ok"));
+        Response response = new Response();
+        chain.run(request, response);
+        return response;
+    }
+
+    private static int status(RateLimiter limiter, String remoteAddress, String apiKey) {
+        return send(limiter, request(remoteAddress, apiKey)).getStatusCode();
+    }
+
+    @Test
+    void grantsTheBurstThenRefusesWithTheWait() {
+        RateLimiter limiter = new RateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("a"), "permit " + i);
+        }
+        long wait = limiter.tryAcquire("a");
+        assertTrue(wait > SECOND * 9 / 10 && wait <= SECOND, "wait " + wait);
+        // A refusal takes no permit, so the wait only shrinks
+        assertTrue(limiter.tryAcquire("a") <= wait);
+        assertEquals(0, limiter.tryAcquire("b"), "clients have their own buckets");
+    }
+
+    @Test
+    void refillsAtThePermitRate() throws InterruptedException {
+        // One permit every 50 ms
+        RateLimiter limiter = new RateLimiter(20, 2);
+        assertEquals(0, limiter.tryAcquire("a"));
+        assertEquals(0, limiter.tryAcquire("a"));
+        long wait = limiter.tryAcquire("a");
+        assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(50), "wait " + wait);
+        Thread.sleep(60);
+        assertEquals(0, limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a") > 0, "one permit per interval");
+
+        // Refills up to the burst and no further
+        Thread.sleep(250);
+        assertEquals(0, limiter.tryAcquire("a"));
+        assertEquals(0, limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a") > 0);
+    }
+
+    @Test
+    void answersWith429AndRetryAfterInWholeSeconds() {
+        // One permit every 2.5 seconds
+        RateLimiter limiter = new RateLimiter(0.4, 1);
+        assertEquals(StatusCodes.OK, status(limiter, "10.0.0.1", null));
+        Response refused = send(limiter, request("10.0.0.1", null));
+        assertEquals(StatusCodes.TOO_MANY_REQUESTS, refused.getStatusCode());
+        assertEquals("3", refused.getHeader("Retry-After"));
+        assertEquals("429 Too Many Requests", refused.getBody());
+
+        // Less than a second is still one
+        RateLimiter fast = new RateLimiter(10, 1);
+        status(fast, "10.0.0.1", null);
+        assertEquals("1", send(fast, request("10.0.0.1", null)).getHeader("Retry-After"));
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    void doesNotLimitRequestsWithoutAKey() {
+        RateLimiter limiter = new RateLimiter(1, 1).keyBy(request -> null);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(StatusCodes.OK, status(limiter, "10.0.0.1", null));
+        }
+        assertEquals(0, limiter.getRejectedCount());
+    }
+
+    @Test
+    void keysByHeaderFallingBackToTheAddress() {
+        RateLimiter limiter = new RateLimiter(1, 1).byHeader("X-Api-Key");
+        assertEquals(StatusCodes.OK, status(limiter, "10.0.0.1", "key-1"));
+        assertEquals(StatusCodes.TOO_MANY_REQUESTS, status(limiter, "10.0.0.2", "key-1"));
+        assertEquals(StatusCodes.OK, status(limiter, "10.0.0.1", "key-2"));
+        assertEquals(StatusCodes.OK, status(limiter, "10.0.0.1", null));
+        assertEquals(StatusCodes.TOO_MANY_REQUESTS, status(limiter, "10.0.0.1", null));
+        assertEquals(StatusCodes.OK, status(limiter, "10.0.0.2", null));
+    }
+
+    @Test
+    void sharesOneBucketBeyondMaxKeys() {
+        RateLimiter limiter = new RateLimiter(1, 1).maxKeys(2);
+        assertEquals(0, limiter.tryAcquire("a"));
+        assertEquals(0, limiter.tryAcquire("b"));
+        assertEquals(0, limiter.tryAcquire("c"));
+        assertTrue(limiter.tryAcquire("d") > 0, "c and d share the overflow bucket");
+        assertTrue(limiter.tryAcquire("c") > 0);
+        assertTrue(limiter.tryAcquire("a") > 0, "tracked keys keep their own bucket");
+    }
+
+    @Test
+    void sweepsFullBucketsToMakeRoom() throws InterruptedException {
+        // One permit every 200 ms; the full table is swept at most every 100 ms
+        RateLimiter limiter = new RateLimiter(5, 1).maxKeys(2);
+        assertEquals(0, limiter.tryAcquire("a"));
+        assertEquals(0, limiter.tryAcquire("b"));
+        Thread.sleep(250);
+        assertEquals(0, limiter.tryAcquire("c"));
+        assertEquals(0, limiter.tryAcquire("d"), "c and d got buckets of their own");
+        assertTrue(limiter.tryAcquire("c") > 0);
+        assertTrue(limiter.tryAcquire("d") > 0);
+    }
+}
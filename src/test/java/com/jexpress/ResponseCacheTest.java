@@ -0,0 +1,227 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a cached route's chain directly, counting how often its handler runs.
+ */
+class ResponseCacheTest {
+    private final ResponseCache cache = new ResponseCache(64 * 1024);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private MiddlewareChain route(Middleware policy, BiConsumer<Request, Response> handler) {
+        return new MiddlewareChain(new Middleware[]{policy}, (req, res) -> {
+            calls.incrementAndGet();
+            handler.accept(req, res);
+        });
+    }
+
+    private MiddlewareChain route(BiConsumer<Request, Response> handler) {
+        return route(cache.ttl(60_000), handler);
+    }
+
+    /**
+     * Send a GET request with header name and value pairs through a chain.
+     */
+    private static Response get(MiddlewareChain chain, String path, String... headers) {
+        Request request = new Request();
+        request.setMethod(HttpMethod.GET);
+        request.setPath(path);
+        for (int i = 0; i < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        Response response = new Response();
+        chain.run(request, response);
+        return response;
+    }
+
+    private static String body(Response response) {
+        return StandardCharsets.UTF_8.decode(response.getBufferedBody()).toString();
+    }
+
+    @Test
+    void answersRepeatedRequestsFromTheCache() {
+        MiddlewareChain chain = route((req, res) -> {
+            res.addHeader("X-Version", "1");
+            res.send("hello " + req.getPath());
+        });
+        Response first = get(chain, "/a");
+        Response second = get(chain, "/a");
+        assertEquals(1, calls.get());
+        assertEquals("hello /a", body(second));
+        assertEquals("1", second.getHeader("X-Version"));
+        assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+        assertEquals(ResponseCache.entityTag("hello /a".getBytes(StandardCharsets.UTF_8)), second.getHeader("ETag"));
+
+        assertEquals("hello /b", body(get(chain, "/b")));
+        assertEquals(2, calls.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void answersAMatchingIfNoneMatchWith304() {
+        MiddlewareChain chain = route((req, res) -> res.send("body"));
+        String etag = ResponseCache.entityTag("body".getBytes(StandardCharsets.UTF_8));
+        // On the miss that stores the response, and on hits
+        assertEquals(StatusCodes.NOT_MODIFIED, get(chain, "/a", "If-None-Match", etag).getStatusCode());
+        assertEquals(StatusCodes.NOT_MODIFIED, get(chain, "/a", "If-None-Match", "W/" + etag).getStatusCode());
+        Response other = get(chain, "/a", "If-None-Match", "\"other\"");
+        assertEquals(StatusCodes.OK, other.getStatusCode());
+        assertEquals("body", body(other));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void expiresEntries() throws InterruptedException {
+        MiddlewareChain chain = route(cache.ttl(1), (req, res) -> res.send("body"));
+        get(chain, "/a");
+        Thread.sleep(5);
+        get(chain, "/a");
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void keepsOnlySharedSuccessfulResponses() {
+        List<BiConsumer<Request, Response>> uncacheable = new ArrayList<>();
+        uncacheable.add((req, res) -> {
+            res.addHeader("Set-Cookie", "session=1");
+            res.send("body");
+        });
+        uncacheable.add((req, res) -> {
+            res.addHeader("Cache-Control", "private, max-age=60");
+            res.send("body");
+        });
+        uncacheable.add((req, res) -> {
+            res.addHeader("Cache-Control", "no-store");
+            res.send("body");
+        });
+        uncacheable.add((req, res) -> {
+            res.addHeader("Content-Encoding", "gzip");
+            res.send("body");
+        });
+        uncacheable.add((req, res) -> {
+            res.setStatusCode(StatusCodes.NOT_FOUND);
+            res.send("missing");
+        });
+        uncacheable.add((req, res) -> {
+            res.send("body");
+            req.setAsyncResult(CompletableFuture.completedFuture(null));
+        });
+        uncacheable.add((req, res) -> res.stream(out -> out.write(1)));
+        for (int i = 0; i < uncacheable.size(); i++) {
+            calls.set(0);
+            MiddlewareChain chain = route(uncacheable.get(i));
+            get(chain, "/a");
+            Response second = get(chain, "/a");
+            assertEquals(2, calls.get(), "handler " + i);
+            assertNull(second.getHeader("ETag"), "handler " + i);
+        }
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void bypassesRequestsWithAuthorization() {
+        MiddlewareChain chain = route((req, res) -> res.send("for " + req.getHeader("Authorization")));
+        get(chain, "/a");
+        assertEquals("for Bearer x", body(get(chain, "/a", "Authorization", "Bearer x")));
+        assertEquals("for Bearer y", body(get(chain, "/a", "Authorization", "Bearer y")));
+        assertEquals(3, calls.get());
+        assertEquals("for null", body(get(chain, "/a")));
+        assertEquals(3, calls.get());
+
+        // Unless the route varies on it
+        calls.set(0);
+        MiddlewareChain varying = route(cache.ttl(60_000, "Authorization"),
+                (req, res) -> res.send("for " + req.getHeader("Authorization")));
+        get(varying, "/b", "Authorization", "Bearer x");
+        assertEquals("for Bearer x", body(get(varying, "/b", "Authorization", "Bearer x")));
+        assertEquals("for Bearer y", body(get(varying, "/b", "Authorization", "Bearer y")));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void keysOnVaryHeaders() {
+        MiddlewareChain chain = route(cache.ttl(60_000, "Accept-Language"),
+                (req, res) -> res.send("lang " + req.getHeader("Accept-Language")));
+        assertEquals("lang en", body(get(chain, "/a", "Accept-Language", "en")));
+        assertEquals("lang fr", body(get(chain, "/a", "Accept-Language", "fr")));
+        Response hit = get(chain, "/a", "Accept-Language", "en");
+        assertEquals("lang en", body(hit));
+        assertEquals("Accept-Language", hit.getHeader("Vary"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void staysWithinTheBudget() {
+        ResponseCache small = new ResponseCache(4096);
+        MiddlewareChain chain = route(small.ttl(60_000), (req, res) -> res.send("x".repeat(500)));
+        for (int i = 0; i < 100; i++) {
+            get(chain, "/" + i);
+            assertTrue(small.getSize() <= 4096, "size " + small.getSize());
+        }
+        assertTrue(small.getSize() > 0);
+
+        // Heavier than the whole budget, so never kept
+        MiddlewareChain huge = route(small.ttl(60_000), (req, res) -> res.send("x".repeat(5000)));
+        calls.set(0);
+        get(huge, "/huge");
+        get(huge, "/huge");
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void concurrentMissesRunTheHandlerOnce() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MiddlewareChain chain = route((req, res) -> {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            res.send("shared");
+        });
+
+        Response[] responses = new Response[8];
+        Thread[] threads = new Thread[responses.length];
+        for (int i = 0; i < threads.length; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> responses[index] = get(chain, "/slow"));
+        }
+        threads[0].start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < threads.length; i++) {
+            threads[i].start();
+        }
+        // Give the followers time to find the request in flight
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(1, calls.get());
+        for (Response response : responses) {
+            assertNotNull(response);
+            assertEquals("shared", body(response));
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(threads.length - 1, cache.getHitCount());
+    }
+}
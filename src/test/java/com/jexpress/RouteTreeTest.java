@@ -0,0 +1,158 @@
+package com.jexpress;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RouteTreeTest {
+    private final RouteTree tree = new RouteTree();
+
+    private Router.Route add(HttpMethod method, String template) {
+        Router.Route route = new Router.Route(method, template, (req, res) -> { });
+        tree.add(route);
+        return route;
+    }
+
+    private Router.Route add(String template) {
+        return add(HttpMethod.GET, template);
+    }
+
+    /**
+     * Find the GET route for a path.
+     *
+     * @return Template of the route and its captured values, or null
+     */
+    private String match(String path) {
+        String[] captures = new String[tree.getMaxParamCount()];
+        Router.Route route = tree.find(HttpMethod.GET, path, captures);
+        if (route == null) {
+            return null;
+        }
+        int count = route.extractPathParams(path).size();
+        return route.getPath() + " " + Arrays.asList(captures).subList(0, count);
+    }
+
+    @Test
+    void prefersMoreSpecificSegmentsRegardlessOfOrder() {
+        add("/files/*");
+        add("/files/*/raw");
+        add("/files/{id}");
+        add("/files/{id}/raw");
+        add("/files/{name}.json");
+        add("/files/{name}.json/raw");
+        add("/files/latest");
+        add("/files/latest/raw");
+
+        assertEquals("/files/latest []", match("/files/latest"));
+        assertEquals("/files/latest/raw []", match("/files/latest/raw"));
+        assertEquals("/files/{name}.json [a]", match("/files/a.json"));
+        assertEquals("/files/{name}.json/raw [a]", match("/files/a.json/raw"));
+        assertEquals("/files/{id} [a]", match("/files/a"));
+        assertEquals("/files/{id}/raw [a]", match("/files/a/raw"));
+        // Parameters need a non-empty segment; * does not
+        assertEquals("/files/*/raw []", match("/files//raw"));
+        assertEquals("/files/* [a/b/c]", match("/files/a/b/c"));
+        assertEquals("/files/* [latest/other]", match("/files/latest/other"));
+    }
+
+    @Test
+    void backtracksOutOfBranchesWithoutARoute() {
+        add("/users/me/settings");
+        add("/users/{id}/profile");
+        add("/users/{id}/{tab}/edit");
+        add("/users/*/posts");
+        add("/users/*");
+
+        assertEquals("/users/{id}/profile [me]", match("/users/me/profile"));
+        assertEquals("/users/*/posts []", match("/users/me/posts"));
+        assertEquals("/users/*/posts []", match("/users/1/posts"));
+        assertEquals("/users/{id}/{tab}/edit [1, posts]", match("/users/1/posts/edit"));
+        assertEquals("/users/* [1/posts/other]", match("/users/1/posts/other"));
+    }
+
+    @Test
+    void overwritesCapturesOfAFailedBranch() {
+        add("/p/{a}-{b}/x");
+        add("/p/{id}/y");
+        assertEquals("/p/{id}/y [1-2]", match("/p/1-2/y"));
+        assertEquals("/p/{a}-{b}/x [1, 2]", match("/p/1-2/x"));
+    }
+
+    @Test
+    void capturesMixedSegments() {
+        add("/img/{name}-{size}.png");
+        add("/u/{user}/img/{name}-{size}.png");
+        add("/v*/items");
+
+        assertEquals("/img/{name}-{size}.png [logo, 64]", match("/img/logo-64.png"));
+        assertEquals("/u/{user}/img/{name}-{size}.png [ada, logo, 64]", match("/u/ada/img/logo-64.png"));
+        assertNull(match("/img/logo.png"));
+        assertNull(match("/img/-64.png"));
+        assertEquals("/v*/items []", match("/v2/items"));
+        assertEquals("/v*/items []", match("/v/items"));
+        assertEquals(3, tree.getMaxParamCount());
+    }
+
+    @Test
+    void treatsTrailingSlashesAndEmptySegmentsAsSegments() {
+        add("/users");
+        add("/docs/");
+        add("/a/{id}/b");
+        add("/static/*");
+
+        assertEquals("/users []", match("/users"));
+        assertNull(match("/users/"));
+        assertEquals("/docs/ []", match("/docs/"));
+        assertNull(match("/docs"));
+        assertNull(match("/a//b"));
+        assertNull(match("/users//"));
+        assertEquals("/static/* []", match("/static/"));
+        assertEquals("/static/* [//x]", match("/static///x"));
+        assertNull(match("/static"));
+    }
+
+    @Test
+    void rejectsPathsWithoutALeadingSlash() {
+        add("/*");
+        assertEquals("/* [x]", match("/x"));
+        assertNull(match("x"));
+        assertNull(match(""));
+        assertNull(tree.find(HttpMethod.GET, null));
+        assertThrows(IllegalArgumentException.class, () -> add("users"));
+    }
+
+    @Test
+    void keepsTheFirstRouteForATemplate() {
+        Router.Route first = add("/items/{id}");
+        add("/items/{key}");
+        assertSame(first, tree.find(HttpMethod.GET, "/items/1"));
+    }
+
+    @Test
+    void collectsAllowedMethodsFromEveryMatchingRoute() {
+        add(HttpMethod.GET, "/items/{id}");
+        add(HttpMethod.DELETE, "/items/{id}");
+        add(HttpMethod.PUT, "/items/latest");
+        add(HttpMethod.OPTIONS, "/items/*");
+
+        // 405 when another method has a route; the Allow header lists them in enum order
+        assertNull(tree.find(HttpMethod.POST, "/items/1"));
+        assertEquals(EnumSet.of(HttpMethod.GET, HttpMethod.DELETE, HttpMethod.OPTIONS),
+                tree.allowedMethods("/items/1"));
+        assertEquals(EnumSet.of(HttpMethod.GET, HttpMethod.PUT, HttpMethod.DELETE, HttpMethod.OPTIONS),
+                tree.allowedMethods("/items/latest"));
+        assertEquals(EnumSet.of(HttpMethod.OPTIONS), tree.allowedMethods("/items/1/parts"));
+
+        // 404 when no route matches the path at all
+        assertTrue(tree.allowedMethods("/other").isEmpty());
+        assertTrue(tree.allowedMethods("/items").isEmpty());
+        assertTrue(tree.allowedMethods("items/1").isEmpty());
+    }
+}
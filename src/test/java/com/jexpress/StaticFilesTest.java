@@ -0,0 +1,273 @@
+package com.jexpress;
+
+import com.jexpress.utils.StatusCodes;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Serves files from a temporary directory by calling the handler directly,
+ * the way the router does for the path under the mount point.
+ */
+class StaticFilesTest {
+    private static final long MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+    private Path root;
+    private StaticFiles files;
+
+    @BeforeEach
+    void createRoot() throws IOException {
+        root = Files.createDirectory(dir.resolve("public"));
+        files = new StaticFiles(root).cache(16, 1000);
+    }
+
+    private Path write(String name, String content, long modified) throws IOException {
+        Path file = root.resolve(name);
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+        return file;
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return write(name, content, MODIFIED);
+    }
+
+    /**
+     * Request a file with header name and value pairs.
+     */
+    private Response request(HttpMethod method, String path, String... headers) {
+        Request request = new Request();
+        request.setMethod(method);
+        request.setPath("/assets/" + path);
+        request.addPathParam("*", path);
+        for (int i = 0; i < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        Response response = new Response();
+        files.accept(request, response);
+        return response;
+    }
+
+    private Response get(String path, String... headers) {
+        return request(HttpMethod.GET, path, headers);
+    }
+
+    private static String body(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.writeBody(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void keepsSmallFilesInMemory() throws IOException {
+        write("small.txt", "abc");
+        write("large.txt", "x".repeat(17));
+
+        Response small = get("small.txt");
+        assertEquals(StatusCodes.OK, small.getStatusCode());
+        assertFalse(small.hasFileBody());
+        assertEquals("abc", body(small));
+        assertEquals(3, files.cachedBytes());
+
+        Response large = get("large.txt");
+        assertTrue(large.hasFileBody());
+        assertEquals("x".repeat(17), body(large));
+        assertEquals(3, files.cachedBytes());
+    }
+
+    @Test
+    void reloadsChangedFiles() throws IOException {
+        write("a.txt", "old");
+        assertEquals("old", body(get("a.txt")));
+        write("a.txt", "new", MODIFIED + 1000);
+        Response response = get("a.txt");
+        assertFalse(response.hasFileBody());
+        assertEquals("new", body(response));
+        assertEquals(3, files.cachedBytes());
+    }
+
+    @Test
+    void dropsFilesThatOutgrowTheCache() throws IOException {
+        write("a.txt", "abc");
+        body(get("a.txt"));
+        write("a.txt", "x".repeat(17), MODIFIED + 1000);
+        Response response = get("a.txt");
+        assertTrue(response.hasFileBody());
+        assertEquals("x".repeat(17), body(response));
+        assertEquals(0, files.cachedBytes());
+    }
+
+    @Test
+    void dropsDeletedFiles() throws IOException {
+        Path file = write("a.txt", "abc");
+        body(get("a.txt"));
+        Files.delete(file);
+        assertEquals(StatusCodes.NOT_FOUND, get("a.txt").getStatusCode());
+        assertEquals(0, files.cachedBytes());
+
+        // Replaced by a directory
+        Files.createDirectory(file);
+        files.index(null);
+        write("b.txt", "abc");
+        body(get("b.txt"));
+        Files.delete(root.resolve("b.txt"));
+        Files.createDirectory(root.resolve("b.txt"));
+        assertEquals(StatusCodes.NOT_FOUND, get("b.txt").getStatusCode());
+        assertEquals(0, files.cachedBytes());
+    }
+
+    @Test
+    void evictsToStayWithinTheBudget() throws IOException {
+        // Hashed names: the old versions are never asked for again, and the
+        // new one displaces them once it is asked for more often
+        for (int i = 0; i < 200; i++) {
+            String name = "app." + i + ".js";
+            write(name, String.format("%016d", i));
+            for (int hit = 0; hit < 5; hit++) {
+                assertEquals(String.format("%016d", i), body(get(name)));
+            }
+            assertFalse(get(name).hasFileBody(), name);
+            assertTrue(files.cachedBytes() <= 1000, "cached " + files.cachedBytes());
+            if (i > 0) {
+                Files.delete(root.resolve("app." + (i - 1) + ".js"));
+            }
+        }
+    }
+
+    @Test
+    void cachingCanBeDisabled() throws IOException {
+        write("a.txt", "abc");
+        files.cache(0, 0);
+        Response response = get("a.txt");
+        assertTrue(response.hasFileBody());
+        assertEquals("abc", body(response));
+        assertEquals(0, files.cachedBytes());
+    }
+
+    @Test
+    void parsesSingleByteRanges() {
+        assertArrayEquals(new long[]{0, 4}, StaticFiles.parseRange("bytes=0-4", 10));
+        assertArrayEquals(new long[]{5, 9}, StaticFiles.parseRange("bytes=5-", 10));
+        assertArrayEquals(new long[]{8, 9}, StaticFiles.parseRange("bytes=8-100", 10));
+        assertArrayEquals(new long[]{7, 9}, StaticFiles.parseRange("bytes=-3", 10));
+        assertArrayEquals(new long[]{0, 9}, StaticFiles.parseRange("bytes=-20", 10));
+        assertArrayEquals(new long[]{3, 3}, StaticFiles.parseRange("bytes= 3-3 ", 10));
+
+        // Not satisfiable
+        assertEquals(0, StaticFiles.parseRange("bytes=10-", 10).length);
+        assertEquals(0, StaticFiles.parseRange("bytes=-0", 10).length);
+        assertEquals(0, StaticFiles.parseRange("bytes=-5", 0).length);
+
+        // Ignored, so the whole file is sent
+        assertNull(StaticFiles.parseRange("bytes=0-1,3-4", 10));
+        assertNull(StaticFiles.parseRange("items=0-4", 10));
+        assertNull(StaticFiles.parseRange("bytes=5-2", 10));
+        assertNull(StaticFiles.parseRange("bytes=a-b", 10));
+        assertNull(StaticFiles.parseRange("bytes=+1-2", 10));
+        assertNull(StaticFiles.parseRange("bytes=4", 10));
+    }
+
+    @Test
+    void answersRanges() throws IOException {
+        write("a.txt", "0123456789");
+        Response partial = get("a.txt", "Range", "bytes=2-4");
+        assertEquals(StatusCodes.PARTIAL_CONTENT, partial.getStatusCode());
+        assertEquals("bytes 2-4/10", partial.getHeader("Content-Range"));
+        assertEquals("234", body(partial));
+
+        Response outside = get("a.txt", "Range", "bytes=10-");
+        assertEquals(StatusCodes.RANGE_NOT_SATISFIABLE, outside.getStatusCode());
+        assertEquals("bytes */10", outside.getHeader("Content-Range"));
+
+        assertEquals(StatusCodes.OK, request(HttpMethod.HEAD, "a.txt", "Range", "bytes=2-4").getStatusCode());
+    }
+
+    @Test
+    void honoursIfRange() throws IOException {
+        write("a.txt", "0123456789");
+        Response full = get("a.txt");
+        String etag = full.getHeader("ETag");
+        String lastModified = full.getHeader("Last-Modified");
+
+        assertEquals(StatusCodes.PARTIAL_CONTENT, get("a.txt", "Range", "bytes=2-4", "If-Range", etag).getStatusCode());
+        assertEquals(StatusCodes.PARTIAL_CONTENT,
+                get("a.txt", "Range", "bytes=2-4", "If-Range", lastModified).getStatusCode());
+
+        // Any other validator, or a weak one, gets the whole file
+        Response stale = get("a.txt", "Range", "bytes=2-4", "If-Range", "\"other\"");
+        assertEquals(StatusCodes.OK, stale.getStatusCode());
+        assertEquals("0123456789", body(stale));
+        assertEquals(StatusCodes.OK, get("a.txt", "Range", "bytes=2-4", "If-Range", "W/" + etag).getStatusCode());
+        assertEquals(StatusCodes.OK,
+                get("a.txt", "Range", "bytes=2-4", "If-Range", "Thu, 01 Jan 1970 00:00:00 GMT").getStatusCode());
+    }
+
+    @Test
+    void ifNoneMatchTakesPrecedenceOverIfModifiedSince() throws IOException {
+        write("a.txt", "abc");
+        String etag = get("a.txt").getHeader("ETag");
+        String future = "Fri, 01 Jan 2100 00:00:00 GMT";
+        String past = "Thu, 01 Jan 1970 00:00:00 GMT";
+
+        assertEquals(StatusCodes.NOT_MODIFIED, get("a.txt", "If-None-Match", etag).getStatusCode());
+        assertEquals(StatusCodes.NOT_MODIFIED, get("a.txt", "If-None-Match", "\"x\", W/" + etag).getStatusCode());
+        assertEquals(StatusCodes.NOT_MODIFIED, get("a.txt", "If-None-Match", "*").getStatusCode());
+        assertEquals(StatusCodes.NOT_MODIFIED, get("a.txt", "If-Modified-Since", future).getStatusCode());
+        assertEquals(StatusCodes.OK, get("a.txt", "If-Modified-Since", past).getStatusCode());
+
+        assertEquals(StatusCodes.OK,
+                get("a.txt", "If-None-Match", "\"x\"", "If-Modified-Since", future).getStatusCode());
+        assertEquals(StatusCodes.NOT_MODIFIED,
+                get("a.txt", "If-None-Match", etag, "If-Modified-Since", past).getStatusCode());
+        // 304 wins over a range
+        assertEquals(StatusCodes.NOT_MODIFIED,
+                get("a.txt", "If-None-Match", etag, "Range", "bytes=0-0").getStatusCode());
+    }
+
+    @Test
+    void staysWithinTheRoot() throws IOException {
+        Files.writeString(dir.resolve("secret.txt"), "secret");
+        write(".hidden", "hidden");
+        Files.createDirectory(root.resolve("sub"));
+        write("sub/a.txt", "abc");
+
+        assertEquals(StatusCodes.OK, get("sub/a.txt").getStatusCode());
+        assertEquals(StatusCodes.OK, get("/sub//a.txt").getStatusCode());
+        assertEquals(StatusCodes.OK, get("sub%2Fa.txt").getStatusCode());
+
+        String[] escapes = {
+                "../secret.txt", "sub/../../secret.txt", "%2e%2e/secret.txt", "..%2fsecret.txt",
+                "sub/..%5c..%5csecret.txt", "./sub/a.txt", ".hidden", "sub/%2ehidden", "a.txt%00.html",
+        };
+        for (String path : escapes) {
+            assertEquals(StatusCodes.NOT_FOUND, get(path).getStatusCode(), path);
+        }
+        assertEquals(StatusCodes.BAD_REQUEST, get("%zz").getStatusCode());
+    }
+
+    @Test
+    void redirectsDirectoriesToTheirIndex() throws IOException {
+        Files.createDirectory(root.resolve("docs"));
+        write("docs/index.html", "<p>docs</p>");
+
+        Response redirect = get("docs");
+        assertEquals(StatusCodes.MOVED_PERMANENTLY, redirect.getStatusCode());
+        assertEquals("/assets/docs/", redirect.getHeader("Location"));
+        assertEquals("<p>docs</p>", body(get("docs/")));
+    }
+}
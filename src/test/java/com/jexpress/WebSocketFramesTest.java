@@ -0,0 +1,269 @@
+package com.jexpress;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebSocketFramesTest {
+    private static final byte[] KEY = {0x37, (byte) 0xFA, 0x21, 0x3D};
+
+    /**
+     * Encode a frame as a client sends it: masked, with the shortest
+     * length encoding unless {@code lengthBytes} asks for a longer one.
+     */
+    static byte[] clientFrame(boolean fin, int opcode, byte[] payload, int lengthBytes) {
+        int length = payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(2 + lengthBytes + 4 + length);
+        frame.put((byte) ((fin ? 0x80 : 0) | opcode));
+        if (lengthBytes == 0) {
+            frame.put((byte) (0x80 | length));
+        } else if (lengthBytes == 2) {
+            frame.put((byte) (0x80 | 126)).putShort((short) length);
+        } else {
+            frame.put((byte) (0x80 | 127)).putLong(length);
+        }
+        frame.put(KEY);
+        for (int i = 0; i < length; i++) {
+            frame.put((byte) (payload[i] ^ KEY[i & 3]));
+        }
+        return frame.array();
+    }
+
+    static byte[] clientFrame(boolean fin, int opcode, byte[] payload) {
+        int length = payload.length;
+        return clientFrame(fin, opcode, payload, length <= 125 ? 0 : length <= 0xFFFF ? 2 : 8);
+    }
+
+    static byte[] clientFrame(int opcode, String text) {
+        return clientFrame(true, opcode, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer all = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(p -> p.length).sum());
+        for (byte[] part : parts) {
+            all.put(part);
+        }
+        return all.array();
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + 7);
+        }
+        return payload;
+    }
+
+    /**
+     * Records what a decoder passes on, as "opcode:payload" for text and
+     * control frames.
+     */
+    private static final class Events implements WebSocketFrames.Listener {
+        final List<String> events = new ArrayList<>();
+        final List<byte[]> messages = new ArrayList<>();
+
+        @Override
+        public void onMessage(int opcode, byte[] payload) {
+            messages.add(payload);
+            events.add(opcode + ":" + new String(payload, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onControl(int opcode, byte[] payload) {
+            events.add(opcode + ":" + new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Events decode(int maxMessageSize, byte[] bytes) throws WebSocketFrames.ProtocolException {
+        Events events = new Events();
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        new WebSocketFrames.Decoder(maxMessageSize).decode(in, events);
+        assertFalse(in.hasRemaining(), "bytes left undecoded");
+        return events;
+    }
+
+    private static int reject(int maxMessageSize, byte[] bytes) {
+        return assertThrows(WebSocketFrames.ProtocolException.class, () -> decode(maxMessageSize, bytes))
+                .getCloseCode();
+    }
+
+    private static int reject(byte[] bytes) {
+        return reject(1 << 20, bytes);
+    }
+
+    @Test
+    void unmasksPayloadsOfEveryLengthAroundTheWordSize() throws WebSocketFrames.ProtocolException {
+        for (int length = 0; length <= 40; length++) {
+            byte[] payload = payload(length);
+            Events events = decode(1024, clientFrame(true, WebSocketFrames.BINARY, payload));
+            assertEquals(1, events.messages.size());
+            assertArrayEquals(payload, events.messages.get(0), "length " + length);
+        }
+    }
+
+    @Test
+    void decodesSixteenBitLengths() throws WebSocketFrames.ProtocolException {
+        for (int length : new int[] {126, 1000, 0xFFFF}) {
+            byte[] payload = payload(length);
+            byte[] frame = clientFrame(true, WebSocketFrames.BINARY, payload);
+            assertEquals(126, frame[1] & 0x7F);
+            assertArrayEquals(payload, decode(1 << 20, frame).messages.get(0), "length " + length);
+        }
+        // A long encoding of a short length is accepted
+        byte[] shortPayload = payload(5);
+        assertArrayEquals(shortPayload, decode(1024, clientFrame(true, WebSocketFrames.BINARY, shortPayload, 2))
+                .messages.get(0));
+    }
+
+    @Test
+    void decodesSixtyFourBitLengths() throws WebSocketFrames.ProtocolException {
+        byte[] payload = payload(0x10000 + 3);
+        byte[] frame = clientFrame(true, WebSocketFrames.BINARY, payload);
+        assertEquals(127, frame[1] & 0x7F);
+        assertArrayEquals(payload, decode(1 << 20, frame).messages.get(0));
+    }
+
+    @Test
+    void resumesAfterASplitAtEveryByte() throws WebSocketFrames.ProtocolException {
+        byte[] payload = payload(300);
+        byte[] bytes = concat(clientFrame(false, WebSocketFrames.BINARY, Arrays.copyOf(payload, 150)),
+                clientFrame(WebSocketFrames.PING, "ping"),
+                clientFrame(true, WebSocketFrames.CONTINUATION, Arrays.copyOfRange(payload, 150, 300)));
+        for (int split = 0; split <= bytes.length; split++) {
+            WebSocketFrames.Decoder decoder = new WebSocketFrames.Decoder(1024);
+            Events events = new Events();
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            in.limit(split);
+            decoder.decode(in, events);
+            // Only a partial header is left for the next read
+            assertTrue(in.remaining() < 14, "split at " + split);
+            in.limit(bytes.length);
+            decoder.decode(in, events);
+            assertFalse(in.hasRemaining(), "split at " + split);
+            assertEquals(Arrays.asList("9:ping"), events.events.subList(0, 1), "split at " + split);
+            assertArrayEquals(payload, events.messages.get(0), "split at " + split);
+        }
+    }
+
+    @Test
+    void unmasksAcrossReadsOfAnySize() throws WebSocketFrames.ProtocolException {
+        byte[] payload = payload(500);
+        byte[] frame = clientFrame(true, WebSocketFrames.BINARY, payload);
+        for (int step = 1; step <= 17; step++) {
+            WebSocketFrames.Decoder decoder = new WebSocketFrames.Decoder(1024);
+            Events events = new Events();
+            ByteBuffer in = ByteBuffer.allocate(frame.length);
+            in.flip();
+            for (int sent = 0; sent < frame.length; sent += step) {
+                in.compact();
+                in.put(frame, sent, Math.min(step, frame.length - sent));
+                in.flip();
+                decoder.decode(in, events);
+            }
+            assertEquals(1, events.messages.size(), "step " + step);
+            assertArrayEquals(payload, events.messages.get(0), "step " + step);
+        }
+    }
+
+    @Test
+    void reassemblesFragmentsAroundControlFrames() throws WebSocketFrames.ProtocolException {
+        Events events = decode(1024, concat(
+                clientFrame(false, WebSocketFrames.TEXT, "Hel".getBytes(StandardCharsets.UTF_8)),
+                clientFrame(WebSocketFrames.PING, "a"),
+                clientFrame(false, WebSocketFrames.CONTINUATION, "lo ".getBytes(StandardCharsets.UTF_8)),
+                clientFrame(WebSocketFrames.PONG, "b"),
+                clientFrame(true, WebSocketFrames.CONTINUATION, "world".getBytes(StandardCharsets.UTF_8)),
+                clientFrame(WebSocketFrames.TEXT, "next")));
+        assertEquals(Arrays.asList("9:a", "10:b", "1:Hello world", "1:next"), events.events);
+    }
+
+    @Test
+    void rejectsFramesThatBreakTheProtocol() {
+        byte[] text = clientFrame(WebSocketFrames.TEXT, "x");
+
+        byte[] unmasked = text.clone();
+        unmasked[1] &= 0x7F;
+        assertEquals(WebSocket.PROTOCOL_ERROR, reject(unmasked));
+
+        byte[] reserved = text.clone();
+        reserved[0] |= 0x40;
+        assertEquals(WebSocket.PROTOCOL_ERROR, reject(reserved));
+
+        assertEquals(WebSocket.PROTOCOL_ERROR, reject(clientFrame(0x3, "x")));
+        assertEquals(WebSocket.PROTOCOL_ERROR, reject(clientFrame(0xB, "x")));
+        assertEquals(WebSocket.PROTOCOL_ERROR,
+                reject(clientFrame(false, WebSocketFrames.PING, new byte[1])));
+        assertEquals(WebSocket.PROTOCOL_ERROR,
+                reject(clientFrame(true, WebSocketFrames.PING, new byte[126])));
+        assertEquals(WebSocket.PROTOCOL_ERROR,
+                reject(clientFrame(WebSocketFrames.CONTINUATION, "x")));
+        assertEquals(WebSocket.PROTOCOL_ERROR, reject(concat(
+                clientFrame(false, WebSocketFrames.TEXT, new byte[1]), text)));
+
+        byte[] negative = clientFrame(true, WebSocketFrames.BINARY, new byte[0], 8);
+        negative[2] = (byte) 0x80;
+        assertEquals(WebSocket.PROTOCOL_ERROR, reject(negative));
+    }
+
+    @Test
+    void rejectsOversizeMessagesFromTheirHeaders() {
+        assertEquals(WebSocket.MESSAGE_TOO_BIG, reject(100, clientFrame(true, WebSocketFrames.BINARY, new byte[101])));
+        // Across fragments, before the fragment that overflows has arrived
+        byte[] first = clientFrame(false, WebSocketFrames.BINARY, new byte[60]);
+        byte[] second = clientFrame(true, WebSocketFrames.CONTINUATION, new byte[41]);
+        assertEquals(WebSocket.MESSAGE_TOO_BIG, reject(100, concat(first, Arrays.copyOf(second, 6))));
+    }
+
+    @Test
+    void waitsForAWholeHeader() throws WebSocketFrames.ProtocolException {
+        byte[] frame = clientFrame(true, WebSocketFrames.BINARY, new byte[0x10000]);
+        Events events = new Events();
+        ByteBuffer in = ByteBuffer.wrap(frame, 0, 13);
+        new WebSocketFrames.Decoder(1 << 20).decode(in, events);
+        assertEquals(0, in.position());
+        assertTrue(events.events.isEmpty());
+    }
+
+    @Test
+    void encodesUnmaskedServerFrames() {
+        assertArrayEquals(new byte[] {(byte) 0x81, 2, 'h', 'i'},
+                WebSocketFrames.encode(WebSocketFrames.TEXT, "hi".getBytes(StandardCharsets.UTF_8)));
+
+        byte[] medium = WebSocketFrames.encode(WebSocketFrames.BINARY, new byte[126]);
+        assertEquals(4 + 126, medium.length);
+        assertArrayEquals(new byte[] {(byte) 0x82, 126, 0, 126}, Arrays.copyOf(medium, 4));
+
+        byte[] large = WebSocketFrames.encode(WebSocketFrames.BINARY, new byte[0x10000]);
+        assertEquals(10 + 0x10000, large.length);
+        assertArrayEquals(new byte[] {(byte) 0x82, 127, 0, 0, 0, 0, 0, 1, 0, 0}, Arrays.copyOf(large, 10));
+    }
+
+    @Test
+    void encodesClosePayloads() {
+        assertArrayEquals(new byte[0], WebSocketFrames.closePayload(WebSocket.NO_STATUS, "ignored"));
+        assertArrayEquals(new byte[] {0x03, (byte) 0xE8, 'o', 'k'},
+                WebSocketFrames.closePayload(WebSocket.NORMAL_CLOSURE, "ok"));
+        assertThrows(IllegalArgumentException.class,
+                () -> WebSocketFrames.closePayload(WebSocket.NORMAL_CLOSURE, "r".repeat(124)));
+    }
+
+    @Test
+    void acceptsOnlyCloseCodesAllowedOnTheWire() {
+        for (int code : new int[] {1000, 1001, 1002, 1003, 1007, 1008, 1009, 1010, 1011, 3000, 4999}) {
+            assertTrue(WebSocketFrames.isValidCloseCode(code), "code " + code);
+        }
+        for (int code : new int[] {0, 999, 1004, 1005, 1006, 1012, 2999, 5000}) {
+            assertFalse(WebSocketFrames.isValidCloseCode(code), "code " + code);
+        }
+    }
+}
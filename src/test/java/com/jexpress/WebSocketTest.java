@@ -0,0 +1,245 @@
+package com.jexpress;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.jexpress.WebSocketFramesTest.clientFrame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives a WebSocket with client frames and records the frames it sends
+ * and the callbacks it makes. Callbacks run on the calling thread.
+ */
+class WebSocketTest {
+    private static final int MAX_MESSAGE_SIZE = 1000;
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final RecordingTransport transport = new RecordingTransport();
+    private WebSocket socket;
+
+    /**
+     * Records callbacks as short strings; echoes text, and fails on "boom".
+     */
+    private final WebSocketHandler handler = new WebSocketHandler() {
+        @Override
+        public void onOpen(WebSocket ws) {
+            events.add("open");
+        }
+
+        @Override
+        public void onText(WebSocket ws, String text) {
+            if (text.equals("boom")) {
+                throw new IllegalStateException("boom");
+            }
+            events.add("text " + text);
+            ws.send("echo " + text);
+        }
+
+        @Override
+        public void onBinary(WebSocket ws, byte[] data) {
+            events.add("binary " + data.length);
+        }
+
+        @Override
+        public void onClose(WebSocket ws, int code, String reason) {
+            events.add("close " + code + " " + reason);
+        }
+
+        @Override
+        public void onError(WebSocket ws, Throwable error) {
+            events.add("error " + error.getMessage());
+        }
+    };
+
+    /**
+     * Keeps every frame sent, decoded, and whether the connection was closed.
+     */
+    private static final class RecordingTransport implements WebSocket.Transport {
+        final List<String> frames = new ArrayList<>();
+        boolean lastSent;
+        boolean closed;
+
+        @Override
+        public synchronized boolean send(byte[] frame, boolean last) {
+            if (lastSent || closed) {
+                return false;
+            }
+            lastSent = last;
+            frames.add(describe(frame));
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            // Only the closing handshake's timeout aborts, long after a test ends
+        }
+
+        @Override
+        public void resume() {
+        }
+
+        /**
+         * Describe a server frame as "opcode payload", or "8 code reason"
+         * for a close frame.
+         */
+        private static String describe(byte[] frame) {
+            assertEquals(0x80, frame[0] & 0xF0, "server frames are final and use no reserved bits");
+            assertEquals(0, frame[1] & 0x80, "server frames are not masked");
+            int opcode = frame[0] & 0x0F;
+            int length7 = frame[1] & 0x7F;
+            int offset = length7 == 126 ? 4 : length7 == 127 ? 10 : 2;
+            ByteBuffer payload = ByteBuffer.wrap(frame, offset, frame.length - offset);
+            if (opcode == WebSocketFrames.CLOSE && payload.remaining() >= 2) {
+                int code = payload.getShort() & 0xFFFF;
+                return opcode + " " + code + " " + StandardCharsets.UTF_8.decode(payload);
+            }
+            return opcode + " " + StandardCharsets.UTF_8.decode(payload);
+        }
+    }
+
+    @BeforeEach
+    void open() {
+        Request handshake = new Request();
+        handshake.setPath("/live");
+        socket = new WebSocket(handler, handshake);
+        socket.open(transport, Runnable::run, MAX_MESSAGE_SIZE);
+    }
+
+    private void receive(byte[]... frames) {
+        for (byte[] frame : frames) {
+            socket.receive(ByteBuffer.wrap(frame));
+        }
+    }
+
+    private static byte[] closeFrame(int code, String reason) {
+        return clientFrame(true, WebSocketFrames.CLOSE, WebSocketFrames.closePayload(code, reason));
+    }
+
+    @Test
+    void deliversMessagesAndAnswersPings() {
+        receive(clientFrame(WebSocketFrames.TEXT, "hi"),
+                clientFrame(WebSocketFrames.PING, "p"),
+                clientFrame(true, WebSocketFrames.BINARY, new byte[300]),
+                clientFrame(WebSocketFrames.PONG, "unsolicited"));
+        assertEquals(Arrays.asList("open", "text hi", "binary 300"), events);
+        assertEquals(Arrays.asList("1 echo hi", "10 p"), transport.frames);
+        assertTrue(socket.isOpen());
+    }
+
+    @Test
+    void echoesTheClientsClose() {
+        receive(closeFrame(WebSocket.NORMAL_CLOSURE, "bye"));
+        assertEquals(Collections.singletonList("8 1000 bye"), transport.frames);
+        assertTrue(transport.closed);
+        assertFalse(socket.isOpen());
+        assertEquals(Arrays.asList("open", "close 1000 bye"), events);
+
+        // The dropped connection is not reported a second time
+        socket.disconnected();
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    void echoesAnEmptyCloseWithoutAStatus() {
+        receive(clientFrame(true, WebSocketFrames.CLOSE, new byte[0]));
+        assertEquals(Collections.singletonList("8 "), transport.frames);
+        assertEquals(Arrays.asList("open", "close 1005 "), events);
+    }
+
+    @Test
+    void completesTheServersClose() {
+        socket.close(4000, "done");
+        assertFalse(socket.isOpen());
+        assertFalse(socket.send("late"), "nothing is sent after the close frame");
+        assertFalse(transport.closed, "waits for the client's close");
+
+        // Messages the client sent before it saw the close are dropped
+        receive(clientFrame(WebSocketFrames.TEXT, "in flight"), closeFrame(4000, "done"));
+        assertEquals(Collections.singletonList("8 4000 done"), transport.frames);
+        assertTrue(transport.closed);
+        assertEquals(Arrays.asList("open", "close 4000 done"), events);
+    }
+
+    @Test
+    void closesWith1007ForInvalidUtf8() {
+        receive(clientFrame(true, WebSocketFrames.TEXT, new byte[] {'o', 'k', (byte) 0xC3, (byte) 0x28}));
+        assertEquals(Collections.singletonList("8 1007 Text is not valid UTF-8"), transport.frames);
+        assertTrue(transport.closed);
+        assertEquals(Arrays.asList("open", "close 1007 Text is not valid UTF-8"), events);
+    }
+
+    @Test
+    void closesWith1007ForAnInvalidCloseReason() {
+        byte[] payload = {0x03, (byte) 0xE8, (byte) 0xFF};
+        receive(clientFrame(true, WebSocketFrames.CLOSE, payload));
+        assertEquals(Collections.singletonList("8 1007 Text is not valid UTF-8"), transport.frames);
+    }
+
+    @Test
+    void closesWith1009ForOversizeMessages() {
+        receive(clientFrame(true, WebSocketFrames.BINARY, new byte[MAX_MESSAGE_SIZE + 1]));
+        assertEquals(1, transport.frames.size());
+        assertTrue(transport.frames.get(0).startsWith("8 1009 "), transport.frames.get(0));
+        assertTrue(transport.closed);
+        assertTrue(events.get(1).startsWith("close 1009 "), events.get(1));
+    }
+
+    @Test
+    void closesWith1002ForAnInvalidCloseCode() {
+        // 1005 only stands for a missing code and may not be sent
+        receive(clientFrame(true, WebSocketFrames.CLOSE, new byte[] {0x03, (byte) 0xED}));
+        assertEquals(Collections.singletonList("8 1002 Invalid close code 1005"), transport.frames);
+        assertTrue(transport.closed);
+        assertEquals(Arrays.asList("open", "close 1002 Invalid close code 1005"), events);
+    }
+
+    @Test
+    void ignoresFramesAfterClosing() {
+        receive(closeFrame(WebSocket.GOING_AWAY, ""),
+                clientFrame(WebSocketFrames.TEXT, "after"),
+                clientFrame(WebSocketFrames.PING, "after"));
+        assertEquals(Collections.singletonList("8 1001 "), transport.frames);
+        assertEquals(Arrays.asList("open", "close 1001 "), events);
+    }
+
+    @Test
+    void closesWith1011WhenTheHandlerFails() {
+        receive(clientFrame(WebSocketFrames.TEXT, "boom"));
+        assertEquals(Arrays.asList("open", "error boom"), events);
+        assertEquals(Collections.singletonList("8 1011 Internal error"), transport.frames);
+        assertFalse(socket.isOpen());
+    }
+
+    @Test
+    void reportsADroppedConnectionAsAbnormal() {
+        socket.disconnected();
+        socket.disconnected();
+        assertEquals(Arrays.asList("open", "close 1006 "), events);
+        assertFalse(socket.isOpen());
+    }
+
+    @Test
+    void broadcastSkipsClosedConnections() {
+        WebSocket closing = new WebSocket(handler, new Request());
+        RecordingTransport closingTransport = new RecordingTransport();
+        closing.open(closingTransport, Runnable::run, MAX_MESSAGE_SIZE);
+        closing.close();
+        assertEquals(1, WebSocket.broadcast(Arrays.asList(socket, closing), "news"));
+        assertEquals(Collections.singletonList("1 news"), transport.frames);
+        assertEquals(Collections.singletonList("8 1000 "), closingTransport.frames);
+    }
+}
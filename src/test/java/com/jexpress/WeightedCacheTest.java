@@ -0,0 +1,120 @@
+package com.jexpress;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Budget of 1000: a window of 10 and a main space of 990, of which 792
+ * protected.
+ */
+class WeightedCacheTest {
+    private static final long MAX_WEIGHT = 1000;
+    private static final long LIVE = Long.MAX_VALUE / 2;
+
+    private static WeightedCache<String> cache() {
+        return new WeightedCache<>(MAX_WEIGHT, 64);
+    }
+
+    /**
+     * Look a key up the way callers do, storing it on a miss.
+     */
+    private static String fetch(WeightedCache<String> cache, String key, long weight) {
+        long now = System.nanoTime();
+        String value = cache.get(key, now);
+        if (value == null) {
+            value = "value of " + key;
+            cache.put(key, value, weight, now + LIVE);
+        }
+        return value;
+    }
+
+    /**
+     * A popular key, then a scan of one-off keys each fetched twice.
+     *
+     * @return Whether the popular key is still cached afterwards
+     */
+    private static boolean popularKeySurvivesScan(boolean admission) {
+        WeightedCache<String> cache = cache();
+        cache.setAdmission(admission);
+        for (int i = 0; i < 10; i++) {
+            fetch(cache, "/popular", 100);
+        }
+        for (int i = 0; i < 100; i++) {
+            fetch(cache, "/once/" + i, 100);
+            fetch(cache, "/once/" + i, 100);
+            assertTrue(cache.weight() <= MAX_WEIGHT);
+        }
+        return cache.get("/popular", System.nanoTime()) != null;
+    }
+
+    @Test
+    void popularKeySurvivesAScanWithAdmission() {
+        assertTrue(popularKeySurvivesScan(true));
+    }
+
+    @Test
+    void popularKeyIsEvictedByAScanWithoutAdmission() {
+        assertFalse(popularKeySurvivesScan(false));
+    }
+
+    @Test
+    void entriesExpire() {
+        WeightedCache<String> cache = cache();
+        long now = System.nanoTime();
+        assertTrue(cache.put("/a", "a", 5, now + 100));
+        assertEquals("a", cache.get("/a", now + 99));
+        assertNull(cache.get("/a", now + 100));
+        assertEquals(0, cache.weight());
+        assertNull(cache.get("/a", now));
+    }
+
+    @Test
+    void refusesEntriesHeavierThanTheMainSpace() {
+        WeightedCache<String> cache = cache();
+        long now = System.nanoTime();
+        assertFalse(cache.put("/huge", "huge", 991, now + LIVE));
+        assertNull(cache.get("/huge", now));
+        assertEquals(0, cache.weight());
+        assertTrue(cache.put("/large", "large", 990, now + LIVE));
+        assertEquals("large", cache.get("/large", now));
+        assertEquals(990, cache.weight());
+    }
+
+    @Test
+    void replacesAndRemovesEntries() {
+        WeightedCache<String> cache = cache();
+        long now = System.nanoTime();
+        cache.put("/a", "first", 100, now + LIVE);
+        cache.put("/a", "second", 200, now + LIVE);
+        assertEquals("second", cache.get("/a", now));
+        assertEquals(200, cache.weight());
+
+        cache.remove("/a");
+        cache.remove("/missing");
+        assertNull(cache.get("/a", now));
+        assertEquals(0, cache.weight());
+
+        cache.put("/b", "b", 100, now + LIVE);
+        cache.clear();
+        assertNull(cache.get("/b", now));
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void staysWithinTheBudget() {
+        WeightedCache<String> cache = cache();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            String key = "/" + random.nextInt(200);
+            fetch(cache, key, 1 + random.nextInt(300));
+            assertTrue(cache.weight() <= MAX_WEIGHT, "weight " + cache.weight());
+        }
+        assertTrue(cache.weight() > MAX_WEIGHT / 2, "weight " + cache.weight());
+    }
+}
@@ -0,0 +1,54 @@
+package com.jexpresstest;
+
+import com.jexpress.JExpress;
+
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manual load test comparing the thread-per-connection server with the
+ * non-blocking event-loop server. For each mode it opens a batch of idle
+ * connections, reports how many the server keeps open, and then measures
+ * throughput and latency while those connections are held.
+ *
+ * Usage: ConnectionModeBenchmark [idleConnections] [concurrency] [durationSeconds]
+ */
+public class ConnectionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long durationMillis = (args.length > 2 ? Long.parseLong(args[2]) : 10) * 1000;
+
+        run("blocking", JExpress.create(), 18080, idleConnections, concurrency, durationMillis);
+        run("nio", JExpress.create().nio(), 18081, idleConnections, concurrency, durationMillis);
+        System.exit(0);
+    }
+
+    private static void run(String name, JExpress app, int port, int idleConnections,
+                            int concurrency, long durationMillis) throws Exception {
+        app.getRouter().get("/hello", (req, res) -> res.json("{\"message\": \"Hello, World!\"}"));
+
+        Thread server = new Thread(() -> app.listen(port).start(), "server-" + name);
+        server.setDaemon(true);
+        server.start();
+        app.ready().get(10, TimeUnit.SECONDS);
+
+        LoadGenerator generator = new LoadGenerator("127.0.0.1", port, "/hello");
+
+        // Warm up
+        generator.run(concurrency, 2000);
+
+        List<Socket> held = generator.holdIdleConnections(idleConnections, 1000);
+        LoadGenerator.Result result = generator.run(concurrency, durationMillis);
+
+        System.out.printf("%-8s idle connections held: %d/%d%n", name, held.size(), idleConnections);
+        System.out.printf("%-8s %s%n", name, result);
+
+        for (Socket socket : held) {
+            LoadGenerator.closeQuietly(socket);
+        }
+        app.stop();
+    }
+}
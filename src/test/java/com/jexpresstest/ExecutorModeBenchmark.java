@@ -0,0 +1,56 @@
+package com.jexpresstest;
+
+import com.jexpress.ExecutorStrategy;
+import com.jexpress.JExpress;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manual benchmark comparing tail latency across executor strategies when
+ * handlers block on simulated I/O (a sleep standing in for a database call).
+ *
+ * Usage: ExecutorModeBenchmark [concurrency] [blockingMillis] [durationSeconds]
+ */
+public class ExecutorModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long blockingMillis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        long durationMillis = (args.length > 2 ? Long.parseLong(args[2]) : 10) * 1000;
+
+        int port = 18180;
+        run("cached", ExecutorStrategy.cached(), port++, concurrency, blockingMillis, durationMillis);
+        run("bounded", ExecutorStrategy.bounded(50, 1024, ExecutorStrategy.RejectionPolicy.REJECT),
+                port++, concurrency, blockingMillis, durationMillis);
+        if (ExecutorStrategy.isVirtualThreadSupported()) {
+            run("virtual", ExecutorStrategy.virtualThreads(), port, concurrency, blockingMillis, durationMillis);
+        } else {
+            System.out.println("virtual  skipped: runtime does not support virtual threads");
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, ExecutorStrategy strategy, int port, int concurrency,
+                            long blockingMillis, long durationMillis) throws Exception {
+        JExpress app = JExpress.create().executor(strategy);
+        app.getRouter().get("/query", (req, res) -> {
+            try {
+                Thread.sleep(blockingMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            res.json("{\"rows\": []}");
+        });
+
+        Thread server = new Thread(() -> app.listen(port).start(), "server-" + name);
+        server.setDaemon(true);
+        server.start();
+        app.ready().get(10, TimeUnit.SECONDS);
+
+        LoadGenerator generator = new LoadGenerator("127.0.0.1", port, "/query");
+        generator.run(concurrency, 2000);
+        LoadGenerator.Result result = generator.run(concurrency, durationMillis);
+        System.out.printf("%-8s %s%n", name, result);
+        app.stop();
+    }
+}
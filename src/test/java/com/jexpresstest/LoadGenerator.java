@@ -0,0 +1,291 @@
+package com.jexpresstest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal closed-loop HTTP load generator used by the manual benchmarks.
+ * Each client thread sends a request, waits for the full response and
+ * immediately sends the next one, reusing the connection when the server
+ * allows it.
+ */
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final String path;
+
+    public LoadGenerator(String host, int port, String path) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    /**
+     * Result of a load run.
+     */
+    public static class Result {
+        private final long requests;
+        private final long errors;
+        private final long elapsedNanos;
+        private final long[] latencies;
+
+        Result(long requests, long errors, long elapsedNanos, long[] latencies) {
+            this.requests = requests;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getThroughput() {
+            return requests / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * Latency percentile in microseconds.
+         *
+         * @param percentile Percentile between 0 and 100
+         * @return Latency in microseconds
+         */
+        public double percentileMicros(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d throughput=%.0f req/s p50=%.0fus p99=%.0fus p999=%.0fus",
+                    requests, errors, getThroughput(),
+                    percentileMicros(50), percentileMicros(99), percentileMicros(99.9));
+        }
+    }
+
+    /**
+     * Drive the server with a fixed number of concurrent clients.
+     *
+     * @param concurrency Number of client threads
+     * @param durationMillis How long to run
+     * @return Aggregated result
+     * @throws InterruptedException If interrupted while waiting for clients
+     */
+    public Result run(int concurrency, long durationMillis) throws InterruptedException {
+        AtomicLong requests = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long[][] samples = new long[concurrency][];
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        long deadline = start + durationMillis * 1_000_000L;
+
+        for (int i = 0; i < concurrency; i++) {
+            LatencyRecorder recorder = new LatencyRecorder();
+            int slot = i;
+            Thread client = new Thread(() -> {
+                try {
+                    clientLoop(deadline, recorder, requests, errors);
+                } finally {
+                    samples[slot] = recorder.toArray();
+                    done.countDown();
+                }
+            }, "load-client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        int total = 0;
+        for (long[] s : samples) {
+            total += s.length;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (long[] s : samples) {
+            System.arraycopy(s, 0, all, offset, s.length);
+            offset += s.length;
+        }
+        return new Result(requests.get(), errors.get(), elapsed, all);
+    }
+
+    private void clientLoop(long deadline, LatencyRecorder recorder, AtomicLong requests, AtomicLong errors) {
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        while (System.nanoTime() < deadline) {
+            long begin = System.nanoTime();
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(10_000);
+                    socket.connect(new InetSocketAddress(host, port));
+                    in = new BufferedInputStream(socket.getInputStream());
+                    out = socket.getOutputStream();
+                }
+                out.write(request);
+                out.flush();
+                boolean keepAlive = readResponse(in);
+                recorder.record(System.nanoTime() - begin);
+                requests.incrementAndGet();
+                if (!keepAlive) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                closeQuietly(socket);
+                socket = null;
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Read one response and report whether the connection may be reused.
+     */
+    private static boolean readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new IOException("Connection closed before response");
+        }
+        long contentLength = -1;
+        boolean close = statusLine.startsWith("HTTP/1.0");
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+        if (contentLength < 0) {
+            // Body is delimited by connection close
+            while (in.read() >= 0) {
+                // drain
+            }
+            return false;
+        }
+        for (long i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Truncated response body");
+            }
+        }
+        return !close;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Open connections that never send a request and count how many the
+     * server still holds open after a grace period.
+     *
+     * @param count Number of connections to open
+     * @param graceMillis Time to wait before probing
+     * @return Sockets that are still open; the caller closes them
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public List<Socket> holdIdleConnections(int count, long graceMillis) throws InterruptedException {
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                sockets.add(socket);
+            } catch (IOException e) {
+                break;
+            }
+        }
+        Thread.sleep(graceMillis);
+
+        List<Socket> open = new ArrayList<>();
+        for (Socket socket : sockets) {
+            try {
+                socket.setSoTimeout(1);
+                if (socket.getInputStream().read() < 0) {
+                    socket.close();
+                    continue;
+                }
+            } catch (java.net.SocketTimeoutException e) {
+                open.add(socket);
+                continue;
+            } catch (IOException e) {
+                // Reset by peer
+            }
+            closeQuietly(socket);
+        }
+        return open;
+    }
+
+    static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Growable array of latency samples owned by a single client thread.
+     */
+    private static class LatencyRecorder {
+        private long[] values = new long[1 << 16];
+        private int size;
+
+        void record(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.jexpresstest;
 
-import com.google.gson.Gson;
 import com.jexpress.JExpress;
 import com.jexpress.Router;
 import com.jexpress.utils.StatusCodes;
@@ -34,9 +33,6 @@ public class UserManagementApp {
         users.add(new User(1, "John Doe", "john@example.com"));
         users.add(new User(2, "Jane Smith", "jane@example.com"));
 
-        // Create Gson for JSON serialization
-        Gson gson = new Gson();
-
         // Create application
         JExpress app = JExpress.create();
         Router router = app.getRouter();
@@ -44,7 +40,7 @@ public class UserManagementApp {
         // GET all users
         router.get("/users", (req, res) -> {
             LOGGER.info("Fetching all users");
-            res.json(gson.toJson(users));
+            res.sendJson(users);
         });
 
         // GET user by ID with more flexible path matching
@@ -59,14 +55,14 @@ public class UserManagementApp {
                         .orElse(null);
 
                 if (user != null) {
-                    res.json(gson.toJson(user));
+                    res.sendJson(user);
                 } else {
                     res.setStatusCode(StatusCodes.NOT_FOUND);
-                    res.json(gson.toJson("User not found"));
+                    res.sendJson("User not found");
                 }
             } catch (NumberFormatException e) {
                 res.setStatusCode(StatusCodes.BAD_REQUEST);
-                res.json(gson.toJson("Invalid user ID"));
+                res.sendJson("Invalid user ID");
             }
         });
 
@@ -74,12 +70,12 @@ public class UserManagementApp {
         router.post("/users", (req, res) -> {
             try {
                 LOGGER.info("Received user creation request");
-                User newUser = gson.fromJson(req.getBody(), User.class);
+                User newUser = req.bodyAs(User.class);
 
                 // Simple validation
                 if (newUser.name == null || newUser.email == null) {
                     res.setStatusCode(StatusCodes.BAD_REQUEST);
-                    res.json(gson.toJson("Name and email are required"));
+                    res.sendJson("Name and email are required");
                     return;
                 }
 
@@ -88,18 +84,18 @@ public class UserManagementApp {
                 users.add(newUser);
 
                 res.setStatusCode(StatusCodes.CREATED);
-                res.json(gson.toJson(newUser));
+                res.sendJson(newUser);
             } catch (Exception e) {
                 LOGGER.severe("Error creating user: " + e.getMessage());
                 res.setStatusCode(StatusCodes.BAD_REQUEST);
-                res.json(gson.toJson("Invalid user data"));
+                res.sendJson("Invalid user data");
             }
         });
 
         // Optional: Add a health check endpoint
         router.get("/health", (req, res) -> {
             LOGGER.info("Health check endpoint accessed");
-            res.json(gson.toJson("{\"status\": \"healthy\"}"));
+            res.json("{\"status\": \"healthy\"}");
         });
 
         // Start the server on port 8080